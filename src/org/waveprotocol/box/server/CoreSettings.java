@@ -46,6 +46,28 @@ public class CoreSettings {
   public static final String ACCOUNT_STORE_DIRECTORY = "account_store_directory";
   public static final String DELTA_STORE_TYPE = "delta_store_type";
   public static final String DELTA_STORE_DIRECTORY = "delta_store_directory";
+  public static final String DELTA_STORE_SNAPSHOT_INTERVAL = "delta_store_snapshot_interval";
+  public static final String DELTA_STORE_MEMORY_MAPPED = "delta_store_memory_mapped";
+  public static final String DELTA_STORE_GROUP_COMMIT_WINDOW_MS =
+      "delta_store_group_commit_window_ms";
+  public static final String DELTA_STORE_SEGMENT_SIZE_MB = "delta_store_segment_size_mb";
+  public static final String DELTA_STORE_COMPACTION_INTERVAL_SECONDS =
+      "delta_store_compaction_interval_seconds";
+  public static final String DELTA_CACHE_CAPACITY = "delta_cache_capacity";
+  public static final String WAVE_IDLE_UNLOAD_SECONDS = "wave_idle_unload_seconds";
+  public static final String MAX_RESIDENT_WAVES = "max_resident_waves";
+  public static final String WAVELET_WARMUP_THREADS = "wavelet_warmup_threads";
+  public static final String WAVELET_WARMUP_MEMORY_BUDGET_MB = "wavelet_warmup_memory_budget_mb";
+  public static final String WAVE_BUS_ASYNC_QUEUE_SIZE = "wave_bus_async_queue_size";
+  public static final String WAVE_BUS_ASYNC_THREADS = "wave_bus_async_threads";
+  public static final String WAVE_BUS_ASYNC_ENQUEUE_TIMEOUT_MS =
+      "wave_bus_async_enqueue_timeout_ms";
+  public static final String RPC_OUTBOUND_COALESCE_WINDOW_MS = "rpc_outbound_coalesce_window_ms";
+  public static final String RPC_OUTBOUND_HIGH_WATER_MARK = "rpc_outbound_high_water_mark";
+  public static final String RPC_EXECUTOR_THREADS = "rpc_executor_threads";
+  public static final String RPC_EXECUTOR_QUEUE_SIZE = "rpc_executor_queue_size";
+  public static final String RPC_ENCODED_DELTA_CACHE_SIZE = "rpc_encoded_delta_cache_size";
+  public static final String RPC_ENCODED_DELTA_CACHE_SECONDS = "rpc_encoded_delta_cache_seconds";
   public static final String SESSIONS_STORE_DIRECTORY = "sessions_store_directory";
   public static final String FLASHSOCKET_POLICY_PORT = "flashsocket_policy_port";
   public static final String WEBSOCKET_MAX_MESSAGE_SIZE = "websocket_max_message_size";
@@ -60,6 +82,7 @@ public class CoreSettings {
   public static final String DELTA_PERSIST_EXECUTOR_THREAD_COUNT = "delta_persist_executor_thread_count";
   public static final String STORAGE_CONTINUATION_EXECUTOR_THREAD_COUNT = "storage_continuation_executor_thread_count";
   public static final String LOOKUP_EXECUTOR_THREAD_COUNT = "lookup_executor_thread_count";
+  public static final String STATS_LOG_INTERVAL_SECONDS = "stats_log_interval_seconds";
   public static final String DISABLE_REGISTRATION = "disable_registration";
   public static final String ENABLE_SSL = "enable_ssl";
   public static final String SSL_KEYSTORE_PATH = "ssl_keystore_path";
@@ -69,6 +92,11 @@ public class CoreSettings {
   public static final String DISABLE_LOGINPAGE = "disable_loginpage";
   public static final String SEARCH_TYPE = "search_type";
   public static final String INDEX_DIRECTORY = "index_directory";
+  public static final String REINDEX_THREADS = "reindex_threads";
+  public static final String ROBOT_MAX_IN_FLIGHT = "robot_max_in_flight";
+  public static final String ROBOT_CONNECTION_TIMEOUT_MS = "robot_connection_timeout_ms";
+  public static final String ROBOT_EVENT_COALESCE_WINDOW_MS = "robot_event_coalesce_window_ms";
+  public static final String ROBOT_LIVE_WAVELET_MODELS = "robot_live_wavelet_models";
   public static final String ANALYTICS_ACCOUNT = "analytics_account";
   public static final String THUMBNAIL_PATTERNS_DIRECTORY = "thumbnail_patterns_directory";
 
@@ -146,6 +174,127 @@ public class CoreSettings {
       defaultValue = "_deltas")
   private static String deltaStoreDirectory;
 
+  @Setting(name = DELTA_STORE_SNAPSHOT_INTERVAL,
+      description = "The number of versions between wavelet snapshots stored alongside the "
+          + "deltas, which speed up loading wavelets with a long history. 0 disables snapshots.",
+      defaultValue = "1000")
+  private static int deltaStoreSnapshotInterval;
+
+  @Setting(name = DELTA_STORE_MEMORY_MAPPED,
+      description = "Whether the file delta store reads deltas through memory mappings "
+          + "of the delta files rather than with a system call per read.",
+      defaultValue = "false")
+  private static boolean deltaStoreMemoryMapped;
+
+  @Setting(name = DELTA_STORE_GROUP_COMMIT_WINDOW_MS,
+      description = "The number of milliseconds concurrent appends to the log delta store wait "
+          + "for each other, so that they share fsync calls. Needs more than one delta persist "
+          + "thread. 0 syncs each append on its own.",
+      defaultValue = "0")
+  private static int deltaStoreGroupCommitWindowMs;
+
+  @Setting(name = DELTA_STORE_SEGMENT_SIZE_MB,
+      description = "The size in megabytes at which the log delta store starts a new segment "
+          + "file.",
+      defaultValue = "64")
+  private static int deltaStoreSegmentSizeMb;
+
+  @Setting(name = DELTA_STORE_COMPACTION_INTERVAL_SECONDS,
+      description = "The number of seconds between compactions of the log delta store, which "
+          + "reclaim the space of deleted wavelets and replaced snapshots. 0 disables compaction.",
+      defaultValue = "600")
+  private static int deltaStoreCompactionIntervalSeconds;
+
+  @Setting(name = DELTA_CACHE_CAPACITY,
+      description = "The maximum number of operations in the persisted deltas kept in memory "
+          + "for each loaded wavelet. 0 disables the cache.",
+      defaultValue = "1000")
+  private static int deltaCacheCapacity;
+
+  @Setting(name = WAVE_IDLE_UNLOAD_SECONDS,
+      description = "The number of seconds after which the fully persisted wavelets of a wave "
+          + "that hasn't been accessed are unloaded from memory. 0 disables idle unloading.",
+      defaultValue = "0")
+  private static int waveIdleUnloadSeconds;
+
+  @Setting(name = MAX_RESIDENT_WAVES,
+      description = "The maximum number of waves kept in memory. The least recently accessed "
+          + "waves are unloaded once their wavelets are persisted. 0 means no limit.",
+      defaultValue = "0")
+  private static int maxResidentWaves;
+
+  @Setting(name = WAVELET_WARMUP_THREADS,
+      description = "The number of wavelets loaded in parallel at startup, most recently "
+          + "modified first, so that they are in memory before users ask for them. "
+          + "0 disables warming up.",
+      defaultValue = "0")
+  private static int waveletWarmupThreads;
+
+  @Setting(name = WAVELET_WARMUP_MEMORY_BUDGET_MB,
+      description = "The number of megabytes the heap may grow by while wavelets are warmed up "
+          + "at startup. 0 means no limit.",
+      defaultValue = "256")
+  private static int waveletWarmupMemoryBudgetMb;
+
+  @Setting(name = WAVE_BUS_ASYNC_QUEUE_SIZE,
+      description = "The number of notifications queued for each wave bus subscriber when "
+          + "notifications are dispatched asynchronously. 0 dispatches synchronously, "
+          + "while the wavelet is locked.",
+      defaultValue = "0")
+  private static int waveBusAsyncQueueSize;
+
+  @Setting(name = WAVE_BUS_ASYNC_THREADS,
+      description = "The number of threads delivering asynchronous notifications to each wave "
+          + "bus subscriber. Notifications of a wavelet are always delivered by the "
+          + "same thread.",
+      defaultValue = "1")
+  private static int waveBusAsyncThreads;
+
+  @Setting(name = WAVE_BUS_ASYNC_ENQUEUE_TIMEOUT_MS,
+      description = "The number of milliseconds a wavelet update waits for room in a full wave "
+          + "bus subscriber queue before a warning is logged. The update keeps waiting, so "
+          + "no notification is dropped.",
+      defaultValue = "1000")
+  private static int waveBusAsyncEnqueueTimeoutMs;
+
+  @Setting(name = RPC_OUTBOUND_COALESCE_WINDOW_MS,
+      description = "The number of milliseconds messages to a client connection are held, so "
+          + "that wavelet updates sent meanwhile are merged and written in one batch. 0 "
+          + "sends each message right away.",
+      defaultValue = "0")
+  private static int rpcOutboundCoalesceWindowMs;
+
+  @Setting(name = RPC_OUTBOUND_HIGH_WATER_MARK,
+      description = "The number of messages which may be waiting while a write to a client "
+          + "connection is still in progress, when messages are held for merging, before "
+          + "the connection is closed as too slow. 0 means no limit.",
+      defaultValue = "1000")
+  private static int rpcOutboundHighWaterMark;
+
+  @Setting(name = RPC_EXECUTOR_THREADS,
+      description = "The number of threads which run client RPCs. The RPCs of one connection "
+          + "run one at a time. 0 starts a new thread whenever no thread is idle, "
+          + "without limit.",
+      defaultValue = "64")
+  private static int rpcExecutorThreads;
+
+  @Setting(name = RPC_EXECUTOR_QUEUE_SIZE,
+      description = "The number of client RPCs which may wait for a thread. Further RPCs fail "
+          + "until the backlog clears. 0 means no limit.",
+      defaultValue = "10000")
+  private static int rpcExecutorQueueSize;
+
+  @Setting(name = RPC_ENCODED_DELTA_CACHE_SIZE,
+      description = "The number of recently applied deltas whose encoded form is kept, in each "
+          + "encoding, so that a delta sent to many clients is encoded only once.",
+      defaultValue = "1000")
+  private static int rpcEncodedDeltaCacheSize;
+
+  @Setting(name = RPC_ENCODED_DELTA_CACHE_SECONDS,
+      description = "The number of seconds the encoded form of an applied delta is kept.",
+      defaultValue = "30")
+  private static int rpcEncodedDeltaCacheSeconds;
+
   @Setting(name = SESSIONS_STORE_DIRECTORY,
       description = "Location on disk where the user sessions are persisted. Must be writeable by the "
           + "wave-in-a-box process.",
@@ -210,6 +359,12 @@ public class CoreSettings {
       defaultValue = "1")
   private static int lookupExecutorThreadCount;
 
+  @Setting(name = STATS_LOG_INTERVAL_SECONDS,
+      description = "How often to log the server's performance counters, in seconds. 0 disables "
+          + "the logging.",
+      defaultValue = "300")
+  private static int statsLogIntervalSeconds;
+
   @Setting(name = DISABLE_REGISTRATION,
       description = "Prevents the register page from being available to anyone", defaultValue = "false")
   private static boolean disableRegistration;
@@ -242,6 +397,35 @@ public class CoreSettings {
       description = "Location on disk where the index is persisted", defaultValue = "_indexes")
   private static String indexDirectory;
 
+  @Setting(name = REINDEX_THREADS,
+      description = "Number of threads that rebuild the search index at startup",
+      defaultValue = "4")
+  private static int reindexThreads;
+
+  @Setting(name = ROBOT_MAX_IN_FLIGHT,
+      description = "Maximum number of event bundles each passive robot may be processing at "
+          + "once, each on a different wavelet. Only raise it for robots which handle "
+          + "concurrent requests",
+      defaultValue = "1")
+  private static int robotMaxInFlight;
+
+  @Setting(name = ROBOT_CONNECTION_TIMEOUT_MS,
+      description = "Time in milliseconds to wait for a robot to respond",
+      defaultValue = "30000")
+  private static int robotConnectionTimeoutMs;
+
+  @Setting(name = ROBOT_EVENT_COALESCE_WINDOW_MS,
+      description = "Time in milliseconds during which updates to a wavelet are merged into one "
+          + "bundle for a robot",
+      defaultValue = "0")
+  private static int robotEventCoalesceWindowMs;
+
+  @Setting(name = ROBOT_LIVE_WAVELET_MODELS,
+      description = "The most wavelet models each robot keeps alive to generate events "
+          + "incrementally",
+      defaultValue = "32")
+  private static int robotLiveWaveletModels;
+
   @Setting(name = SEARCH_TYPE,
       description = "The wave search type", defaultValue = "lucene")
   private static String searchType;
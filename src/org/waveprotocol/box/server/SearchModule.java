@@ -24,7 +24,6 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
-import org.waveprotocol.box.server.persistence.file.FileUtils;
 import org.waveprotocol.box.server.persistence.lucene.FSIndexDirectory;
 import org.waveprotocol.box.server.persistence.lucene.IndexDirectory;
 import org.waveprotocol.box.server.waveserver.LucenePerUserWaveViewHandlerImpl;
@@ -40,6 +39,7 @@ import org.waveprotocol.box.server.waveserver.SimpleSearchProviderImpl;
 import org.waveprotocol.box.server.waveserver.SolrSearchProviderImpl;
 import org.waveprotocol.box.server.waveserver.SolrWaveIndexerImpl;
 import org.waveprotocol.box.server.waveserver.WaveIndexer;
+import org.waveprotocol.box.server.waveserver.WaveletContentSearcher;
 
 /**
  * @author yurize@apache.org (Yuri Zelikov)
@@ -66,8 +66,10 @@ public class SearchModule extends AbstractModule {
           Singleton.class);
       bind(PerUserWaveViewHandler.class).to(LucenePerUserWaveViewHandlerImpl.class).in(
           Singleton.class);
+      bind(WaveletContentSearcher.class).to(LucenePerUserWaveViewHandlerImpl.class).in(
+          Singleton.class);
       bind(IndexDirectory.class).to(FSIndexDirectory.class);
-      if (!FileUtils.isDirExistsAndNonEmpty(indexDirectory)) {
+      if (LuceneWaveIndexerImpl.needsReindex(indexDirectory)) {
         bind(WaveIndexer.class).to(LuceneWaveIndexerImpl.class);
       } else {
         bind(WaveIndexer.class).to(NoOpWaveIndexerImpl.class);
@@ -53,6 +53,7 @@ import org.waveprotocol.box.server.robots.agent.welcome.WelcomeRobot;
 import org.waveprotocol.box.server.robots.dataapi.DataApiOAuthServlet;
 import org.waveprotocol.box.server.robots.dataapi.DataApiServlet;
 import org.waveprotocol.box.server.robots.passive.RobotsGateway;
+import org.waveprotocol.box.server.robots.register.RobotRegistrar;
 import org.waveprotocol.box.server.rpc.AttachmentInfoServlet;
 import org.waveprotocol.box.server.rpc.AttachmentServlet;
 import org.waveprotocol.box.server.rpc.AuthenticationServlet;
@@ -67,13 +68,20 @@ import org.waveprotocol.box.server.rpc.SignOutServlet;
 import org.waveprotocol.box.server.rpc.UserRegistrationServlet;
 import org.waveprotocol.box.server.rpc.WaveClientServlet;
 import org.waveprotocol.box.server.rpc.WaveRefServlet;
+import org.waveprotocol.box.server.rpc.WaveletUpdateEncoder;
+import org.waveprotocol.box.server.util.StatsLogger;
+import org.waveprotocol.box.server.util.StatsSource;
+import org.waveprotocol.box.server.waveserver.DeltaCacheStats;
 import org.waveprotocol.box.server.waveserver.PerUserWaveViewBus;
 import org.waveprotocol.box.server.waveserver.PerUserWaveViewDistpatcher;
+import org.waveprotocol.box.server.waveserver.TransformStats;
 import org.waveprotocol.box.server.waveserver.WaveBus;
 import org.waveprotocol.box.server.waveserver.WaveIndexer;
 import org.waveprotocol.box.server.waveserver.WaveServerException;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
+import org.waveprotocol.box.server.waveserver.WaveletSearchIndex;
 import org.waveprotocol.box.server.waveserver.WaveletStateException;
+import org.waveprotocol.box.server.waveserver.WaveletWarmer;
 import org.waveprotocol.wave.crypto.CertPathStore;
 import org.waveprotocol.wave.federation.FederationSettings;
 import org.waveprotocol.wave.federation.FederationTransport;
@@ -162,6 +170,12 @@ public class ServerMain {
         Names.named(CoreSettings.STORAGE_CONTINUATION_EXECUTOR_THREAD_COUNT)));
     int lookupCount = settingsInjector.getInstance(Key.get(Integer.class,
         Names.named(CoreSettings.LOOKUP_EXECUTOR_THREAD_COUNT)));
+    int groupCommitWindowMs = settingsInjector.getInstance(Key.get(Integer.class,
+        Names.named(CoreSettings.DELTA_STORE_GROUP_COMMIT_WINDOW_MS)));
+    if (groupCommitWindowMs > 0 && deltaPersistCount < 2) {
+      LOG.warning("Delta appends only share syncs if "
+          + CoreSettings.DELTA_PERSIST_EXECUTOR_THREAD_COUNT + " is more than 1");
+    }
 
     if (enableFederation) {
       Module federationSettings =
@@ -194,6 +208,7 @@ public class ServerMain {
     initializeFrontend(injector, server, waveBus);
     initializeFederation(injector);
     initializeSearch(injector, waveBus);
+    initializeStats(injector, server);
 
     LOG.info("Starting server");
     server.startWebSocketServer(injector);
@@ -225,6 +240,9 @@ public class ServerMain {
     // Initialize the server.
     WaveletProvider waveServer = injector.getInstance(WaveletProvider.class);
     waveServer.initialize();
+
+    // Load recently modified wavelets before users ask for them.
+    injector.getInstance(WaveletWarmer.class).start();
   }
 
   private static void initializeServlets(Injector injector, ServerRpcProvider server) {
@@ -267,6 +285,10 @@ public class ServerMain {
   private static void initializeRobots(Injector injector, WaveBus waveBus) {
     RobotsGateway robotsGateway = injector.getInstance(RobotsGateway.class);
     waveBus.subscribe(robotsGateway);
+    injector.getInstance(RobotRegistrar.class).addRegistrationListener(robotsGateway);
+    StatsLogger statsLogger = injector.getInstance(StatsLogger.class);
+    statsLogger.register("Robot events", robotsGateway.getEventGeneratorStats());
+    statsLogger.register("Robot deltas", robotsGateway.getSubmissionStats());
   }
 
   private static void initializeRobotAgents(Injector injector, ServerRpcProvider server) {
@@ -301,9 +323,32 @@ public class ServerMain {
         injector.getInstance(PerUserWaveViewDistpatcher.class);
     PerUserWaveViewBus.Listener listener = injector.getInstance(PerUserWaveViewBus.Listener.class);
     waveViewDistpatcher.addListener(listener);
+    if (listener instanceof WaveBus.Subscriber) {
+      // The listener also indexes the contents of the wavelets.
+      waveBus.subscribe((WaveBus.Subscriber) listener);
+    }
     waveBus.subscribe(waveViewDistpatcher);
+    waveBus.subscribe(injector.getInstance(WaveletSearchIndex.class));
 
     WaveIndexer waveIndexer = injector.getInstance(WaveIndexer.class);
     waveIndexer.remakeIndex();
   }
+
+  private static void initializeStats(Injector injector, ServerRpcProvider server) {
+    StatsLogger statsLogger = injector.getInstance(StatsLogger.class);
+    statsLogger.register("Delta cache", injector.getInstance(DeltaCacheStats.class));
+    statsLogger.register("Transforms", injector.getInstance(TransformStats.class));
+    statsLogger.register("Update encoder", injector.getInstance(WaveletUpdateEncoder.class));
+    statsLogger.register("Outbound queues", server.getOutboundQueueStats());
+    statsLogger.register("RPC executor", server.getRpcExecutorStats());
+    WaveIndexer waveIndexer = injector.getInstance(WaveIndexer.class);
+    if (waveIndexer instanceof StatsSource) {
+      statsLogger.register("Reindex", (StatsSource) waveIndexer);
+    }
+    WaveBus waveBus = injector.getInstance(WaveBus.class);
+    if (waveBus instanceof StatsSource) {
+      statsLogger.register("Wave bus", (StatsSource) waveBus);
+    }
+    statsLogger.start();
+  }
 }
@@ -21,54 +21,107 @@ package org.waveprotocol.box.server.frontend;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.LinkedListMultimap;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
 
 import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.wave.model.id.IdFilter;
 import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.version.HashedVersion;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Collects active wave view subscriptions for a single participant.
+ *
+ * The subscriptions matching each wavelet are indexed, so routing an update
+ * costs a lookup rather than a scan of the wave's subscriptions. Lookups
+ * and deliveries don't lock the user manager.
  */
 final class UserManager {
-  private final ListMultimap<WaveId, WaveViewSubscription> subscriptions =
-      LinkedListMultimap.create();
 
-  /** The listeners interested in the specified wavelet. */
-  @VisibleForTesting
-  synchronized List<WaveViewSubscription> matchSubscriptions(WaveletName waveletName) {
-    List<WaveViewSubscription> result = Lists.newArrayList();
-    for (WaveViewSubscription subscription : subscriptions.get(waveletName.waveId)) {
-      if (subscription.includes(waveletName.waveletId)) {
-        result.add(subscription);
+  /** The subscriptions matching a wavelet. */
+  private static final class WaveletRoute {
+    final ImmutableList<WaveViewSubscription> subscriptions;
+    /** The first matching subscription of each channel. */
+    final ImmutableMap<String, WaveViewSubscription> byChannel;
+
+    WaveletRoute(WaveletId waveletId, List<WaveViewSubscription> waveSubscriptions) {
+      ImmutableList.Builder<WaveViewSubscription> matching = ImmutableList.builder();
+      Map<String, WaveViewSubscription> channels = Maps.newHashMap();
+      for (WaveViewSubscription subscription : waveSubscriptions) {
+        if (subscription.includes(waveletId)) {
+          matching.add(subscription);
+          if (!channels.containsKey(subscription.getChannelId())) {
+            channels.put(subscription.getChannelId(), subscription);
+          }
+        }
       }
+      this.subscriptions = matching.build();
+      this.byChannel = ImmutableMap.copyOf(channels);
     }
-    return result;
   }
 
-  /** Returns the subscription (if it exists) for a given wavelet and channel */
-  private synchronized WaveViewSubscription findSubscription(WaveletName waveletName, String channelId) {
-    for (WaveViewSubscription subscription : subscriptions.get(waveletName.waveId)) {
-      if (subscription.includes(waveletName.waveletId)) {
-        if (subscription.getChannelId().equals(channelId)) {
-          return subscription;
+  /**
+   * The subscriptions to a wave, and the routes computed from them. Replaced
+   * as a whole when a subscription is added, so routes always match the
+   * subscriptions they're stored with.
+   */
+  private static final class WaveSubscriptions {
+    final ImmutableList<WaveViewSubscription> subscriptions;
+    final ConcurrentMap<WaveletId, WaveletRoute> routes = new MapMaker().makeMap();
+
+    WaveSubscriptions(ImmutableList<WaveViewSubscription> subscriptions) {
+      this.subscriptions = subscriptions;
+    }
+
+    WaveletRoute route(WaveletId waveletId) {
+      WaveletRoute route = routes.get(waveletId);
+      if (route == null) {
+        route = new WaveletRoute(waveletId, subscriptions);
+        WaveletRoute existing = routes.putIfAbsent(waveletId, route);
+        if (existing != null) {
+          route = existing;
         }
       }
+      return route;
     }
-    return null;
+  }
+
+  private static final WaveletRoute NO_ROUTE =
+      new WaveletRoute(null, ImmutableList.<WaveViewSubscription>of());
+
+  /** Is only written with the monitor held, by {@link #subscribe}. */
+  private final ConcurrentMap<WaveId, WaveSubscriptions> subscriptions =
+      new MapMaker().makeMap();
+
+  private WaveletRoute route(WaveletName waveletName) {
+    WaveSubscriptions waveSubscriptions = subscriptions.get(waveletName.waveId);
+    return (waveSubscriptions != null) ? waveSubscriptions.route(waveletName.waveletId) : NO_ROUTE;
+  }
+
+  /** The listeners interested in the specified wavelet. */
+  @VisibleForTesting
+  List<WaveViewSubscription> matchSubscriptions(WaveletName waveletName) {
+    return route(waveletName).subscriptions;
+  }
+
+  /** Returns the subscription (if it exists) for a given wavelet and channel */
+  private WaveViewSubscription findSubscription(WaveletName waveletName, String channelId) {
+    return route(waveletName).byChannel.get(channelId);
   }
 
   /**
    * Receives additional deltas for the specified wavelet, of which we must be a
    * participant. Delta updates must be received in contiguous version order.
    */
-  public synchronized void onUpdate(WaveletName waveletName, DeltaSequence deltas) {
+  public void onUpdate(WaveletName waveletName, DeltaSequence deltas) {
     Preconditions.checkNotNull(waveletName);
     if (deltas.isEmpty()) {
       return;
@@ -101,7 +154,13 @@ final class UserManager {
       String channelId, ClientFrontend.OpenListener listener) {
     WaveViewSubscription subscription =
         new WaveViewSubscription(waveId, waveletIdFilter, channelId, listener);
-    subscriptions.put(waveId, subscription);
+    WaveSubscriptions existing = subscriptions.get(waveId);
+    ImmutableList.Builder<WaveViewSubscription> waveSubscriptions = ImmutableList.builder();
+    if (existing != null) {
+      waveSubscriptions.addAll(existing.subscriptions);
+    }
+    waveSubscriptions.add(subscription);
+    subscriptions.put(waveId, new WaveSubscriptions(waveSubscriptions.build()));
     return subscription;
   }
 
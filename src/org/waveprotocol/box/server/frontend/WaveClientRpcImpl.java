@@ -20,6 +20,7 @@
 package org.waveprotocol.box.server.frontend;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
 
@@ -34,6 +35,7 @@ import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
 import org.waveprotocol.box.server.common.SnapshotSerializer;
 import org.waveprotocol.box.server.rpc.ServerRpcController;
 import org.waveprotocol.box.server.waveserver.WaveletProvider.SubmitRequestListener;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
 import org.waveprotocol.wave.model.id.IdFilter;
 import org.waveprotocol.wave.model.id.InvalidIdException;
 import org.waveprotocol.wave.model.id.ModernIdSerialiser;
@@ -47,6 +49,8 @@ import org.waveprotocol.wave.util.logging.Log;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
@@ -60,9 +64,27 @@ public class WaveClientRpcImpl implements ProtocolWaveClientRpc.Interface {
 
   private static final Log LOG = Log.get(WaveClientRpcImpl.class);
 
+  /** The number of sent deltas whose serialized form is kept. */
+  private static final int SERIALIZED_DELTA_CACHE_SIZE = 1000;
+  /** How long the serialized form of a sent delta is kept, in seconds. */
+  private static final int SERIALIZED_DELTA_EXPIRY_SECONDS = 30;
+
   private final ClientFrontend frontend;
   private final boolean handleAuthentication;
 
+  /**
+   * The serialized form of recently sent deltas, so that a delta sent to many
+   * clients is serialized once. Keyed by identity. An update reaches all its
+   * clients shortly after the delta is applied, so the cache is bounded
+   * rather than kept for as long as the delta is referenced.
+   */
+  private final ConcurrentMap<TransformedWaveletDelta, ProtocolWaveletDelta> serializedDeltas =
+      new MapMaker()
+          .weakKeys()
+          .maximumSize(SERIALIZED_DELTA_CACHE_SIZE)
+          .expireAfterWrite(SERIALIZED_DELTA_EXPIRY_SECONDS, TimeUnit.SECONDS)
+          .makeMap();
+
   /**
    * Creates a new RPC interface to the front-end.
    *
@@ -118,7 +140,7 @@ public class WaveClientRpcImpl implements ProtocolWaveClientRpc.Interface {
             for (TransformedWaveletDelta d : deltas) {
               // TODO(anorth): Add delta application metadata to the result
               // when the c/s protocol supports it.
-              builder.addAppliedDelta(CoreWaveletOperationSerializer.serialize(d));
+              builder.addAppliedDelta(serialize(d));
             }
             if (!deltas.isEmpty()) {
               builder.setResultingVersion(CoreWaveletOperationSerializer.serialize(
@@ -145,6 +167,16 @@ public class WaveClientRpcImpl implements ProtocolWaveClientRpc.Interface {
         });
   }
 
+  /** Serializes a delta, or returns its serialized form if already sent. */
+  private ProtocolWaveletDelta serialize(TransformedWaveletDelta delta) {
+    ProtocolWaveletDelta serialized = serializedDeltas.get(delta);
+    if (serialized == null) {
+      serialized = CoreWaveletOperationSerializer.serialize(delta);
+      serializedDeltas.put(delta, serialized);
+    }
+    return serialized;
+  }
+
   @Override
   public void submit(RpcController controller, ProtocolSubmitRequest request,
       final RpcCallback<ProtocolSubmitResponse> done) {
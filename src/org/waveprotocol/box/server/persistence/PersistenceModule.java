@@ -29,6 +29,7 @@ import org.waveprotocol.box.server.persistence.file.FileAccountStore;
 import org.waveprotocol.box.server.persistence.file.FileAttachmentStore;
 import org.waveprotocol.box.server.persistence.file.FileDeltaStore;
 import org.waveprotocol.box.server.persistence.file.FileSignerInfoStore;
+import org.waveprotocol.box.server.persistence.file.SegmentedDeltaStore;
 import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
 import org.waveprotocol.box.server.persistence.memory.MemoryStore;
 import org.waveprotocol.box.server.persistence.mongodb.MongoDbProvider;
@@ -47,6 +48,9 @@ import org.waveprotocol.wave.crypto.CertPathStore;
  *<p>
  *The valid names for the account store are 'memory', 'file' and 'mongodb'.
  *
+ *<p>
+ *The valid names for the delta store are 'memory', 'file' and 'log'.
+ *
  * @author ljvderijk@google.com (Lennard de Rijk)
  */
 public class PersistenceModule extends AbstractModule {
@@ -139,6 +143,8 @@ public class PersistenceModule extends AbstractModule {
       bind(DeltaStore.class).to(MemoryDeltaStore.class).in(Singleton.class);
     } else if (deltaStoreType.equalsIgnoreCase("file")) {
       bind(DeltaStore.class).to(FileDeltaStore.class).in(Singleton.class);
+    } else if (deltaStoreType.equalsIgnoreCase("log")) {
+      bind(DeltaStore.class).to(SegmentedDeltaStore.class).in(Singleton.class);
     } else {
       throw new RuntimeException("Invalid delta store type: '" + deltaStoreType + "'");
     }
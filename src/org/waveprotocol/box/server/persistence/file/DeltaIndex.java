@@ -22,11 +22,14 @@ package org.waveprotocol.box.server.persistence.file;
 import com.google.common.base.Preconditions;
 
 import org.waveprotocol.wave.model.util.Pair;
+import org.waveprotocol.wave.util.logging.Log;
 
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
 
 /**
  * An index for quickly accessing deltas. The index is an array of longs, one for each version.
@@ -48,18 +51,40 @@ import java.io.RandomAccessFile;
  * the delta containing the op, so that finding the delta leading to a version is easy: just read
  * the previous index entry.
  *
+ * The index is kept between openings of the collection. When opened, the last indexed delta is
+ * checked against the deltas file, and only deltas after it are indexed. The index is rebuilt
+ * from scratch if it's torn, e.g. by a crash in the middle of indexing a delta.
+ *
+ * Optionally, the index is read through a memory mapping rather than with a system call per read.
+ *
  * @author josephg@google.com (Joseph Gentle)
  */
 public class DeltaIndex {
   /** Returned from methods when there is no record for a specified version. */
   public static final int NO_RECORD_FOR_VERSION = -1;
 
+  private static final Log LOG = Log.get(DeltaIndex.class);
+
   private static final int RECORD_LENGTH = 8;
   private final File fileRef;
+  private final boolean memoryMapped;
   private RandomAccessFile file;
+  /** Reads the file if memory mapped, otherwise null. */
+  private MappedFileReader mappedFile;
+  /** The length of the file, tracked to avoid querying it on every read. */
+  private long fileLength;
 
   public DeltaIndex(File indexFile) {
+    this(indexFile, false);
+  }
+
+  /**
+   * @param indexFile the file holding the index
+   * @param memoryMapped whether to read the index through a memory mapping
+   */
+  public DeltaIndex(File indexFile, boolean memoryMapped) {
     this.fileRef = indexFile;
+    this.memoryMapped = memoryMapped;
   }
 
   /**
@@ -73,9 +98,58 @@ public class DeltaIndex {
       fileRef.mkdirs();
       rebuildIndexFromDeltas(baseCollection);
     } else {
-      // TODO(josephg): For now, we just rebuild the index anyway.
-      rebuildIndexFromDeltas(baseCollection);
+      setFile(FileUtils.getOrCreateFile(fileRef));
+      if (!indexRemainingDeltas(baseCollection)) {
+        LOG.warning("Index " + fileRef + " doesn't match the deltas, rebuilding it");
+        rebuildIndexFromDeltas(baseCollection);
+      }
+    }
+  }
+
+  /**
+   * Checks that the last indexed delta matches the collection, and indexes
+   * the deltas following it.
+   *
+   * @return false if the index is torn or doesn't match the collection, true
+   *         if it's now complete.
+   * @throws IOException
+   */
+  private boolean indexRemainingDeltas(FileDeltaCollection collection) throws IOException {
+    if (fileLength % RECORD_LENGTH != 0) {
+      return false;
+    }
+    Iterator<Pair<Pair<Long, Integer>, Long>> deltas;
+    long numRecords = fileLength / RECORD_LENGTH;
+    if (numRecords == 0) {
+      deltas = collection.getOffsetsIterator().iterator();
+    } else {
+      long record = readRecord(fileLength - RECORD_LENGTH);
+      long lastOffset = record < 0 ? ~record : record;
+      deltas = collection.getOffsetsIterator(lastOffset).iterator();
+      if (!deltas.hasNext()) {
+        // The last indexed delta is missing or incomplete.
+        return false;
+      }
+      Pair<Pair<Long, Integer>, Long> last = deltas.next();
+      long version = last.first.first;
+      int numOperations = last.first.second;
+      if (version + numOperations != numRecords || getOffsetForVersion(version) != lastOffset) {
+        return false;
+      }
     }
+    long indexed = 0;
+    while (deltas.hasNext()) {
+      Pair<Pair<Long, Integer>, Long> pair = deltas.next();
+      if (pair.first.first != length()) {
+        return false;
+      }
+      addDelta(pair.first.first, pair.first.second, pair.second);
+      indexed++;
+    }
+    if (indexed > 0) {
+      LOG.info("Indexed " + indexed + " deltas missing from " + fileRef);
+    }
+    return true;
   }
 
   private void checkOpen() {
@@ -97,7 +171,7 @@ public class DeltaIndex {
       fileRef.delete();
     }
 
-    file = FileUtils.getOrCreateFile(fileRef);
+    setFile(FileUtils.getOrCreateFile(fileRef));
 
     for (Pair<Pair<Long, Integer>, Long> pair : collection.getOffsetsIterator()) {
       addDelta(pair.first.first, pair.first.second, pair.second);
@@ -112,10 +186,10 @@ public class DeltaIndex {
    * @throws IOException
    */
   public long getOffsetForVersion(long version) throws IOException {
-    if (!seekToPosition(version)) {
+    if (!isValidPosition(version)) {
       return NO_RECORD_FOR_VERSION;
     }
-    long offset = file.readLong();
+    long offset = readRecord(version * RECORD_LENGTH);
     return offset < 0 ? NO_RECORD_FOR_VERSION : offset;
   }
 
@@ -127,41 +201,50 @@ public class DeltaIndex {
    * @throws IOException
    */
   public long getOffsetForEndVersion(long version) throws IOException {
-    if (!seekToPosition(version - 1)) {
+    if (!isValidPosition(version - 1)) {
       return NO_RECORD_FOR_VERSION;
     }
-    long offset = file.readLong();
-    try {
-      if (file.readLong() < 0) {
-        // user tried to read something which isn't an end version
-        return NO_RECORD_FOR_VERSION;
-      }
-    } catch (EOFException e) {
-      // it's ok to hit the end of the file, for the last end version
+    long offset = readRecord((version - 1) * RECORD_LENGTH);
+    // it's ok to hit the end of the file, for the last end version
+    if (isValidPosition(version) && readRecord(version * RECORD_LENGTH) < 0) {
+      // user tried to read something which isn't an end version
+      return NO_RECORD_FOR_VERSION;
     }
     return offset < 0 ? ~offset : offset;
   }
 
   /**
-   * Seeks to the corresponding version, if it is valid.
+   * Checks whether the index has a complete record for the version.
    *
-   * @param version version to seek to.
+   * @param version version to check.
    * @return true iff the position is valid
-   * @throws IOException
    */
-  private boolean seekToPosition(long version) throws IOException {
+  private boolean isValidPosition(long version) {
     if (version < 0) {
       return false;
     }
     checkOpen();
 
     long position = version * RECORD_LENGTH;
-    if (position >= file.length()) {
-      return false;
-    }
+    return position + RECORD_LENGTH <= fileLength;
+  }
 
+  /**
+   * Reads the record at the given position, from the memory mapping if there
+   * is one.
+   */
+  private long readRecord(long position) throws IOException {
+    if (mappedFile != null) {
+      return mappedFile.read(position, RECORD_LENGTH).getLong();
+    }
     file.seek(position);
-    return true;
+    return file.readLong();
+  }
+
+  private void setFile(RandomAccessFile file) throws IOException {
+    this.file = file;
+    this.fileLength = file.length();
+    this.mappedFile = memoryMapped ? new MappedFileReader(file.getChannel()) : null;
   }
 
   /**
@@ -177,15 +260,21 @@ public class DeltaIndex {
 
     long position = version * RECORD_LENGTH;
     // We're expected to append the new delta
-    long fileLength = file.length();
     Preconditions.checkState(position == fileLength,
         "position = %d, file=%d", position, fileLength);
-    file.seek(position);
-    file.writeLong(offset);
+    ByteBuffer records = ByteBuffer.allocate(Math.max(numOperations, 1) * RECORD_LENGTH);
+    records.putLong(offset);
     // fill in the additional positions with the 1-complement of the offset,
     for (int i = 1; i < numOperations; i++) {
-      file.writeLong(~offset);
+      records.putLong(~offset);
+    }
+    records.flip();
+    // Write the records with a single call rather than one per byte.
+    FileChannel channel = file.getChannel();
+    while (records.hasRemaining()) {
+      channel.write(records, position + records.position());
     }
+    fileLength = position + records.limit();
   }
 
   /**
@@ -193,14 +282,6 @@ public class DeltaIndex {
    */
   public long length() {
     checkOpen();
-
-    long fileLength;
-    try {
-      fileLength = file.length();
-    } catch (IOException e) {
-      // This shouldn't happen in practice.
-      throw new RuntimeException("IO error reading index file length", e);
-    }
     return fileLength / RECORD_LENGTH;
   }
 
@@ -208,6 +289,7 @@ public class DeltaIndex {
     if (file != null) {
       file.close();
       file = null;
+      mappedFile = null;
     }
   }
 }
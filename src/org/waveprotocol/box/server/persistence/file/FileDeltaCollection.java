@@ -24,6 +24,8 @@ import com.google.common.base.Preconditions;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
+import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
+import org.waveprotocol.box.server.common.SnapshotSerializer;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreDataSerializer;
 import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreData.ProtoTransformedWaveletDelta;
@@ -32,17 +34,26 @@ import org.waveprotocol.box.server.waveserver.ByteStringMessage;
 import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
 import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
 import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.model.id.InvalidIdException;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.OperationException;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.util.Pair;
 import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.InvalidParticipantAddress;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
@@ -55,6 +66,13 @@ import java.util.Iterator;
  * version, the file contains a sequence of delta records. Each record contains a header followed
  * by a WaveletDeltaRecord.
  *
+ * The latest snapshot checkpoint of the wavelet, if any, is kept in a separate snapshot file.
+ * It starts with its own header, followed by a serialized WaveletSnapshot. The file is replaced
+ * atomically whenever a new checkpoint is stored.
+ *
+ * Optionally, deltas are read through a memory mapping of the deltas file, which is extended as
+ * the file grows, rather than with a system call per read.
+ *
  * A particular FileDeltaCollection instance assumes that it's <em>the only one</em> reading and
  * writing a particular wavelet. The methods are <em>not</em> multithread-safe.
  *
@@ -66,6 +84,7 @@ import java.util.Iterator;
 public class FileDeltaCollection implements DeltasAccess {
   public static final String DELTAS_FILE_SUFFIX = ".deltas";
   public static final String INDEX_FILE_SUFFIX = ".index";
+  public static final String SNAPSHOT_FILE_SUFFIX = ".snapshot";
 
   private static final byte[] FILE_MAGIC_BYTES = new byte[]{'W', 'A', 'V', 'E'};
   private static final int FILE_PROTOCOL_VERSION = 1;
@@ -73,11 +92,17 @@ public class FileDeltaCollection implements DeltasAccess {
 
   private static final int DELTA_PROTOCOL_VERSION = 1;
 
+  private static final byte[] SNAPSHOT_MAGIC_BYTES = new byte[]{'W', 'S', 'N', 'P'};
+  private static final int SNAPSHOT_PROTOCOL_VERSION = 1;
+
   private static final Log LOG = Log.get(FileDeltaCollection.class);
 
   private final WaveletName waveletName;
   private final RandomAccessFile file;
   private final DeltaIndex index;
+  private final File snapshotFile;
+  /** Reads the deltas file if memory mapped, otherwise null. */
+  private final MappedFileReader mappedFile;
 
   private HashedVersion endVersion;
   private boolean isOpen;
@@ -109,6 +134,19 @@ public class FileDeltaCollection implements DeltasAccess {
     }
   }
 
+  /**
+   * A delta record read through the memory mapping.
+   */
+  private static class MappedRecord {
+    public final ByteBuffer appliedDelta;
+    public final ByteBuffer transformedDelta;
+
+    public MappedRecord(ByteBuffer appliedDelta, ByteBuffer transformedDelta) {
+      this.appliedDelta = appliedDelta;
+      this.transformedDelta = transformedDelta;
+    }
+  }
+
   /**
    * Opens a file delta collection.
    *
@@ -119,13 +157,29 @@ public class FileDeltaCollection implements DeltasAccess {
    */
   public static FileDeltaCollection open(WaveletName waveletName, String basePath)
       throws IOException {
+    return open(waveletName, basePath, false);
+  }
+
+  /**
+   * Opens a file delta collection.
+   *
+   * @param waveletName name of the wavelet to open
+   * @param basePath base path of files
+   * @param memoryMapped whether to read the deltas and index through memory
+   *        mappings
+   * @return an open collection
+   * @throws IOException
+   */
+  public static FileDeltaCollection open(WaveletName waveletName, String basePath,
+      boolean memoryMapped) throws IOException {
     Preconditions.checkNotNull(waveletName, "null wavelet name");
 
     RandomAccessFile deltaFile = FileUtils.getOrCreateFile(deltasFile(basePath, waveletName));
     setOrCheckFileHeader(deltaFile);
-    DeltaIndex index = new DeltaIndex(indexFile(basePath, waveletName));
+    DeltaIndex index = new DeltaIndex(indexFile(basePath, waveletName), memoryMapped);
 
-    FileDeltaCollection collection = new FileDeltaCollection(waveletName, deltaFile, index);
+    FileDeltaCollection collection = new FileDeltaCollection(waveletName, deltaFile, index,
+        snapshotFile(basePath, waveletName), memoryMapped);
 
     index.openForCollection(collection);
     collection.initializeEndVersionAndTruncateTrailingJunk();
@@ -150,7 +204,14 @@ public class FileDeltaCollection implements DeltasAccess {
     File index = indexFile(basePath, waveletName);
     if (index.exists()) {
       if (!index.delete()) {
-        error += "Could not delete index file: " + index.getAbsolutePath();
+        error += "Could not delete index file: " + index.getAbsolutePath() + ". ";
+      }
+    }
+
+    File snapshot = snapshotFile(basePath, waveletName);
+    if (snapshot.exists()) {
+      if (!snapshot.delete()) {
+        error += "Could not delete snapshot file: " + snapshot.getAbsolutePath();
       }
     }
     if (!error.isEmpty()) {
@@ -164,12 +225,29 @@ public class FileDeltaCollection implements DeltasAccess {
    * @param waveletName name of the wavelet
    * @param deltaFile the file of deltas
    * @param index index into deltas
+   * @param snapshotFile the file holding the latest snapshot checkpoint
+   */
+  public FileDeltaCollection(WaveletName waveletName, RandomAccessFile deltaFile,
+      DeltaIndex index, File snapshotFile) {
+    this(waveletName, deltaFile, index, snapshotFile, false);
+  }
+
+  /**
+   * Create a new file delta collection for the given wavelet.
+   *
+   * @param waveletName name of the wavelet
+   * @param deltaFile the file of deltas
+   * @param index index into deltas
+   * @param snapshotFile the file holding the latest snapshot checkpoint
+   * @param memoryMapped whether to read deltas through a memory mapping
    */
   public FileDeltaCollection(WaveletName waveletName, RandomAccessFile deltaFile,
-      DeltaIndex index) {
+      DeltaIndex index, File snapshotFile, boolean memoryMapped) {
     this.waveletName = waveletName;
     this.file = deltaFile;
     this.index = index;
+    this.snapshotFile = snapshotFile;
+    this.mappedFile = memoryMapped ? new MappedFileReader(deltaFile.getChannel()) : null;
     this.isOpen = true;
   }
 
@@ -186,26 +264,46 @@ public class FileDeltaCollection implements DeltasAccess {
   @Override
   public WaveletDeltaRecord getDelta(long version) throws IOException {
     checkIsOpen();
-    return seekToRecord(version) ? readRecord() : null;
+    long offset = getRecordOffset(version);
+    return (offset != DeltaIndex.NO_RECORD_FOR_VERSION) ? readRecord(offset) : null;
   }
 
   @Override
   public WaveletDeltaRecord getDeltaByEndVersion(long version) throws IOException {
     checkIsOpen();
-    return seekToEndRecord(version) ? readRecord() : null;
+    long offset = getEndRecordOffset(version);
+    return (offset != DeltaIndex.NO_RECORD_FOR_VERSION) ? readRecord(offset) : null;
   }
 
   @Override
   public ByteStringMessage<ProtocolAppliedWaveletDelta> getAppliedDelta(long version)
       throws IOException {
     checkIsOpen();
-    return seekToRecord(version) ? readAppliedDeltaFromRecord() : null;
+    long offset = getRecordOffset(version);
+    if (offset == DeltaIndex.NO_RECORD_FOR_VERSION) {
+      return null;
+    }
+    MappedRecord mapped = readMappedRecord(offset);
+    if (mapped != null) {
+      return parseAppliedDelta(mapped.appliedDelta);
+    }
+    seekTo(offset);
+    return readAppliedDeltaFromRecord();
   }
 
   @Override
   public TransformedWaveletDelta getTransformedDelta(long version) throws IOException {
     checkIsOpen();
-    return seekToRecord(version) ? readTransformedDeltaFromRecord() : null;
+    long offset = getRecordOffset(version);
+    if (offset == DeltaIndex.NO_RECORD_FOR_VERSION) {
+      return null;
+    }
+    MappedRecord mapped = readMappedRecord(offset);
+    if (mapped != null) {
+      return parseTransformedDelta(mapped.transformedDelta);
+    }
+    seekTo(offset);
+    return readTransformedDeltaFromRecord();
   }
 
   @Override
@@ -226,6 +324,9 @@ public class FileDeltaCollection implements DeltasAccess {
 
   @Override
   public void close() throws IOException {
+    if (mappedFile != null) {
+      mappedFile.invalidate();
+    }
     file.close();
     index.close();
     endVersion = null;
@@ -236,16 +337,23 @@ public class FileDeltaCollection implements DeltasAccess {
   public void append(Collection<WaveletDeltaRecord> deltas) throws PersistenceException {
     checkIsOpen();
     try {
-      file.seek(file.length());
+      long start = file.length();
+      file.seek(start);
+      long offset = start;
 
+      // Encode all the records first, and append them with a single write.
+      ByteBuffer[] buffers = new ByteBuffer[deltas.size() * 3];
+      int i = 0;
       WaveletDeltaRecord lastDelta = null;
       for (WaveletDeltaRecord delta : deltas) {
         index.addDelta(delta.getTransformedDelta().getAppliedAtVersion(),
             delta.getTransformedDelta().size(),
-            file.getFilePointer());
-        writeDelta(delta);
+            offset);
+        offset += encodeDelta(delta, buffers, i);
+        i += 3;
         lastDelta = delta;
       }
+      writeFully(buffers, offset - start);
 
       // fsync() before returning.
       file.getChannel().force(true);
@@ -261,6 +369,91 @@ public class FileDeltaCollection implements DeltasAccess {
     return index.length() == 0;
   }
 
+  @Override
+  public void storeSnapshot(ReadableWaveletData snapshot) throws PersistenceException {
+    checkIsOpen();
+    Preconditions.checkArgument(endVersion != null
+        && snapshot.getVersion() <= endVersion.getVersion(),
+        "Snapshot version %s is beyond the end version %s", snapshot.getVersion(), endVersion);
+    WaveletSnapshot proto =
+        SnapshotSerializer.serializeWavelet(snapshot, snapshot.getHashedVersion());
+    // Write a complete new file next to the old one and rename it into place, so a crash
+    // never leaves a partially written checkpoint behind.
+    File tempFile = new File(snapshotFile.getPath() + ".tmp");
+    try {
+      FileOutputStream stream = new FileOutputStream(tempFile);
+      try {
+        DataOutputStream output = new DataOutputStream(stream);
+        output.write(SNAPSHOT_MAGIC_BYTES);
+        output.writeInt(SNAPSHOT_PROTOCOL_VERSION);
+        output.writeInt(proto.getSerializedSize());
+        proto.writeTo(output);
+        output.flush();
+        // fsync() before making the checkpoint visible.
+        stream.getFD().sync();
+      } finally {
+        stream.close();
+      }
+      if (!tempFile.renameTo(snapshotFile)) {
+        // Some platforms don't allow renaming over an existing file.
+        if (!snapshotFile.delete() || !tempFile.renameTo(snapshotFile)) {
+          throw new IOException("Could not rename " + tempFile + " to " + snapshotFile);
+        }
+      }
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to store snapshot for " + waveletName, e);
+    }
+  }
+
+  @Override
+  public WaveletData loadSnapshot() throws IOException {
+    checkIsOpen();
+    if (!snapshotFile.exists()) {
+      return null;
+    }
+    WaveletSnapshot proto;
+    DataInputStream input = new DataInputStream(new FileInputStream(snapshotFile));
+    try {
+      byte[] magic = new byte[SNAPSHOT_MAGIC_BYTES.length];
+      input.readFully(magic);
+      if (!Arrays.equals(SNAPSHOT_MAGIC_BYTES, magic)) {
+        throw new IOException("Snapshot file magic bytes are incorrect");
+      }
+      int version = input.readInt();
+      if (version != SNAPSHOT_PROTOCOL_VERSION) {
+        throw new IOException(String.format(
+            "Snapshot protocol version mismatch - expected %d got %d",
+            SNAPSHOT_PROTOCOL_VERSION, version));
+      }
+      byte[] bytes = new byte[input.readInt()];
+      input.readFully(bytes);
+      proto = WaveletSnapshot.parseFrom(bytes);
+    } finally {
+      input.close();
+    }
+    return deserializeSnapshot(proto, waveletName);
+  }
+
+  /**
+   * Deserializes a snapshot checkpoint, checking that it's of the given wavelet.
+   */
+  static WaveletData deserializeSnapshot(WaveletSnapshot proto, WaveletName waveletName)
+      throws IOException {
+    try {
+      WaveletData snapshot = SnapshotSerializer.deserializeWavelet(proto, waveletName.waveId);
+      if (!snapshot.getWaveletId().equals(waveletName.waveletId)) {
+        throw new IOException("Snapshot contains wavelet " + snapshot.getWaveletId());
+      }
+      return snapshot;
+    } catch (OperationException e) {
+      throw new IOException(e);
+    } catch (InvalidParticipantAddress e) {
+      throw new IOException(e);
+    } catch (InvalidIdException e) {
+      throw new IOException(e);
+    }
+  }
+
   /**
    * Creates a new iterator to move over the positions of the deltas in the file.
    *
@@ -268,6 +461,18 @@ public class FileDeltaCollection implements DeltasAccess {
    * @throws IOException
    */
   Iterable<Pair<Pair<Long,Integer>, Long>> getOffsetsIterator() throws IOException {
+    return getOffsetsIterator(FILE_HEADER_LENGTH);
+  }
+
+  /**
+   * Creates a new iterator to move over the positions of the deltas in the
+   * file, starting with the delta at the given offset.
+   *
+   * Each pair returned is ((version, numOperations), offset).
+   * @throws IOException
+   */
+  Iterable<Pair<Pair<Long,Integer>, Long>> getOffsetsIterator(final long startPosition)
+      throws IOException {
     checkIsOpen();
 
     return new Iterable<Pair<Pair<Long, Integer>, Long>>() {
@@ -275,7 +480,7 @@ public class FileDeltaCollection implements DeltasAccess {
       public Iterator<Pair<Pair<Long, Integer>, Long>> iterator() {
         return new Iterator<Pair<Pair<Long, Integer>, Long>>() {
           Pair<Pair<Long, Integer>, Long> nextRecord;
-          long nextPosition = FILE_HEADER_LENGTH;
+          long nextPosition = startPosition;
 
           @Override
           public void remove() {
@@ -333,6 +538,12 @@ public class FileDeltaCollection implements DeltasAccess {
     return new File(basePath, waveletPathPrefix + DELTAS_FILE_SUFFIX);
   }
 
+  @VisibleForTesting
+  static final File snapshotFile(String basePath, WaveletName waveletName) {
+    String waveletPathPrefix = FileUtils.waveletNameToPathSegment(waveletName);
+    return new File(basePath, waveletPathPrefix + SNAPSHOT_FILE_SUFFIX);
+  }
+
   @VisibleForTesting
   static final File indexFile(String basePath, WaveletName waveletName) {
     String waveletPathPrefix = FileUtils.waveletNameToPathSegment(waveletName);
@@ -371,12 +582,20 @@ public class FileDeltaCollection implements DeltasAccess {
   }
 
   /**
-   * Seek to the start of a delta record. Returns false if the record doesn't exist.
+   * Returns the offset of a delta record, or NO_RECORD_FOR_VERSION if the record doesn't exist.
    */
-  private boolean seekToRecord(long version) throws IOException {
+  private long getRecordOffset(long version) throws IOException {
     Preconditions.checkArgument(version >= 0, "Version can't be negative");
-    long offset = index.getOffsetForVersion(version);
-    return seekTo(offset);
+    return index.getOffsetForVersion(version);
+  }
+
+  /**
+   * Returns the offset of a delta record given its end version, or NO_RECORD_FOR_VERSION if the
+   * record doesn't exist.
+   */
+  private long getEndRecordOffset(long version) throws IOException {
+    Preconditions.checkArgument(version >= 0, "Version can't be negative");
+    return index.getOffsetForEndVersion(version);
   }
 
   /**
@@ -384,9 +603,7 @@ public class FileDeltaCollection implements DeltasAccess {
    * Returns false if the record doesn't exist.
    */
   private boolean seekToEndRecord(long version) throws IOException {
-    Preconditions.checkArgument(version >= 0, "Version can't be negative");
-    long offset = index.getOffsetForEndVersion(version);
-    return seekTo(offset);
+    return seekTo(getEndRecordOffset(version));
   }
 
   private boolean seekTo(long offset) throws IOException {
@@ -399,6 +616,49 @@ public class FileDeltaCollection implements DeltasAccess {
     }
   }
 
+  /**
+   * Read the record at the given offset, through the memory mapping if there is one.
+   */
+  private WaveletDeltaRecord readRecord(long offset) throws IOException {
+    MappedRecord mapped = readMappedRecord(offset);
+    if (mapped == null) {
+      seekTo(offset);
+      return readRecord();
+    }
+    ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta =
+        parseAppliedDelta(mapped.appliedDelta);
+    TransformedWaveletDelta transformedDelta = parseTransformedDelta(mapped.transformedDelta);
+
+    return new WaveletDeltaRecord(AppliedDeltaUtil.getHashedVersionAppliedAt(appliedDelta),
+        appliedDelta, transformedDelta);
+  }
+
+  /**
+   * Reads the fields of the record at the given offset through the memory mapping, without
+   * parsing them.
+   *
+   * @return the record, or null if the file isn't memory mapped
+   */
+  private MappedRecord readMappedRecord(long offset) throws IOException {
+    if (mappedFile == null) {
+      return null;
+    }
+    ByteBuffer headerBuffer = mappedFile.read(offset, DeltaHeader.HEADER_LENGTH);
+    DeltaHeader header = new DeltaHeader(headerBuffer.getInt(), headerBuffer.getInt(),
+        headerBuffer.getInt());
+    header.checkVersion();
+    if (header.appliedDeltaLength < 0 || header.transformedDeltaLength < 0) {
+      throw new IOException("Invalid delta length");
+    }
+    ByteBuffer body = mappedFile.read(offset + DeltaHeader.HEADER_LENGTH,
+        header.appliedDeltaLength + header.transformedDeltaLength);
+    body.limit(header.appliedDeltaLength);
+    ByteBuffer appliedDelta = body.slice();
+    body.limit(body.capacity());
+    body.position(header.appliedDeltaLength);
+    return new MappedRecord(appliedDelta, body.slice());
+  }
+
   /**
    * Read a record and return it.
    */
@@ -463,15 +723,6 @@ public class FileDeltaCollection implements DeltasAccess {
     return deltaHeader;
   }
 
-  /**
-   * Write a header to the current location in the file
-   */
-  private void writeDeltaHeader(DeltaHeader header) throws IOException {
-    file.writeInt(header.protoVersion);
-    file.writeInt(header.appliedDeltaLength);
-    file.writeInt(header.transformedDeltaLength);
-  }
-
   /**
    * Read the applied delta at the current file position. After method call,
    * file position is directly after applied delta field.
@@ -484,24 +735,21 @@ public class FileDeltaCollection implements DeltasAccess {
 
     byte[] bytes = new byte[length];
     file.readFully(bytes);
-    try {
-      return ByteStringMessage.parseProtocolAppliedWaveletDelta(ByteString.copyFrom(bytes));
-    } catch (InvalidProtocolBufferException e) {
-      throw new IOException(e);
-    }
+    return parseAppliedDelta(ByteBuffer.wrap(bytes));
   }
 
   /**
-   * Write an applied delta to the current position in the file. Returns number of bytes written.
+   * Parses an applied delta from the remaining bytes of the buffer.
    */
-  private int writeAppliedDelta(ByteStringMessage<ProtocolAppliedWaveletDelta> delta)
-      throws IOException {
-    if (delta != null) {
-      byte[] bytes = delta.getByteArray();
-      file.write(bytes);
-      return bytes.length;
-    } else {
-      return 0;
+  static ByteStringMessage<ProtocolAppliedWaveletDelta> parseAppliedDelta(
+      ByteBuffer buffer) throws IOException {
+    if (!buffer.hasRemaining()) {
+      return null;
+    }
+    try {
+      return ByteStringMessage.parseProtocolAppliedWaveletDelta(ByteString.copyFrom(buffer));
+    } catch (InvalidProtocolBufferException e) {
+      throw new IOException(e);
     }
   }
 
@@ -516,9 +764,17 @@ public class FileDeltaCollection implements DeltasAccess {
 
     byte[] bytes = new byte[transformedDeltaLength];
     file.readFully(bytes);
+    return parseTransformedDelta(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Parses a {@link TransformedWaveletDelta} from the remaining bytes of the buffer.
+   */
+  static TransformedWaveletDelta parseTransformedDelta(ByteBuffer buffer)
+      throws IOException {
     ProtoTransformedWaveletDelta delta;
     try {
-      delta = ProtoTransformedWaveletDelta.parseFrom(bytes);
+      delta = ProtoTransformedWaveletDelta.parseFrom(ByteString.copyFrom(buffer));
     } catch (InvalidProtocolBufferException e) {
       throw new IOException(e);
     }
@@ -526,35 +782,37 @@ public class FileDeltaCollection implements DeltasAccess {
   }
 
   /**
-   * Write a {@link TransformedWaveletDelta} to the file at the current location.
-   * @return length of written data
+   * Encodes a delta record into three buffers, the header, the applied delta and the transformed
+   * delta, stored in the given array from the given index. The applied delta shares the bytes
+   * of its message rather than copying them. Returns the length of the record.
    */
-  private int writeTransformedWaveletDelta(TransformedWaveletDelta delta) throws IOException {
-    long startingPosition = file.getFilePointer();
-    ProtoTransformedWaveletDelta protoDelta = ProtoDeltaStoreDataSerializer.serialize(delta);
-    OutputStream stream = Channels.newOutputStream(file.getChannel());
-    protoDelta.writeTo(stream);
-    return (int) (file.getFilePointer() - startingPosition);
+  private static long encodeDelta(WaveletDeltaRecord delta, ByteBuffer[] buffers, int index) {
+    ByteBuffer appliedDelta = (delta.getAppliedDelta() != null)
+        ? delta.getAppliedDelta().getByteString().asReadOnlyByteBuffer()
+        : ByteBuffer.allocate(0);
+    ByteBuffer transformedDelta = ByteBuffer.wrap(
+        ProtoDeltaStoreDataSerializer.serialize(delta.getTransformedDelta()).toByteArray());
+    ByteBuffer header = ByteBuffer.allocate(DeltaHeader.HEADER_LENGTH);
+    header.putInt(DELTA_PROTOCOL_VERSION);
+    header.putInt(appliedDelta.remaining());
+    header.putInt(transformedDelta.remaining());
+    header.flip();
+    buffers[index] = header;
+    buffers[index + 1] = appliedDelta;
+    buffers[index + 2] = transformedDelta;
+    return DeltaHeader.HEADER_LENGTH + appliedDelta.remaining() + transformedDelta.remaining();
   }
 
   /**
-   * Read a delta to the file. Does not move the file pointer before writing. Returns number of
-   * bytes written.
+   * Writes the buffers, of the given total length, to the current position in the file through
+   * its channel, with as few system calls as the channel allows.
    */
-  private long writeDelta(WaveletDeltaRecord delta) throws IOException {
-    // We'll write zeros in place of the header and come back & write it at the end.
-    long headerPointer = file.getFilePointer();
-    file.write(new byte[DeltaHeader.HEADER_LENGTH]);
-
-    int appliedLength = writeAppliedDelta(delta.getAppliedDelta());
-    int transformedLength = writeTransformedWaveletDelta(delta.getTransformedDelta());
-
-    long endPointer = file.getFilePointer();
-    file.seek(headerPointer);
-    writeDeltaHeader(new DeltaHeader(DELTA_PROTOCOL_VERSION, appliedLength, transformedLength));
-    file.seek(endPointer);
-
-    return endPointer - headerPointer;
+  private void writeFully(ByteBuffer[] buffers, long length) throws IOException {
+    FileChannel channel = file.getChannel();
+    long written = 0;
+    while (written < length) {
+      written += channel.write(buffers);
+    }
   }
 
   /**
@@ -563,12 +821,18 @@ public class FileDeltaCollection implements DeltasAccess {
   private void initializeEndVersionAndTruncateTrailingJunk() throws IOException {
     long numRecords = index.length();
     if (numRecords >= 1) {
-      endVersion = getDeltaByEndVersion(numRecords).getResultingVersion();
+      // Read through the file rather than the mapping, to leave the file's position at the end
+      // of the record.
+      Preconditions.checkState(seekToEndRecord(numRecords), "no record ends at %s", numRecords);
+      endVersion = readRecord().getResultingVersion();
     } else {
       endVersion = null;
     }
     // The file's position should be at the end. Truncate any
     // trailing junk such as from a partially completed write.
     file.setLength(file.getFilePointer());
+    if (mappedFile != null) {
+      mappedFile.invalidate();
+    }
   }
 }
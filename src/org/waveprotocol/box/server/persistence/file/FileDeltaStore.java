@@ -46,6 +46,7 @@ import java.util.NoSuchElementException;
  * The delta store lives at some base directory. The directory structure looks like this:
  * base/encoded-wave-id/encoded-wavelet-id.delta
  * base/encoded-wave-id/encoded-wavelet-id.index
+ * base/encoded-wave-id/encoded-wavelet-id.snapshot
  *
  * See design doc:
  * https://sites.google.com/a/waveprotocol.org/wave-protocol/protocol/design-proposals/wave-store-design-for-wave-in-a-box
@@ -59,16 +60,27 @@ public class FileDeltaStore implements DeltaStore {
    */
   final private String basePath;
 
+  /**
+   * Whether the deltas and index files are read through memory mappings
+   */
+  final private boolean memoryMapped;
+
+  public FileDeltaStore(String basePath) {
+    this(basePath, false);
+  }
+
   @Inject
-  public FileDeltaStore(@Named(CoreSettings.DELTA_STORE_DIRECTORY) String basePath) {
+  public FileDeltaStore(@Named(CoreSettings.DELTA_STORE_DIRECTORY) String basePath,
+      @Named(CoreSettings.DELTA_STORE_MEMORY_MAPPED) boolean memoryMapped) {
     Preconditions.checkNotNull(basePath, "Requested path is null");
     this.basePath = basePath;
+    this.memoryMapped = memoryMapped;
   }
 
   @Override
   public FileDeltaCollection open(WaveletName waveletName) throws PersistenceException {
     try {
-      return FileDeltaCollection.open(waveletName, basePath);
+      return FileDeltaCollection.open(waveletName, basePath, memoryMapped);
     } catch (IOException e) {
       throw new PersistenceException("Failed to open deltas for wavelet " + waveletName, e);
     }
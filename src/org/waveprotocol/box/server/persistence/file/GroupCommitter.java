@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Coalesces the fsync() calls of concurrent appends to a shared log.
+ *
+ * Syncs are performed one batch at a time. Appends that request a sync while
+ * a batch is being synced join the next batch, whose first append waits for
+ * the current sync to finish and for the commit window to pass, and then
+ * syncs each file in its batch once, on behalf of all of them. Appends to the
+ * same file therefore share a single force(). Every caller returns only once
+ * its own file has been synced.
+ *
+ * Appends only overlap if they run on more than one thread, so group commit
+ * needs more than one delta persist thread to have any effect.
+ *
+ * This class is thread-safe.
+ */
+class GroupCommitter {
+
+  private static final Log LOG = Log.get(GroupCommitter.class);
+
+  /** Files to sync together, and the outcome once synced. */
+  private static class Batch {
+    final Set<FileChannel> channels = Sets.newLinkedHashSet();
+    final Map<FileChannel, IOException> failures = Maps.newHashMap();
+    int requests = 0;
+    /** Guarded by the committer's lock. */
+    boolean synced = false;
+  }
+
+  private final long windowMillis;
+
+  private final Object lock = new Object();
+
+  /** The batch that new sync requests join, or null if none is open. Guarded by lock. */
+  private Batch openBatch = null;
+
+  /** Whether a batch is being synced. Guarded by lock. */
+  private boolean committing = false;
+
+  /** The number of syncs requested. Guarded by lock. */
+  private long syncCount = 0;
+
+  /** The number of files forced. Guarded by lock. */
+  private long forceCount = 0;
+
+  /**
+   * @param windowMillis how long the first append in a batch waits for other
+   *        appends to join it, once the previous batch has been synced
+   */
+  GroupCommitter(long windowMillis) {
+    Preconditions.checkArgument(windowMillis >= 0, "Negative commit window %s", windowMillis);
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Blocks until the content of the file has been synced to the storage
+   * device, sharing the sync with concurrent callers.
+   *
+   * @throws IOException if the sync failed or the thread was interrupted
+   *         while waiting for it
+   */
+  void sync(FileChannel channel) throws IOException {
+    Batch batch;
+    boolean leader;
+    synchronized (lock) {
+      leader = (openBatch == null);
+      if (leader) {
+        openBatch = new Batch();
+      }
+      batch = openBatch;
+      batch.channels.add(channel);
+      batch.requests++;
+      syncCount++;
+    }
+    if (leader) {
+      commit(batch);
+    } else {
+      awaitCommit(batch);
+    }
+    IOException failure = batch.failures.get(channel);
+    if (failure != null) {
+      throw new IOException("Failed to sync delta file", failure);
+    }
+  }
+
+  /** @return the number of syncs requested so far */
+  long getSyncCount() {
+    synchronized (lock) {
+      return syncCount;
+    }
+  }
+
+  /** @return the number of files forced so far */
+  long getForceCount() {
+    synchronized (lock) {
+      return forceCount;
+    }
+  }
+
+  /** Syncs the content of the file to the storage device. */
+  void force(FileChannel channel) throws IOException {
+    channel.force(true);
+  }
+
+  private void commit(Batch batch) {
+    // Other appends are waiting on this batch, so sync it even if interrupted.
+    boolean interrupted = false;
+    synchronized (lock) {
+      while (committing) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      committing = true;
+    }
+    if (windowMillis > 0) {
+      try {
+        Thread.sleep(windowMillis);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    synchronized (lock) {
+      openBatch = null;
+    }
+    // The batch is closed, so its channels no longer change.
+    for (FileChannel channel : batch.channels) {
+      try {
+        force(channel);
+      } catch (IOException e) {
+        batch.failures.put(channel, e);
+      }
+    }
+    if (LOG.isFineLoggable()) {
+      LOG.fine("Synced " + batch.channels.size() + " files for " + batch.requests + " appends");
+    }
+    synchronized (lock) {
+      forceCount += batch.channels.size();
+      committing = false;
+      batch.synced = true;
+      lock.notifyAll();
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void awaitCommit(Batch batch) throws InterruptedIOException {
+    synchronized (lock) {
+      while (!batch.synced) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for delta file sync");
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,391 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the log of a {@link SegmentedDeltaStore}, holding records of
+ * any number of wavelets.
+ *
+ * The file starts with a header, followed by a sequence of records. Each
+ * record has a fixed length header, the name of its wavelet and up to two
+ * payloads:
+ * <ul>
+ * <li>a delta record holds the applied and the transformed delta, and the
+ * versions the delta was applied at and resulted in;</li>
+ * <li>a snapshot record holds a serialized WaveletSnapshot and its version;</li>
+ * <li>a tombstone record marks the deletion of all preceding records of its
+ * wavelet.</li>
+ * </ul>
+ * A CRC32 checksum over each record detects records torn by a crash.
+ *
+ * Reads use positional reads, which may run concurrently with each other and
+ * with appends. Appends and the counters must be guarded by the store.
+ */
+class LogSegment {
+  static final String FILE_SUFFIX = ".segment";
+
+  static final byte DELTA_RECORD = 1;
+  static final byte SNAPSHOT_RECORD = 2;
+  static final byte TOMBSTONE_RECORD = 3;
+
+  private static final byte[] FILE_MAGIC_BYTES = new byte[]{'W', 'L', 'O', 'G'};
+  private static final int FILE_PROTOCOL_VERSION = 1;
+  private static final int FILE_HEADER_LENGTH = 8;
+
+  /** Type, name length, two payload lengths, two versions and the checksum. */
+  private static final int RECORD_HEADER_LENGTH = 1 + 4 + 4 + 4 + 8 + 8 + 4;
+  private static final int CHECKSUM_POSITION = RECORD_HEADER_LENGTH - 4;
+
+  private static final Log LOG = Log.get(LogSegment.class);
+
+  /**
+   * The location and header fields of a record. Records of deltas and
+   * snapshots are kept in memory as the index of the store, so they don't
+   * keep the wavelet name.
+   */
+  static class Record {
+    final LogSegment segment;
+    final long offset;
+    final int length;
+    final byte type;
+    /** The applied at version of a delta, or the version of a snapshot. */
+    final long version;
+    /** The resulting version of a delta. */
+    final long resultingVersion;
+    private final int nameLength;
+    private final int firstLength;
+
+    Record(LogSegment segment, long offset, int length, byte type, long version,
+        long resultingVersion, int nameLength, int firstLength) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+      this.type = type;
+      this.version = version;
+      this.resultingVersion = resultingVersion;
+      this.nameLength = nameLength;
+      this.firstLength = firstLength;
+    }
+
+    /** Reads the record's first payload, or returns null if it's empty. */
+    ByteBuffer readFirst() throws IOException {
+      return (firstLength > 0) ? segment.read(payloadOffset(), firstLength) : null;
+    }
+
+    /** Reads the record's second payload, or returns null if it's empty. */
+    ByteBuffer readSecond() throws IOException {
+      int secondLength = length - RECORD_HEADER_LENGTH - nameLength - firstLength;
+      return (secondLength > 0) ? segment.read(payloadOffset() + firstLength, secondLength)
+          : null;
+    }
+
+    /** Reads the entire record, for copying it elsewhere. */
+    ByteBuffer readAll() throws IOException {
+      return segment.read(offset, length);
+    }
+
+    private long payloadOffset() {
+      return offset + RECORD_HEADER_LENGTH + nameLength;
+    }
+  }
+
+  /** Receives the records of a segment while it's scanned. */
+  interface RecordVisitor {
+    void visit(WaveletName waveletName, Record record);
+  }
+
+  /**
+   * Serializes a record.
+   *
+   * @param first the first payload, or null
+   * @param second the second payload, or null
+   * @return a buffer holding the record, ready to be appended
+   */
+  static ByteBuffer encode(byte type, WaveletName waveletName, long version,
+      long resultingVersion, byte[] first, byte[] second) {
+    byte[] name = encodeName(waveletName);
+    int firstLength = (first != null) ? first.length : 0;
+    int secondLength = (second != null) ? second.length : 0;
+    ByteBuffer buffer =
+        ByteBuffer.allocate(RECORD_HEADER_LENGTH + name.length + firstLength + secondLength);
+    buffer.put(type);
+    buffer.putInt(name.length);
+    buffer.putInt(firstLength);
+    buffer.putInt(secondLength);
+    buffer.putLong(version);
+    buffer.putLong(resultingVersion);
+    buffer.putInt(0);
+    buffer.put(name);
+    if (first != null) {
+      buffer.put(first);
+    }
+    if (second != null) {
+      buffer.put(second);
+    }
+    buffer.putInt(CHECKSUM_POSITION, checksum(buffer.array()));
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Creates a new, empty segment file.
+   */
+  static LogSegment create(File file, long id) throws IOException {
+    Preconditions.checkArgument(!file.exists(), "Segment %s already exists", file);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.write(FILE_MAGIC_BYTES);
+    raf.writeInt(FILE_PROTOCOL_VERSION);
+    raf.getChannel().force(true);
+    return new LogSegment(file, id, raf, FILE_HEADER_LENGTH);
+  }
+
+  /**
+   * Opens an existing segment file, scanning its records. A torn record and
+   * everything after it is truncated.
+   */
+  static LogSegment open(File file, long id, RecordVisitor visitor) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      byte[] magic = new byte[FILE_MAGIC_BYTES.length];
+      raf.readFully(magic);
+      if (!Arrays.equals(FILE_MAGIC_BYTES, magic)) {
+        throw new IOException("Segment file magic bytes are incorrect in " + file);
+      }
+      int version = raf.readInt();
+      if (version != FILE_PROTOCOL_VERSION) {
+        throw new IOException(String.format(
+            "Segment protocol version mismatch - expected %d got %d",
+            FILE_PROTOCOL_VERSION, version));
+      }
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+    LogSegment segment = new LogSegment(file, id, raf, raf.length());
+    segment.scan(visitor);
+    return segment;
+  }
+
+  private static byte[] encodeName(WaveletName waveletName) {
+    return (FileUtils.waveIdToPathSegment(waveletName.waveId) + "/"
+        + FileUtils.waveletIdToPathSegment(waveletName.waveletId)).getBytes(Charsets.UTF_8);
+  }
+
+  private static WaveletName decodeName(byte[] bytes) throws IOException {
+    String name = new String(bytes, Charsets.UTF_8);
+    int separator = name.indexOf('/');
+    if (separator < 0) {
+      throw new IOException("Invalid wavelet name " + name);
+    }
+    try {
+      return WaveletName.of(FileUtils.waveIdFromPathSegment(name.substring(0, separator)),
+          FileUtils.waveletIdFromPathSegment(name.substring(separator + 1)));
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid wavelet name " + name, e);
+    }
+  }
+
+  /** Computes the checksum of a record, skipping the checksum field itself. */
+  private static int checksum(byte[] record) {
+    CRC32 crc = new CRC32();
+    crc.update(record, 0, CHECKSUM_POSITION);
+    crc.update(record, RECORD_HEADER_LENGTH, record.length - RECORD_HEADER_LENGTH);
+    return (int) crc.getValue();
+  }
+
+  private final File file;
+  private final long id;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+
+  /** The offset at which the next record is appended. */
+  private long size;
+
+  /** Bytes of records which are still referenced by the index. */
+  long liveBytes = 0;
+  /** Appends written to this segment, which aren't indexed yet. */
+  int pendingAppends = 0;
+  /** Tombstone records in this segment. */
+  int tombstones = 0;
+
+  private LogSegment(File file, long id, RandomAccessFile raf, long size) {
+    this.file = file;
+    this.id = id;
+    this.raf = raf;
+    this.channel = raf.getChannel();
+    this.size = size;
+  }
+
+  /** @return the sequence number of the segment, which orders segments */
+  long getId() {
+    return id;
+  }
+
+  /** @return the length of the segment in bytes */
+  long size() {
+    return size;
+  }
+
+  /** @return whether the segment holds no records */
+  boolean isEmpty() {
+    return size == FILE_HEADER_LENGTH;
+  }
+
+  FileChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Appends records without syncing them. If the append fails, the segment is
+   * truncated back to its previous length, so that no torn record precedes
+   * later appends.
+   *
+   * @param records serialized records, such as from {@link #encode} or
+   *        {@link Record#readAll()}
+   * @return the appended records, in order
+   */
+  List<Record> append(List<ByteBuffer> records) throws IOException {
+    List<Record> appended = Lists.newArrayListWithCapacity(records.size());
+    long position = size;
+    try {
+      for (ByteBuffer record : records) {
+        // See encode() for the layout of the header.
+        int start = record.position();
+        appended.add(new Record(this, position, record.remaining(), record.get(start),
+            record.getLong(start + 13), record.getLong(start + 21), record.getInt(start + 1),
+            record.getInt(start + 5)));
+        while (record.hasRemaining()) {
+          position += channel.write(record, position);
+        }
+      }
+    } catch (IOException e) {
+      try {
+        raf.setLength(size);
+      } catch (IOException truncateException) {
+        LOG.severe("Failed to truncate " + file + " after a failed append", truncateException);
+      }
+      throw e;
+    }
+    size = position;
+    return appended;
+  }
+
+  /** Syncs the segment to the storage device. */
+  void force() throws IOException {
+    channel.force(true);
+  }
+
+  /** Closes and deletes the segment file. */
+  void delete() throws IOException {
+    close();
+    if (!file.delete()) {
+      throw new IOException("Could not delete segment file " + file);
+    }
+  }
+
+  void close() throws IOException {
+    raf.close();
+  }
+
+  @Override
+  public String toString() {
+    return "LogSegment(" + file.getName() + ", " + size + " bytes, " + liveBytes + " live)";
+  }
+
+  /**
+   * Reads a region of the file.
+   *
+   * @throws IOException if the region extends beyond the end of the file
+   */
+  private ByteBuffer read(long offset, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of segment " + file + " reading " + length
+            + " bytes at " + offset);
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Passes each record to the visitor, and truncates the file after the last
+   * intact record.
+   */
+  private void scan(RecordVisitor visitor) throws IOException {
+    long fileLength = size;
+    long offset = FILE_HEADER_LENGTH;
+    while (offset < fileLength) {
+      Record record = null;
+      WaveletName waveletName = null;
+      if (fileLength - offset >= RECORD_HEADER_LENGTH) {
+        ByteBuffer header = read(offset, RECORD_HEADER_LENGTH);
+        byte type = header.get();
+        int nameLength = header.getInt();
+        int firstLength = header.getInt();
+        int secondLength = header.getInt();
+        long version = header.getLong();
+        long resultingVersion = header.getLong();
+        long length = (long) RECORD_HEADER_LENGTH + nameLength + firstLength + secondLength;
+        if (type >= DELTA_RECORD && type <= TOMBSTONE_RECORD && nameLength > 0
+            && firstLength >= 0 && secondLength >= 0 && length <= fileLength - offset) {
+          byte[] bytes = read(offset, (int) length).array();
+          if (ByteBuffer.wrap(bytes).getInt(CHECKSUM_POSITION) == checksum(bytes)) {
+            try {
+              waveletName = decodeName(
+                  Arrays.copyOfRange(bytes, RECORD_HEADER_LENGTH, RECORD_HEADER_LENGTH + nameLength));
+              record = new Record(this, offset, (int) length, type, version, resultingVersion,
+                  nameLength, firstLength);
+            } catch (IOException e) {
+              LOG.warning("Invalid record in " + file + " at " + offset, e);
+            }
+          }
+        }
+      }
+      if (record == null) {
+        // A write was torn by a crash. Nothing after it has been acknowledged.
+        LOG.warning("Truncating segment " + file + " from " + offset + " to drop "
+            + (fileLength - offset) + " bytes of incomplete records");
+        raf.setLength(offset);
+        size = offset;
+        return;
+      }
+      visitor.visit(waveletName, record);
+      offset += record.length;
+    }
+  }
+}
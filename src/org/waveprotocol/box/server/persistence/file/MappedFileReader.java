@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads regions of a file through read-only memory mappings, so that reads
+ * don't cost a system call each.
+ *
+ * The file is mapped in fixed size chunks, each mapped once it's first read.
+ * The file may grow while it's mapped. A read beyond the mapped length of a
+ * chunk maps that chunk again, so appending to the file only ever remaps its
+ * last chunk rather than the whole file. If the file is truncated,
+ * {@link #invalidate()} must be called before the next read.
+ *
+ * This class is not thread-safe.
+ */
+class MappedFileReader {
+  /** The default size of the chunks the file is mapped in. */
+  private static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final int chunkSize;
+
+  /** The mappings of the chunks of the file, null where not mapped yet. */
+  private final List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+
+  MappedFileReader(FileChannel channel) {
+    this(channel, DEFAULT_CHUNK_SIZE);
+  }
+
+  @VisibleForTesting
+  MappedFileReader(FileChannel channel, int chunkSize) {
+    Preconditions.checkArgument(chunkSize > 0, "Invalid chunk size %s", chunkSize);
+    this.channel = channel;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Returns a buffer of the given region of the file. The buffer's position is
+   * 0 and its limit is the region's length. It shares the mapped memory,
+   * unless the region spans more than one chunk, in which case it's a copy.
+   *
+   * @throws IOException if the region extends beyond the end of the file
+   */
+  ByteBuffer read(long position, int length) throws IOException {
+    Preconditions.checkArgument(position >= 0 && length >= 0,
+        "Invalid region at %s of length %s", position, length);
+    long end = position + length;
+    int first = chunkIndex(position);
+    if (length == 0 || chunkIndex(end - 1) == first) {
+      return slice(first, position, end);
+    }
+    ByteBuffer copy = ByteBuffer.allocate(length);
+    while (position < end) {
+      int index = chunkIndex(position);
+      long partEnd = Math.min(chunkStart(index + 1), end);
+      copy.put(slice(index, position, partEnd));
+      position = partEnd;
+    }
+    copy.flip();
+    return copy;
+  }
+
+  /** Drops the mappings, for example after the file has been truncated. */
+  void invalidate() {
+    chunks.clear();
+  }
+
+  /** Returns the given region, which lies within the given chunk. */
+  private ByteBuffer slice(int index, long position, long end) throws IOException {
+    long start = chunkStart(index);
+    ByteBuffer region = chunk(index, end).duplicate();
+    region.position((int) (position - start));
+    region.limit((int) (end - start));
+    return region.slice();
+  }
+
+  /**
+   * Returns the mapping of the given chunk, mapping it again if it doesn't
+   * extend as far as the given end.
+   */
+  private MappedByteBuffer chunk(int index, long end) throws IOException {
+    while (chunks.size() <= index) {
+      chunks.add(null);
+    }
+    long start = chunkStart(index);
+    MappedByteBuffer chunk = chunks.get(index);
+    if (chunk == null || start + chunk.capacity() < end) {
+      long fileLength = channel.size();
+      if (end > fileLength) {
+        throw new IOException("Region ending at " + end + " is beyond the end of the file at "
+            + fileLength);
+      }
+      chunk = channel.map(FileChannel.MapMode.READ_ONLY, start,
+          Math.min(chunkSize, fileLength - start));
+      chunks.set(index, chunk);
+    }
+    return chunk;
+  }
+
+  private int chunkIndex(long position) {
+    return (int) (position / chunkSize);
+  }
+
+  private long chunkStart(int index) {
+    return (long) index * chunkSize;
+  }
+}
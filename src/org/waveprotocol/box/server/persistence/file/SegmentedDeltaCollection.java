@@ -0,0 +1,251 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.WaveletSnapshot;
+import org.waveprotocol.box.server.common.SnapshotSerializer;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreDataSerializer;
+import org.waveprotocol.box.server.waveserver.AppliedDeltaUtil;
+import org.waveprotocol.box.server.waveserver.ByteStringMessage;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The DeltasAccess of a wavelet in a {@link SegmentedDeltaStore}. Reads look
+ * up the wavelet's records in the store's index, and read them from the
+ * segment files.
+ *
+ * Like {@link FileDeltaCollection}, an instance assumes that it's the only one
+ * writing its wavelet.
+ */
+public class SegmentedDeltaCollection implements DeltasAccess {
+
+  private final SegmentedDeltaStore store;
+  private final SegmentedDeltaStore.WaveletLog log;
+  private boolean isOpen = true;
+
+  SegmentedDeltaCollection(SegmentedDeltaStore store, SegmentedDeltaStore.WaveletLog log) {
+    this.store = store;
+    this.log = log;
+  }
+
+  @Override
+  public WaveletName getWaveletName() {
+    return log.waveletName;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    checkIsOpen();
+    Lock lock = store.getIndexLock().readLock();
+    lock.lock();
+    try {
+      return log.isEmpty();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public HashedVersion getEndVersion() {
+    Lock lock = store.getIndexLock().readLock();
+    lock.lock();
+    try {
+      return log.endVersion;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public WaveletDeltaRecord getDelta(long version) throws IOException {
+    checkIsOpen();
+    Lock lock = store.getIndexLock().readLock();
+    lock.lock();
+    try {
+      LogSegment.Record record = log.deltas.get(version);
+      return (record != null) ? readDelta(record) : null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public WaveletDeltaRecord getDeltaByEndVersion(long version) throws IOException {
+    checkIsOpen();
+    Lock lock = store.getIndexLock().readLock();
+    lock.lock();
+    try {
+      LogSegment.Record record = getRecordByEndVersion(version);
+      return (record != null) ? readDelta(record) : null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public HashedVersion getAppliedAtVersion(long version) throws IOException {
+    ByteStringMessage<ProtocolAppliedWaveletDelta> applied = getAppliedDelta(version);
+
+    return (applied != null) ? AppliedDeltaUtil.getHashedVersionAppliedAt(applied) : null;
+  }
+
+  @Override
+  public HashedVersion getResultingVersion(long version) throws IOException {
+    TransformedWaveletDelta transformed = getTransformedDelta(version);
+
+    return (transformed != null) ? transformed.getResultingVersion() : null;
+  }
+
+  @Override
+  public ByteStringMessage<ProtocolAppliedWaveletDelta> getAppliedDelta(long version)
+      throws IOException {
+    checkIsOpen();
+    Lock lock = store.getIndexLock().readLock();
+    lock.lock();
+    try {
+      LogSegment.Record record = log.deltas.get(version);
+      return (record != null) ? readAppliedDelta(record) : null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public TransformedWaveletDelta getTransformedDelta(long version) throws IOException {
+    checkIsOpen();
+    Lock lock = store.getIndexLock().readLock();
+    lock.lock();
+    try {
+      LogSegment.Record record = log.deltas.get(version);
+      return (record != null) ? FileDeltaCollection.parseTransformedDelta(record.readSecond())
+          : null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void append(Collection<WaveletDeltaRecord> deltas) throws PersistenceException {
+    checkIsOpen();
+    List<ByteBuffer> records = Lists.newArrayListWithCapacity(deltas.size());
+    WaveletDeltaRecord lastDelta = null;
+    for (WaveletDeltaRecord delta : deltas) {
+      TransformedWaveletDelta transformed = delta.getTransformedDelta();
+      records.add(LogSegment.encode(LogSegment.DELTA_RECORD, log.waveletName,
+          transformed.getAppliedAtVersion(), transformed.getResultingVersion().getVersion(),
+          (delta.getAppliedDelta() != null) ? delta.getAppliedDelta().getByteArray() : null,
+          ProtoDeltaStoreDataSerializer.serialize(transformed).toByteArray()));
+      lastDelta = delta;
+    }
+    try {
+      store.append(log, records, lastDelta.getTransformedDelta().getResultingVersion());
+    } catch (IOException e) {
+      throw new PersistenceException(e);
+    }
+  }
+
+  @Override
+  public void storeSnapshot(ReadableWaveletData snapshot) throws PersistenceException {
+    checkIsOpen();
+    HashedVersion endVersion = getEndVersion();
+    Preconditions.checkArgument(endVersion != null
+        && snapshot.getVersion() <= endVersion.getVersion(),
+        "Snapshot version %s is beyond the end version %s", snapshot.getVersion(), endVersion);
+    WaveletSnapshot proto =
+        SnapshotSerializer.serializeWavelet(snapshot, snapshot.getHashedVersion());
+    try {
+      store.storeSnapshot(log, LogSegment.encode(LogSegment.SNAPSHOT_RECORD, log.waveletName,
+          snapshot.getVersion(), 0, proto.toByteArray(), null));
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to store snapshot for " + log.waveletName, e);
+    }
+  }
+
+  @Override
+  public WaveletData loadSnapshot() throws IOException {
+    checkIsOpen();
+    ByteBuffer bytes;
+    Lock lock = store.getIndexLock().readLock();
+    lock.lock();
+    try {
+      if (log.snapshot == null) {
+        return null;
+      }
+      bytes = log.snapshot.readFirst();
+    } finally {
+      lock.unlock();
+    }
+    return FileDeltaCollection.deserializeSnapshot(
+        WaveletSnapshot.parseFrom(ByteString.copyFrom(bytes)), log.waveletName);
+  }
+
+  @Override
+  public void close() {
+    isOpen = false;
+  }
+
+  private void checkIsOpen() {
+    Preconditions.checkState(isOpen, "Delta collection closed");
+  }
+
+  /**
+   * Returns the record of the delta leading to a version, or null. Must be
+   * called with the index lock held.
+   */
+  private LogSegment.Record getRecordByEndVersion(long version) {
+    Map.Entry<Long, LogSegment.Record> entry = log.deltas.lowerEntry(version);
+    return (entry != null && entry.getValue().resultingVersion == version) ? entry.getValue()
+        : null;
+  }
+
+  private static ByteStringMessage<ProtocolAppliedWaveletDelta> readAppliedDelta(
+      LogSegment.Record record) throws IOException {
+    ByteBuffer bytes = record.readFirst();
+    return (bytes != null) ? FileDeltaCollection.parseAppliedDelta(bytes) : null;
+  }
+
+  private static WaveletDeltaRecord readDelta(LogSegment.Record record) throws IOException {
+    ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta = readAppliedDelta(record);
+    TransformedWaveletDelta transformedDelta =
+        FileDeltaCollection.parseTransformedDelta(record.readSecond());
+
+    return new WaveletDeltaRecord(AppliedDeltaUtil.getHashedVersionAppliedAt(appliedDelta),
+        appliedDelta, transformedDelta);
+  }
+}
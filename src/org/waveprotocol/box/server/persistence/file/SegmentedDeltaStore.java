@@ -0,0 +1,644 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.server.CoreSettings;
+import org.waveprotocol.box.server.persistence.FileNotFoundPersistenceException;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.PersistenceStartException;
+import org.waveprotocol.box.server.waveserver.DeltaStore;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A log structured implementation of DeltaStore.
+ *
+ * The deltas and snapshot checkpoints of all wavelets are appended to a shared
+ * log, which is split into segment files of a bounded size:
+ * base/0000000000000001.segment
+ * base/0000000000000002.segment
+ * ...
+ * so the number of open files doesn't grow with the number of wavelets. The
+ * location of every live record is kept in an in-memory index, which is
+ * rebuilt by scanning the segments when the store is opened. See
+ * {@link LogSegment} for the record format.
+ *
+ * Deleting a wavelet or replacing its snapshot leaves dead records behind.
+ * Compaction periodically copies the live records of mostly dead segments to
+ * the end of the log, and then deletes those segments. A segment holding
+ * tombstones is only compacted once it's the oldest segment, because its
+ * tombstones shadow the records of deleted wavelets in older segments.
+ *
+ * Appends are synced to the storage device before they return. Optionally,
+ * the syncs of concurrent appends are coalesced by a {@link GroupCommitter}.
+ *
+ * This class is thread-safe.
+ */
+public class SegmentedDeltaStore implements DeltaStore {
+
+  private static final Log LOG = Log.get(SegmentedDeltaStore.class);
+
+  /** Segments with a smaller fraction of live bytes than this are compacted. */
+  private static final double COMPACTION_LIVE_RATIO = 0.5;
+
+  /**
+   * The records of one wavelet. Guarded by the store's index lock.
+   */
+  static class WaveletLog {
+    final WaveletName waveletName;
+    /** The delta records, keyed by applied at version. */
+    final TreeMap<Long, LogSegment.Record> deltas = new TreeMap<Long, LogSegment.Record>();
+    /** The latest snapshot record, or null. */
+    LogSegment.Record snapshot = null;
+    /** The resulting version of the last delta, or null until read. */
+    HashedVersion endVersion = null;
+
+    WaveletLog(WaveletName waveletName) {
+      this.waveletName = waveletName;
+    }
+
+    boolean isEmpty() {
+      return deltas.isEmpty();
+    }
+
+    /** @return the number of bytes of records in the index */
+    long liveBytes() {
+      long bytes = (snapshot != null) ? snapshot.length : 0;
+      for (LogSegment.Record record : deltas.values()) {
+        bytes += record.length;
+      }
+      return bytes;
+    }
+  }
+
+  private final File directory;
+  private final long segmentBytes;
+  private final GroupCommitter groupCommitter;
+  /** Runs the periodic compaction, or is null if compaction is disabled. */
+  private ScheduledExecutorService compactor = null;
+
+  /** Guards the index. Readers hold the read lock while reading records. */
+  private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+  /** Serializes writes to the log. */
+  private final Object appendLock = new Object();
+
+  /** The index of all wavelets. Guarded by indexLock. */
+  private final Map<WaveId, Map<WaveletId, WaveletLog>> wavelets = Maps.newHashMap();
+
+  /** The segments in order. The last one is appended to. Guarded by appendLock. */
+  private final List<LogSegment> segments = Lists.newArrayList();
+
+  /**
+   * @param basePath the directory in which the segments are stored
+   * @param segmentSizeMb the size, in megabytes, at which a new segment is
+   *        started
+   * @param compactionIntervalSeconds how often segments are compacted, or 0
+   *        to never compact
+   * @param groupCommitWindowMs how long, in milliseconds, concurrent appends
+   *        wait for each other to share a sync, or 0 to sync each append alone
+   * @throws PersistenceStartException if the segments can't be read
+   */
+  @Inject
+  public SegmentedDeltaStore(@Named(CoreSettings.DELTA_STORE_DIRECTORY) String basePath,
+      @Named(CoreSettings.DELTA_STORE_SEGMENT_SIZE_MB) int segmentSizeMb,
+      @Named(CoreSettings.DELTA_STORE_COMPACTION_INTERVAL_SECONDS) int compactionIntervalSeconds,
+      @Named(CoreSettings.DELTA_STORE_GROUP_COMMIT_WINDOW_MS) int groupCommitWindowMs) {
+    this(basePath, segmentSizeMb * 1024L * 1024L, groupCommitWindowMs);
+    if (compactionIntervalSeconds > 0) {
+      ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("SegmentCompactor-%d").setDaemon(true).build());
+      executor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            compact();
+          } catch (IOException e) {
+            LOG.warning("Failed to compact delta segments", e);
+          } catch (RuntimeException e) {
+            LOG.severe("Failed to compact delta segments", e);
+          }
+        }
+      }, compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+      compactor = executor;
+    }
+  }
+
+  /**
+   * Opens the store without background compaction.
+   *
+   * @param basePath the directory in which the segments are stored
+   * @param segmentBytes the size at which a new segment is started
+   * @param groupCommitWindowMs how long, in milliseconds, concurrent appends
+   *        wait for each other to share a sync, or 0 to sync each append alone
+   * @throws PersistenceStartException if the segments can't be read
+   */
+  public SegmentedDeltaStore(String basePath, long segmentBytes, int groupCommitWindowMs) {
+    Preconditions.checkNotNull(basePath, "Requested path is null");
+    Preconditions.checkArgument(segmentBytes > 0, "Invalid segment size %s", segmentBytes);
+    this.directory = new File(basePath);
+    this.segmentBytes = segmentBytes;
+    this.groupCommitter = (groupCommitWindowMs > 0) ? new GroupCommitter(groupCommitWindowMs) : null;
+    try {
+      FileUtils.createDirIfNotExists(basePath, "Delta store");
+      recover();
+    } catch (PersistenceException e) {
+      throw new PersistenceStartException("Failed to open delta segments in " + basePath, e);
+    } catch (IOException e) {
+      throw new PersistenceStartException("Failed to open delta segments in " + basePath, e);
+    }
+  }
+
+  @Override
+  public SegmentedDeltaCollection open(WaveletName waveletName) throws PersistenceException {
+    Preconditions.checkNotNull(waveletName, "null wavelet name");
+    indexLock.writeLock().lock();
+    try {
+      WaveletLog log = getOrCreateWaveletLog(waveletName);
+      if (!log.isEmpty() && log.endVersion == null) {
+        log.endVersion = FileDeltaCollection.parseTransformedDelta(
+            log.deltas.lastEntry().getValue().readSecond()).getResultingVersion();
+      }
+      return new SegmentedDeltaCollection(this, log);
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to open deltas for wavelet " + waveletName, e);
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void delete(WaveletName waveletName) throws PersistenceException,
+      FileNotFoundPersistenceException {
+    ByteBuffer tombstone =
+        LogSegment.encode(LogSegment.TOMBSTONE_RECORD, waveletName, 0, 0, null, null);
+    LogSegment segment;
+    try {
+      synchronized (appendLock) {
+        indexLock.writeLock().lock();
+        try {
+          WaveletLog log = getWaveletLog(waveletName);
+          if (log == null || (log.isEmpty() && log.snapshot == null)) {
+            throw new FileNotFoundPersistenceException("Wavelet " + waveletName + " not found");
+          }
+          segment = activeSegment(tombstone.remaining());
+          segment.append(ImmutableList.of(tombstone));
+          segment.tombstones++;
+          segment.pendingAppends++;
+          // Update the index before letting compaction copy records, so that
+          // no record of the deleted wavelet is copied after the tombstone.
+          wavelets.get(waveletName.waveId).remove(waveletName.waveletId);
+          if (log.snapshot != null) {
+            log.snapshot.segment.liveBytes -= log.snapshot.length;
+          }
+          for (LogSegment.Record record : log.deltas.values()) {
+            record.segment.liveBytes -= record.length;
+          }
+        } finally {
+          indexLock.writeLock().unlock();
+        }
+      }
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to delete wavelet " + waveletName, e);
+    }
+    try {
+      sync(segment);
+    } catch (IOException e) {
+      throw new PersistenceException("Failed to delete wavelet " + waveletName, e);
+    } finally {
+      indexLock.writeLock().lock();
+      try {
+        segment.pendingAppends--;
+      } finally {
+        indexLock.writeLock().unlock();
+      }
+    }
+  }
+
+  @Override
+  public ImmutableSet<WaveletId> lookup(WaveId waveId) {
+    indexLock.readLock().lock();
+    try {
+      Map<WaveletId, WaveletLog> waveLogs = wavelets.get(waveId);
+      if (waveLogs == null) {
+        return ImmutableSet.of();
+      }
+      ImmutableSet.Builder<WaveletId> results = ImmutableSet.builder();
+      for (WaveletLog log : waveLogs.values()) {
+        if (!log.isEmpty()) {
+          results.add(log.waveletName.waveletId);
+        }
+      }
+      return results.build();
+    } finally {
+      indexLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public ExceptionalIterator<WaveId, PersistenceException> getWaveIdIterator() {
+    ImmutableSet.Builder<WaveId> results = ImmutableSet.builder();
+    indexLock.readLock().lock();
+    try {
+      for (Map.Entry<WaveId, Map<WaveletId, WaveletLog>> entry : wavelets.entrySet()) {
+        for (WaveletLog log : entry.getValue().values()) {
+          if (!log.isEmpty()) {
+            results.add(entry.getKey());
+            break;
+          }
+        }
+      }
+    } finally {
+      indexLock.readLock().unlock();
+    }
+    return ExceptionalIterator.FromIterator.create(results.build().iterator());
+  }
+
+  /**
+   * Compacts the segments whose records are mostly dead, by copying their
+   * live records to the end of the log and deleting them. Appends wait while
+   * a segment is being compacted.
+   *
+   * @return the number of segments deleted
+   */
+  @VisibleForTesting
+  int compact() throws IOException {
+    int compacted = 0;
+    synchronized (appendLock) {
+      // The last segment is being appended to, and isn't compacted.
+      for (LogSegment segment : ImmutableList.copyOf(segments.subList(0, segments.size() - 1))) {
+        boolean candidate;
+        indexLock.readLock().lock();
+        try {
+          candidate = segment.pendingAppends == 0
+              && (segment.tombstones == 0 || segment == segments.get(0))
+              && segment.liveBytes < segment.size() * COMPACTION_LIVE_RATIO;
+        } finally {
+          indexLock.readLock().unlock();
+        }
+        if (candidate) {
+          compactSegment(segment);
+          compacted++;
+        }
+      }
+    }
+    return compacted;
+  }
+
+  /**
+   * Stops compaction and closes the segments. The store can't be used
+   * afterwards.
+   */
+  public void close() throws IOException {
+    if (compactor != null) {
+      compactor.shutdownNow();
+    }
+    synchronized (appendLock) {
+      for (LogSegment segment : segments) {
+        segment.close();
+      }
+      segments.clear();
+    }
+  }
+
+  /** @return the number of segment files */
+  @VisibleForTesting
+  int getSegmentCount() {
+    synchronized (appendLock) {
+      return segments.size();
+    }
+  }
+
+  /** @return the lock which readers of the index and records must hold */
+  ReadWriteLock getIndexLock() {
+    return indexLock;
+  }
+
+  /**
+   * Appends deltas to a wavelet's log.
+   */
+  void append(WaveletLog log, List<ByteBuffer> records, HashedVersion endVersion)
+      throws IOException {
+    int bytes = 0;
+    for (ByteBuffer record : records) {
+      bytes += record.remaining();
+    }
+    LogSegment segment;
+    List<LogSegment.Record> appended;
+    synchronized (appendLock) {
+      segment = activeSegment(bytes);
+      appended = segment.append(records);
+      indexLock.writeLock().lock();
+      try {
+        segment.pendingAppends++;
+      } finally {
+        indexLock.writeLock().unlock();
+      }
+    }
+    boolean synced = false;
+    try {
+      sync(segment);
+      synced = true;
+    } finally {
+      indexLock.writeLock().lock();
+      try {
+        segment.pendingAppends--;
+        if (synced) {
+          for (LogSegment.Record record : appended) {
+            log.deltas.put(record.version, record);
+            segment.liveBytes += record.length;
+          }
+          log.endVersion = endVersion;
+        }
+      } finally {
+        indexLock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Appends a snapshot record to a wavelet's log, replacing any earlier
+   * snapshot.
+   */
+  void storeSnapshot(WaveletLog log, ByteBuffer record) throws IOException {
+    LogSegment segment;
+    LogSegment.Record appended;
+    synchronized (appendLock) {
+      segment = activeSegment(record.remaining());
+      appended = segment.append(ImmutableList.of(record)).get(0);
+      indexLock.writeLock().lock();
+      try {
+        segment.pendingAppends++;
+      } finally {
+        indexLock.writeLock().unlock();
+      }
+    }
+    boolean synced = false;
+    try {
+      sync(segment);
+      synced = true;
+    } finally {
+      indexLock.writeLock().lock();
+      try {
+        segment.pendingAppends--;
+        if (synced) {
+          indexSnapshot(log, appended);
+        }
+      } finally {
+        indexLock.writeLock().unlock();
+      }
+    }
+  }
+
+  private WaveletLog getWaveletLog(WaveletName waveletName) {
+    Map<WaveletId, WaveletLog> waveLogs = wavelets.get(waveletName.waveId);
+    return (waveLogs != null) ? waveLogs.get(waveletName.waveletId) : null;
+  }
+
+  /**
+   * Makes a snapshot record the wavelet's snapshot, unless the wavelet has a
+   * more recent one. Compaction may copy an older snapshot after a newer one.
+   */
+  private static void indexSnapshot(WaveletLog log, LogSegment.Record snapshot) {
+    if (log.snapshot == null || snapshot.version >= log.snapshot.version) {
+      if (log.snapshot != null) {
+        log.snapshot.segment.liveBytes -= log.snapshot.length;
+      }
+      log.snapshot = snapshot;
+      snapshot.segment.liveBytes += snapshot.length;
+    }
+  }
+
+  private void sync(LogSegment segment) throws IOException {
+    if (groupCommitter != null) {
+      groupCommitter.sync(segment.getChannel());
+    } else {
+      segment.force();
+    }
+  }
+
+  /**
+   * Returns the segment to append records of the given length to, starting a
+   * new segment if the current one would grow beyond the segment size.
+   * Must be called with the append lock held.
+   */
+  private LogSegment activeSegment(int bytes) throws IOException {
+    LogSegment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (active == null || (!active.isEmpty() && active.size() + bytes > segmentBytes)) {
+      long id = (active == null) ? 1 : active.getId() + 1;
+      active = LogSegment.create(
+          new File(directory, String.format("%016d%s", id, LogSegment.FILE_SUFFIX)), id);
+      segments.add(active);
+    }
+    return active;
+  }
+
+  /**
+   * Copies the live records of a segment to the end of the log, and deletes
+   * the segment. Must be called with the append lock held.
+   */
+  private void compactSegment(LogSegment segment) throws IOException {
+    List<WaveletLog> logs = Lists.newArrayList();
+    List<LogSegment.Record> live = Lists.newArrayList();
+    indexLock.readLock().lock();
+    try {
+      for (Map<WaveletId, WaveletLog> waveLogs : wavelets.values()) {
+        for (WaveletLog log : waveLogs.values()) {
+          if (log.snapshot != null && log.snapshot.segment == segment) {
+            logs.add(log);
+            live.add(log.snapshot);
+          }
+          for (LogSegment.Record record : log.deltas.values()) {
+            if (record.segment == segment) {
+              logs.add(log);
+              live.add(record);
+            }
+          }
+        }
+      }
+    } finally {
+      indexLock.readLock().unlock();
+    }
+
+    List<ByteBuffer> copies = Lists.newArrayListWithCapacity(live.size());
+    int bytes = 0;
+    for (LogSegment.Record record : live) {
+      ByteBuffer copy = record.readAll();
+      copies.add(copy);
+      bytes += copy.remaining();
+    }
+    List<LogSegment.Record> copied = Collections.emptyList();
+    if (!copies.isEmpty()) {
+      LogSegment destination = activeSegment(bytes);
+      copied = destination.append(copies);
+      destination.force();
+    }
+
+    indexLock.writeLock().lock();
+    try {
+      for (int i = 0; i < live.size(); i++) {
+        WaveletLog log = logs.get(i);
+        LogSegment.Record record = live.get(i);
+        LogSegment.Record copy = copied.get(i);
+        if (record.type == LogSegment.SNAPSHOT_RECORD) {
+          indexSnapshot(log, copy);
+        } else if (log.deltas.get(record.version) == record) {
+          log.deltas.put(record.version, copy);
+          copy.segment.liveBytes += copy.length;
+        }
+      }
+      segments.remove(segment);
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+    segment.delete();
+    LOG.info("Compacted " + segment + " by copying " + live.size() + " records of " + bytes
+        + " bytes");
+  }
+
+  /**
+   * Rebuilds the index from the segment files.
+   */
+  private void recover() throws IOException {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(LogSegment.FILE_SUFFIX);
+      }
+    });
+    TreeMap<Long, File> segmentFiles = new TreeMap<Long, File>();
+    for (File file : files) {
+      String name = file.getName();
+      try {
+        segmentFiles.put(
+            Long.parseLong(name.substring(0, name.length() - LogSegment.FILE_SUFFIX.length())),
+            file);
+      } catch (NumberFormatException e) {
+        LOG.warning("Ignoring unexpected segment file " + file);
+      }
+    }
+
+    LogSegment.RecordVisitor visitor = new LogSegment.RecordVisitor() {
+      @Override
+      public void visit(WaveletName waveletName, LogSegment.Record record) {
+        switch (record.type) {
+          case LogSegment.DELTA_RECORD:
+            getOrCreateWaveletLog(waveletName).deltas.put(record.version, record);
+            break;
+          case LogSegment.SNAPSHOT_RECORD:
+            WaveletLog log = getOrCreateWaveletLog(waveletName);
+            if (log.snapshot == null || record.version >= log.snapshot.version) {
+              log.snapshot = record;
+            }
+            break;
+          case LogSegment.TOMBSTONE_RECORD:
+            Map<WaveletId, WaveletLog> waveLogs = wavelets.get(waveletName.waveId);
+            if (waveLogs != null) {
+              waveLogs.remove(waveletName.waveletId);
+            }
+            record.segment.tombstones++;
+            break;
+          default:
+            throw new IllegalStateException("Unknown record type " + record.type);
+        }
+      }
+    };
+    for (Map.Entry<Long, File> entry : segmentFiles.entrySet()) {
+      segments.add(LogSegment.open(entry.getValue(), entry.getKey(), visitor));
+    }
+
+    int records = 0;
+    for (Map<WaveletId, WaveletLog> waveLogs : wavelets.values()) {
+      for (WaveletLog log : waveLogs.values()) {
+        truncateToContiguousDeltas(log);
+        if (log.snapshot != null) {
+          log.snapshot.segment.liveBytes += log.snapshot.length;
+          records++;
+        }
+        for (LogSegment.Record record : log.deltas.values()) {
+          record.segment.liveBytes += record.length;
+          records++;
+        }
+      }
+    }
+    LOG.info("Opened " + segments.size() + " delta segments in " + directory + " with "
+        + records + " live records");
+  }
+
+  private WaveletLog getOrCreateWaveletLog(WaveletName waveletName) {
+    Map<WaveletId, WaveletLog> waveLogs = wavelets.get(waveletName.waveId);
+    if (waveLogs == null) {
+      waveLogs = Maps.newHashMap();
+      wavelets.put(waveletName.waveId, waveLogs);
+    }
+    WaveletLog log = waveLogs.get(waveletName.waveletId);
+    if (log == null) {
+      log = new WaveletLog(waveletName);
+      waveLogs.put(waveletName.waveletId, log);
+    }
+    return log;
+  }
+
+  /**
+   * Drops any deltas after a gap in a wavelet's history. Deltas are only
+   * appended after their predecessors have been synced, so a gap means a
+   * segment was damaged.
+   */
+  private static void truncateToContiguousDeltas(WaveletLog log) {
+    long expected = 0;
+    for (Map.Entry<Long, LogSegment.Record> entry : log.deltas.entrySet()) {
+      if (entry.getKey() != expected) {
+        LOG.severe("Deltas of " + log.waveletName + " are missing from version " + expected
+            + ", dropping the deltas from version " + entry.getKey());
+        log.deltas.tailMap(entry.getKey()).clear();
+        return;
+      }
+      expected = entry.getValue().resultingVersion;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 import com.google.protobuf.InvalidProtocolBufferException;
 
+import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.box.server.waveserver.ByteStringMessage;
 import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
 import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
@@ -30,6 +31,8 @@ import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
 import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
 
 import java.util.Collection;
 import java.util.Map;
@@ -46,6 +49,9 @@ public class MemoryDeltaCollection implements DeltasAccess {
 
   private HashedVersion endVersion = null;
 
+  /** Copy of the latest snapshot checkpoint, or null if none was stored. */
+  private ReadableWaveletData snapshot = null;
+
   public MemoryDeltaCollection(WaveletName waveletName) {
     Preconditions.checkNotNull(waveletName);
     this.waveletName = waveletName;
@@ -121,4 +127,16 @@ public class MemoryDeltaCollection implements DeltasAccess {
       endDeltas.put(endVersion.getVersion(), delta);
     }
   }
+
+  @Override
+  public void storeSnapshot(ReadableWaveletData snapshot) {
+    Preconditions.checkArgument(endDeltas.containsKey(snapshot.getVersion()),
+        "Snapshot version %s matches no delta", snapshot.getVersion());
+    this.snapshot = WaveletDataUtil.copyWavelet(snapshot);
+  }
+
+  @Override
+  public WaveletData loadSnapshot() {
+    return (snapshot != null) ? WaveletDataUtil.copyWavelet(snapshot) : null;
+  }
 }
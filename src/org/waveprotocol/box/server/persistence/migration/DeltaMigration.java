@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.persistence.migration;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.server.CoreSettings;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.PersistenceModule;
+import org.waveprotocol.box.server.waveserver.DeltaStore;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.util.logging.Log;
+import org.waveprotocol.wave.util.settings.SettingsBinder;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Copies the delta histories of all wavelets between delta stores, through a
+ * {@link DeltaStreamWriter} stream.
+ *
+ * Unlike the WaveExport and WaveImport tools, which page through the robot
+ * API and resubmit every delta to a running server, this reads straight from
+ * the source delta store and appends to the target delta store in large
+ * batches. The deltas are copied as they are, so the target must have the
+ * same wave domain, and the servers must not be running. A wavelet which
+ * already has deltas in the target, such as one left partially written by an
+ * interrupted import, is resumed after its last delta, so an import can simply
+ * be run again. The search index of the target server is rebuilt as usual when
+ * it next starts.
+ *
+ * @see #main(String...)
+ */
+public final class DeltaMigration {
+  private static final Log LOG = Log.get(DeltaMigration.class);
+
+  private static final String PROPERTIES_FILE_KEY = "wave.server.config";
+
+  /** How many deltas are appended to the target delta store at a time. */
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  private DeltaMigration() {
+  }
+
+  /**
+   * Writes all wavelets in a delta store to a stream.
+   *
+   * @return the number of wavelets written
+   */
+  public static long exportDeltas(DeltaStore store, DeltaStreamWriter writer)
+      throws PersistenceException, IOException {
+    long wavelets = 0;
+    long deltas = 0;
+    ExceptionalIterator<WaveId, PersistenceException> waveIds = store.getWaveIdIterator();
+    while (waveIds.hasNext()) {
+      WaveId waveId = waveIds.next();
+      for (WaveletId waveletId : store.lookup(waveId)) {
+        DeltasAccess access = store.open(WaveletName.of(waveId, waveletId));
+        try {
+          deltas += writer.writeWavelet(access);
+        } finally {
+          access.close();
+        }
+        wavelets++;
+      }
+    }
+    LOG.info("Exported " + deltas + " deltas of " + wavelets + " wavelets");
+    return wavelets;
+  }
+
+  /**
+   * Appends the wavelets in a stream to a delta store. A wavelet which already
+   * has deltas in the store is resumed after them, and skipped if it already
+   * has all of them.
+   *
+   * @param batchSize how many deltas to append at a time
+   * @return the number of wavelets appended to
+   * @throws PersistenceException if the deltas of a wavelet in the store differ
+   *         from those in the stream.
+   */
+  public static long importDeltas(DeltaStreamReader reader, DeltaStore store, int batchSize)
+      throws PersistenceException, IOException {
+    long wavelets = 0;
+    long skippedWavelets = 0;
+    long deltas = 0;
+    List<WaveletDeltaRecord> batch = Lists.newArrayListWithCapacity(batchSize);
+    WaveletName waveletName;
+    while ((waveletName = reader.nextWavelet()) != null) {
+      DeltasAccess access = store.open(waveletName);
+      try {
+        long endVersion = access.isEmpty() ? 0 : access.getEndVersion().getVersion();
+        boolean appended = false;
+        WaveletDeltaRecord delta;
+        while ((delta = reader.nextDelta()) != null) {
+          if (delta.getResultingVersion().getVersion() <= endVersion) {
+            checkStored(access, delta);
+            continue;
+          }
+          if (!appended && endVersion > 0) {
+            if (!delta.getAppliedAtVersion().equals(access.getEndVersion())) {
+              throw new PersistenceException("The deltas of " + waveletName + " end at "
+                  + access.getEndVersion() + ", but the stream has a delta applied at "
+                  + delta.getAppliedAtVersion());
+            }
+            LOG.info("Resuming " + waveletName + " at version " + endVersion);
+          }
+          appended = true;
+          batch.add(delta);
+          if (batch.size() >= batchSize) {
+            access.append(batch);
+            deltas += batch.size();
+            batch.clear();
+          }
+        }
+        if (!batch.isEmpty()) {
+          access.append(batch);
+          deltas += batch.size();
+          batch.clear();
+        }
+        if (appended) {
+          wavelets++;
+        } else {
+          LOG.info("Skipping " + waveletName + ", which already has all its deltas");
+          skippedWavelets++;
+        }
+      } finally {
+        access.close();
+      }
+    }
+    LOG.info("Imported " + deltas + " deltas of " + wavelets + " wavelets, skipped "
+        + skippedWavelets + " wavelets");
+    return wavelets;
+  }
+
+  /**
+   * Checks that a delta of the stream, which ends before the end of the
+   * wavelet in the store, was stored with the same resulting version.
+   */
+  private static void checkStored(DeltasAccess access, WaveletDeltaRecord delta)
+      throws PersistenceException, IOException {
+    HashedVersion stored = access.getResultingVersion(delta.getAppliedAtVersion().getVersion());
+    if (!delta.getResultingVersion().equals(stored)) {
+      throw new PersistenceException("The delta of " + access.getWaveletName() + " applied at "
+          + delta.getAppliedAtVersion() + " leads to " + stored + " in the store, but to "
+          + delta.getResultingVersion() + " in the stream");
+    }
+  }
+
+  private static void usageError() {
+    System.err.println("Use: DeltaMigration export|import <file, or - for standard output/input>\n"
+        + "   [-batch_size Deltas appended at a time on import, default " + DEFAULT_BATCH_SIZE
+        + "]");
+    System.exit(1);
+  }
+
+  /**
+   * Exports the delta store configured in the server configuration file to a
+   * file, or imports a file to it.
+   */
+  public static void main(String... args)
+      throws ConfigurationException, PersistenceException, IOException {
+    if (args.length < 2) {
+      usageError();
+    }
+    boolean export = args[0].equals("export");
+    if (!export && !args[0].equals("import")) {
+      usageError();
+    }
+    String fileName = args[1];
+    int batchSize = DEFAULT_BATCH_SIZE;
+    for (int i = 2; i < args.length; i++) {
+      if (args[i].equals("-batch_size") && i + 1 < args.length) {
+        batchSize = Integer.parseInt(args[++i]);
+      } else {
+        usageError();
+      }
+    }
+    if (batchSize < 1) {
+      usageError();
+    }
+
+    DeltaStore store = createDeltaStore();
+    if (export) {
+      OutputStream out = fileName.equals("-") ? System.out : new FileOutputStream(fileName);
+      DeltaStreamWriter writer = new DeltaStreamWriter(out);
+      try {
+        exportDeltas(store, writer);
+      } finally {
+        writer.close();
+      }
+    } else {
+      InputStream in = fileName.equals("-") ? System.in : new FileInputStream(fileName);
+      DeltaStreamReader reader = new DeltaStreamReader(in);
+      try {
+        importDeltas(reader, store, batchSize);
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  private static DeltaStore createDeltaStore() throws ConfigurationException {
+    Module coreSettings = SettingsBinder.bindSettings(PROPERTIES_FILE_KEY, CoreSettings.class);
+    Injector settingsInjector = Guice.createInjector(coreSettings);
+    PersistenceModule persistenceModule = settingsInjector.getInstance(PersistenceModule.class);
+    return settingsInjector.createChildInjector(persistenceModule).getInstance(DeltaStore.class);
+  }
+}
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.persistence.migration;
+
+import com.google.protobuf.ByteString;
+
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreData.ProtoTransformedWaveletDelta;
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreDataSerializer;
+import org.waveprotocol.box.server.waveserver.AppliedDeltaUtil;
+import org.waveprotocol.box.server.waveserver.ByteStringMessage;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.model.id.InvalidIdException;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the delta histories of wavelets from a stream written by
+ * {@link DeltaStreamWriter}, one delta at a time.
+ *
+ * This class is not thread-safe.
+ */
+public class DeltaStreamReader implements Closeable {
+
+  private final DataInputStream in;
+
+  /** The tag of the next item in the stream. */
+  private int nextTag;
+
+  public DeltaStreamReader(InputStream in) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(in));
+    int magic = this.in.readInt();
+    if (magic != DeltaStreamWriter.MAGIC) {
+      throw new IOException("Not a delta stream");
+    }
+    int formatVersion = this.in.readInt();
+    if (formatVersion != DeltaStreamWriter.FORMAT_VERSION) {
+      throw new IOException("Unsupported delta stream format version " + formatVersion);
+    }
+    nextTag = this.in.readUnsignedByte();
+  }
+
+  /**
+   * Advances to the next wavelet, skipping any deltas of the current wavelet
+   * which haven't been read.
+   *
+   * @return the name of the next wavelet, or null at the end of the stream
+   */
+  public WaveletName nextWavelet() throws IOException {
+    while (nextTag == DeltaStreamWriter.DELTA_TAG) {
+      readBytes();
+      readBytes();
+      nextTag = in.readUnsignedByte();
+    }
+    if (nextTag == DeltaStreamWriter.END_TAG) {
+      return null;
+    }
+    checkTag(DeltaStreamWriter.WAVELET_TAG);
+    WaveletName waveletName;
+    try {
+      WaveId waveId = ModernIdSerialiser.INSTANCE.deserialiseWaveId(in.readUTF());
+      WaveletId waveletId = ModernIdSerialiser.INSTANCE.deserialiseWaveletId(in.readUTF());
+      waveletName = WaveletName.of(waveId, waveletId);
+    } catch (InvalidIdException e) {
+      throw new IOException("Invalid wavelet name in delta stream", e);
+    }
+    nextTag = in.readUnsignedByte();
+    return waveletName;
+  }
+
+  /**
+   * Reads the next delta of the current wavelet.
+   *
+   * @return the delta, or null if the current wavelet has no more deltas
+   */
+  public WaveletDeltaRecord nextDelta() throws IOException {
+    if (nextTag != DeltaStreamWriter.DELTA_TAG) {
+      return null;
+    }
+    ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta =
+        ByteStringMessage.parseProtocolAppliedWaveletDelta(ByteString.copyFrom(readBytes()));
+    TransformedWaveletDelta transformedDelta =
+        ProtoDeltaStoreDataSerializer.deserialize(ProtoTransformedWaveletDelta.parseFrom(readBytes()));
+    nextTag = in.readUnsignedByte();
+    return new WaveletDeltaRecord(AppliedDeltaUtil.getHashedVersionAppliedAt(appliedDelta),
+        appliedDelta, transformedDelta);
+  }
+
+  private void checkTag(int expectedTag) throws IOException {
+    if (nextTag != expectedTag) {
+      throw new IOException("Unexpected tag " + nextTag + " in delta stream");
+    }
+  }
+
+  private byte[] readBytes() throws IOException {
+    byte[] bytes = new byte[readLength()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private int readLength() throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Negative record length " + length + " in delta stream");
+    }
+    return length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.persistence.migration;
+
+import org.waveprotocol.box.server.persistence.protos.ProtoDeltaStoreDataSerializer;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecordReader;
+import org.waveprotocol.wave.model.id.ModernIdSerialiser;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the delta histories of wavelets to a stream, for
+ * {@link DeltaStreamReader} to read back.
+ *
+ * The stream starts with a magic number and a format version. Each wavelet is
+ * a wavelet tag followed by the serialized wave and wavelet ids, and then a
+ * delta tag and a record per delta. A record is the length-prefixed applied
+ * delta followed by the length-prefixed transformed delta, both as they are
+ * kept in the delta store. An end tag terminates the stream, so that a
+ * truncated stream is detected.
+ *
+ * Deltas are written as they are read, so the stream may be piped to a
+ * reader without ever holding a whole wavelet in memory.
+ *
+ * This class is not thread-safe.
+ */
+public class DeltaStreamWriter implements Closeable {
+
+  static final int MAGIC = 0x57444C54;
+  static final int FORMAT_VERSION = 1;
+
+  static final int END_TAG = 0;
+  static final int WAVELET_TAG = 1;
+  static final int DELTA_TAG = 2;
+
+  private final DataOutputStream out;
+
+  public DeltaStreamWriter(OutputStream out) throws IOException {
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.out.writeInt(MAGIC);
+    this.out.writeInt(FORMAT_VERSION);
+  }
+
+  /**
+   * Writes the whole delta history of a wavelet.
+   *
+   * @return the number of deltas written
+   * @throws IOException if the history could not be read or written
+   */
+  public long writeWavelet(WaveletDeltaRecordReader reader) throws IOException {
+    WaveletName waveletName = reader.getWaveletName();
+    out.writeByte(WAVELET_TAG);
+    out.writeUTF(ModernIdSerialiser.INSTANCE.serialiseWaveId(waveletName.waveId));
+    out.writeUTF(ModernIdSerialiser.INSTANCE.serialiseWaveletId(waveletName.waveletId));
+    if (reader.isEmpty()) {
+      return 0;
+    }
+    long endVersion = reader.getEndVersion().getVersion();
+    long version = 0;
+    long count = 0;
+    while (version < endVersion) {
+      WaveletDeltaRecord record = reader.getDelta(version);
+      if (record == null) {
+        throw new IOException("No delta at version " + version + " of " + waveletName);
+      }
+      writeDelta(record);
+      version = record.getResultingVersion().getVersion();
+      count++;
+    }
+    return count;
+  }
+
+  private void writeDelta(WaveletDeltaRecord record) throws IOException {
+    out.writeByte(DELTA_TAG);
+    writeBytes(record.getAppliedDelta().getByteString().toByteArray());
+    writeBytes(
+        ProtoDeltaStoreDataSerializer.serialize(record.getTransformedDelta()).toByteArray());
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /** Terminates the stream and closes the underlying stream. */
+  @Override
+  public void close() throws IOException {
+    try {
+      out.writeByte(END_TAG);
+      out.flush();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -29,21 +29,21 @@ import com.google.inject.name.Named;
 import com.google.inject.name.Names;
 import com.google.wave.api.RobotSerializer;
 import com.google.wave.api.data.converter.EventDataConverterModule;
-import com.google.wave.api.robot.HttpRobotConnection;
 import com.google.wave.api.robot.RobotConnection;
 
 import net.oauth.OAuthServiceProvider;
 import net.oauth.OAuthValidator;
 import net.oauth.SimpleOAuthValidator;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.waveprotocol.box.server.CoreSettings;
 import org.waveprotocol.box.server.robots.active.ActiveApiOperationServiceRegistry;
 import org.waveprotocol.box.server.robots.dataapi.DataApiOAuthServlet;
 import org.waveprotocol.box.server.robots.dataapi.DataApiOperationServiceRegistry;
 import org.waveprotocol.box.server.robots.operations.FetchProfilesService.ProfilesFetcher;
 import org.waveprotocol.box.server.robots.operations.GravatarProfilesFetcher;
+import org.waveprotocol.box.server.robots.passive.JettyRobotConnection;
 import org.waveprotocol.box.server.robots.passive.RobotConnector;
 
 import java.util.concurrent.Executor;
@@ -90,13 +90,24 @@ public class RobotApiModule extends AbstractModule {
 
   @Provides
   @Singleton
-  protected RobotConnection provideRobotConnection() {
-    HttpClient httpClient = new HttpClient(new MultiThreadedHttpConnectionManager());
-
-    ThreadFactory threadFactory =
-        new ThreadFactoryBuilder().setNameFormat("RobotConnection").build();
-    return new HttpRobotConnection(
-        httpClient, Executors.newFixedThreadPool(NUMBER_OF_THREADS, threadFactory));
+  protected RobotConnection provideRobotConnection(
+      @Named(CoreSettings.ROBOT_MAX_IN_FLIGHT) int maxInFlight,
+      @Named(CoreSettings.ROBOT_CONNECTION_TIMEOUT_MS) int timeoutMs) {
+    // The client waits for responses without holding a thread per request.
+    QueuedThreadPool threadPool = new QueuedThreadPool(NUMBER_OF_THREADS);
+    threadPool.setName("RobotConnection");
+    threadPool.setDaemon(true);
+    HttpClient httpClient = new HttpClient();
+    httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+    httpClient.setThreadPool(threadPool);
+    httpClient.setMaxConnectionsPerAddress(Math.max(1, maxInFlight));
+    httpClient.setTimeout(timeoutMs);
+    try {
+      httpClient.start();
+    } catch (Exception e) {
+      throw new IllegalStateException("Failed to start the robot HTTP client", e);
+    }
+    return new JettyRobotConnection(httpClient);
   }
 
   @Provides
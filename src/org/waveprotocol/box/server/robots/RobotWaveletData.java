@@ -23,10 +23,13 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.wave.model.document.operation.algorithm.DocOpCollector;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.CapturingOperationSink;
 import org.waveprotocol.wave.model.operation.SilentOperationSink;
 import org.waveprotocol.wave.model.operation.wave.BasicWaveletOperationContextFactory;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.schema.SchemaCollection;
@@ -49,7 +52,12 @@ import java.util.Map.Entry;
 /**
  * Represents a Wavelet opened by the Robot API. It gathers operations by
  * possibly different participants and can offer up these operations as a list
- * of deltas.
+ * of deltas, one per participant.
+ *
+ * <p>
+ * Consecutive operations on the content of the same document are composed
+ * into one, so that a robot making many small changes to a blip submits a
+ * short delta.
  *
  * <p>
  * TODO(ljvderijk): Possible limitation of this class occurs when a robot wants
@@ -140,6 +148,18 @@ public class RobotWaveletData {
     return w;
   }
 
+  /**
+   * Returns the number of operations performed on this wavelet, before
+   * composing them into deltas.
+   */
+  public int getOperationCount() {
+    int count = 0;
+    for (CapturingOperationSink<WaveletOperation> sink : sinkMap.values()) {
+      count += sink.getOps().size();
+    }
+    return count;
+  }
+
   /**
    * Returns a list of deltas for all the operations performed on this wavelet
    * in order of the participants passed into getOpBasedWavelet(). The deltas
@@ -158,9 +178,61 @@ public class RobotWaveletData {
         // No ops to generate delta for
         continue;
       }
-      WaveletDelta delta = new WaveletDelta(author, snapshotVersion, ops);
+      WaveletDelta delta = new WaveletDelta(author, snapshotVersion, composeContentOps(ops));
       deltas.add(delta);
     }
     return deltas;
   }
+
+  /**
+   * Composes each run of consecutive operations on the content of the same
+   * document into one operation, in the context of the last operation of the
+   * run. A run only holds operations which update the contributors of the
+   * document the same way, so that the composed operation updates them as the
+   * original ones did.
+   */
+  private static List<WaveletOperation> composeContentOps(List<WaveletOperation> ops) {
+    List<WaveletOperation> composedOps = Lists.newArrayListWithCapacity(ops.size());
+    int start = 0;
+    while (start < ops.size()) {
+      String blipId = getContentOpBlipId(ops.get(start));
+      int end = start + 1;
+      if (blipId != null) {
+        BlipContentOperation first = getContentOp(ops.get(start));
+        while (end < ops.size() && blipId.equals(getContentOpBlipId(ops.get(end)))
+            && first.updatesContributorsLike(getContentOp(ops.get(end)))) {
+          end++;
+        }
+      }
+      if (end - start == 1) {
+        composedOps.add(ops.get(start));
+      } else {
+        DocOpCollector collector = new DocOpCollector();
+        for (WaveletOperation op : ops.subList(start, end)) {
+          collector.add(getContentOp(op).getContentOp());
+        }
+        BlipContentOperation composed =
+            getContentOp(ops.get(end - 1)).withContentOp(collector.composeAll());
+        composedOps.add(new WaveletBlipOperation(blipId, composed));
+      }
+      start = end;
+    }
+    return composedOps;
+  }
+
+  /**
+   * Returns the id of the document whose content the operation changes, or
+   * null if it isn't a content operation.
+   */
+  private static String getContentOpBlipId(WaveletOperation op) {
+    if (op instanceof WaveletBlipOperation
+        && ((WaveletBlipOperation) op).getBlipOp() instanceof BlipContentOperation) {
+      return ((WaveletBlipOperation) op).getBlipId();
+    }
+    return null;
+  }
+
+  private static BlipContentOperation getContentOp(WaveletOperation op) {
+    return (BlipContentOperation) ((WaveletBlipOperation) op).getBlipOp();
+  }
 }
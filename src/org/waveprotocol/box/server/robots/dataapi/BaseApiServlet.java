@@ -37,6 +37,7 @@ import org.waveprotocol.box.server.robots.OperationContextImpl;
 import org.waveprotocol.box.server.robots.OperationResults;
 import org.waveprotocol.box.server.robots.OperationServiceRegistry;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
+import org.waveprotocol.box.server.robots.util.DeltaSubmissionStats;
 import org.waveprotocol.box.server.robots.util.LoggingRequestListener;
 import org.waveprotocol.box.server.robots.util.OperationUtil;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
@@ -75,6 +76,7 @@ public abstract class BaseApiServlet extends HttpServlet {
   private final OperationServiceRegistry operationRegistry;
   private final ConversationUtil conversationUtil;
   private final OAuthValidator validator;
+  private final DeltaSubmissionStats submissionStats = new DeltaSubmissionStats();
   
   /** Holds incoming operation requests. */
   private List<OperationRequest> operations;
@@ -145,6 +147,13 @@ public abstract class BaseApiServlet extends HttpServlet {
     handleResults(context, resp, version);
   }
 
+  /**
+   * Returns the stats of the deltas submitted for the operations performed.
+   */
+  public DeltaSubmissionStats getSubmissionStats() {
+    return submissionStats;
+  }
+
   /**
    * Executes operations in the given context.
    *
@@ -171,7 +180,8 @@ public abstract class BaseApiServlet extends HttpServlet {
   private void handleResults(
       OperationResults results, HttpServletResponse resp, ProtocolVersion version)
       throws IOException {
-    OperationUtil.submitDeltas(results, waveletProvider, LOGGING_REQUEST_LISTENER);
+    OperationUtil.submitDeltas(
+        results, waveletProvider, LOGGING_REQUEST_LISTENER, submissionStats);
     
     // Ensure that responses are returned in the same order as corresponding
     // requests.
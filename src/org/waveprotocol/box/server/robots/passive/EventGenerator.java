@@ -54,6 +54,7 @@ import org.waveprotocol.wave.model.document.Doc.N;
 import org.waveprotocol.wave.model.document.Doc.T;
 import org.waveprotocol.wave.model.document.indexed.DocumentEvent;
 import org.waveprotocol.wave.model.document.indexed.DocumentEvent.AnnotationChanged;
+import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.OperationException;
 import org.waveprotocol.wave.model.operation.SilentOperationSink;
 import org.waveprotocol.wave.model.operation.wave.BasicWaveletOperationContextFactory;
@@ -65,9 +66,11 @@ import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.ParticipationHelper;
 import org.waveprotocol.wave.model.wave.WaveletListener;
 import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.model.wave.opbased.OpBasedWavelet;
 import org.waveprotocol.wave.model.wave.opbased.WaveletListenerImpl;
 
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -90,10 +93,31 @@ import java.util.Map;
  * <li>WaveletTitleChanged (TBD)</li>
  * <li>BlipSubmitted (Will not be supported, submit ops will be phased out)</li>
  *
+ * <p>
+ * Events are generated by applying the deltas to a model of the wavelet and
+ * its conversation. The models of the most recently updated wavelets may be
+ * kept alive, so that the next bundle of a wavelet only applies its new deltas
+ * instead of copying the wavelet and building its conversation again. A model
+ * is only reused if the bundle starts at the version the model is at.
+ *
  * @author ljvderijk@google.com (Lennard de Rijk)
  */
 public class EventGenerator {
 
+  /** A wavelet and its root conversation, kept alive between bundles. */
+  private static final class LiveModel {
+    final ObservableWaveletData snapshot;
+    final OpBasedWavelet wavelet;
+    final ObservableConversation conversation;
+
+    LiveModel(ObservableWaveletData snapshot, OpBasedWavelet wavelet,
+        ObservableConversation conversation) {
+      this.snapshot = snapshot;
+      this.wavelet = wavelet;
+      this.conversation = conversation;
+    }
+  }
+
   private static class EventGeneratingWaveletListener extends WaveletListenerImpl {
     @SuppressWarnings("unused")
     private final Map<EventType, Capability> capabilities;
@@ -389,16 +413,75 @@ public class EventGenerator {
 
   private final ParticipantId robotId;
 
+  /** The most wavelet models to keep alive between bundles. */
+  private final int maxLiveModels;
+
   /**
-   * Constructs a new {@link EventGenerator} for the robot with the given name.
+   * The models kept alive, least recently used first. Guarded by itself, a
+   * model is removed while events are generated from it.
+   */
+  private final Map<WaveletName, LiveModel> liveModels;
+
+  private final EventGeneratorStats stats;
+
+  /**
+   * Constructs a new {@link EventGenerator} for the robot with the given name,
+   * which builds the wavelet model anew for every bundle.
    *
    * @param robotName the name of the robot.
    * @param conversationUtil used to create conversations.
    */
   public EventGenerator(RobotName robotName, ConversationUtil conversationUtil) {
+    this(robotName, conversationUtil, 0);
+  }
+
+  /**
+   * Constructs a new {@link EventGenerator} for the robot with the given name.
+   *
+   * @param robotName the name of the robot.
+   * @param conversationUtil used to create conversations.
+   * @param maxLiveModels the most wavelet models to keep alive between bundles,
+   *        0 to build the model anew for every bundle.
+   */
+  public EventGenerator(RobotName robotName, ConversationUtil conversationUtil,
+      int maxLiveModels) {
+    this(robotName, conversationUtil, maxLiveModels, new EventGeneratorStats());
+  }
+
+  /**
+   * Constructs a new {@link EventGenerator} for the robot with the given name,
+   * counting its models in stats which may be shared with other generators.
+   *
+   * @param robotName the name of the robot.
+   * @param conversationUtil used to create conversations.
+   * @param maxLiveModels the most wavelet models to keep alive between bundles,
+   *        0 to build the model anew for every bundle.
+   * @param stats the stats to count the models in.
+   */
+  EventGenerator(RobotName robotName, ConversationUtil conversationUtil,
+      final int maxLiveModels, final EventGeneratorStats stats) {
     this.robotName = robotName;
     this.conversationUtil = conversationUtil;
     this.robotId = ParticipantId.ofUnsafe(robotName.toParticipantAddress());
+    this.maxLiveModels = maxLiveModels;
+    this.stats = stats;
+    this.liveModels = new LinkedHashMap<WaveletName, LiveModel>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<WaveletName, LiveModel> eldest) {
+        if (size() > maxLiveModels) {
+          stats.recordEvicted();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the stats the models of this generator are counted in.
+   */
+  EventGeneratorStats getStats() {
+    return stats;
   }
 
   /**
@@ -413,27 +496,22 @@ public class EventGenerator {
   public EventMessageBundle generateEvents(WaveletAndDeltas waveletAndDeltas,
       Map<EventType, Capability> capabilities, EventDataConverter converter) {
     EventMessageBundle messages = new EventMessageBundle(robotName.toEmailAddress(), "");
-    ObservableWaveletData snapshot =
-        WaveletDataUtil.copyWavelet(waveletAndDeltas.getSnapshotBeforeDeltas());
-    isEventProcessingSuspended = !snapshot.getParticipants().contains(robotId);
-
     if (robotName.hasProxyFor()) {
       // This robot is proxying so set the proxy field.
       messages.setProxyingFor(robotName.getProxyFor());
     }
 
-    // Sending any operations will cause an exception.
-    OpBasedWavelet wavelet =
-        new OpBasedWavelet(snapshot.getWaveId(), snapshot,
-            // This doesn't thrown an exception, the sinks will
-            new BasicWaveletOperationContextFactory(null),
-            ParticipationHelper.DEFAULT, SilentOperationSink.VOID, SilentOperationSink.VOID);
-
-    ObservableConversation conversation = getRootConversation(wavelet);
-
-    if (conversation == null) {
-      return messages;
+    LiveModel model = takeLiveModel(waveletAndDeltas.getSnapshotBeforeDeltas());
+    if (model == null) {
+      model = buildModel(waveletAndDeltas.getSnapshotBeforeDeltas());
+      if (model == null) {
+        return messages;
+      }
     }
+    ObservableWaveletData snapshot = model.snapshot;
+    OpBasedWavelet wavelet = model.wavelet;
+    ObservableConversation conversation = model.conversation;
+    isEventProcessingSuspended = !snapshot.getParticipants().contains(robotId);
 
     // Start listening
     EventGeneratingConversationListener conversationListener =
@@ -461,6 +539,8 @@ public class EventGenerator {
         }
         conversationListener.deltaEnd();
       }
+      // The model is now at the end of the bundle, where the next one starts.
+      keepLiveModel(model);
     } catch (OperationException e) {
       throw new IllegalStateException("Operation failed to apply when generating events", e);
     } finally {
@@ -483,6 +563,65 @@ public class EventGenerator {
     return messages;
   }
 
+  /**
+   * Removes the live model of a wavelet, for the caller to generate events
+   * from.
+   *
+   * @param snapshotBeforeDeltas the wavelet at the start of the bundle.
+   * @return the model, or null if there is none at the start of the bundle or
+   *         it no longer has a root blip.
+   */
+  private LiveModel takeLiveModel(ReadableWaveletData snapshotBeforeDeltas) {
+    if (maxLiveModels <= 0) {
+      return null;
+    }
+    LiveModel model;
+    synchronized (liveModels) {
+      model = liveModels.remove(WaveletDataUtil.waveletNameOf(snapshotBeforeDeltas));
+    }
+    if (model == null || model.snapshot.getVersion() != snapshotBeforeDeltas.getVersion()
+        || model.conversation.getRootThread().getFirstBlip() == null) {
+      return null;
+    }
+    stats.recordReused();
+    return model;
+  }
+
+  /**
+   * Keeps a model alive for the next bundle of its wavelet, evicting the least
+   * recently used model if there are too many.
+   */
+  private void keepLiveModel(LiveModel model) {
+    if (maxLiveModels > 0) {
+      synchronized (liveModels) {
+        liveModels.put(WaveletDataUtil.waveletNameOf(model.snapshot), model);
+      }
+    }
+  }
+
+  /**
+   * Builds a model from a copy of the wavelet.
+   *
+   * @return the model, or null if the wavelet has no root conversation.
+   */
+  private LiveModel buildModel(ReadableWaveletData snapshotBeforeDeltas) {
+    stats.recordBuilt();
+    ObservableWaveletData snapshot = WaveletDataUtil.copyWavelet(snapshotBeforeDeltas);
+
+    // Sending any operations will cause an exception.
+    OpBasedWavelet wavelet =
+        new OpBasedWavelet(snapshot.getWaveId(), snapshot,
+            // This doesn't thrown an exception, the sinks will
+            new BasicWaveletOperationContextFactory(null),
+            ParticipationHelper.DEFAULT, SilentOperationSink.VOID, SilentOperationSink.VOID);
+
+    ObservableConversation conversation = getRootConversation(wavelet);
+    if (conversation == null) {
+      return null;
+    }
+    return new LiveModel(snapshot, wavelet, conversation);
+  }
+
   /**
    * Attaches a doc handler to the blip the operation applies to.
    *
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.robots.passive;
+
+import org.waveprotocol.box.server.util.StatsSource;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the wavelet models the event generators of all robots reused,
+ * built and evicted, so that the number of live models per robot can be tuned.
+ *
+ * This class is thread-safe.
+ */
+class EventGeneratorStats implements StatsSource {
+  private final AtomicLong reusedModelCount = new AtomicLong();
+  private final AtomicLong builtModelCount = new AtomicLong();
+  private final AtomicLong evictedModelCount = new AtomicLong();
+
+  void recordReused() {
+    reusedModelCount.incrementAndGet();
+  }
+
+  void recordBuilt() {
+    builtModelCount.incrementAndGet();
+  }
+
+  void recordEvicted() {
+    evictedModelCount.incrementAndGet();
+  }
+
+  /** Returns the number of bundles generated from a model kept alive. */
+  long getReusedModelCount() {
+    return reusedModelCount.get();
+  }
+
+  /** Returns the number of bundles for which the model had to be built. */
+  long getBuiltModelCount() {
+    return builtModelCount.get();
+  }
+
+  /** Returns the number of live models dropped to make room for others. */
+  long getEvictedModelCount() {
+    return evictedModelCount.get();
+  }
+
+  @Override
+  public void collectStats(Map<String, Number> stats) {
+    stats.put("reused", reusedModelCount.get());
+    stats.put("built", builtModelCount.get());
+    stats.put("evicted", evictedModelCount.get());
+  }
+}
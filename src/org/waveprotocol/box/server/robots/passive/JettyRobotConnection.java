@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.robots.passive;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.wave.api.robot.RobotConnection;
+import com.google.wave.api.robot.RobotConnectionException;
+import com.google.wave.api.robot.RobotConnectionUtil;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A {@link RobotConnection} that uses Jetty's non-blocking {@link HttpClient},
+ * so that requests awaiting a robot's response don't hold a thread each.
+ */
+public class JettyRobotConnection implements RobotConnection {
+
+  private final HttpClient httpClient;
+
+  /**
+   * @param httpClient a started client
+   */
+  public JettyRobotConnection(HttpClient httpClient) {
+    this.httpClient = httpClient;
+  }
+
+  @Override
+  public String get(String url) throws RobotConnectionException {
+    return await(url, asyncGet(url));
+  }
+
+  @Override
+  public ListenableFuture<String> asyncGet(String url) {
+    RobotExchange exchange = new RobotExchange(url);
+    exchange.setMethod("GET");
+    return send(exchange);
+  }
+
+  @Override
+  public String postJson(String url, String body) throws RobotConnectionException {
+    return await(url, asyncPostJson(url, body));
+  }
+
+  @Override
+  public ListenableFuture<String> asyncPostJson(String url, String body) {
+    RobotExchange exchange = new RobotExchange(url);
+    exchange.setMethod("POST");
+    exchange.setRequestContentType(RobotConnection.JSON_CONTENT_TYPE);
+    exchange.setRequestContent(new ByteArrayBuffer(body.getBytes(Charsets.UTF_8)));
+    return send(exchange);
+  }
+
+  private ListenableFuture<String> send(RobotExchange exchange) {
+    try {
+      httpClient.send(exchange);
+    } catch (IOException e) {
+      exchange.fail(e);
+    }
+    return exchange.result;
+  }
+
+  private static String await(String url, ListenableFuture<String> result)
+      throws RobotConnectionException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RobotConnectionException("Interrupted while fetching " + url, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RobotConnectionException) {
+        throw (RobotConnectionException) e.getCause();
+      }
+      throw new RobotConnectionException("Robot fetch http failure: " + url + ".", e.getCause());
+    }
+  }
+
+  /**
+   * An exchange with a robot, which completes its result when the response
+   * arrives or the exchange fails.
+   */
+  private static class RobotExchange extends ContentExchange {
+    final SettableFuture<String> result = SettableFuture.create();
+    private final String url;
+
+    RobotExchange(String url) {
+      super(true);
+      this.url = url;
+      setURL(url);
+    }
+
+    @Override
+    protected void onResponseComplete() throws IOException {
+      try {
+        result.set(RobotConnectionUtil.validateAndReadResponse(url, getResponseStatus(),
+            getResponseContentBytes()));
+      } catch (RobotConnectionException e) {
+        result.setException(e);
+      }
+    }
+
+    @Override
+    protected void onConnectionFailed(Throwable x) {
+      fail(x);
+    }
+
+    @Override
+    protected void onException(Throwable x) {
+      fail(x);
+    }
+
+    @Override
+    protected void onExpire() {
+      result.setException(new RobotConnectionException("Robot fetch timed out: " + url + "."));
+    }
+
+    void fail(Throwable cause) {
+      result.setException(
+          new RobotConnectionException("Robot fetch http failure: " + url + ".", cause));
+    }
+  }
+}
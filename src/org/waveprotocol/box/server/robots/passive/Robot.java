@@ -23,6 +23,10 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.wave.api.OperationRequest;
 import com.google.wave.api.data.converter.EventDataConverterManager;
 import com.google.wave.api.impl.EventMessageBundle;
@@ -42,7 +46,12 @@ import org.waveprotocol.wave.util.logging.Log;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents a Robot in the passive API. Is responsible for providing a filter
@@ -50,6 +59,17 @@ import java.util.Map.Entry;
  * executing the operations it receives. It submits the delta back to the
  * {@link RobotsGateway}.
  *
+ * <p>
+ * A robot which may have more than one bundle in flight sends bundles
+ * asynchronously, for different wavelets concurrently. The bundles of a
+ * wavelet are still sent one at a time and in order, and the operations of
+ * each response are applied before the next bundle of that wavelet is sent.
+ *
+ * <p>
+ * With a coalesce window, the update of a wavelet is held back until the window
+ * has passed since it was enqueued. Contiguous deltas applied meanwhile are
+ * appended to it, so that the robot gets them in one bundle.
+ *
  * @author ljvderijk@google.com (Lennard de Rijk)
  */
 public class Robot implements Runnable {
@@ -81,6 +101,24 @@ public class Robot implements Runnable {
   private final EventGenerator eventGenerator;
   private final RobotOperationApplicator operationApplicator;
 
+  /** The most bundles which may await a response at once. */
+  private final int maxInFlight;
+  /** Applies the operations of asynchronous responses. */
+  private final Executor responseExecutor;
+  /**
+   * Wavelets with a bundle awaiting a response, which aren't dequeued until it
+   * has been processed. Guarded by waveletAndDeltasMap.
+   */
+  private final Set<WaveletName> inFlightWavelets = Sets.newHashSet();
+  /** How long an enqueued update is held back to merge later deltas into it. */
+  private final long coalesceWindowMillis;
+  /** When each enqueued update was enqueued. Guarded by waveletAndDeltasMap. */
+  private final Map<WaveletAndDeltas, Long> enqueueTimes = Maps.newIdentityHashMap();
+
+  private final AtomicLong sentBundleCount = new AtomicLong();
+  private final AtomicLong totalLatencyMillis = new AtomicLong();
+  private final AtomicLong maxLatencyMillis = new AtomicLong();
+
   /**
    * Constructs a new Robot which is characterized by its {@link RobotName}.
    *
@@ -100,7 +138,41 @@ public class Robot implements Runnable {
       RobotConnector connector, EventDataConverterManager converterManager,
       WaveletProvider waveletProvider, EventGenerator eventGenerator,
       RobotOperationApplicator operationApplicator) {
+    this(robotName, account, gateway, connector, converterManager, waveletProvider,
+        eventGenerator, operationApplicator, 1, MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * Constructs a new Robot which may have several bundles in flight, and which
+   * sends updates as soon as possible.
+   */
+  Robot(RobotName robotName, RobotAccountData account, RobotsGateway gateway,
+      RobotConnector connector, EventDataConverterManager converterManager,
+      WaveletProvider waveletProvider, EventGenerator eventGenerator,
+      RobotOperationApplicator operationApplicator, int maxInFlight, Executor responseExecutor) {
+    this(robotName, account, gateway, connector, converterManager, waveletProvider,
+        eventGenerator, operationApplicator, maxInFlight, responseExecutor, 0);
+  }
+
+  /**
+   * Constructs a new Robot which may have several bundles in flight.
+   *
+   * @param maxInFlight the most bundles which may await a response at once,
+   *        each for a different wavelet. With 1, bundles are sent synchronously.
+   * @param responseExecutor used to apply the operations of asynchronous
+   *        responses.
+   * @param coalesceWindowMillis how long an update of a wavelet is held back
+   *        so that later deltas are sent with it, 0 to send it right away.
+   */
+  Robot(RobotName robotName, RobotAccountData account, RobotsGateway gateway,
+      RobotConnector connector, EventDataConverterManager converterManager,
+      WaveletProvider waveletProvider, EventGenerator eventGenerator,
+      RobotOperationApplicator operationApplicator, int maxInFlight, Executor responseExecutor,
+      long coalesceWindowMillis) {
     Preconditions.checkArgument(account.isVerified(), "Account must be verified");
+    this.coalesceWindowMillis = Math.max(0, coalesceWindowMillis);
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.responseExecutor = responseExecutor;
     this.robotName = robotName;
     this.gateway = gateway;
     this.connector = connector;
@@ -168,6 +240,7 @@ public class Robot implements Runnable {
       if (wavelets.isEmpty()) {
         WaveletAndDeltas waveletAndDeltas = WaveletAndDeltas.create(wavelet, deltas);
         wavelets.add(waveletAndDeltas);
+        enqueueTimes.put(waveletAndDeltas, System.currentTimeMillis());
       } else {
         WaveletAndDeltas waveletAndDeltas = wavelets.get(wavelets.size() - 1);
         if (waveletAndDeltas.areContiguousToCurrentVersion(deltas)) {
@@ -176,6 +249,7 @@ public class Robot implements Runnable {
           // We are missing deltas, create a new collection.
           waveletAndDeltas = WaveletAndDeltas.create(wavelet, deltas);
           wavelets.add(waveletAndDeltas);
+          enqueueTimes.put(waveletAndDeltas, System.currentTimeMillis());
         }
       }
     }
@@ -188,23 +262,119 @@ public class Robot implements Runnable {
    * This method synchronizes on the queue because deltas might be added in
    * waveletUpdate().
    *
-   * @return the next {@link WaveletAndDeltas} in the queue, null if there is
-   *         none.
+   * @return the next {@link WaveletAndDeltas} in the queue whose coalesce
+   *         window has passed, null if there is none.
    */
   @VisibleForTesting
   WaveletAndDeltas dequeueWavelet() {
     synchronized (waveletAndDeltasMap) {
+      long now = System.currentTimeMillis();
       Iterator<Entry<WaveletName, WaveletAndDeltas>> iterator =
           waveletAndDeltasMap.entries().iterator();
-      if (!iterator.hasNext()) {
+      while (iterator.hasNext()) {
+        Entry<WaveletName, WaveletAndDeltas> entry = iterator.next();
+        if (!inFlightWavelets.contains(entry.getKey())
+            && getMillisUntilReady(entry.getValue(), now) == 0) {
+          iterator.remove();
+          enqueueTimes.remove(entry.getValue());
+          return entry.getValue();
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Returns how long until the coalesce window of an enqueued update has
+   * passed, 0 if it has. Must be called while holding waveletAndDeltasMap.
+   */
+  private long getMillisUntilReady(WaveletAndDeltas wavelet, long now) {
+    Long enqueueTime = enqueueTimes.get(wavelet);
+    if (enqueueTime == null) {
+      return 0;
+    }
+    return Math.max(0, enqueueTime + coalesceWindowMillis - now);
+  }
+
+  /**
+   * Returns how long until the next held back update may be sent, or -1 if no
+   * update is held back.
+   */
+  private long getMillisUntilNextReady() {
+    synchronized (waveletAndDeltasMap) {
+      long now = System.currentTimeMillis();
+      long next = -1;
+      for (Entry<WaveletName, WaveletAndDeltas> entry : waveletAndDeltasMap.entries()) {
+        if (!inFlightWavelets.contains(entry.getKey())) {
+          long millis = getMillisUntilReady(entry.getValue(), now);
+          if (millis > 0 && (next == -1 || millis < next)) {
+            next = millis;
+          }
+        }
+      }
+      return next;
+    }
+  }
+
+  /**
+   * Has the gateway run this robot again once the next held back update may be
+   * sent, if any.
+   */
+  private void scheduleHeldBackUpdates() {
+    long delayMillis = getMillisUntilNextReady();
+    if (delayMillis > 0) {
+      gateway.scheduleAfter(this, delayMillis);
+    }
+  }
+
+  /**
+   * Dequeues a wavelet which has no bundle in flight and marks it in flight,
+   * unless the robot already has as many bundles in flight as it may.
+   *
+   * @return the next {@link WaveletAndDeltas} to send, null if there is none.
+   */
+  private WaveletAndDeltas dequeueWaveletToSend() {
+    synchronized (waveletAndDeltasMap) {
+      if (inFlightWavelets.size() >= maxInFlight) {
         return null;
       }
-      WaveletAndDeltas wavelet = iterator.next().getValue();
-      iterator.remove();
+      WaveletAndDeltas wavelet = dequeueWavelet();
+      if (wavelet != null) {
+        inFlightWavelets.add(WaveletDataUtil.waveletNameOf(wavelet.getSnapshotAfterDeltas()));
+      }
       return wavelet;
     }
   }
 
+  /**
+   * Marks the bundle of a wavelet as processed, so that the next one may be
+   * sent.
+   */
+  private void doneSending(WaveletName waveletName) {
+    synchronized (waveletAndDeltasMap) {
+      inFlightWavelets.remove(waveletName);
+    }
+  }
+
+  /**
+   * @return true if a wavelet could be dequeued to send now.
+   */
+  private boolean hasWaveletToSend() {
+    synchronized (waveletAndDeltasMap) {
+      if (inFlightWavelets.size() >= maxInFlight) {
+        return false;
+      }
+      long now = System.currentTimeMillis();
+      for (Entry<WaveletName, WaveletAndDeltas> entry : waveletAndDeltasMap.entries()) {
+        if (!inFlightWavelets.contains(entry.getKey())
+            && getMillisUntilReady(entry.getValue(), now) == 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
   /**
    * Runs this {@link Robot} by checking its queue for a new wavelet and then
    * processing this wavelet. In the end the {@link Robot} will check whether it
@@ -213,12 +383,17 @@ public class Robot implements Runnable {
    */
   @Override
   public void run() {
+    if (maxInFlight > 1) {
+      runAsynchronously();
+      return;
+    }
     try {
       LOG.fine(robotName + " called for processing");
 
       WaveletAndDeltas wavelet = dequeueWavelet();
       if (wavelet == null) {
         gateway.doneRunning(this);
+        scheduleHeldBackUpdates();
         return;
       }
       process(wavelet);
@@ -231,6 +406,135 @@ public class Robot implements Runnable {
     gateway.ensureScheduled(this);
   }
 
+  /**
+   * Sends bundles for as many wavelets as the robot may have in flight. As
+   * each response is processed the robot is requeued to send the next ones.
+   */
+  private void runAsynchronously() {
+    try {
+      LOG.fine(robotName + " called for processing");
+
+      WaveletAndDeltas wavelet;
+      while ((wavelet = dequeueWaveletToSend()) != null) {
+        final WaveletName waveletName =
+            WaveletDataUtil.waveletNameOf(wavelet.getSnapshotAfterDeltas());
+        boolean sent = false;
+        try {
+          sent = send(wavelet);
+        } finally {
+          if (!sent) {
+            doneSending(waveletName);
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      LOG.severe("Unexpected error occurred when robot " + robotName + " was called", e);
+    }
+
+    gateway.doneRunning(this);
+    // Updates may have been enqueued after the last dequeue.
+    if (hasWaveletToSend()) {
+      gateway.ensureScheduled(this);
+    } else {
+      scheduleHeldBackUpdates();
+    }
+  }
+
+  /**
+   * Generates the events of a wavelet and sends them to the robot without
+   * waiting for the response. The operations of the response are applied on
+   * the response executor, after which the wavelet is done sending.
+   *
+   * @return true if a bundle was sent, false if there was nothing to send.
+   */
+  private boolean send(final WaveletAndDeltas wavelet) {
+    final EventMessageBundle messages = generateEvents(wavelet);
+    if (messages == null) {
+      return false;
+    }
+
+    LOG.info(robotName + ": sending events");
+    final RobotAccountData sendingAccount = account;
+    final long startTime = System.currentTimeMillis();
+    final ListenableFuture<List<OperationRequest>> response = connector.asyncSendMessageBundle(
+        messages, this, sendingAccount.getCapabilities().getProtocolVersion());
+    response.addListener(new Runnable() {
+      @Override
+      public void run() {
+        WaveletName waveletName = WaveletDataUtil.waveletNameOf(wavelet.getSnapshotAfterDeltas());
+        try {
+          recordLatency(System.currentTimeMillis() - startTime);
+          List<OperationRequest> operations = getOperations(response);
+          LOG.info(robotName + ": received operations");
+          operationApplicator.applyOperations(operations, wavelet.getSnapshotAfterDeltas(),
+              wavelet.getVersionAfterDeltas(), sendingAccount);
+        } catch (RuntimeException e) {
+          LOG.severe("Unexpected error occurred when applying the operations of robot "
+              + robotName, e);
+        } finally {
+          doneSending(waveletName);
+          gateway.ensureScheduled(Robot.this);
+        }
+      }
+    }, responseExecutor);
+    return true;
+  }
+
+  private static List<OperationRequest> getOperations(
+      ListenableFuture<List<OperationRequest>> response) {
+    try {
+      return response.get();
+    } catch (InterruptedException e) {
+      // The response is done, so this can't happen.
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("The connector should not fail", e.getCause());
+    }
+  }
+
+  private void recordLatency(long latencyMillis) {
+    sentBundleCount.incrementAndGet();
+    totalLatencyMillis.addAndGet(latencyMillis);
+    long max = maxLatencyMillis.get();
+    while (latencyMillis > max && !maxLatencyMillis.compareAndSet(max, latencyMillis)) {
+      max = maxLatencyMillis.get();
+    }
+  }
+
+  /**
+   * Returns the number of bundles awaiting a response.
+   */
+  int getInFlightCount() {
+    synchronized (waveletAndDeltasMap) {
+      return inFlightWavelets.size();
+    }
+  }
+
+  /**
+   * Returns the number of bundles sent that got a response or failed.
+   */
+  long getSentBundleCount() {
+    return sentBundleCount.get();
+  }
+
+  /**
+   * Returns the average time in milliseconds from sending a bundle until its
+   * response arrived.
+   */
+  long getAverageLatencyMillis() {
+    long count = sentBundleCount.get();
+    return count == 0 ? 0 : totalLatencyMillis.get() / count;
+  }
+
+  /**
+   * Returns the longest time in milliseconds from sending a bundle until its
+   * response arrived.
+   */
+  long getMaxLatencyMillis() {
+    return maxLatencyMillis.get();
+  }
+
   /**
    * Processes a single {@link WaveletAndDeltas} by generating events that a
    * {@link Robot} is subscribed to. These events are then sent off to the robot
@@ -241,6 +545,30 @@ public class Robot implements Runnable {
    * @param wavelet the {@link WaveletAndDeltas} to process.
    */
   private void process(WaveletAndDeltas wavelet) {
+    EventMessageBundle messages = generateEvents(wavelet);
+    if (messages == null) {
+      return;
+    }
+
+    RobotCapabilities capabilities = account.getCapabilities();
+    LOG.info(robotName + ": sending events");
+    long startTime = System.currentTimeMillis();
+    List<OperationRequest> response =
+        connector.sendMessageBundle(messages, this, capabilities.getProtocolVersion());
+    recordLatency(System.currentTimeMillis() - startTime);
+    LOG.info(robotName + ": received operations");
+
+    operationApplicator.applyOperations(
+        response, wavelet.getSnapshotAfterDeltas(), wavelet.getVersionAfterDeltas(), account);
+  }
+
+  /**
+   * Generates the events that the robot is subscribed to for a wavelet,
+   * initializing the capabilities of the robot first if needed.
+   *
+   * @return the events, or null if there are none to send.
+   */
+  private EventMessageBundle generateEvents(WaveletAndDeltas wavelet) {
     if (account.getCapabilities() == null) {
       try {
         LOG.info(robotName + ": Initializing capabilities");
@@ -251,14 +579,14 @@ public class Robot implements Runnable {
             "Couldn't initialize the capabilities of robot(" + robotName
                 + "), dropping its wavelet(" + WaveletDataUtil.waveletNameOf(snapshot)
                 + ") at version " + wavelet.getVersionAfterDeltas(), e);
-        return;
+        return null;
       } catch (PersistenceException e) {
         ReadableWaveletData snapshot = wavelet.getSnapshotAfterDeltas();
         LOG.info(
             "Couldn't initialize the capabilities of robot(" + robotName
                 + "), dropping its wavelet(" + WaveletDataUtil.waveletNameOf(snapshot)
                 + ") at version " + wavelet.getVersionAfterDeltas(), e);
-        return;
+        return null;
       }
     }
 
@@ -270,15 +598,8 @@ public class Robot implements Runnable {
     if (messages.getEvents().isEmpty()) {
       // No events were generated, we are done
       LOG.info(robotName + ": no events were generated");
-      return;
+      return null;
     }
-
-    LOG.info(robotName + ": sending events");
-    List<OperationRequest> response =
-        connector.sendMessageBundle(messages, this, capabilities.getProtocolVersion());
-    LOG.info(robotName + ": received operations");
-
-    operationApplicator.applyOperations(
-        response, wavelet.getSnapshotAfterDeltas(), wavelet.getVersionAfterDeltas(), account);
+    return messages;
   }
 }
@@ -19,6 +19,9 @@
 
 package org.waveprotocol.box.server.robots.passive;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.Inject;
 import com.google.wave.api.InvalidRequestException;
 import com.google.wave.api.OperationRequest;
@@ -37,6 +40,7 @@ import org.waveprotocol.wave.util.logging.Log;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 /**
  * This class sends {@link EventMessageBundle} to a robot and receives their
@@ -90,6 +94,56 @@ public class RobotConnector {
     return Collections.emptyList();
   }
 
+  /**
+   * Asynchronously sends an {@link EventMessageBundle} off to a robot. Like
+   * {@link #sendMessageBundle}, failures result in an empty list of
+   * operations.
+   *
+   * @param bundle the bundle to send to the robot.
+   * @param robot the {@link RobotAccountData} of the robot.
+   * @param version the version that we should speak to the robot.
+   * @returns a future of the list of {@link OperationRequest}s that the robot
+   *          wants to have executed.
+   */
+  public ListenableFuture<List<OperationRequest>> asyncSendMessageBundle(
+      EventMessageBundle bundle, Robot robot, ProtocolVersion version) {
+    String serializedBundle = serializer.serialize(bundle, version);
+
+    final String robotUrl = robot.getAccount().getUrl() + Robot.RPC_URL;
+    LOG.info("Sending: " + serializedBundle + " to " + robotUrl);
+
+    final SettableFuture<List<OperationRequest>> operations = SettableFuture.create();
+    final ListenableFuture<String> response;
+    try {
+      response = connection.asyncPostJson(robotUrl, serializedBundle);
+    } catch (RobotConnectionException e) {
+      LOG.info("Failed to send to " + robotUrl, e);
+      operations.set(Collections.<OperationRequest>emptyList());
+      return operations;
+    }
+    response.addListener(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          String responseBody = response.get();
+          LOG.info("Received: " + responseBody + " from " + robotUrl);
+          operations.set(serializer.deserializeOperations(responseBody));
+          return;
+        } catch (ExecutionException e) {
+          LOG.info("Failed to receive a response from " + robotUrl, e.getCause());
+        } catch (InterruptedException e) {
+          // The response is done, so this can't happen.
+          Thread.currentThread().interrupt();
+        } catch (InvalidRequestException e) {
+          LOG.info("Failed to deserialize passive API response", e);
+        }
+        // Let the caller ignore the failure.
+        operations.set(Collections.<OperationRequest>emptyList());
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return operations;
+  }
+
   /**
    * Returns a new {@link RobotAccountData} updated with the new capabilities
    * using the given {@link RobotAccountData}.
@@ -32,6 +32,7 @@ import org.waveprotocol.box.server.robots.OperationServiceRegistry;
 import org.waveprotocol.box.server.robots.RobotWaveletData;
 import org.waveprotocol.box.server.robots.operations.OperationService;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
+import org.waveprotocol.box.server.robots.util.DeltaSubmissionStats;
 import org.waveprotocol.box.server.robots.util.LoggingRequestListener;
 import org.waveprotocol.box.server.robots.util.OperationUtil;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
@@ -60,6 +61,7 @@ public class RobotOperationApplicator {
   private final WaveletProvider waveletProvider;
   private final OperationServiceRegistry operationRegistry;
   private final ConversationUtil conversationUtil;
+  private final DeltaSubmissionStats submissionStats;
 
   /**
    * Constructs a new {@link RobotOperationApplicator}.
@@ -73,10 +75,29 @@ public class RobotOperationApplicator {
   public RobotOperationApplicator(EventDataConverterManager converterManager,
       WaveletProvider waveletProvider, OperationServiceRegistry operationRegistry,
       ConversationUtil conversationUtil) {
+    this(converterManager, waveletProvider, operationRegistry, conversationUtil,
+        new DeltaSubmissionStats());
+  }
+
+  /**
+   * Constructs a new {@link RobotOperationApplicator} which records the deltas
+   * it submits in stats which may be shared with other applicators.
+   *
+   * @param converterManager used to convert to Robot API objects
+   * @param waveletProvider used to retrieve wavelets and submit deltas
+   * @param operationRegistry registry containing the {@link OperationService}s
+   *        that this applicator can perform.
+   * @param conversationUtil used to create conversations.
+   * @param submissionStats the stats to record the submitted deltas in.
+   */
+  RobotOperationApplicator(EventDataConverterManager converterManager,
+      WaveletProvider waveletProvider, OperationServiceRegistry operationRegistry,
+      ConversationUtil conversationUtil, DeltaSubmissionStats submissionStats) {
     this.converterManager = converterManager;
     this.waveletProvider = waveletProvider;
     this.operationRegistry = operationRegistry;
     this.conversationUtil = conversationUtil;
+    this.submissionStats = submissionStats;
   }
 
   /**
@@ -103,6 +124,13 @@ public class RobotOperationApplicator {
     handleResults(context, account);
   }
 
+  /**
+   * Returns the stats of the deltas submitted for the operations applied.
+   */
+  DeltaSubmissionStats getSubmissionStats() {
+    return submissionStats;
+  }
+
   /**
    * Executes operations in the given context.
    *
@@ -128,7 +156,8 @@ public class RobotOperationApplicator {
    * @param account the account for which to handle results of robot operations.
    */
   private void handleResults(OperationResults results, RobotAccountData account) {
-    OperationUtil.submitDeltas(results, waveletProvider, LOGGING_REQUEST_LISTENER);
+    OperationUtil.submitDeltas(
+        results, waveletProvider, LOGGING_REQUEST_LISTENER, submissionStats);
 
     // TODO(ljvderijk): In theory we should be sending off all events that are
     // generated by the operations. Currently not done in production. We should
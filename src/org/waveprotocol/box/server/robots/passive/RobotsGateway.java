@@ -20,8 +20,10 @@
 package org.waveprotocol.box.server.robots.passive;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.google.wave.api.RobotSerializer;
@@ -30,12 +32,16 @@ import com.google.wave.api.robot.CapabilityFetchException;
 import com.google.wave.api.robot.RobotName;
 
 import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.CoreSettings;
 import org.waveprotocol.box.server.account.AccountData;
 import org.waveprotocol.box.server.account.RobotAccountData;
 import org.waveprotocol.box.server.persistence.AccountStore;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.robots.operations.NotifyOperationService;
+import org.waveprotocol.box.server.robots.register.RobotRegistrar;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
+import org.waveprotocol.box.server.robots.util.DeltaSubmissionStats;
+import org.waveprotocol.box.server.util.StatsSource;
 import org.waveprotocol.box.server.waveserver.WaveBus;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
 import org.waveprotocol.wave.model.id.WaveletName;
@@ -50,19 +56,45 @@ import org.waveprotocol.wave.util.logging.Log;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 /**
  * Gateway for the Passive Robot API, this class can be subscribed to the
  * WaveBus and fires of separate threads to handle any updates for Robots.
  *
+ * <p>
+ * The accounts of the participants of updated wavelets are cached, including
+ * the absence of a verified robot account, so that an update doesn't cost an
+ * account store lookup per participant. Registered as a
+ * {@link RobotRegistrar.Listener}, the gateway drops the cached account of a
+ * robot when it's registered, updated or unregistered.
+ *
  * @author ljvderijk@google.com (Lennard de Rijk)
  */
-public class RobotsGateway implements WaveBus.Subscriber {
+public class RobotsGateway implements WaveBus.Subscriber, RobotRegistrar.Listener {
 
   private static final Log LOG = Log.get(RobotsGateway.class);
 
+  /**
+   * How long accounts stay cached, which bounds how stale they get when changed
+   * other than through the {@link RobotRegistrar}.
+   */
+  private static final long ACCOUNT_CACHE_EXPIRY_MINUTES = 10;
+
+  /** A cached account lookup, holding null if there is no verified robot. */
+  private static final class CachedAccount {
+    final RobotAccountData account;
+
+    CachedAccount(RobotAccountData account) {
+      this.account = account;
+    }
+  }
+
   private final WaveletProvider waveletProvider;
   private final AccountStore accountStore;
   private final EventDataConverterManager converterManager;
@@ -72,13 +104,47 @@ public class RobotsGateway implements WaveBus.Subscriber {
   private final Executor executor;
   private final ConversationUtil conversationUtil;
   private final NotifyOperationService notifyOpService;
+  /** The most bundles each robot may have awaiting a response at once. */
+  private final int maxInFlightPerRobot;
+  /** How long robots hold back the update of a wavelet to merge later deltas. */
+  private final long coalesceWindowMillis;
+  /** The most wavelet models each robot's event generator keeps alive. */
+  private final int liveModelsPerRobot;
+  /** Counts the models of the event generators of all robots. */
+  private final EventGeneratorStats eventGeneratorStats = new EventGeneratorStats();
+  /** Counts the deltas submitted for the operations of all robots. */
+  private final DeltaSubmissionStats submissionStats = new DeltaSubmissionStats();
+  /** Runs robots with held back updates once they may be sent, or null. */
+  private final ScheduledExecutorService coalesceTimer;
+  /** Robots which are due to be run by the coalesce timer. */
+  private final Set<RobotName> delayedRobots = Sets.newHashSet();
+  private final ConcurrentMap<ParticipantId, CachedAccount> accountCache =
+      new MapMaker().expireAfterWrite(ACCOUNT_CACHE_EXPIRY_MINUTES, TimeUnit.MINUTES).makeMap();
 
-  @Inject
   @VisibleForTesting
   RobotsGateway(WaveletProvider waveletProvider, RobotConnector connector,
       AccountStore accountStore, RobotSerializer serializer,
-      EventDataConverterManager converterManager, @Named("GatewayExecutor") Executor executor,
+      EventDataConverterManager converterManager, Executor executor,
       ConversationUtil conversationUtil, NotifyOperationService notifyOpService) {
+    this(waveletProvider, connector, accountStore, serializer, converterManager, executor,
+        conversationUtil, notifyOpService, 1, 0, 0);
+  }
+
+  @Inject
+  RobotsGateway(WaveletProvider waveletProvider, RobotConnector connector,
+      AccountStore accountStore, RobotSerializer serializer,
+      EventDataConverterManager converterManager, @Named("GatewayExecutor") Executor executor,
+      ConversationUtil conversationUtil, NotifyOperationService notifyOpService,
+      @Named(CoreSettings.ROBOT_MAX_IN_FLIGHT) int maxInFlightPerRobot,
+      @Named(CoreSettings.ROBOT_EVENT_COALESCE_WINDOW_MS) int coalesceWindowMillis,
+      @Named(CoreSettings.ROBOT_LIVE_WAVELET_MODELS) int liveModelsPerRobot) {
+    this.maxInFlightPerRobot = maxInFlightPerRobot;
+    this.coalesceWindowMillis = coalesceWindowMillis;
+    this.liveModelsPerRobot = liveModelsPerRobot;
+    this.coalesceTimer = coalesceWindowMillis > 0
+        ? Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("RobotCoalesceTimer-%d").setDaemon(true).build())
+        : null;
     this.waveletProvider = waveletProvider;
     this.accountStore = accountStore;
     this.converterManager = converterManager;
@@ -88,6 +154,22 @@ public class RobotsGateway implements WaveBus.Subscriber {
     this.notifyOpService = notifyOpService;
   }
 
+  /**
+   * Returns the counts of the wavelet models the event generators of all
+   * robots reused, built and evicted.
+   */
+  public StatsSource getEventGeneratorStats() {
+    return eventGeneratorStats;
+  }
+
+  /**
+   * Returns the counts of the deltas submitted for the operations of all
+   * robots.
+   */
+  public StatsSource getSubmissionStats() {
+    return submissionStats;
+  }
+
   @Override
   public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
     // We ignore this event.
@@ -115,22 +197,50 @@ public class RobotsGateway implements WaveBus.Subscriber {
       }
 
       ParticipantId robotId = ParticipantId.ofUnsafe(robotName.toEmailAddress());
-      AccountData account;
+      RobotAccountData robotAccount;
       try {
-        account = accountStore.getAccount(robotId);
+        robotAccount = getVerifiedRobotAccount(robotId);
       } catch (PersistenceException e) {
         LOG.severe("Failed to retrieve the account data for " + robotId.getAddress(), e);
         continue;
       }
 
-      if (account != null && account.isRobot()) {
-        RobotAccountData robotAccount = account.asRobot();
-        if (robotAccount.isVerified()) {
-          Robot robot = getOrCreateRobot(robotName, robotAccount);
-          updateRobot(robot, wavelet, deltas);
-        }
+      if (robotAccount != null) {
+        Robot robot = getOrCreateRobot(robotName, robotAccount);
+        updateRobot(robot, wavelet, deltas);
+      }
+    }
+  }
+
+  /**
+   * Returns the verified robot account of a participant, looking it up in the
+   * account store if it isn't cached.
+   *
+   * @return the account, or null if the participant isn't a verified robot.
+   */
+  private RobotAccountData getVerifiedRobotAccount(ParticipantId robotId)
+      throws PersistenceException {
+    CachedAccount cached = accountCache.get(robotId);
+    if (cached == null) {
+      AccountData account = accountStore.getAccount(robotId);
+      RobotAccountData robotAccount = null;
+      if (account != null && account.isRobot() && account.asRobot().isVerified()) {
+        robotAccount = account.asRobot();
       }
+      cached = new CachedAccount(robotAccount);
+      accountCache.put(robotId, cached);
     }
+    return cached.account;
+  }
+
+  @Override
+  public void onRegistrationSuccess(RobotAccountData account) {
+    accountCache.remove(account.getId());
+  }
+
+  @Override
+  public void onUnregistrationSuccess(RobotAccountData account) {
+    accountCache.remove(account.getId());
   }
 
   /**
@@ -146,10 +256,21 @@ public class RobotsGateway implements WaveBus.Subscriber {
     if (robot == null) {
       robot = createNewRobot(robotName, account);
       allRobots.put(robotName, robot);
+    } else if (!isSameRegistration(robot.getAccount(), account)) {
+      // The robot has been registered again, its capabilities are fetched anew.
+      robot.setAccount(account);
     }
     return robot;
   }
 
+  /**
+   * @return true if both accounts point to the same robot endpoint with the
+   *         same secret.
+   */
+  private static boolean isSameRegistration(RobotAccountData a, RobotAccountData b) {
+    return a.getUrl().equals(b.getUrl()) && a.getConsumerSecret().equals(b.getConsumerSecret());
+  }
+
   /**
    * Creates a new {@link Robot}.
    *
@@ -158,12 +279,13 @@ public class RobotsGateway implements WaveBus.Subscriber {
    *        {@link RobotName}.
    */
   private Robot createNewRobot(RobotName robotName, RobotAccountData account) {
-    EventGenerator eventGenerator = new EventGenerator(robotName, conversationUtil);
+    EventGenerator eventGenerator =
+        new EventGenerator(robotName, conversationUtil, liveModelsPerRobot, eventGeneratorStats);
     RobotOperationApplicator operationApplicator =
         new RobotOperationApplicator(converterManager, waveletProvider,
-            new OperationServiceRegistryImpl(notifyOpService), conversationUtil);
+            new OperationServiceRegistryImpl(notifyOpService), conversationUtil, submissionStats);
     return new Robot(robotName, account, this, connector, converterManager, waveletProvider,
-        eventGenerator, operationApplicator);
+        eventGenerator, operationApplicator, maxInFlightPerRobot, executor, coalesceWindowMillis);
   }
 
   /**
@@ -200,6 +322,35 @@ public class RobotsGateway implements WaveBus.Subscriber {
     }
   }
 
+  /**
+   * Ensures that a robot is submitted to the executor once the given delay has
+   * passed, for updates it holds back until then.
+   *
+   * @param robot the {@link Robot} to enqueue
+   * @param delayMillis how long to wait before enqueueing the robot
+   */
+  public void scheduleAfter(final Robot robot, long delayMillis) {
+    if (coalesceTimer == null) {
+      ensureScheduled(robot);
+      return;
+    }
+    synchronized (this) {
+      // A robot due to run earlier will schedule itself again if needed.
+      if (!delayedRobots.add(robot.getRobotName())) {
+        return;
+      }
+    }
+    coalesceTimer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (RobotsGateway.this) {
+          delayedRobots.remove(robot.getRobotName());
+        }
+        ensureScheduled(robot);
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
   /**
    * Signal that a robot is done running. Synchronized with ensureRunnable since
    * that method needs to have a synchronized view on the runnableRobots for
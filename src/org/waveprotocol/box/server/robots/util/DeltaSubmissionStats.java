@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.robots.util;
+
+import org.waveprotocol.box.server.util.StatsSource;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the deltas submitted for robot operations and the operations in them,
+ * before and after the operations have been composed.
+ *
+ * This class is thread-safe.
+ */
+public final class DeltaSubmissionStats implements StatsSource {
+
+  private final AtomicLong deltaCount = new AtomicLong();
+  private final AtomicLong operationCount = new AtomicLong();
+  private final AtomicLong submittedOperationCount = new AtomicLong();
+
+  /**
+   * Records the submission of the deltas of a wavelet.
+   *
+   * @param operations the operations performed on the wavelet.
+   * @param deltas the deltas submitted for them.
+   * @param submittedOperations the operations in those deltas.
+   */
+  void record(int operations, int deltas, int submittedOperations) {
+    operationCount.addAndGet(operations);
+    deltaCount.addAndGet(deltas);
+    submittedOperationCount.addAndGet(submittedOperations);
+  }
+
+  /**
+   * Returns the number of deltas submitted.
+   */
+  public long getDeltaCount() {
+    return deltaCount.get();
+  }
+
+  /**
+   * Returns the number of operations performed, before composing them.
+   */
+  public long getOperationCount() {
+    return operationCount.get();
+  }
+
+  /**
+   * Returns the number of operations in the deltas submitted.
+   */
+  public long getSubmittedOperationCount() {
+    return submittedOperationCount.get();
+  }
+
+  /**
+   * Returns the average number of operations performed per delta submitted.
+   */
+  public double getOperationsPerDelta() {
+    long deltas = deltaCount.get();
+    return deltas == 0 ? 0 : (double) operationCount.get() / deltas;
+  }
+
+  @Override
+  public void collectStats(Map<String, Number> stats) {
+    stats.put("deltas", getDeltaCount());
+    stats.put("ops", getOperationCount());
+    stats.put("submittedOps", getSubmittedOperationCount());
+    stats.put("opsPerDelta", getOperationsPerDelta());
+  }
+}
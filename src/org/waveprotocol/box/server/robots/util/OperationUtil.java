@@ -201,13 +201,33 @@ public class OperationUtil {
    */
   public static void submitDeltas(OperationResults results, WaveletProvider waveletProvider,
       SubmitRequestListener requestListener) {
+    submitDeltas(results, waveletProvider, requestListener, new DeltaSubmissionStats());
+  }
+
+  /**
+   * Submits all deltas to the wavelet provider that are generated by the open
+   * wavelets in the {@link OperationResults}, one per author and wavelet, and
+   * records them in the given stats.
+   *
+   * @param results the results of performing robot operations.
+   * @param waveletProvider wavelet provider used to send the deltas to.
+   * @param requestListener callback for deltas that are submitted to the
+   *        wavelet provider.
+   * @param stats the stats to record the submitted deltas in.
+   */
+  public static void submitDeltas(OperationResults results, WaveletProvider waveletProvider,
+      SubmitRequestListener requestListener, DeltaSubmissionStats stats) {
     for (Entry<WaveletName, RobotWaveletData> entry : results.getOpenWavelets().entrySet()) {
       WaveletName waveletName = entry.getKey();
       RobotWaveletData w = entry.getValue();
-      for (WaveletDelta delta : w.getDeltas()) {
+      List<WaveletDelta> deltas = w.getDeltas();
+      int submittedOps = 0;
+      for (WaveletDelta delta : deltas) {
         ProtocolWaveletDelta protocolDelta = CoreWaveletOperationSerializer.serialize(delta);
         waveletProvider.submitRequest(waveletName, protocolDelta, requestListener);
+        submittedOps += delta.size();
       }
+      stats.record(w.getOperationCount(), deltas.size(), submittedOps);
     }
   }
   
@@ -0,0 +1,307 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.protobuf.Message;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the messages to a client connection for a short window, and then
+ * writes them in one batch.
+ *
+ * A wavelet update which continues an update still held for the same RPC
+ * and wavelet is merged into it, so that a burst of deltas reaches the
+ * client as one message.
+ *
+ * The scheduler only hands the held messages to the writer pool when the
+ * window closes, and at most one write of a connection runs at a time, so a
+ * client whose socket blocks holds up only its own writes. Messages which
+ * arrive during a write are written once it completes. If more messages are
+ * held than the high-water mark allows while a write is still in progress,
+ * the client is taken to be too slow, the held messages are discarded and the
+ * connection is closed.
+ *
+ * This class is thread-safe.
+ */
+class OutboundMessageQueue {
+
+  private static final Log LOG = Log.get(OutboundMessageQueue.class);
+
+  /** A message waiting to be written. */
+  static final class Pending {
+    final int sequenceNo;
+    Message message;
+
+    Pending(int sequenceNo, Message message) {
+      this.sequenceNo = sequenceNo;
+      this.message = message;
+    }
+  }
+
+  /** Where the messages are written. */
+  interface Sink {
+    /** Writes a batch of messages, in order. */
+    void send(List<Pending> batch);
+
+    /** Closes the connection, which fell behind. */
+    void overflow();
+  }
+
+  private final Sink sink;
+  private final long windowMillis;
+  private final int highWaterMark;
+  private final ScheduledExecutorService scheduler;
+  private final Executor writerPool;
+  private final OutboundQueueStats stats;
+
+  // Guarded by this.
+  private List<Pending> pending = Lists.newArrayList();
+  private boolean flushScheduled = false;
+  /** Whether a write task runs, so that batches don't interleave. */
+  private boolean writing = false;
+  private boolean overflowed = false;
+  private int maxDepth = 0;
+
+  private final AtomicLong coalescedCount = new AtomicLong();
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong sentCount = new AtomicLong();
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  private final Runnable writeTask = new Runnable() {
+    @Override
+    public void run() {
+      write();
+    }
+  };
+
+  /**
+   * @param sink where to write messages
+   * @param windowMillis how long to hold messages before writing them
+   * @param highWaterMark the number of messages held during a write above
+   *        which the connection is closed, or 0 for no limit
+   * @param scheduler closes the windows
+   * @param writerPool runs the writes, which may block
+   */
+  OutboundMessageQueue(Sink sink, long windowMillis, int highWaterMark,
+      ScheduledExecutorService scheduler, Executor writerPool) {
+    this(sink, windowMillis, highWaterMark, scheduler, writerPool, new OutboundQueueStats());
+  }
+
+  /**
+   * @param sink where to write messages
+   * @param windowMillis how long to hold messages before writing them
+   * @param highWaterMark the number of messages held during a write above
+   *        which the connection is closed, or 0 for no limit
+   * @param scheduler closes the windows
+   * @param writerPool runs the writes, which may block
+   * @param stats the counts of all connections, which this queue adds to
+   */
+  OutboundMessageQueue(Sink sink, long windowMillis, int highWaterMark,
+      ScheduledExecutorService scheduler, Executor writerPool, OutboundQueueStats stats) {
+    Preconditions.checkArgument(windowMillis > 0, "Non-positive window %s", windowMillis);
+    this.sink = sink;
+    this.windowMillis = windowMillis;
+    this.highWaterMark = highWaterMark;
+    this.scheduler = scheduler;
+    this.writerPool = writerPool;
+    this.stats = stats;
+  }
+
+  /** Queues a message, to be written when the window closes. */
+  void enqueue(int sequenceNo, Message message) {
+    boolean overflow = false;
+    synchronized (this) {
+      if (overflowed) {
+        return;
+      }
+      if (!coalesce(sequenceNo, message)) {
+        pending.add(new Pending(sequenceNo, message));
+        maxDepth = Math.max(maxDepth, pending.size());
+        stats.recordHeld(pending.size());
+        if (highWaterMark > 0 && writing && pending.size() > highWaterMark) {
+          overflowed = true;
+          overflow = true;
+          stats.recordOverflow(pending.size());
+          pending = Lists.newArrayList();
+        }
+      }
+      // A running write picks up the new message once it completes.
+      if (!overflow && !flushScheduled && !writing) {
+        flushScheduled = true;
+        scheduler.schedule(flushTask, windowMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (overflow) {
+      LOG.warning("Closing connection with more than " + highWaterMark
+          + " messages waiting to be written");
+      sink.overflow();
+    }
+  }
+
+  /**
+   * Merges a wavelet update into the last message held for the same RPC, if
+   * possible.
+   *
+   * @return whether the update was merged
+   */
+  private boolean coalesce(int sequenceNo, Message message) {
+    if (!(message instanceof ProtocolWaveletUpdate)) {
+      return false;
+    }
+    for (int i = pending.size() - 1; i >= 0; i--) {
+      Pending previous = pending.get(i);
+      if (previous.sequenceNo == sequenceNo) {
+        if (previous.message instanceof ProtocolWaveletUpdate) {
+          ProtocolWaveletUpdate merged = merge((ProtocolWaveletUpdate) previous.message,
+              (ProtocolWaveletUpdate) message);
+          if (merged != null) {
+            previous.message = merged;
+            coalescedCount.incrementAndGet();
+            stats.recordCoalesced();
+            return true;
+          }
+        }
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Merges two consecutive updates of a wavelet into one.
+   *
+   * @return the merged update, or null if the updates can't be merged
+   */
+  @VisibleForTesting
+  static ProtocolWaveletUpdate merge(ProtocolWaveletUpdate earlier, ProtocolWaveletUpdate later) {
+    if (earlier.hasSnapshot() || later.hasSnapshot() || earlier.hasMarker() || later.hasMarker()
+        || !earlier.getWaveletName().equals(later.getWaveletName())
+        || earlier.hasChannelId() != later.hasChannelId()
+        || !earlier.getChannelId().equals(later.getChannelId())) {
+      return null;
+    }
+    if (earlier.getAppliedDeltaCount() > 0 && later.getAppliedDeltaCount() > 0
+        && earlier.getResultingVersion().getVersion()
+            != later.getAppliedDelta(0).getHashedVersion().getVersion()) {
+      return null;
+    }
+    ProtocolWaveletUpdate.Builder merged = earlier.toBuilder();
+    merged.addAllAppliedDelta(later.getAppliedDeltaList());
+    if (later.hasResultingVersion()) {
+      merged.setResultingVersion(later.getResultingVersion());
+    }
+    if (later.hasCommitNotice()) {
+      merged.setCommitNotice(later.getCommitNotice());
+    }
+    return merged.build();
+  }
+
+  /**
+   * Hands the held messages to the writer pool, unless a write is already in
+   * progress.
+   */
+  void flush() {
+    synchronized (this) {
+      flushScheduled = false;
+      if (writing || pending.isEmpty()) {
+        return;
+      }
+      writing = true;
+    }
+    try {
+      writerPool.execute(writeTask);
+    } catch (RuntimeException e) {
+      LOG.warning("Failed to start writing " + getDepth() + " messages", e);
+      synchronized (this) {
+        writing = false;
+      }
+    }
+  }
+
+  /** Writes the held messages, until none are left. */
+  private void write() {
+    while (true) {
+      List<Pending> batch;
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          writing = false;
+          return;
+        }
+        batch = pending;
+        pending = Lists.newArrayList();
+      }
+      try {
+        sink.send(batch);
+      } catch (RuntimeException e) {
+        LOG.warning("Failed to write " + batch.size() + " messages", e);
+      }
+      batchCount.incrementAndGet();
+      sentCount.addAndGet(batch.size());
+      stats.recordBatch(batch.size());
+    }
+  }
+
+  /** Returns the number of messages waiting to be written. */
+  synchronized int getDepth() {
+    return pending.size();
+  }
+
+  /** Returns the largest number of messages which were waiting at once. */
+  synchronized int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /** Returns whether the connection was closed for falling behind. */
+  synchronized boolean isOverflowed() {
+    return overflowed;
+  }
+
+  /** Returns the number of updates merged into earlier ones. */
+  long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /** Returns the number of batches written. */
+  long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /** Returns the number of messages written. */
+  long getSentCount() {
+    return sentCount.get();
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.rpc;
+
+import org.waveprotocol.box.server.util.StatsSource;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the outbound message queues of all client connections, so that
+ * the coalescing window and high-water mark can be tuned.
+ *
+ * This class is thread-safe.
+ */
+class OutboundQueueStats implements StatsSource {
+  private final AtomicLong heldCount = new AtomicLong();
+  private final AtomicLong maxDepth = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong sentCount = new AtomicLong();
+  private final AtomicLong overflowCount = new AtomicLong();
+
+  void recordHeld(int depth) {
+    heldCount.incrementAndGet();
+    long max = maxDepth.get();
+    while (depth > max && !maxDepth.compareAndSet(max, depth)) {
+      max = maxDepth.get();
+    }
+  }
+
+  void recordCoalesced() {
+    coalescedCount.incrementAndGet();
+  }
+
+  void recordBatch(int size) {
+    heldCount.addAndGet(-size);
+    batchCount.incrementAndGet();
+    sentCount.addAndGet(size);
+  }
+
+  void recordOverflow(int discarded) {
+    heldCount.addAndGet(-discarded);
+    overflowCount.incrementAndGet();
+  }
+
+  /** Returns the number of messages waiting to be written, over all connections. */
+  long getHeldCount() {
+    return heldCount.get();
+  }
+
+  /** Returns the largest number of messages which were waiting at once on a connection. */
+  long getMaxDepth() {
+    return maxDepth.get();
+  }
+
+  /** Returns the number of updates merged into earlier ones. */
+  long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /** Returns the number of batches written. */
+  long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /** Returns the number of messages written. */
+  long getSentCount() {
+    return sentCount.get();
+  }
+
+  /** Returns the number of connections closed for falling behind. */
+  long getOverflowCount() {
+    return overflowCount.get();
+  }
+
+  @Override
+  public void collectStats(Map<String, Number> stats) {
+    stats.put("held", getHeldCount());
+    stats.put("maxDepth", getMaxDepth());
+    stats.put("coalesced", getCoalescedCount());
+    stats.put("batches", getBatchCount());
+    stats.put("sent", getSentCount());
+    stats.put("overflows", getOverflowCount());
+  }
+}
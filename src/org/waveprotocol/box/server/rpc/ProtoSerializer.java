@@ -91,10 +91,16 @@ public final class ProtoSerializer {
       D extends ProtoWrapper<P> & GsonSerializable> {
     private final Class<P> protoClass;
     private final Class<D> dtoClass;
+    private final Message defaultInstance;
 
     ProtoImplSerializer(Class<P> protoClass, Class<D> dtoClass) {
       this.protoClass = protoClass;
       this.dtoClass = dtoClass;
+      try {
+        this.defaultInstance = (Message) protoClass.getMethod("getDefaultInstance").invoke(null);
+      } catch (Exception e) {
+        throw new IllegalArgumentException("Not a generated proto class: " + protoClass, e);
+      }
     }
 
     static <P extends Message, D extends ProtoWrapper<P> & GsonSerializable>
@@ -121,6 +127,10 @@ public final class ProtoSerializer {
       return dto.toGson(data, gson);
     }
 
+    Message.Builder newBuilder() {
+      return defaultInstance.newBuilderForType();
+    }
+
     P fromJson(JsonElement json, RawStringData data, Gson gson) throws SerializationException {
       D dto = newDto();
       try {
@@ -229,6 +239,18 @@ public final class ProtoSerializer {
     return getSerializer(type).fromJson(json, null, gson);
   }
 
+  /**
+   * Returns a builder for a proto type, for deserializing a proto from its
+   * binary form. Only protos whose classes have been registered can be
+   * deserialized.
+   *
+   * @throws SerializationException if no class called {@code type} has been
+   *         registered.
+   */
+  public Message.Builder newBuilder(String type) throws SerializationException {
+    return getSerializer(type).newBuilder();
+  }
+
   // Utility method for a test.
   @VisibleForTesting
   public <P extends Message> P fromJson(JsonElement json, Class<P> clazz)
@@ -0,0 +1,248 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.waveprotocol.box.server.util.StatsSource;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the RPCs of client connections on a shared thread pool.
+ *
+ * The RPCs of one connection run one at a time, in the order they arrived,
+ * through the connection's own {@link #newLane() lane}. If more RPCs are
+ * waiting across all connections than the queue limit allows, further RPCs
+ * are rejected rather than piling up.
+ *
+ * This class is thread-safe.
+ */
+class RpcExecutor implements StatsSource {
+
+  private static final Log LOG = Log.get(RpcExecutor.class);
+
+  /**
+   * Runs tasks one at a time, in order, on the shared pool. Once a task has
+   * run, the lane goes to the back of the pool's queue, so that a busy
+   * connection doesn't hold on to a thread.
+   */
+  private class Lane implements Executor, Runnable {
+    // Guarded by this.
+    private final LinkedList<QueuedTask> tasks = Lists.newLinkedList();
+    private boolean scheduled = false;
+
+    @Override
+    public void execute(Runnable task) {
+      if (maxQueued > 0 && queued.get() >= maxQueued) {
+        rejectedCount.incrementAndGet();
+        throw new RejectedExecutionException("More than " + maxQueued + " RPCs are waiting");
+      }
+      queued.incrementAndGet();
+      boolean schedule;
+      synchronized (this) {
+        tasks.add(new QueuedTask(task, System.nanoTime()));
+        schedule = !scheduled;
+        scheduled = true;
+      }
+      if (schedule) {
+        try {
+          pool.execute(this);
+        } catch (RejectedExecutionException e) {
+          synchronized (this) {
+            tasks.removeLast();
+            scheduled = false;
+          }
+          queued.decrementAndGet();
+          rejectedCount.incrementAndGet();
+          throw e;
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        runNext();
+        synchronized (this) {
+          if (tasks.isEmpty()) {
+            scheduled = false;
+            return;
+          }
+        }
+        try {
+          pool.execute(this);
+          return;
+        } catch (RejectedExecutionException e) {
+          // The pool is shutting down, so finish this lane's work here.
+        }
+      }
+    }
+
+    private void runNext() {
+      QueuedTask task;
+      synchronized (this) {
+        task = tasks.removeFirst();
+      }
+      queued.decrementAndGet();
+      recordWait(System.nanoTime() - task.queuedAtNanos);
+      active.incrementAndGet();
+      try {
+        task.task.run();
+      } catch (RuntimeException e) {
+        LOG.warning("RPC failed", e);
+      } finally {
+        active.decrementAndGet();
+        completedCount.incrementAndGet();
+      }
+    }
+  }
+
+  /** A task and when it was queued. */
+  private static final class QueuedTask {
+    final Runnable task;
+    final long queuedAtNanos;
+
+    QueuedTask(Runnable task, long queuedAtNanos) {
+      this.task = task;
+      this.queuedAtNanos = queuedAtNanos;
+    }
+  }
+
+  private final ExecutorService pool;
+  private final int maxQueued;
+
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong completedCount = new AtomicLong();
+  private final AtomicLong startedCount = new AtomicLong();
+  private final AtomicLong waitNanosTotal = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  /**
+   * @param pool runs the RPCs
+   * @param maxQueued the number of waiting RPCs above which RPCs are
+   *        rejected, or 0 for no limit
+   */
+  RpcExecutor(ExecutorService pool, int maxQueued) {
+    Preconditions.checkArgument(maxQueued >= 0, "Negative queue limit %s", maxQueued);
+    this.pool = pool;
+    this.maxQueued = maxQueued;
+  }
+
+  /**
+   * Creates an executor with its own pool.
+   *
+   * @param threads the number of threads in the pool, or 0 for a pool which
+   *        starts a thread for every RPC which finds no idle thread
+   * @param maxQueued the number of waiting RPCs above which RPCs are
+   *        rejected, or 0 for no limit
+   */
+  static RpcExecutor create(int threads, int maxQueued) {
+    Preconditions.checkArgument(threads >= 0, "Negative thread count %s", threads);
+    ThreadFactoryBuilder threadFactory =
+        new ThreadFactoryBuilder().setNameFormat("Rpc-%d").setDaemon(true);
+    ExecutorService pool;
+    if (threads == 0) {
+      pool = Executors.newCachedThreadPool(threadFactory.build());
+    } else {
+      ThreadPoolExecutor fixedPool = new ThreadPoolExecutor(threads, threads, 60,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory.build());
+      fixedPool.allowCoreThreadTimeOut(true);
+      pool = fixedPool;
+    }
+    return new RpcExecutor(pool, maxQueued);
+  }
+
+  /**
+   * Returns a new executor which runs its tasks one at a time, in order, for
+   * a single connection.
+   *
+   * Its {@code execute()} throws {@link RejectedExecutionException} if too
+   * many RPCs are waiting.
+   */
+  Executor newLane() {
+    return new Lane();
+  }
+
+  private void recordWait(long nanos) {
+    startedCount.incrementAndGet();
+    waitNanosTotal.addAndGet(nanos);
+    long max = maxWaitNanos.get();
+    while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+      max = maxWaitNanos.get();
+    }
+  }
+
+  /** Returns the number of RPCs waiting to run. */
+  int getQueuedCount() {
+    return queued.get();
+  }
+
+  /** Returns the number of RPCs running. */
+  int getActiveCount() {
+    return active.get();
+  }
+
+  /** Returns the number of RPCs rejected because too many were waiting. */
+  long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /** Returns the number of RPCs which have run. */
+  long getCompletedCount() {
+    return completedCount.get();
+  }
+
+  /** Returns the average time RPCs waited before running, in milliseconds. */
+  double getAverageQueueWaitMillis() {
+    long started = startedCount.get();
+    return started == 0 ? 0 : waitNanosTotal.get() / 1e6 / started;
+  }
+
+  /** Returns the longest time an RPC waited before running, in milliseconds. */
+  long getMaxQueueWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+  }
+
+  @Override
+  public void collectStats(Map<String, Number> stats) {
+    stats.put("queued", getQueuedCount());
+    stats.put("active", getActiveCount());
+    stats.put("completed", getCompletedCount());
+    stats.put("rejected", getRejectedCount());
+    stats.put("avgWaitMs", getAverageQueueWaitMillis());
+    stats.put("maxWaitMs", getMaxQueueWaitMillis());
+  }
+}
@@ -23,6 +23,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.Singleton;
@@ -66,6 +67,7 @@ import org.waveprotocol.box.server.CoreSettings;
 import org.waveprotocol.box.server.authentication.SessionManager;
 import org.waveprotocol.box.server.persistence.file.FileUtils;
 import org.waveprotocol.box.server.util.NetUtils;
+import org.waveprotocol.box.server.util.StatsSource;
 import org.waveprotocol.wave.model.util.Pair;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.util.logging.Log;
@@ -80,7 +82,10 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.annotation.Nullable;
 import javax.servlet.DispatcherType;
@@ -111,7 +116,16 @@ public class ServerRpcProvider {
 
   private final InetSocketAddress[] httpAddresses;
   private final Integer flashsocketPolicyPort;
-  private final ExecutorService threadPool;
+  private final RpcExecutor rpcExecutor;
+  private final long outboundCoalesceWindowMillis;
+  private final int outboundHighWaterMark;
+  /** Closes the windows of queued outbound messages, or is null if they aren't queued. */
+  private final ScheduledExecutorService outboundScheduler;
+  /** Writes queued outbound messages, or is null if they aren't queued. */
+  private final ExecutorService outboundWriters;
+  private final OutboundQueueStats outboundStats = new OutboundQueueStats();
+  /** Encodes wavelet updates for all connections, or is null if not injected. */
+  private final WaveletUpdateEncoder updateEncoder;
   private final SessionManager sessionManager;
   private final org.eclipse.jetty.server.SessionManager jettySessionManager;
   private Server httpServer = null;
@@ -145,9 +159,9 @@ public class ServerRpcProvider {
   static class WebSocketConnection extends Connection {
     private final WebSocketServerChannel socketChannel;
 
-    WebSocketConnection(ParticipantId loggedInUser, ServerRpcProvider provider) {
+    WebSocketConnection(ParticipantId loggedInUser, ServerRpcProvider provider, boolean binary) {
       super(loggedInUser, provider);
-      socketChannel = new WebSocketServerChannel(this);
+      socketChannel = new WebSocketServerChannel(this, binary, provider.updateEncoder);
       LOG.info("New websocket connection set up for user " + loggedInUser);
       expectMessages(socketChannel);
     }
@@ -157,6 +171,16 @@ public class ServerRpcProvider {
       socketChannel.sendMessage(sequenceNo, message);
     }
 
+    @Override
+    protected void sendMessages(List<OutboundMessageQueue.Pending> batch) {
+      socketChannel.sendMessages(batch);
+    }
+
+    @Override
+    protected void close() {
+      socketChannel.close();
+    }
+
     public WebSocketServerChannel getWebSocketServerChannel() {
       return socketChannel;
     }
@@ -167,7 +191,7 @@ public class ServerRpcProvider {
 
     SocketIOConnection(ParticipantId loggedInUser, ServerRpcProvider provider) {
       super(loggedInUser, provider);
-      socketChannel = new SocketIOServerChannel(this);
+      socketChannel = new SocketIOServerChannel(this, provider.updateEncoder);
       LOG.info("New websocket connection set up for user " + loggedInUser);
       expectMessages(socketChannel);
     }
@@ -194,6 +218,12 @@ public class ServerRpcProvider {
 
     private final ServerRpcProvider provider;
 
+    /** Holds outbound messages for coalescing, or is null to send them at once. */
+    private final OutboundMessageQueue outboundQueue;
+
+    /** Runs this connection's RPCs one at a time. */
+    private final Executor rpcLane;
+
     /**
      * @param loggedInUser The currently logged in user, or null if no user is
      *        logged in.
@@ -202,6 +232,23 @@ public class ServerRpcProvider {
     public Connection(ParticipantId loggedInUser, ServerRpcProvider provider) {
       this.loggedInUser = loggedInUser;
       this.provider = provider;
+      this.rpcLane = provider.rpcExecutor.newLane();
+      if (provider.outboundScheduler != null) {
+        outboundQueue = new OutboundMessageQueue(new OutboundMessageQueue.Sink() {
+          @Override
+          public void send(List<OutboundMessageQueue.Pending> batch) {
+            sendMessages(batch);
+          }
+
+          @Override
+          public void overflow() {
+            close();
+          }
+        }, provider.outboundCoalesceWindowMillis, provider.outboundHighWaterMark,
+            provider.outboundScheduler, provider.outboundWriters, provider.outboundStats);
+      } else {
+        outboundQueue = null;
+      }
     }
 
     protected void expectMessages(MessageExpectingChannel channel) {
@@ -216,6 +263,39 @@ public class ServerRpcProvider {
 
     protected abstract void sendMessage(int sequenceNo, Message message);
 
+    /**
+     * Sends a batch of messages, in order. Subclasses may override this to
+     * write the batch at once.
+     */
+    protected void sendMessages(List<OutboundMessageQueue.Pending> batch) {
+      for (OutboundMessageQueue.Pending pending : batch) {
+        sendMessage(pending.sequenceNo, pending.message);
+      }
+    }
+
+    /**
+     * Closes the connection to a client which doesn't keep up with its
+     * messages. Does nothing by default.
+     */
+    protected void close() {
+    }
+
+    /**
+     * Returns the queue of outbound messages, for its metrics, or null if
+     * messages are sent at once.
+     */
+    OutboundMessageQueue getOutboundQueue() {
+      return outboundQueue;
+    }
+
+    private void send(int sequenceNo, Message message) {
+      if (outboundQueue != null) {
+        outboundQueue.enqueue(sequenceNo, message);
+      } else {
+        sendMessage(sequenceNo, message);
+      }
+    }
+
     private ParticipantId authenticate(String token) {
       HttpSession session = provider.sessionManager.getSessionFromToken(token);
       ParticipantId user = provider.sessionManager.getLoggedInUser(session);
@@ -251,7 +331,7 @@ public class ServerRpcProvider {
 
         loggedInUser = authenticatedAs;
         LOG.info("Session authenticated as " + loggedInUser);
-        sendMessage(sequenceNo, ProtocolAuthenticationResult.getDefaultInstance());
+        send(sequenceNo, ProtocolAuthenticationResult.getDefaultInstance());
       } else if (provider.registeredServices.containsKey(message.getDescriptorForType())) {
         if (activeRpcs.containsKey(sequenceNo)) {
           throw new IllegalStateException(
@@ -277,13 +357,18 @@ public class ServerRpcProvider {
                         }
                         activeRpcs.remove(sequenceNo);
                       }
-                      sendMessage(sequenceNo, message);
+                      send(sequenceNo, message);
                     }
                   });
 
-          // Kick off a new thread specific to this RPC.
+          // Queue the RPC behind any earlier RPCs of this connection.
           activeRpcs.put(sequenceNo, controller);
-          provider.threadPool.execute(controller);
+          try {
+            rpcLane.execute(controller);
+          } catch (RejectedExecutionException e) {
+            LOG.warning("Rejecting RPC " + sequenceNo + ": " + e.getMessage());
+            controller.setFailed("Server is overloaded, try again later");
+          }
         }
       } else {
         // Sent a message type we understand, but don't expect - erronous case!
@@ -317,10 +402,55 @@ public class ServerRpcProvider {
       String[] resourceBases, ExecutorService threadPool, SessionManager sessionManager,
       org.eclipse.jetty.server.SessionManager jettySessionManager, String sessionStoreDir,
       boolean sslEnabled, String sslKeystorePath, String sslKeystorePassword) {
+    this(httpAddresses, flashsocketPolicyPort, resourceBases, threadPool, sessionManager,
+        jettySessionManager, sessionStoreDir, sslEnabled, sslKeystorePath, sslKeystorePassword,
+        0, 0);
+  }
+
+  /**
+   * Construct a new ServerRpcProvider, hosting on the specified
+   * WebSocket addresses.
+   *
+   * Also accepts an ExecutorService for spawning managing threads, and the
+   * window in which outbound updates of a wavelet are coalesced, 0 to send
+   * messages at once, and the number of outbound messages queued during a
+   * write above which a connection is closed, 0 for no limit.
+   */
+  public ServerRpcProvider(InetSocketAddress[] httpAddresses, Integer flashsocketPolicyPort,
+      String[] resourceBases, ExecutorService threadPool, SessionManager sessionManager,
+      org.eclipse.jetty.server.SessionManager jettySessionManager, String sessionStoreDir,
+      boolean sslEnabled, String sslKeystorePath, String sslKeystorePassword,
+      long outboundCoalesceWindowMillis, int outboundHighWaterMark) {
+    this(httpAddresses, flashsocketPolicyPort, resourceBases, new RpcExecutor(threadPool, 0),
+        sessionManager, jettySessionManager, sessionStoreDir, sslEnabled, sslKeystorePath,
+        sslKeystorePassword, outboundCoalesceWindowMillis, outboundHighWaterMark, null);
+  }
+
+  private ServerRpcProvider(InetSocketAddress[] httpAddresses, Integer flashsocketPolicyPort,
+      String[] resourceBases, RpcExecutor rpcExecutor, SessionManager sessionManager,
+      org.eclipse.jetty.server.SessionManager jettySessionManager, String sessionStoreDir,
+      boolean sslEnabled, String sslKeystorePath, String sslKeystorePassword,
+      long outboundCoalesceWindowMillis, int outboundHighWaterMark,
+      WaveletUpdateEncoder updateEncoder) {
     this.httpAddresses = httpAddresses;
     this.flashsocketPolicyPort = flashsocketPolicyPort;
     this.resourceBases = resourceBases;
-    this.threadPool = threadPool;
+    this.rpcExecutor = rpcExecutor;
+    this.outboundCoalesceWindowMillis = outboundCoalesceWindowMillis;
+    this.outboundHighWaterMark = outboundHighWaterMark;
+    if (outboundCoalesceWindowMillis > 0) {
+      // The scheduler only hands the messages over, while a write may block
+      // on a slow client, so each connection's writes get a thread as needed.
+      outboundScheduler = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("RpcOutbound-%d").setDaemon(true).build());
+      outboundWriters = Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("RpcOutboundWriter-%d").setDaemon(true)
+              .build());
+    } else {
+      outboundScheduler = null;
+      outboundWriters = null;
+    }
+    this.updateEncoder = updateEncoder;
     this.sessionManager = sessionManager;
     this.jettySessionManager = jettySessionManager;
     this.sessionStoreDir = sessionStoreDir;
@@ -350,10 +480,37 @@ public class ServerRpcProvider {
       @Named(CoreSettings.SESSIONS_STORE_DIRECTORY) String sessionStoreDir,
       @Named(CoreSettings.ENABLE_SSL) boolean sslEnabled,
       @Named(CoreSettings.SSL_KEYSTORE_PATH) String sslKeystorePath,
-      @Named(CoreSettings.SSL_KEYSTORE_PASSWORD) String sslKeystorePassword) {
+      @Named(CoreSettings.SSL_KEYSTORE_PASSWORD) String sslKeystorePassword,
+      @Named(CoreSettings.RPC_OUTBOUND_COALESCE_WINDOW_MS) int outboundCoalesceWindowMillis,
+      @Named(CoreSettings.RPC_OUTBOUND_HIGH_WATER_MARK) int outboundHighWaterMark,
+      @Named(CoreSettings.RPC_EXECUTOR_THREADS) int rpcExecutorThreads,
+      @Named(CoreSettings.RPC_EXECUTOR_QUEUE_SIZE) int rpcExecutorQueueSize,
+      WaveletUpdateEncoder updateEncoder) {
     this(parseAddressList(httpAddresses, websocketAddress), flashsocketPolicyPort, resourceBases
-        .toArray(new String[0]), sessionManager, jettySessionManager, sessionStoreDir,
-        sslEnabled, sslKeystorePath, sslKeystorePassword);
+        .toArray(new String[0]), RpcExecutor.create(rpcExecutorThreads, rpcExecutorQueueSize),
+        sessionManager, jettySessionManager, sessionStoreDir, sslEnabled, sslKeystorePath,
+        sslKeystorePassword, outboundCoalesceWindowMillis, outboundHighWaterMark, updateEncoder);
+  }
+
+  /**
+   * Returns the counts of the outbound message queues of all connections.
+   */
+  public StatsSource getOutboundQueueStats() {
+    return outboundStats;
+  }
+
+  /**
+   * Returns the executor of client RPCs, for its metrics.
+   */
+  RpcExecutor getRpcExecutor() {
+    return rpcExecutor;
+  }
+
+  /**
+   * Returns the counts of the executor of client RPCs.
+   */
+  public StatsSource getRpcExecutorStats() {
+    return rpcExecutor;
   }
 
   public void startWebSocketServer(final Injector injector) {
@@ -577,12 +734,21 @@ public class ServerRpcProvider {
       this.provider = provider;
     }
 
+    /**
+     * Accepts plain connections, which exchange JSON text, and connections
+     * requesting the binary subprotocol. Other subprotocols are declined, and
+     * then the connection is accepted without one.
+     */
     @Override
     public WebSocket doWebSocketConnect(HttpServletRequest request, String protocol) {
+      boolean binary = WebSocketChannel.BINARY_PROTOCOL.equals(protocol);
+      if (protocol != null && !binary) {
+        return null;
+      }
       ParticipantId loggedInUser =
           provider.sessionManager.getLoggedInUser(request.getSession(false));
 
-      WebSocketConnection connection = new WebSocketConnection(loggedInUser, provider);
+      WebSocketConnection connection = new WebSocketConnection(loggedInUser, provider, binary);
       return connection.getWebSocketServerChannel();
     }
   }
@@ -44,6 +44,17 @@ public class SocketIOServerChannel extends WebSocketChannel implements SocketIOI
     super(callback);
   }
 
+  /**
+   * Creates a new WebSocketServerChannel using the callback for incoming messages.
+   *
+   * @param callback A ProtoCallback instance called with incoming messages.
+   * @param updateEncoder Encodes wavelet updates, reusing the encoded deltas
+   *        shared with other channels.
+   */
+  public SocketIOServerChannel(ProtoCallback callback, WaveletUpdateEncoder updateEncoder) {
+    super(callback, false, updateEncoder);
+  }
+
   /**
    * Handles an incoming connection
    *
@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import com.google.common.collect.MapMaker;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.box.server.CoreSettings;
+import org.waveprotocol.box.server.rpc.ProtoSerializer.SerializationException;
+import org.waveprotocol.box.server.util.StatsSource;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.proto.ProtocolWaveletDeltaProtoImpl;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodes wavelet updates for websocket channels, encoding each applied
+ * delta only once however many channels it's sent to.
+ *
+ * An update sent to many clients differs per client only in a few small
+ * fields, such as the channel id, while the applied deltas are the same
+ * instances. The encoded deltas, JSON text or bytes, are cached by identity
+ * and spliced into each client's update, so that only the small rest of the
+ * update is encoded per client. An update reaches all its clients shortly
+ * after the delta is applied, so only recent deltas are kept, in bounded
+ * caches, rather than for as long as the delta cache and transform history
+ * reference them.
+ *
+ * This class is thread-safe.
+ */
+@Singleton
+public final class WaveletUpdateEncoder implements StatsSource {
+
+  /** The key of the applied deltas in the JSON form of an update. */
+  private static final String APPLIED_DELTA_JSON_KEY =
+      Integer.toString(ProtocolWaveletUpdate.APPLIED_DELTA_FIELD_NUMBER);
+
+  private final Gson gson = new Gson();
+  private final ConcurrentMap<ProtocolWaveletDelta, String> jsonDeltas;
+  private final ConcurrentMap<ProtocolWaveletDelta, ByteString> binaryDeltas;
+
+  private final AtomicLong encodedDeltaCount = new AtomicLong();
+  private final AtomicLong reusedDeltaCount = new AtomicLong();
+
+  /**
+   * @param cacheSize the number of deltas whose encoded form is kept, per
+   *        encoding
+   * @param cacheSeconds how long the encoded form of a delta is kept
+   */
+  @Inject
+  public WaveletUpdateEncoder(@Named(CoreSettings.RPC_ENCODED_DELTA_CACHE_SIZE) int cacheSize,
+      @Named(CoreSettings.RPC_ENCODED_DELTA_CACHE_SECONDS) int cacheSeconds) {
+    jsonDeltas = newCache(cacheSize, cacheSeconds);
+    binaryDeltas = newCache(cacheSize, cacheSeconds);
+  }
+
+  private static <V> ConcurrentMap<ProtocolWaveletDelta, V> newCache(int size, int seconds) {
+    return new MapMaker()
+        .weakKeys()
+        .maximumSize(size)
+        .expireAfterWrite(seconds, TimeUnit.SECONDS)
+        .makeMap();
+  }
+
+  /**
+   * Converts an update to JSON text, splicing in the cached JSON text of its
+   * applied deltas. The result is the same as the text of
+   * {@link ProtoSerializer#toJson}.
+   */
+  String toJsonText(ProtocolWaveletUpdate update, ProtoSerializer serializer)
+      throws SerializationException {
+    if (update.getAppliedDeltaCount() == 0) {
+      return serializer.toJson(update).toString();
+    }
+    JsonObject rest =
+        serializer.toJson(update.toBuilder().clearAppliedDelta().build()).getAsJsonObject();
+    StringBuilder json = new StringBuilder("{");
+    boolean spliced = false;
+    for (Map.Entry<String, JsonElement> field : rest.entrySet()) {
+      if (json.length() > 1) {
+        json.append(',');
+      }
+      json.append(new JsonPrimitive(field.getKey())).append(':');
+      if (field.getKey().equals(APPLIED_DELTA_JSON_KEY)) {
+        // Replaces the empty array in place, so the fields keep their order.
+        appendJsonDeltas(json, update);
+        spliced = true;
+      } else {
+        json.append(field.getValue());
+      }
+    }
+    if (!spliced) {
+      if (json.length() > 1) {
+        json.append(',');
+      }
+      json.append(new JsonPrimitive(APPLIED_DELTA_JSON_KEY)).append(':');
+      appendJsonDeltas(json, update);
+    }
+    return json.append('}').toString();
+  }
+
+  /** Appends the JSON array of the applied deltas of an update. */
+  private void appendJsonDeltas(StringBuilder json, ProtocolWaveletUpdate update) {
+    json.append('[');
+    for (int i = 0; i < update.getAppliedDeltaCount(); i++) {
+      ProtocolWaveletDelta delta = update.getAppliedDelta(i);
+      String deltaJson = jsonDeltas.get(delta);
+      if (deltaJson == null) {
+        ProtocolWaveletDeltaProtoImpl dto = new ProtocolWaveletDeltaProtoImpl();
+        dto.setPB(delta);
+        deltaJson = dto.toGson(null, gson).toString();
+        jsonDeltas.put(delta, deltaJson);
+        encodedDeltaCount.incrementAndGet();
+      } else {
+        reusedDeltaCount.incrementAndGet();
+      }
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append(deltaJson);
+    }
+    json.append(']');
+  }
+
+  /**
+   * Serializes an update, reusing the serialized form of its applied deltas.
+   * The result parses to an update equal to the given one.
+   */
+  ByteString toBytes(ProtocolWaveletUpdate update) {
+    if (update.getAppliedDeltaCount() == 0) {
+      return update.toByteString();
+    }
+    ProtocolWaveletUpdate rest = update.toBuilder().clearAppliedDelta().build();
+    ByteString[] deltas = new ByteString[update.getAppliedDeltaCount()];
+    int size = rest.getSerializedSize();
+    for (int i = 0; i < deltas.length; i++) {
+      ProtocolWaveletDelta delta = update.getAppliedDelta(i);
+      ByteString bytes = binaryDeltas.get(delta);
+      if (bytes == null) {
+        bytes = delta.toByteString();
+        binaryDeltas.put(delta, bytes);
+        encodedDeltaCount.incrementAndGet();
+      } else {
+        reusedDeltaCount.incrementAndGet();
+      }
+      deltas[i] = bytes;
+      size += CodedOutputStream.computeBytesSize(
+          ProtocolWaveletUpdate.APPLIED_DELTA_FIELD_NUMBER, bytes);
+    }
+    byte[] result = new byte[size];
+    CodedOutputStream out = CodedOutputStream.newInstance(result);
+    try {
+      // Fields may come in any order, and repeated fields keep theirs.
+      rest.writeTo(out);
+      for (ByteString bytes : deltas) {
+        out.writeBytes(ProtocolWaveletUpdate.APPLIED_DELTA_FIELD_NUMBER, bytes);
+      }
+      out.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new IllegalStateException("Writing to a byte array failed", e);
+    }
+    return ByteString.copyFrom(result);
+  }
+
+  /** Returns the number of applied deltas encoded. */
+  long getEncodedDeltaCount() {
+    return encodedDeltaCount.get();
+  }
+
+  /** Returns the number of times an encoded applied delta was reused. */
+  long getReusedDeltaCount() {
+    return reusedDeltaCount.get();
+  }
+
+  @Override
+  public void collectStats(Map<String, Number> stats) {
+    stats.put("encoded", getEncodedDeltaCount());
+    stats.put("reused", getReusedDeltaCount());
+    stats.put("cachedJson", jsonDeltas.size());
+    stats.put("cachedBinary", binaryDeltas.size());
+  }
+}
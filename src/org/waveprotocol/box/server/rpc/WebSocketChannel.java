@@ -19,26 +19,42 @@
 
 package org.waveprotocol.box.server.rpc;
 
+import com.google.common.collect.Lists;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.Message;
 
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
 import org.waveprotocol.box.server.rpc.ProtoSerializer.SerializationException;
 import org.waveprotocol.wave.communication.gson.GsonException;
 import org.waveprotocol.wave.communication.gson.GsonSerializable;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * A channel abstraction for websocket, for sending and receiving strings.
+ *
+ * Messages are sent as JSON text by default. Channels negotiated with the
+ * {@link #BINARY_PROTOCOL} subprotocol send binary frames instead, each made
+ * of the sequence number as a varint, the length-prefixed message type name
+ * and the length-prefixed serialized proto. A binary message may contain
+ * several frames.
  */
 public abstract class WebSocketChannel extends MessageExpectingChannel {
   private static final Log LOG = Log.get(WebSocketChannel.class);
 
+  /** The websocket subprotocol of channels which send protos in binary frames. */
+  public static final String BINARY_PROTOCOL = "wave-protobuf";
+
   /**
    * Envelope for delivering arbitrary messages. Each envelope has a sequence
    * number and a message.
@@ -75,11 +91,31 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
       o.add("message", message);
       return o.toString();
     }
+
+    /**
+     * Serializes an envelope around a message which is already JSON text,
+     * giving the same text as {@link #serialize(String, int, JsonElement)}.
+     */
+    public static String serialize(String type, int seqno, String messageJson) {
+      JsonObject o = new JsonObject();
+      o.add("messageType", new JsonPrimitive(type));
+      o.add("sequenceNumber", new JsonPrimitive(seqno));
+      String envelope = o.toString();
+      return new StringBuilder(envelope.length() + messageJson.length() + 12)
+          .append(envelope, 0, envelope.length() - 1)
+          .append(",\"message\":")
+          .append(messageJson)
+          .append('}')
+          .toString();
+    }
   }
 
   private final ProtoCallback callback;
   private final Gson gson = new Gson();
   private final ProtoSerializer serializer;
+  private final boolean binary;
+  /** Encodes wavelet updates, or is null to encode them like other messages. */
+  private final WaveletUpdateEncoder updateEncoder;
 
   /**
    * Constructs a new WebSocketChannel, using the callback to handle any
@@ -89,10 +125,46 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
    *                 channel
    */
   public WebSocketChannel(ProtoCallback callback) {
+    this(callback, false);
+  }
+
+  /**
+   * Constructs a new WebSocketChannel, using the callback to handle any
+   * incoming messages.
+   *
+   * @param callback a protocallback to be called when data arrives on this
+   *                 channel
+   * @param binary whether to send messages in binary frames rather than as
+   *               JSON text
+   */
+  public WebSocketChannel(ProtoCallback callback, boolean binary) {
+    this(callback, binary, null);
+  }
+
+  /**
+   * Constructs a new WebSocketChannel, using the callback to handle any
+   * incoming messages.
+   *
+   * @param callback a protocallback to be called when data arrives on this
+   *                 channel
+   * @param binary whether to send messages in binary frames rather than as
+   *               JSON text
+   * @param updateEncoder encodes wavelet updates, reusing the encoded deltas
+   *                      shared with other channels, or null
+   */
+  public WebSocketChannel(ProtoCallback callback, boolean binary,
+      WaveletUpdateEncoder updateEncoder) {
     this.callback = callback;
     // The ProtoSerializer could really be singleton.
     // TODO: Figure out a way to inject a singleton instance using Guice
     this.serializer = new ProtoSerializer();
+    this.binary = binary;
+    this.updateEncoder = updateEncoder;
+  }
+
+  /** Returns whether this channel sends messages in binary frames. */
+  public boolean isBinary() {
+    return binary;
   }
 
   public void handleMessageString(String data) {
@@ -111,6 +183,70 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
     callback.message(wrapper.sequenceNumber, message);
   }
 
+  /**
+   * Handles an incoming binary message, which contains one or more frames.
+   */
+  public void handleMessageBytes(byte[] data, int offset, int length) {
+    CodedInputStream in = CodedInputStream.newInstance(data, offset, length);
+    try {
+      while (!in.isAtEnd()) {
+        int sequenceNo = in.readInt32();
+        String type = in.readString();
+        Message.Builder builder = serializer.newBuilder(type);
+        in.readMessage(builder, ExtensionRegistryLite.getEmptyRegistry());
+        callback.message(sequenceNo, builder.build());
+      }
+    } catch (IOException e) {
+      LOG.warning("Malformed binary message", e);
+    } catch (SerializationException e) {
+      LOG.warning("message handling error", e);
+    }
+  }
+
+  /**
+   * Encodes a message as a binary frame. Wavelet updates are encoded through
+   * the {@link WaveletUpdateEncoder}, if any.
+   */
+  byte[] encodeFrame(int sequenceNo, Message message) {
+    String type = message.getDescriptorForType().getName();
+    if (updateEncoder != null && message instanceof ProtocolWaveletUpdate) {
+      return encodeFrame(sequenceNo, type,
+          updateEncoder.toBytes((ProtocolWaveletUpdate) message));
+    }
+    byte[] frame = new byte[CodedOutputStream.computeInt32SizeNoTag(sequenceNo)
+        + CodedOutputStream.computeStringSizeNoTag(type)
+        + CodedOutputStream.computeMessageSizeNoTag(message)];
+    CodedOutputStream out = CodedOutputStream.newInstance(frame);
+    try {
+      out.writeInt32NoTag(sequenceNo);
+      out.writeStringNoTag(type);
+      out.writeMessageNoTag(message);
+      out.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new IllegalStateException("Writing to a byte array failed", e);
+    }
+    return frame;
+  }
+
+  /**
+   * Encodes an already serialized message as a binary frame.
+   */
+  private static byte[] encodeFrame(int sequenceNo, String type, ByteString payload) {
+    byte[] frame = new byte[CodedOutputStream.computeInt32SizeNoTag(sequenceNo)
+        + CodedOutputStream.computeStringSizeNoTag(type)
+        + CodedOutputStream.computeBytesSizeNoTag(payload)];
+    CodedOutputStream out = CodedOutputStream.newInstance(frame);
+    try {
+      out.writeInt32NoTag(sequenceNo);
+      out.writeStringNoTag(type);
+      out.writeBytesNoTag(payload);
+      out.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new IllegalStateException("Writing to a byte array failed", e);
+    }
+    return frame;
+  }
+
   static <T extends GsonSerializable> T load(JsonElement payload, T x, Gson gson) {
     try {
       x.fromGson(payload, gson, null);
@@ -130,17 +266,82 @@ public abstract class WebSocketChannel extends MessageExpectingChannel {
    */
   protected abstract void sendMessageString(String data) throws IOException;
 
+  /**
+   * Sends a binary message on the socket. Only called if the channel is
+   * binary, so channels which never negotiate {@link #BINARY_PROTOCOL} need
+   * not override this.
+   *
+   * @param data message to send
+   * @throws IOException if the communication fails
+   * @throws UnsupportedOperationException if the channel only sends text
+   */
+  protected void sendMessageBytes(byte[] data) throws IOException {
+    throw new UnsupportedOperationException(getClass().getSimpleName()
+        + " only sends text messages, it never negotiates " + BINARY_PROTOCOL);
+  }
+
+  /**
+   * Sends a batch of messages, in order. On a binary channel their frames are
+   * sent in one websocket message.
+   */
+  void sendMessages(List<OutboundMessageQueue.Pending> batch) {
+    if (!binary || batch.size() == 1) {
+      for (OutboundMessageQueue.Pending pending : batch) {
+        sendMessage(pending.sequenceNo, pending.message);
+      }
+      return;
+    }
+    List<byte[]> frames = Lists.newArrayListWithCapacity(batch.size());
+    int length = 0;
+    for (OutboundMessageQueue.Pending pending : batch) {
+      byte[] frame = encodeFrame(pending.sequenceNo, pending.message);
+      frames.add(frame);
+      length += frame.length;
+    }
+    byte[] data = new byte[length];
+    int offset = 0;
+    for (byte[] frame : frames) {
+      System.arraycopy(frame, 0, data, offset, frame.length);
+      offset += frame.length;
+    }
+    try {
+      sendMessageBytes(data);
+      if (LOG.isFineLoggable()) {
+        LOG.fine("sent " + batch.size() + " messages in one binary message over websocket");
+      }
+    } catch (IOException e) {
+      LOG.warning("Failed to transmit " + batch.size() + " messages on socket", e);
+    }
+  }
+
   @Override
   public void sendMessage(int sequenceNo, Message message) {
-    JsonElement json;
+    if (binary) {
+      try {
+        sendMessageBytes(encodeFrame(sequenceNo, message));
+        if (LOG.isFineLoggable()) {
+          LOG.fine("sent binary message over websocket, sequence number " + sequenceNo
+              + ", message " + message);
+        }
+      } catch (IOException e) {
+        LOG.warning("Failed to transmit message on socket, sequence number " + sequenceNo
+            + ", message " + message, e);
+      }
+      return;
+    }
+    String type = message.getDescriptorForType().getName();
+    String str;
     try {
-      json = serializer.toJson(message);
+      if (updateEncoder != null && message instanceof ProtocolWaveletUpdate) {
+        str = MessageWrapper.serialize(type, sequenceNo,
+            updateEncoder.toJsonText((ProtocolWaveletUpdate) message, serializer));
+      } else {
+        str = MessageWrapper.serialize(type, sequenceNo, serializer.toJson(message));
+      }
     } catch (SerializationException e) {
       LOG.warning("Failed to JSONify proto message", e);
       return;
     }
-    String type = message.getDescriptorForType().getName();
-    String str = MessageWrapper.serialize(type, sequenceNo, json);
     try {
       sendMessageString(str);
       LOG.fine("sent JSON message over websocket, sequence number " + sequenceNo
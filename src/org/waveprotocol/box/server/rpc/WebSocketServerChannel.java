@@ -32,7 +32,7 @@ import java.io.IOException;
  * The server side of WebSocketChannel.
  */
 public class WebSocketServerChannel extends WebSocketChannel implements WebSocket,
-    WebSocket.OnTextMessage {
+    WebSocket.OnTextMessage, WebSocket.OnBinaryMessage {
 
   @Inject
   private static @Named(CoreSettings.WEBSOCKET_MAX_MESSAGE_SIZE) int websocketMaxMessageSize;
@@ -53,6 +53,31 @@ public class WebSocketServerChannel extends WebSocketChannel implements WebSocke
     super(callback);
   }
 
+  /**
+   * Creates a new WebSocketServerChannel using the callback for incoming messages.
+   *
+   * @param callback A ProtoCallback instance called with incoming messages.
+   * @param binary Whether to send messages in binary frames, for clients which
+   *        negotiated the binary subprotocol.
+   */
+  public WebSocketServerChannel(ProtoCallback callback, boolean binary) {
+    super(callback, binary);
+  }
+
+  /**
+   * Creates a new WebSocketServerChannel using the callback for incoming messages.
+   *
+   * @param callback A ProtoCallback instance called with incoming messages.
+   * @param binary Whether to send messages in binary frames, for clients which
+   *        negotiated the binary subprotocol.
+   * @param updateEncoder Encodes wavelet updates, reusing the encoded deltas
+   *        shared with other channels.
+   */
+  public WebSocketServerChannel(ProtoCallback callback, boolean binary,
+      WaveletUpdateEncoder updateEncoder) {
+    super(callback, binary, updateEncoder);
+  }
+
   /**
    * Called when a new websocket connection is accepted.
    *
@@ -76,6 +101,14 @@ public class WebSocketServerChannel extends WebSocketChannel implements WebSocke
     handleMessageString(data);
   }
 
+  /**
+   * Pass on an incoming binary message.
+   */
+  @Override
+  public void onMessage(byte[] data, int offset, int length) {
+    handleMessageBytes(data, offset, length);
+  }
+
   /**
    * Called when an established websocket connection closes
    * @param closeCode
@@ -106,4 +139,26 @@ public class WebSocketServerChannel extends WebSocketChannel implements WebSocke
       }
     }
   }
+
+  /**
+   * Closes the websocket, if it's still connected.
+   */
+  public void close() {
+    synchronized (this) {
+      if (connection != null) {
+        connection.close();
+      }
+    }
+  }
+
+  @Override
+  protected void sendMessageBytes(byte[] data) throws IOException {
+    synchronized (this) {
+      if (connection == null) {
+        LOG.warning("Websocket is not connected");
+      } else {
+        connection.sendMessage(data, 0, data.length);
+      }
+    }
+  }
 }
@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.util;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.waveprotocol.box.server.CoreSettings;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically logs the performance counters of the registered
+ * {@link StatsSource}s, one line per source.
+ *
+ * This class is thread-safe.
+ */
+@Singleton
+public class StatsLogger {
+  private static final Log LOG = Log.get(StatsLogger.class);
+
+  private final int intervalSeconds;
+
+  /** The sources by name, in registration order. */
+  private final Map<String, StatsSource> sources = Maps.newLinkedHashMap();
+
+  private ScheduledExecutorService timer = null;
+
+  /**
+   * @param intervalSeconds how often to log the counters, 0 for never
+   */
+  @Inject
+  public StatsLogger(@Named(CoreSettings.STATS_LOG_INTERVAL_SECONDS) int intervalSeconds) {
+    this.intervalSeconds = intervalSeconds;
+  }
+
+  /**
+   * Adds a source whose counters are logged under the given name, replacing
+   * any source of that name.
+   */
+  public synchronized void register(String name, StatsSource source) {
+    sources.put(name, source);
+  }
+
+  /** Starts logging periodically, unless disabled or already started. */
+  public synchronized void start() {
+    if (intervalSeconds <= 0 || timer != null) {
+      return;
+    }
+    timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("StatsLogger-%d").setDaemon(true).build());
+    timer.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        logStats();
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /** Logs the current counters of all sources. */
+  public void logStats() {
+    for (String line : formatStats()) {
+      LOG.info(line);
+    }
+  }
+
+  /**
+   * @return a line per source, of the form "name: counter=value, ..."
+   */
+  public synchronized List<String> formatStats() {
+    List<String> lines = Lists.newArrayListWithCapacity(sources.size());
+    for (Map.Entry<String, StatsSource> source : sources.entrySet()) {
+      Map<String, Number> stats = Maps.newLinkedHashMap();
+      try {
+        source.getValue().collectStats(stats);
+      } catch (RuntimeException e) {
+        LOG.warning("Failed to collect stats of " + source.getKey(), e);
+        continue;
+      }
+      StringBuilder line = new StringBuilder(source.getKey()).append(':');
+      String separator = " ";
+      for (Map.Entry<String, Number> stat : stats.entrySet()) {
+        line.append(separator).append(stat.getKey()).append('=').append(stat.getValue());
+        separator = ", ";
+      }
+      lines.add(line.toString());
+    }
+    return lines;
+  }
+}
@@ -19,52 +19,292 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.util.StatsSource;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base implementation of {@link WaveIndexer}.
  *
+ * The index is remade by reading each wavelet from the delta store on a pool
+ * of threads. Only a few waves are read at a time, and the wavelets aren't
+ * loaded into the wave map, so memory use doesn't grow with the number of
+ * waves. The waves indexed so far are recorded in a checkpoint file after the
+ * index is flushed, so that an interrupted reindex resumes where it stopped.
+ * A wave with a wavelet which failed to index isn't recorded, and the
+ * checkpoint is kept when the reindex ends, so the next reindex retries it.
+ *
  * @author yurize@apache.org (Yuri Zelikov)
  */
-public abstract class AbstractWaveIndexer implements WaveIndexer {
+public abstract class AbstractWaveIndexer implements WaveIndexer, StatsSource {
+
+  private static final Log LOG = Log.get(AbstractWaveIndexer.class);
+
+  /** The number of waves indexed between checkpoints. */
+  private static final int CHECKPOINT_INTERVAL = 1000;
+
+  /** The number of waves being read per indexing thread. */
+  private static final int WAVES_IN_FLIGHT_PER_THREAD = 2;
 
   protected final WaveMap waveMap;
   protected final WaveletProvider waveletProvider;
+  private final DeltaAndSnapshotStore store;
+  private final int threads;
 
-  public AbstractWaveIndexer(WaveMap waveMap, WaveletProvider waveletProvider) {
+  /** Records the waves indexed so far, or null if a reindex can't resume. */
+  private final File checkpointFile;
+
+  private final AtomicLong indexedWaveCount = new AtomicLong();
+  private final AtomicLong indexedWaveletCount = new AtomicLong();
+  private final AtomicLong failedWaveletCount = new AtomicLong();
+
+  /**
+   * @param store the store to read the wavelets from
+   * @param threads the number of threads which index wavelets
+   * @param checkpointFile the file to record the progress of the reindex in,
+   *        or null if the index doesn't persist, so a reindex can't resume
+   */
+  public AbstractWaveIndexer(WaveMap waveMap, WaveletProvider waveletProvider,
+      DeltaAndSnapshotStore store, int threads, File checkpointFile) {
     this.waveletProvider = waveletProvider;
     this.waveMap = waveMap;
+    this.store = store;
+    this.threads = Math.max(1, threads);
+    this.checkpointFile = checkpointFile;
   }
 
   /**
-   * Forces all waves to be loaded into memory and processes each wavelet.
+   * Indexes every wavelet in the delta store, skipping the waves which were
+   * indexed before an interrupted reindex.
    */
   @Override
   public synchronized void remakeIndex() throws WaveletStateException, WaveServerException {
+    // Looks up the wavelets of every wave without loading them.
     waveMap.loadAllWavelets();
 
-    ExceptionalIterator<WaveId, WaveServerException> witr = waveletProvider.getWaveIds();
-    while (witr.hasNext()) {
-      WaveId waveId = witr.next();
-      for (WaveletId waveletId : waveletProvider.getWaveletIds(waveId)) {
-        WaveletName waveletName = WaveletName.of(waveId, waveletId);
+    Set<WaveId> indexedWaves = readCheckpoint();
+    if (!indexedWaves.isEmpty()) {
+      LOG.info("Resuming reindex after " + indexedWaves.size() + " waves");
+    }
+    indexedWaveCount.set(0);
+    indexedWaveletCount.set(0);
+    failedWaveletCount.set(0);
+    long startTime = System.currentTimeMillis();
 
-        // Required to call this method to load the wavelet into memory.
-        waveletProvider.getSnapshot(waveletName);
-        processWavelet(waveletName);
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("Reindex-%d").setDaemon(true).build());
+    final Semaphore wavesInFlight = new Semaphore(threads * WAVES_IN_FLIGHT_PER_THREAD);
+    final Queue<WaveId> uncheckpointedWaves = new ConcurrentLinkedQueue<WaveId>();
+    try {
+      ExceptionalIterator<WaveId, PersistenceException> witr = store.getWaveIdIterator();
+      long nextCheckpoint = CHECKPOINT_INTERVAL;
+      while (witr.hasNext()) {
+        final WaveId waveId = witr.next();
+        if (indexedWaves.contains(waveId)) {
+          continue;
+        }
+        wavesInFlight.acquire();
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              if (indexWave(waveId)) {
+                uncheckpointedWaves.add(waveId);
+                indexedWaveCount.incrementAndGet();
+              }
+            } finally {
+              wavesInFlight.release();
+            }
+          }
+        });
+        if (indexedWaveCount.get() >= nextCheckpoint) {
+          checkpoint(uncheckpointedWaves, startTime);
+          nextCheckpoint = indexedWaveCount.get() + CHECKPOINT_INTERVAL;
+        }
+      }
+      executor.shutdown();
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.info("Waiting for the reindex to finish");
       }
+      checkpoint(uncheckpointedWaves, startTime);
+    } catch (PersistenceException e) {
+      throw new WaveServerException("Failed to scan waves", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new WaveServerException("Interrupted while reindexing", e);
+    } finally {
+      executor.shutdownNow();
+    }
+    postIndexHook();
+    if (failedWaveletCount.get() > 0) {
+      LOG.warning(failedWaveletCount.get() + " wavelets failed to index, the next reindex "
+          + "retries their waves");
+    } else if (checkpointFile != null && checkpointFile.exists() && !checkpointFile.delete()) {
+      // The next reindex should start from scratch.
+      LOG.warning("Failed to delete the reindex checkpoint " + checkpointFile);
     }
   }
 
   /**
-   * Provdes a hook to process the wavelet.
+   * Reads each wavelet of the wave from the store and indexes it, dropping the
+   * wavelet as soon as it's indexed.
    *
-   * @param waveletName
+   * @return whether every wavelet of the wave was indexed
+   */
+  private boolean indexWave(WaveId waveId) {
+    Set<WaveletId> waveletIds;
+    try {
+      waveletIds = store.lookup(waveId);
+    } catch (PersistenceException e) {
+      LOG.severe("Failed to look up the wavelets of " + waveId, e);
+      failedWaveletCount.incrementAndGet();
+      return false;
+    }
+    boolean complete = true;
+    for (WaveletId waveletId : waveletIds) {
+      WaveletName waveletName = WaveletName.of(waveId, waveletId);
+      try {
+        DeltaAndSnapshotStore.WaveletAccess access = store.open(waveletName);
+        ReadableWaveletData wavelet;
+        try {
+          wavelet = access.getSnapshot();
+        } finally {
+          access.close();
+        }
+        if (wavelet != null) {
+          processWavelet(wavelet);
+          indexedWaveletCount.incrementAndGet();
+        }
+      } catch (PersistenceException e) {
+        LOG.severe("Failed to read " + waveletName, e);
+        failedWaveletCount.incrementAndGet();
+        complete = false;
+      } catch (IOException e) {
+        LOG.severe("Failed to read " + waveletName, e);
+        failedWaveletCount.incrementAndGet();
+        complete = false;
+      } catch (RuntimeException e) {
+        LOG.severe("Failed to index " + waveletName, e);
+        failedWaveletCount.incrementAndGet();
+        complete = false;
+      }
+    }
+    return complete;
+  }
+
+  /**
+   * Flushes the index, then records the waves indexed since the last
+   * checkpoint and reports the progress.
+   */
+  private void checkpoint(Queue<WaveId> uncheckpointedWaves, long startTime) {
+    List<WaveId> waves = Lists.newArrayList();
+    for (WaveId waveId = uncheckpointedWaves.poll(); waveId != null;
+        waveId = uncheckpointedWaves.poll()) {
+      waves.add(waveId);
+    }
+    flushIndex();
+    if (checkpointFile != null && !waves.isEmpty()) {
+      StringBuilder lines = new StringBuilder();
+      for (WaveId waveId : waves) {
+        lines.append(waveId.serialise()).append('\n');
+      }
+      try {
+        Files.createParentDirs(checkpointFile);
+        Files.append(lines, checkpointFile, Charsets.UTF_8);
+      } catch (IOException e) {
+        LOG.warning("Failed to record the reindex checkpoint in " + checkpointFile, e);
+      }
+    }
+    long elapsedMillis = Math.max(1, System.currentTimeMillis() - startTime);
+    LOG.info("Reindexed " + indexedWaveletCount.get() + " wavelets of " + indexedWaveCount.get()
+        + " waves in " + elapsedMillis / 1000 + "s ("
+        + indexedWaveletCount.get() * 1000 / elapsedMillis + " wavelets/s), "
+        + failedWaveletCount.get() + " failed");
+  }
+
+  /**
+   * Reads the waves indexed before an interrupted reindex.
+   */
+  private Set<WaveId> readCheckpoint() {
+    Set<WaveId> waves = Sets.newHashSet();
+    if (checkpointFile == null || !checkpointFile.exists()) {
+      return waves;
+    }
+    try {
+      for (String line : Files.readLines(checkpointFile, Charsets.UTF_8)) {
+        if (!line.isEmpty()) {
+          waves.add(WaveId.deserialise(line));
+        }
+      }
+    } catch (IOException e) {
+      LOG.warning("Failed to read the reindex checkpoint " + checkpointFile
+          + ", reindexing all waves", e);
+      waves.clear();
+    } catch (IllegalArgumentException e) {
+      LOG.warning("Corrupt reindex checkpoint " + checkpointFile + ", reindexing all waves", e);
+      waves.clear();
+    }
+    return waves;
+  }
+
+  /** @return the number of waves fully indexed by the current or last reindex. */
+  public long getIndexedWaveCount() {
+    return indexedWaveCount.get();
+  }
+
+  /** @return the number of wavelets indexed by the current or last reindex. */
+  public long getIndexedWaveletCount() {
+    return indexedWaveletCount.get();
+  }
+
+  /** @return the number of wavelets the current or last reindex failed to index. */
+  public long getFailedWaveletCount() {
+    return failedWaveletCount.get();
+  }
+
+  @Override
+  public void collectStats(Map<String, Number> stats) {
+    stats.put("waves", getIndexedWaveCount());
+    stats.put("wavelets", getIndexedWaveletCount());
+    stats.put("failed", getFailedWaveletCount());
+  }
+
+  /**
+   * Provides a hook to index a wavelet read from the store. Called
+   * concurrently for different wavelets.
+   */
+  protected abstract void processWavelet(ReadableWaveletData wavelet);
+
+  /**
+   * Provides a hook to make the wavelets processed so far durable, before
+   * they are recorded in the checkpoint.
    */
-  protected abstract void processWavelet(WaveletName waveletName);
+  protected void flushIndex() {
+  }
 
   /**
    * Provides a hook to perform some logic after indexing was completed.
@@ -0,0 +1,292 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.util.StatsSource;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers wave bus notifications to a subscriber from background threads,
+ * so that a slow subscriber doesn't delay the wavelet which is notifying.
+ *
+ * Each thread has a bounded queue, and the notifications of a wavelet always
+ * go through the same thread, so the subscriber receives them in order. When
+ * a queue is full the notifying thread waits for room, logging a warning each
+ * time the timeout passes, so a slow subscriber slows the wavelets notifying
+ * it rather than missing updates.
+ *
+ * The snapshot of an update is pinned while the update is queued, and read
+ * only when it's delivered.
+ *
+ * This class is thread-safe.
+ */
+class AsyncWaveBusSubscriber implements StatsSource {
+
+  private static final Log LOG = Log.get(AsyncWaveBusSubscriber.class);
+
+  /** A queued notification. */
+  private static final class Notification {
+    final Runnable delivery;
+    /** The pinned snapshot of an update, or null for a commit. */
+    final DeferredSnapshot snapshot;
+    final long queuedNanos;
+
+    Notification(Runnable delivery, DeferredSnapshot snapshot, long queuedNanos) {
+      this.delivery = delivery;
+      this.snapshot = snapshot;
+      this.queuedNanos = queuedNanos;
+    }
+
+    void release() {
+      if (snapshot != null) {
+        snapshot.release();
+      }
+    }
+  }
+
+  private final WaveBus.Subscriber subscriber;
+  private final long enqueueTimeoutMillis;
+  private final List<BlockingQueue<Notification>> queues;
+  private final List<Thread> threads;
+  private volatile boolean shutdown = false;
+
+  private final AtomicLong deliveredCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final AtomicLong slowEnqueueCount = new AtomicLong();
+  private final AtomicLong totalLagNanos = new AtomicLong();
+  private final AtomicLong maxLagNanos = new AtomicLong();
+
+  /**
+   * @param subscriber the subscriber to deliver notifications to
+   * @param threads the number of delivery threads
+   * @param queueSize the number of notifications queued for each thread
+   * @param enqueueTimeoutMillis how long to wait for room in a full queue
+   *        before warning that the subscriber is falling behind
+   */
+  AsyncWaveBusSubscriber(WaveBus.Subscriber subscriber, int threads, int queueSize,
+      long enqueueTimeoutMillis) {
+    Preconditions.checkArgument(threads > 0, "Non-positive thread count %s", threads);
+    Preconditions.checkArgument(queueSize > 0, "Non-positive queue size %s", queueSize);
+    this.subscriber = subscriber;
+    this.enqueueTimeoutMillis = enqueueTimeoutMillis;
+    ThreadFactory threadFactory = new ThreadFactoryBuilder()
+        .setNameFormat("WaveBus-" + subscriber.getClass().getSimpleName() + "-%d")
+        .setDaemon(true)
+        .build();
+    ImmutableList.Builder<BlockingQueue<Notification>> queues = ImmutableList.builder();
+    ImmutableList.Builder<Thread> threadList = ImmutableList.builder();
+    for (int i = 0; i < threads; i++) {
+      final BlockingQueue<Notification> queue = new ArrayBlockingQueue<Notification>(queueSize);
+      Thread thread = threadFactory.newThread(new Runnable() {
+        @Override
+        public void run() {
+          deliverFrom(queue);
+        }
+      });
+      queues.add(queue);
+      threadList.add(thread);
+    }
+    this.queues = queues.build();
+    this.threads = threadList.build();
+    for (Thread thread : this.threads) {
+      thread.start();
+    }
+  }
+
+  /** Returns the subscriber which notifications are delivered to. */
+  WaveBus.Subscriber getSubscriber() {
+    return subscriber;
+  }
+
+  /**
+   * Queues an update. The snapshot is pinned until the update is delivered,
+   * and read by the delivery thread.
+   */
+  void waveletUpdate(WaveletName waveletName, final DeferredSnapshot snapshot,
+      final DeltaSequence deltas) {
+    snapshot.pin();
+    enqueue(waveletName, new Notification(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          subscriber.waveletUpdate(snapshot.get(), deltas);
+        } catch (RuntimeException e) {
+          LOG.severe("Runtime exception in update to wave bus subscriber " + subscriber, e);
+        }
+      }
+    }, snapshot, System.nanoTime()));
+  }
+
+  /** Queues a commit notice. */
+  void waveletCommitted(final WaveletName waveletName, final HashedVersion version) {
+    enqueue(waveletName, new Notification(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          subscriber.waveletCommitted(waveletName, version);
+        } catch (RuntimeException e) {
+          LOG.severe("Runtime exception in commit to wave bus subscriber " + subscriber, e);
+        }
+      }
+    }, null, System.nanoTime()));
+  }
+
+  /**
+   * Stops the delivery threads. Queued notifications which haven't been
+   * delivered yet are discarded.
+   */
+  void shutdown() {
+    shutdown = true;
+    for (Thread thread : threads) {
+      thread.interrupt();
+    }
+  }
+
+  /** Returns the number of notifications delivered to the subscriber. */
+  long getDeliveredCount() {
+    return deliveredCount.get();
+  }
+
+  /**
+   * Returns the number of notifications dropped because the notifying thread
+   * was interrupted while waiting for room, or the subscriber was shut down.
+   */
+  long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /** Returns the number of notifications which waited longer than the timeout to be queued. */
+  long getSlowEnqueueCount() {
+    return slowEnqueueCount.get();
+  }
+
+  /** Returns the number of notifications queued and not yet delivered. */
+  int getQueuedCount() {
+    int queued = 0;
+    for (BlockingQueue<Notification> queue : queues) {
+      queued += queue.size();
+    }
+    return queued;
+  }
+
+  /** Returns the average time notifications spent queued, in milliseconds. */
+  long getAverageLagMillis() {
+    long delivered = deliveredCount.get();
+    return (delivered == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(totalLagNanos.get() / delivered);
+  }
+
+  /** Returns the longest time a notification spent queued, in milliseconds. */
+  long getMaxLagMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxLagNanos.get());
+  }
+
+  @Override
+  public void collectStats(Map<String, Number> stats) {
+    stats.put("delivered", getDeliveredCount());
+    stats.put("queued", getQueuedCount());
+    stats.put("slowEnqueues", getSlowEnqueueCount());
+    stats.put("dropped", getDroppedCount());
+    stats.put("avgLagMs", getAverageLagMillis());
+    stats.put("maxLagMs", getMaxLagMillis());
+  }
+
+  private void enqueue(WaveletName waveletName, Notification notification) {
+    BlockingQueue<Notification> queue =
+        queues.get((waveletName.hashCode() & Integer.MAX_VALUE) % queues.size());
+    try {
+      boolean warned = false;
+      while (!queue.offer(notification, enqueueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        if (shutdown) {
+          drop(waveletName, notification, "shut down");
+          return;
+        }
+        if (!warned) {
+          warned = true;
+          long slow = slowEnqueueCount.incrementAndGet();
+          LOG.warning("Waiting to queue notification of " + waveletName
+              + " to wave bus subscriber " + subscriber + " which is falling behind, " + slow
+              + " slow so far");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      drop(waveletName, notification, "interrupted");
+      return;
+    }
+    if (shutdown) {
+      // The delivery thread may have stopped before this was queued.
+      discardQueued(queue);
+    }
+  }
+
+  private void drop(WaveletName waveletName, Notification notification, String reason) {
+    notification.release();
+    long dropped = droppedCount.incrementAndGet();
+    LOG.severe("Dropped notification of " + waveletName + " to wave bus subscriber "
+        + subscriber + ", " + reason + ", " + dropped + " dropped so far");
+  }
+
+  private void deliverFrom(BlockingQueue<Notification> queue) {
+    while (true) {
+      Notification notification;
+      try {
+        notification = queue.take();
+      } catch (InterruptedException e) {
+        discardQueued(queue);
+        return;
+      }
+      long lagNanos = System.nanoTime() - notification.queuedNanos;
+      totalLagNanos.addAndGet(lagNanos);
+      long max;
+      do {
+        max = maxLagNanos.get();
+      } while (lagNanos > max && !maxLagNanos.compareAndSet(max, lagNanos));
+      try {
+        notification.delivery.run();
+      } finally {
+        notification.release();
+      }
+      deliveredCount.incrementAndGet();
+    }
+  }
+
+  /** Releases the snapshots of notifications which won't be delivered. */
+  private static void discardQueued(BlockingQueue<Notification> queue) {
+    Notification notification;
+    while ((notification = queue.poll()) != null) {
+      notification.release();
+    }
+  }
+}
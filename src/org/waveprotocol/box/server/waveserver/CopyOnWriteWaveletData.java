@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.wave.model.document.operation.DocInitialization;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.BlipData;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableBlipData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveletDataListener;
+import org.waveprotocol.wave.model.wave.data.impl.WaveletDataListenerManager;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A wavelet which shares the data of an immutable snapshot until it is first
+ * modified, and then works on a private copy.
+ *
+ * Reads of the wavelet's metadata and participants are served from the shared
+ * snapshot. Anything which may modify the wavelet, including access to its
+ * mutable documents and registering listeners, first copies the snapshot's
+ * metadata and participants. Documents are copied one at a time, when first
+ * accessed, so reading a few documents doesn't copy the whole wavelet.
+ *
+ * This class is not thread-safe.
+ */
+class CopyOnWriteWaveletData implements ObservableWaveletData {
+
+  /** The shared snapshot, which must never be modified. */
+  private final ReadableWaveletData shared;
+
+  /**
+   * The private copy, or null until the wavelet is first modified. It lacks
+   * the shared documents which haven't been accessed yet.
+   */
+  private ObservableWaveletData copy = null;
+
+  /** Whether a shared document is being copied into the private copy. */
+  private boolean copyingDocument = false;
+
+  /**
+   * Forwards the events of the private copy to this wavelet's listeners,
+   * except for the addition of shared documents as they're copied.
+   */
+  private final WaveletDataListenerManager listeners = new WaveletDataListenerManager() {
+    @Override
+    public void onBlipDataAdded(WaveletData waveletData, BlipData blip) {
+      if (!copyingDocument) {
+        super.onBlipDataAdded(waveletData, blip);
+      }
+    }
+  };
+
+  CopyOnWriteWaveletData(ReadableWaveletData shared) {
+    Preconditions.checkNotNull(shared, "null snapshot");
+    this.shared = shared;
+  }
+
+  /** Returns whether this wavelet still shares the snapshot's data. */
+  boolean isShared() {
+    return copy == null;
+  }
+
+  private ReadableWaveletData readable() {
+    return (copy != null) ? copy : shared;
+  }
+
+  private ObservableWaveletData writable() {
+    if (copy == null) {
+      copy = WaveletDataUtil.createEmptyWavelet(WaveletDataUtil.waveletNameOf(shared),
+          shared.getCreator(), shared.getHashedVersion(), shared.getCreationTime());
+      copy.setVersion(shared.getVersion());
+      copy.setLastModifiedTime(shared.getLastModifiedTime());
+      for (ParticipantId participant : shared.getParticipants()) {
+        copy.addParticipant(participant);
+      }
+      copy.addListener(listeners);
+    }
+    return copy;
+  }
+
+  /**
+   * Copies a shared document into the private copy, unless it's been copied
+   * already or the snapshot has no such document.
+   */
+  private void copyDocument(String documentName) {
+    ObservableWaveletData writable = writable();
+    if (writable.getDocument(documentName) != null) {
+      return;
+    }
+    ReadableBlipData document = shared.getDocument(documentName);
+    if (document == null) {
+      return;
+    }
+    copyingDocument = true;
+    try {
+      writable.createDocument(document.getId(), document.getAuthor(),
+          document.getContributors(), document.getContent().asOperation(),
+          document.getLastModifiedTime(), document.getLastModifiedVersion());
+    } finally {
+      copyingDocument = false;
+    }
+  }
+
+  @Override
+  public BlipData getDocument(String documentName) {
+    copyDocument(documentName);
+    return copy.getDocument(documentName);
+  }
+
+  @Override
+  public Set<String> getDocumentIds() {
+    if (copy == null) {
+      return Collections.unmodifiableSet(shared.getDocumentIds());
+    }
+    // Documents are never removed, so the copy only adds documents.
+    return Collections.unmodifiableSet(
+        Sets.union(shared.getDocumentIds(), copy.getDocumentIds()));
+  }
+
+  @Override
+  public ParticipantId getCreator() {
+    return readable().getCreator();
+  }
+
+  @Override
+  public Set<ParticipantId> getParticipants() {
+    return Collections.unmodifiableSet(readable().getParticipants());
+  }
+
+  @Override
+  public long getVersion() {
+    return readable().getVersion();
+  }
+
+  @Override
+  public long getCreationTime() {
+    return readable().getCreationTime();
+  }
+
+  @Override
+  public long getLastModifiedTime() {
+    return readable().getLastModifiedTime();
+  }
+
+  @Override
+  public HashedVersion getHashedVersion() {
+    return readable().getHashedVersion();
+  }
+
+  @Override
+  public WaveId getWaveId() {
+    return readable().getWaveId();
+  }
+
+  @Override
+  public WaveletId getWaveletId() {
+    return readable().getWaveletId();
+  }
+
+  @Override
+  public BlipData createDocument(String id, ParticipantId author,
+      Collection<ParticipantId> contributors, DocInitialization content,
+      long lastModifiedTime, long lastModifiedVersion) {
+    // Copy a shared document of the same id first, so the duplicate is rejected.
+    copyDocument(id);
+    return writable().createDocument(id, author, contributors, content, lastModifiedTime,
+        lastModifiedVersion);
+  }
+
+  @Override
+  public boolean addParticipant(ParticipantId participant) {
+    return writable().addParticipant(participant);
+  }
+
+  @Override
+  public boolean addParticipant(ParticipantId participant, int position) {
+    return writable().addParticipant(participant, position);
+  }
+
+  @Override
+  public boolean removeParticipant(ParticipantId participant) {
+    return writable().removeParticipant(participant);
+  }
+
+  @Override
+  public long setVersion(long newVersion) {
+    return writable().setVersion(newVersion);
+  }
+
+  @Override
+  public HashedVersion setHashedVersion(HashedVersion newHashedVersion) {
+    return writable().setHashedVersion(newHashedVersion);
+  }
+
+  @Override
+  public long setLastModifiedTime(long newTime) {
+    return writable().setLastModifiedTime(newTime);
+  }
+
+  @Override
+  public void addListener(WaveletDataListener listener) {
+    writable();
+    listeners.addListener(listener);
+  }
+
+  @Override
+  public void removeListener(WaveletDataListener listener) {
+    listeners.removeListener(listener);
+  }
+
+  @Override
+  public String toString() {
+    return readable().toString();
+  }
+}
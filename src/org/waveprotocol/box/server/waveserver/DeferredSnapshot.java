@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.waveserver;
+
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+/**
+ * An immutable snapshot of a wavelet at the version of an update, which can be
+ * read after the update notification has returned.
+ *
+ * The wavelet is only copied if it would otherwise change before the snapshot
+ * is read, or when the snapshot is first read, so notifying doesn't copy the
+ * wavelet while it's locked unless a pinned reader is falling behind.
+ *
+ * Implementations are thread-safe.
+ */
+public interface DeferredSnapshot {
+
+  /**
+   * Reserves the snapshot for a reader, which must call {@link #release()}
+   * once done with it. Must be called before the update notification returns.
+   */
+  void pin();
+
+  /**
+   * Returns the snapshot. May only be called while pinned.
+   */
+  ReadableWaveletData get();
+
+  /**
+   * Releases a reservation made with {@link #pin()}.
+   */
+  void release();
+}
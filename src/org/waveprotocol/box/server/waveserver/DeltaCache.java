@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of persisted deltas of one wavelet, keyed by the version
+ * each delta was applied at, and also looked up by the version it resulted in.
+ *
+ * The weight of a delta is its number of operations. When the total weight
+ * exceeds the capacity, the least recently used deltas are evicted, and must
+ * then be read from storage again.
+ *
+ * Hit, miss and eviction counts are recorded in a {@link DeltaCacheStats}
+ * shared by the caches of all wavelets, to help size the capacity.
+ *
+ * This class is thread-safe.
+ */
+class DeltaCache {
+
+  private static final Log LOG = Log.get(DeltaCache.class);
+
+  private static long weigh(WaveletDeltaRecord delta) {
+    return Math.max(1, delta.getTransformedDelta().size());
+  }
+
+  /** Deltas in access order, least recently used first. */
+  private final LinkedHashMap<Long, WaveletDeltaRecord> deltas =
+      new LinkedHashMap<Long, WaveletDeltaRecord>(16, 0.75f, true);
+
+  /** The applied at version of each cached delta, by its resulting version. */
+  private final Map<Long, Long> appliedAtByEndVersion = Maps.newHashMap();
+
+  private final long capacity;
+  private final DeltaCacheStats stats;
+  private long weight = 0;
+
+  /**
+   * @param capacity the maximum total number of operations in the cached
+   *        deltas, 0 disables the cache
+   * @param stats records the hits, misses and evictions of the cache
+   */
+  DeltaCache(long capacity, DeltaCacheStats stats) {
+    Preconditions.checkArgument(capacity >= 0, "Negative capacity %s", capacity);
+    this.capacity = capacity;
+    this.stats = stats;
+  }
+
+  /**
+   * @return the cached delta applied at the given version, or null
+   */
+  synchronized WaveletDeltaRecord get(long version) {
+    WaveletDeltaRecord delta = deltas.get(version);
+    if (delta != null) {
+      stats.recordHit();
+    } else {
+      stats.recordMiss();
+    }
+    return delta;
+  }
+
+  /**
+   * @return the cached delta resulting in the given version, or null
+   */
+  synchronized WaveletDeltaRecord getByEndVersion(long endVersion) {
+    Long version = appliedAtByEndVersion.get(endVersion);
+    return get(version != null ? version : -1);
+  }
+
+  /**
+   * Adds a persisted delta to the cache, evicting the least recently used
+   * deltas if the capacity is exceeded. Deltas heavier than the capacity
+   * are not cached.
+   */
+  synchronized void put(WaveletDeltaRecord delta) {
+    long deltaWeight = weigh(delta);
+    if (deltaWeight > capacity) {
+      return;
+    }
+    WaveletDeltaRecord previous = deltas.put(delta.getAppliedAtVersion().getVersion(), delta);
+    if (previous != null) {
+      weight -= weigh(previous);
+      appliedAtByEndVersion.remove(previous.getResultingVersion().getVersion());
+    }
+    weight += deltaWeight;
+    appliedAtByEndVersion.put(delta.getResultingVersion().getVersion(),
+        delta.getAppliedAtVersion().getVersion());
+
+    int evicted = 0;
+    Iterator<WaveletDeltaRecord> it = deltas.values().iterator();
+    while (weight > capacity) {
+      WaveletDeltaRecord eldest = it.next();
+      weight -= weigh(eldest);
+      appliedAtByEndVersion.remove(eldest.getResultingVersion().getVersion());
+      it.remove();
+      evicted++;
+    }
+    if (evicted > 0) {
+      stats.recordEvictions(evicted);
+      if (LOG.isFineLoggable()) {
+        LOG.fine("Evicted " + evicted + " deltas, totals: " + stats);
+      }
+    }
+  }
+
+  /** @return the number of cached deltas */
+  synchronized int size() {
+    return deltas.size();
+  }
+
+  /** @return the total number of operations in the cached deltas */
+  synchronized long getWeight() {
+    return weight;
+  }
+
+  /** Evicts all deltas. */
+  synchronized void clear() {
+    deltas.clear();
+    appliedAtByEndVersion.clear();
+    weight = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "DeltaCache(" + deltas.size() + " deltas, " + weight + "/" + capacity + " ops)";
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.waveserver;
+
+import org.waveprotocol.box.server.util.StatsSource;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss and eviction counts aggregated over the {@link DeltaCache}s of
+ * all loaded wavelets, to help size their capacity.
+ *
+ * This class is thread-safe.
+ */
+public class DeltaCacheStats implements StatsSource {
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  void recordHit() {
+    hitCount.incrementAndGet();
+  }
+
+  void recordMiss() {
+    missCount.incrementAndGet();
+  }
+
+  void recordEvictions(int count) {
+    evictionCount.addAndGet(count);
+  }
+
+  /** @return the number of lookups served from a cache */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** @return the number of lookups that a cache could not serve */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /** @return the number of deltas evicted from a cache */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  @Override
+  public void collectStats(Map<String, Number> stats) {
+    stats.put("hits", getHitCount());
+    stats.put("misses", getMissCount());
+    stats.put("evictions", getEvictionCount());
+  }
+
+  @Override
+  public String toString() {
+    return "hits " + hitCount + ", misses " + missCount + ", evictions " + evictionCount;
+  }
+}
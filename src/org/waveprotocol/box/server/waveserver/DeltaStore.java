@@ -20,8 +20,11 @@
 package org.waveprotocol.box.server.waveserver;
 
 import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.Collection;
 
 /**
@@ -33,7 +36,9 @@ public interface DeltaStore extends WaveletStore<DeltaStore.DeltasAccess> {
 
   /**
    * Accesses the delta history for a wavelet.
-   * Permits reading historical deltas and appending deltas to the history.
+   * Permits reading historical deltas and appending deltas to the history,
+   * and storing snapshot checkpoints of the wavelet state so that it can be
+   * loaded without replaying the entire history.
    */
   interface DeltasAccess extends WaveletDeltaRecordReader, Closeable {
     /**
@@ -50,5 +55,28 @@ public interface DeltaStore extends WaveletStore<DeltaStore.DeltasAccess> {
      *         storage.
      */
     void append(Collection<WaveletDeltaRecord> deltas) throws PersistenceException;
+
+    /**
+     * Blocking call to store a snapshot checkpoint of the wavelet state,
+     * replacing any previously stored checkpoint. If the call returns
+     * normally, the checkpoint has been durably stored.
+     *
+     * @param snapshot the wavelet state at a version which is the resulting
+     *        version of a delta that has already been appended. The snapshot
+     *        is not retained, so the caller may continue to mutate it.
+     * @throws PersistenceException if anything goes wrong with the underlying
+     *         storage.
+     */
+    void storeSnapshot(ReadableWaveletData snapshot) throws PersistenceException;
+
+    /**
+     * Reads the most recently stored snapshot checkpoint. Its version may be
+     * behind the end version of the delta history, in which case the
+     * remaining deltas must be applied to it.
+     *
+     * @return a mutable copy of the checkpoint, which the caller owns, or null
+     *         if no checkpoint has been stored.
+     */
+    WaveletData loadSnapshot() throws IOException;
   }
 }
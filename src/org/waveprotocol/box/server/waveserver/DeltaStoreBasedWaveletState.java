@@ -22,14 +22,11 @@ package org.waveprotocol.box.server.waveserver;
 import static java.lang.String.format;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
 
-import org.waveprotocol.box.common.ListReceiver;
 import org.waveprotocol.box.common.Receiver;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
@@ -47,7 +44,6 @@ import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 import org.waveprotocol.wave.util.logging.Log;
 
 import java.io.IOException;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
@@ -58,8 +54,10 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Simplistic {@link DeltaStore}-backed wavelet state implementation
- * which goes to persistent storage for every history request.
+ * {@link DeltaStore}-backed wavelet state implementation. Deltas that are not
+ * yet persisted are kept in memory, as are the most recently used persisted
+ * deltas up to a bounded size; other history requests go to persistent
+ * storage.
  *
  * TODO(soren): rewire this class to be backed by {@link WaveletStore} and
  * read the snapshot from there instead of computing it in the
@@ -78,14 +76,6 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   private static final HashedVersionFactory HASH_FACTORY =
       new HashedVersionFactoryImpl(URI_CODEC);
 
-  private static final Function<WaveletDeltaRecord, TransformedWaveletDelta> TRANSFORMED =
-      new Function<WaveletDeltaRecord, TransformedWaveletDelta>() {
-        @Override
-        public TransformedWaveletDelta apply(WaveletDeltaRecord record) {
-          return record.getTransformedDelta();
-        }
-      };
-
   /**
    * @return An entry keyed by a hashed version with the given version number,
    *         if any, otherwise null.
@@ -98,29 +88,57 @@ class DeltaStoreBasedWaveletState implements WaveletState {
     return (entry != null && entry.getKey().getVersion() == version) ? entry : null;
   }
 
+  /**
+   * Creates a new delta store based state without snapshot checkpoints or a
+   * cache of persisted deltas.
+   *
+   * @see #create(DeltaStore.DeltasAccess, Executor, long, long, DeltaCacheStats)
+   */
+  public static DeltaStoreBasedWaveletState create(DeltaStore.DeltasAccess deltasAccess,
+      Executor persistExecutor) throws PersistenceException {
+    return create(deltasAccess, persistExecutor, 0, 0, new DeltaCacheStats());
+  }
+
   /**
    * Creates a new delta store based state.
    *
+   * The state is built from the latest snapshot checkpoint in the store, if
+   * any, followed by the deltas after it, so that only the tail of the history
+   * has to be read.
+   *
    * The executor must ensure that only one thread executes at any time for each
    * state instance.
    *
    * @param deltasAccess delta store accessor
    * @param persistExecutor executor for making persistence calls
+   * @param snapshotInterval the minimum number of versions between snapshot
+   *        checkpoints written by the persist path, or 0 to write none
+   * @param deltaCacheCapacity the maximum total number of operations in the
+   *        persisted deltas kept in memory, or 0 to keep none
+   * @param deltaCacheStats records the use of the cache of persisted deltas
    * @return a state initialized from the deltas
    * @throws PersistenceException if a failure occurs while reading or
    *         processing stored deltas
    */
   public static DeltaStoreBasedWaveletState create(DeltaStore.DeltasAccess deltasAccess,
-      Executor persistExecutor) throws PersistenceException {
+      Executor persistExecutor, long snapshotInterval, long deltaCacheCapacity,
+      DeltaCacheStats deltaCacheStats) throws PersistenceException {
+    DeltaCache deltaCache = new DeltaCache(deltaCacheCapacity, deltaCacheStats);
     if (deltasAccess.isEmpty()) {
-      return new DeltaStoreBasedWaveletState(deltasAccess, ImmutableList.<WaveletDeltaRecord>of(),
-          null, persistExecutor);
+      return new DeltaStoreBasedWaveletState(deltasAccess, null, persistExecutor,
+          snapshotInterval, 0, deltaCache);
     } else {
       try {
-        ImmutableList<WaveletDeltaRecord> deltas = readAll(deltasAccess, null);
-        WaveletData snapshot = WaveletDataUtil.buildWaveletFromDeltas(deltasAccess.getWaveletName(),
-            Iterators.transform(deltas.iterator(), TRANSFORMED));
-        return new DeltaStoreBasedWaveletState(deltasAccess, deltas, snapshot, persistExecutor);
+        WaveletData snapshot = loadSnapshotCheckpoint(deltasAccess);
+        long checkpointVersion = (snapshot == null) ? 0 : snapshot.getVersion();
+        snapshot = applyStoredDeltas(deltasAccess, snapshot, deltasAccess.getEndVersion());
+        if (snapshotInterval > 0
+            && snapshot.getVersion() - checkpointVersion >= snapshotInterval) {
+          // Nothing else can see the snapshot yet, so it's safe to store it from here.
+          checkpointVersion = storeSnapshotCheckpoint(deltasAccess, snapshot, checkpointVersion);
+        }
+        return new DeltaStoreBasedWaveletState(deltasAccess, snapshot, persistExecutor,
+            snapshotInterval, checkpointVersion, deltaCache);
       } catch (IOException e) {
         throw new PersistenceException("Failed to read stored deltas", e);
       } catch (OperationException e) {
@@ -130,55 +148,93 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   }
 
   /**
-   * Reads all deltas from persistent storage.
+   * Reads the latest snapshot checkpoint, if it's consistent with the stored
+   * deltas.
+   *
+   * @return the checkpoint, or null if there is no usable checkpoint
    */
-  private static ImmutableList<WaveletDeltaRecord> readAll(WaveletDeltaRecordReader reader,
-      ConcurrentNavigableMap<HashedVersion, WaveletDeltaRecord> cachedDeltas)
-      throws IOException {
-    HashedVersion startVersion = HASH_FACTORY.createVersionZero(reader.getWaveletName());
-    HashedVersion endVersion = reader.getEndVersion();
-    ListReceiver<WaveletDeltaRecord> receiver = new ListReceiver<WaveletDeltaRecord>();
-    readDeltasInRange(reader, cachedDeltas, startVersion, endVersion, receiver);
-    return ImmutableList.copyOf(receiver);
-  }
-
-  private static void readDeltasInRange(WaveletDeltaRecordReader reader,
-      ConcurrentNavigableMap<HashedVersion, WaveletDeltaRecord> cachedDeltas,
-      HashedVersion startVersion, HashedVersion endVersion, Receiver<WaveletDeltaRecord> receiver)
-      throws IOException {
-    WaveletDeltaRecord delta = getDelta(reader, cachedDeltas, startVersion);
-    Preconditions.checkArgument(delta != null && delta.getAppliedAtVersion().equals(startVersion),
-        "invalid start version");
-    for (;;) {
-      if (!receiver.put(delta)) {
-        return;
+  private static WaveletData loadSnapshotCheckpoint(DeltaStore.DeltasAccess deltasAccess) {
+    WaveletData snapshot;
+    try {
+      snapshot = deltasAccess.loadSnapshot();
+      if (snapshot == null) {
+        return null;
       }
-      if (delta.getResultingVersion().getVersion() >= endVersion.getVersion()) {
-        break;
+      // The deltas may have been truncated after the checkpoint was written,
+      // for example by a crash in the middle of an append.
+      WaveletDeltaRecord delta = deltasAccess.getDeltaByEndVersion(snapshot.getVersion());
+      if (delta != null && delta.getResultingVersion().equals(snapshot.getHashedVersion())) {
+        return snapshot;
       }
-      delta = getDelta(reader, cachedDeltas, delta.getResultingVersion());
-      if (delta == null) {
-        break;
+      LOG.warning("Ignoring snapshot of " + deltasAccess.getWaveletName() + " at version "
+          + snapshot.getHashedVersion() + " which doesn't match the stored deltas");
+    } catch (IOException e) {
+      LOG.warning("Failed to read snapshot of " + deltasAccess.getWaveletName()
+          + ", replaying all deltas", e);
+    }
+    return null;
+  }
+
+  /**
+   * Stores a snapshot checkpoint, logging rather than propagating failures
+   * since the deltas remain the authoritative record.
+   *
+   * @return the version of the latest stored checkpoint
+   */
+  private static long storeSnapshotCheckpoint(DeltaStore.DeltasAccess deltasAccess,
+      ReadableWaveletData snapshot, long previousVersion) {
+    try {
+      deltasAccess.storeSnapshot(snapshot);
+      if (LOG.isFineLoggable()) {
+        LOG.fine("Stored snapshot of " + deltasAccess.getWaveletName() + " at version "
+            + snapshot.getHashedVersion());
       }
+      return snapshot.getVersion();
+    } catch (PersistenceException e) {
+      LOG.warning("Failed to store snapshot of " + deltasAccess.getWaveletName(), e);
+      return previousVersion;
     }
-    Preconditions.checkArgument(delta != null && delta.getResultingVersion().equals(endVersion),
-        "invalid end version");
   }
 
-  private static WaveletDeltaRecord getDelta(WaveletDeltaRecordReader reader,
-      ConcurrentNavigableMap<HashedVersion, WaveletDeltaRecord> cachedDeltas,
-      HashedVersion version) throws IOException {
-    WaveletDeltaRecord delta = reader.getDelta(version.getVersion());
-    if (delta == null && cachedDeltas != null) {
-      delta = cachedDeltas.get(version);
+  /**
+   * Applies the stored deltas following the snapshot's version, up to the
+   * given end version.
+   *
+   * @param snapshot the wavelet state to apply the deltas to, or null to build
+   *        the state from version zero
+   * @return the wavelet state at the end version
+   */
+  private static WaveletData applyStoredDeltas(WaveletDeltaRecordReader reader,
+      WaveletData snapshot, HashedVersion endVersion) throws IOException, OperationException {
+    long version = (snapshot == null) ? 0 : snapshot.getVersion();
+    while (version < endVersion.getVersion()) {
+      TransformedWaveletDelta delta = reader.getTransformedDelta(version);
+      Preconditions.checkState(delta != null, "no delta at version %s", version);
+      if (snapshot == null) {
+        snapshot = WaveletDataUtil.buildWaveletFromFirstDelta(reader.getWaveletName(), delta);
+      } else {
+        WaveletDataUtil.applyWaveletDelta(delta, snapshot);
+      }
+      version = delta.getResultingVersion().getVersion();
     }
-    return delta;
+    Preconditions.checkState(snapshot.getHashedVersion().equals(endVersion),
+        "stored deltas end at %s rather than %s", snapshot.getHashedVersion(), endVersion);
+    return snapshot;
   }
 
   private final Executor persistExecutor;
   private final HashedVersion versionZero;
   private final DeltaStore.DeltasAccess deltasAccess;
 
+  /** Minimum number of versions between snapshot checkpoints, or 0 for none. */
+  private final long snapshotInterval;
+
+  /**
+   * The version of the latest stored snapshot checkpoint, or 0. Only accessed
+   * by the persister task, which never runs concurrently with itself.
+   */
+  private long snapshotCheckpointVersion;
+
   /** The lock that guards access to persistence related state. */
   private final Object persistLock = new Object();
 
@@ -220,6 +276,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
         } while (v.getVersion() < version.getVersion());
         Preconditions.checkState(v.equals(version));
         deltasAccess.append(deltas.build());
+        checkpointIfDue(version);
       }
       synchronized (persistLock) {
         Preconditions.checkState(last == lastPersistedVersion.get(),
@@ -236,14 +293,13 @@ class DeltaStoreBasedWaveletState implements WaveletState {
     }
   };
 
-  /** Keyed by appliedAtVersion. */
-  private final ConcurrentNavigableMap<HashedVersion, ByteStringMessage<ProtocolAppliedWaveletDelta>> appliedDeltas =
-      new ConcurrentSkipListMap<HashedVersion, ByteStringMessage<ProtocolAppliedWaveletDelta>>();
-
-  /** Keyed by appliedAtVersion. */
+  /** Deltas not yet flushed, keyed by appliedAtVersion. */
   private final ConcurrentNavigableMap<HashedVersion, WaveletDeltaRecord> cachedDeltas =
       new ConcurrentSkipListMap<HashedVersion, WaveletDeltaRecord>();
 
+  /** Recently used persisted deltas. */
+  private final DeltaCache deltaCache;
+
   /** Is null if the wavelet state is empty. */
   private WaveletData snapshot;
 
@@ -256,22 +312,23 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   private final AtomicReference<HashedVersion> lastPersistedVersion;
 
   /**
-   * Constructs a wavelet state with the given deltas and snapshot.
-   * The deltas must be the contents of deltasAccess, and they
-   * must be contiguous from version zero.
-   * The snapshot must be the composition of the deltas, or null if there
-   * are no deltas. The constructed object takes ownership of the
+   * Constructs a wavelet state with the given snapshot.
+   * The snapshot must be the composition of the deltas in deltasAccess, or
+   * null if there are no deltas. The constructed object takes ownership of the
    * snapshot and will mutate it if appendDelta() is called.
    */
   @VisibleForTesting
-  DeltaStoreBasedWaveletState(DeltaStore.DeltasAccess deltasAccess,
-      List<WaveletDeltaRecord> deltas, WaveletData snapshot, Executor persistExecutor) {
-    Preconditions.checkArgument(deltasAccess.isEmpty() == deltas.isEmpty());
-    Preconditions.checkArgument(deltas.isEmpty() == (snapshot == null));
+  DeltaStoreBasedWaveletState(DeltaStore.DeltasAccess deltasAccess, WaveletData snapshot,
+      Executor persistExecutor, long snapshotInterval, long snapshotCheckpointVersion,
+      DeltaCache deltaCache) {
+    Preconditions.checkArgument(deltasAccess.isEmpty() == (snapshot == null));
     this.persistExecutor = persistExecutor;
+    this.snapshotInterval = snapshotInterval;
+    this.snapshotCheckpointVersion = snapshotCheckpointVersion;
     this.versionZero = HASH_FACTORY.createVersionZero(deltasAccess.getWaveletName());
     this.deltasAccess = deltasAccess;
     this.snapshot = snapshot;
+    this.deltaCache = deltaCache;
     this.lastPersistedVersion = new AtomicReference<HashedVersion>(deltasAccess.getEndVersion());
   }
 
@@ -366,7 +423,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
   public void getTransformedDeltaHistory(final HashedVersion startVersion,
     final HashedVersion endVersion, final Receiver<TransformedWaveletDelta> receiver) {
     try {
-      readDeltasInRange(deltasAccess, cachedDeltas, startVersion, endVersion,
+      readDeltasInRange(startVersion, endVersion,
           new Receiver<WaveletDeltaRecord>() {
             @Override
             public boolean put(WaveletDeltaRecord delta) {
@@ -421,7 +478,7 @@ class DeltaStoreBasedWaveletState implements WaveletState {
       final Receiver<ByteStringMessage<ProtocolAppliedWaveletDelta>> receiver) {
     Preconditions.checkArgument(startVersion.getVersion() < endVersion.getVersion());
     try {
-      readDeltasInRange(deltasAccess, cachedDeltas, startVersion, endVersion, new Receiver<WaveletDeltaRecord>() {
+      readDeltasInRange(startVersion, endVersion, new Receiver<WaveletDeltaRecord>() {
         @Override
         public boolean put(WaveletDeltaRecord delta) {
           return receiver.put(delta.getAppliedDelta());
@@ -482,28 +539,108 @@ class DeltaStoreBasedWaveletState implements WaveletState {
 
   @Override
   public void flush(HashedVersion version) {
-    cachedDeltas.remove(cachedDeltas.lowerKey(version));
+    // All deltas before the version are persisted, so they can be evicted now.
+    Map<HashedVersion, WaveletDeltaRecord> persisted = cachedDeltas.headMap(version);
+    for (WaveletDeltaRecord delta : persisted.values()) {
+      deltaCache.put(delta);
+    }
+    persisted.clear();
     if (LOG.isFineLoggable()) {
       LOG.fine("Flushed deltas up to version " + version);
     }
   }
 
   @Override
-  public void close() {
+  public void close() throws IOException {
+    deltaCache.clear();
+    deltasAccess.close();
   }
 
   /**
-   * @return An entry keyed by a hashed version with the given version number,
-   *         if any, otherwise null.
+   * @return the persisted delta applied at the given version number, if any,
+   *         otherwise null.
    */
   private WaveletDeltaRecord lookup(long version) throws IOException {
-    return deltasAccess.getDelta(version);
+    WaveletDeltaRecord delta = deltaCache.get(version);
+    if (delta == null) {
+      delta = deltasAccess.getDelta(version);
+      if (delta != null) {
+        deltaCache.put(delta);
+      }
+    }
+    return delta;
   }
 
+  private void readDeltasInRange(HashedVersion startVersion, HashedVersion endVersion,
+      Receiver<WaveletDeltaRecord> receiver) throws IOException {
+    WaveletDeltaRecord delta = getDelta(startVersion);
+    Preconditions.checkArgument(delta != null && delta.getAppliedAtVersion().equals(startVersion),
+        "invalid start version");
+    for (;;) {
+      if (!receiver.put(delta)) {
+        return;
+      }
+      if (delta.getResultingVersion().getVersion() >= endVersion.getVersion()) {
+        break;
+      }
+      delta = getDelta(delta.getResultingVersion());
+      if (delta == null) {
+        break;
+      }
+    }
+    Preconditions.checkArgument(delta != null && delta.getResultingVersion().equals(endVersion),
+        "invalid end version");
+  }
+
+  private WaveletDeltaRecord getDelta(HashedVersion version) throws IOException {
+    WaveletDeltaRecord delta = cachedDeltas.get(version);
+    if (delta == null) {
+      delta = lookup(version.getVersion());
+    }
+    return delta;
+  }
+
+  /**
+   * Stores a new snapshot checkpoint if enough versions have been persisted
+   * since the last one. The checkpoint is built from the previous checkpoint
+   * and the persisted deltas, as the live snapshot may already be ahead of the
+   * persisted version.
+   */
+  private void checkpointIfDue(HashedVersion persistedVersion) {
+    if (snapshotInterval <= 0
+        || persistedVersion.getVersion() - snapshotCheckpointVersion < snapshotInterval) {
+      return;
+    }
+    try {
+      WaveletData checkpoint = loadSnapshotCheckpoint(deltasAccess);
+      if (checkpoint != null && checkpoint.getVersion() > persistedVersion.getVersion()) {
+        checkpoint = null;
+      }
+      checkpoint = applyStoredDeltas(deltasAccess, checkpoint, persistedVersion);
+      snapshotCheckpointVersion =
+          storeSnapshotCheckpoint(deltasAccess, checkpoint, snapshotCheckpointVersion);
+    } catch (IOException e) {
+      LOG.warning("Failed to build snapshot of " + getWaveletName(), e);
+    } catch (OperationException e) {
+      LOG.warning("Failed to build snapshot of " + getWaveletName(), e);
+    }
+  }
+
+  /**
+   * @return the persisted delta resulting in the given version, if any,
+   *         otherwise null.
+   */
   private WaveletDeltaRecord getDeltaRecordByEndVersion(HashedVersion endVersion) {
     long version = endVersion.getVersion();
     try {
-      return deltasAccess.getDeltaByEndVersion(version);
+      WaveletDeltaRecord delta = deltaCache.getByEndVersion(version);
+      if (delta == null) {
+        delta = deltasAccess.getDeltaByEndVersion(version);
+        if (delta != null) {
+          deltaCache.put(delta);
+        }
+      }
+      return delta;
     } catch (IOException e) {
       throw new RuntimeIOException(new IOException(format("Version : %d", version), e));
     }
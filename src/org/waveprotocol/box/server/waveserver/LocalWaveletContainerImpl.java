@@ -83,7 +83,15 @@ class LocalWaveletContainerImpl extends WaveletContainerImpl implements LocalWav
   public LocalWaveletContainerImpl(WaveletName waveletName, WaveletNotificationSubscriber notifiee,
       ListenableFuture<? extends WaveletState> waveletStateFuture, String waveDomain,
       Executor storageContinuationExecutor) {
-    super(waveletName, notifiee, waveletStateFuture, waveDomain, storageContinuationExecutor);
+    this(waveletName, notifiee, waveletStateFuture, waveDomain, storageContinuationExecutor,
+        new TransformStats());
+  }
+
+  public LocalWaveletContainerImpl(WaveletName waveletName, WaveletNotificationSubscriber notifiee,
+      ListenableFuture<? extends WaveletState> waveletStateFuture, String waveDomain,
+      Executor storageContinuationExecutor, TransformStats transformStats) {
+    super(waveletName, notifiee, waveletStateFuture, waveDomain, storageContinuationExecutor,
+        transformStats);
   }
 
   @Override
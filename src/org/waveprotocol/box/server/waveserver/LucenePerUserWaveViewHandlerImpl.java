@@ -19,7 +19,10 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import static org.waveprotocol.box.server.waveserver.IndexFieldType.CREATOR;
 import static org.waveprotocol.box.server.waveserver.IndexFieldType.LMT;
+import static org.waveprotocol.box.server.waveserver.IndexFieldType.TAG;
+import static org.waveprotocol.box.server.waveserver.IndexFieldType.TEXT;
 import static org.waveprotocol.box.server.waveserver.IndexFieldType.WAVEID;
 import static org.waveprotocol.box.server.waveserver.IndexFieldType.WAVELETID;
 import static org.waveprotocol.box.server.waveserver.IndexFieldType.WITH;
@@ -33,7 +36,7 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.CorruptIndexException;
@@ -47,6 +50,7 @@ import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.NRTManager;
 import org.apache.lucene.search.NRTManagerReopenThread;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.SearcherWarmer;
@@ -55,19 +59,24 @@ import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.AlreadyClosedException;
-import org.apache.lucene.util.Version;
 import org.waveprotocol.box.server.CoreSettings;
+import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.server.persistence.lucene.IndexDirectory;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.ParticipantIdUtil;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -76,10 +85,16 @@ import java.util.logging.Logger;
 /**
  * Lucene based implementation of {@link PerUserWaveViewHandler}.
  *
+ * Besides the participants, indexes the creator, text and tags of each
+ * wavelet, and reindexes a wavelet whenever the {@link WaveBus} reports that
+ * it changed, so that {@link WaveletContentSearcher} queries can be answered
+ * from the index.
+ *
  * @author yurize@apache.org (Yuri Zelikov)
  */
 @Singleton
-public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler, Closeable {
+public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
+    WaveletContentSearcher, WaveBus.Subscriber, Closeable {
 
   private static class WaveSearchWarmer implements SearcherWarmer {
 
@@ -108,8 +123,6 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
   // TODO (Yuri Z.): Inject executor.
   private static final Executor executor = Executors.newSingleThreadExecutor();
 
-  private static final Version LUCENE_VERSION = Version.LUCENE_35;
-
   /** The results will be returned in the ascending order according to last modified time. */
   private static Sort LMT_ASC_SORT = new Sort(new SortField("title", SortField.LONG));
 
@@ -122,7 +135,7 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
   /** Defines the maximum number of waves returned by the search. */
   private static final int MAX_WAVES = 10000;
 
-  private final StandardAnalyzer analyzer;
+  private final Analyzer analyzer;
   private final TextCollator textCollator;
   private final IndexWriter indexWriter;
   private final NRTManager nrtManager;
@@ -130,15 +143,23 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
   private final ReadableWaveletDataProvider waveletProvider;
   private boolean isClosed = false;
 
+  /**
+   * Wavelets waiting to be reindexed. Updates to a wavelet which is already
+   * waiting are coalesced into its single pending reindex.
+   */
+  private final Set<WaveletName> pendingReindex =
+      Collections.newSetFromMap(new ConcurrentHashMap<WaveletName, Boolean>());
+
   @Inject
   public LucenePerUserWaveViewHandlerImpl(IndexDirectory directory,
       ReadableWaveletDataProvider waveletProvider, TextCollator textCollator,
       @Named(CoreSettings.WAVE_SERVER_DOMAIN) final String waveDomain) {
     this.textCollator = textCollator;
     this.waveletProvider = waveletProvider;
-    analyzer = new StandardAnalyzer(LUCENE_VERSION);
+    analyzer = SearchTextAnalyzer.create();
     try {
-      IndexWriterConfig config = new IndexWriterConfig(LUCENE_VERSION, analyzer);
+      IndexWriterConfig config =
+          new IndexWriterConfig(SearchTextAnalyzer.LUCENE_VERSION, analyzer);
       config.setOpenMode(OpenMode.CREATE_OR_APPEND);
       indexWriter = new IndexWriter(directory.getDirectory(), config);
       nrtManager = new NRTManager(indexWriter, new WaveSearchWarmer(waveDomain));
@@ -221,15 +242,8 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
         ReadableWaveletData waveletData;
         try {
           waveletData = waveletProvider.getReadableWaveletData(waveletName);
-          try {
-            removeParticipantfromIndex(waveletData, participant, nrtManager);
-          } catch (CorruptIndexException e) {
-            LOG.log(Level.SEVERE, "Failed to update index for " + waveletName, e);
-            throw e;
-          } catch (IOException e) {
-            LOG.log(Level.SEVERE, "Failed to update index for " + waveletName, e);
-            throw e;
-          }
+          // The wavelet may not reflect the removal yet.
+          updateIndex(waveletData, participant);
         } catch (WaveServerException e) {
           LOG.log(Level.SEVERE, "Failed to update index for " + waveletName, e);
           throw e;
@@ -264,12 +278,81 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
     return task;
   }
 
+  @Override
+  public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+    final WaveletName waveletName = WaveletName.of(wavelet.getWaveId(), wavelet.getWaveletId());
+    if (!pendingReindex.add(waveletName)) {
+      return;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        // Updates from now on need another reindex, since this one may read
+        // the wavelet before they are applied.
+        pendingReindex.remove(waveletName);
+        try {
+          ReadableWaveletData waveletData = waveletProvider.getReadableWaveletData(waveletName);
+          if (waveletData != null) {
+            updateIndex(waveletData);
+          }
+        } catch (WaveServerException e) {
+          LOG.log(Level.SEVERE, "Failed to reindex " + waveletName, e);
+        } catch (IndexException e) {
+          LOG.log(Level.SEVERE, "Failed to reindex " + waveletName, e);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+    // No op.
+  }
+
   private void updateIndex(ReadableWaveletData wavelet) throws IndexException {
+    updateIndex(wavelet, null);
+  }
+
+  /**
+   * Replaces the document of the wavelet without committing the change, so
+   * that a reindex can commit many wavelets at once.
+   */
+  public void index(ReadableWaveletData wavelet) throws IndexException {
+    Preconditions.checkNotNull(wavelet);
+    try {
+      removeIndex(wavelet, nrtManager);
+      addIndex(wavelet, null, indexWriter, nrtManager, textCollator);
+    } catch (CorruptIndexException e) {
+      throw new IndexException(String.valueOf(wavelet.getWaveletId()), e);
+    } catch (IOException e) {
+      throw new IndexException(String.valueOf(wavelet.getWaveletId()), e);
+    }
+  }
+
+  /**
+   * Commits the changes to the index to persistent storage.
+   */
+  public void commit() throws IndexException {
+    try {
+      indexWriter.commit();
+    } catch (IOException e) {
+      throw new IndexException("Failed to commit the index", e);
+    }
+  }
+
+  /**
+   * Replaces the document of the wavelet in the index.
+   *
+   * @param excludedParticipant a participant to leave out of the document, or
+   *        null to index all the participants
+   */
+  private void updateIndex(ReadableWaveletData wavelet, ParticipantId excludedParticipant)
+      throws IndexException {
     Preconditions.checkNotNull(wavelet);
     try {
       // TODO (Yuri Z): Update documents instead of totally removing and adding.
       removeIndex(wavelet, nrtManager);
-      addIndex(wavelet, indexWriter, nrtManager, textCollator);
+      addIndex(wavelet, excludedParticipant, indexWriter, nrtManager, textCollator);
       indexWriter.commit();
     } catch (CorruptIndexException e) {
       throw new IndexException(String.valueOf(wavelet.getWaveletId()), e);
@@ -278,15 +361,16 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
     }
   }
 
-  private static void addIndex(ReadableWaveletData wavelet, IndexWriter indexWriter,
-      NRTManager nrtManager, TextCollator textCollator) throws CorruptIndexException, IOException {
+  private static void addIndex(ReadableWaveletData wavelet, ParticipantId excludedParticipant,
+      IndexWriter indexWriter, NRTManager nrtManager, TextCollator textCollator)
+      throws CorruptIndexException, IOException {
     Document doc = new Document();
-    addWaveletFieldsToIndex(wavelet, textCollator, doc);
+    addWaveletFieldsToIndex(wavelet, excludedParticipant, textCollator, doc);
     nrtManager.addDocument(doc);
   }
 
   private static void addWaveletFieldsToIndex(ReadableWaveletData wavelet,
-      TextCollator textCollator, Document doc) {
+      ParticipantId excludedParticipant, TextCollator textCollator, Document doc) {
     doc.add(new Field(WAVEID.toString(), wavelet.getWaveId().serialise(), Field.Store.YES,
         Field.Index.NOT_ANALYZED));
     doc.add(new Field(WAVELETID.toString(), wavelet.getWaveletId().serialise(), Field.Store.YES,
@@ -294,9 +378,25 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
     doc.add(new Field(LMT.toString(), Long.toString(wavelet.getLastModifiedTime()), Field.Store.NO,
         Field.Index.NOT_ANALYZED));
     for (ParticipantId participant : wavelet.getParticipants()) {
+      if (participant.equals(excludedParticipant)) {
+        continue;
+      }
       doc.add(new Field(WITH.toString(), participant.toString(), Field.Store.YES,
           Field.Index.NOT_ANALYZED));
     }
+    doc.add(new Field(CREATOR.toString(), wavelet.getCreator().getAddress(), Field.Store.NO,
+        Field.Index.NOT_ANALYZED));
+    // The title is the first line of the root blip, so it's part of the text.
+    String text = textCollator.collateTextForWavelet(wavelet);
+    if (text != null) {
+      doc.add(new Field(TEXT.toString(), text, Field.Store.NO, Field.Index.ANALYZED));
+    }
+    Set<String> tags = textCollator.collateTagsForWavelet(wavelet);
+    if (tags != null) {
+      for (String tag : tags) {
+        doc.add(new Field(TAG.toString(), tag, Field.Store.NO, Field.Index.NOT_ANALYZED));
+      }
+    }
   }
 
   private static void removeIndex(ReadableWaveletData wavelet, NRTManager nrtManager)
@@ -309,54 +409,51 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
     nrtManager.deleteDocuments(query);
   }
 
-  private static void removeParticipantfromIndex(ReadableWaveletData wavelet,
-      ParticipantId participant, NRTManager nrtManager) throws CorruptIndexException, IOException {
-    BooleanQuery query = new BooleanQuery();
-    Term waveIdTerm = new Term(WAVEID.toString(), wavelet.getWaveId().serialise());
-    query.add(new TermQuery(waveIdTerm), BooleanClause.Occur.MUST);
-    query.add(new TermQuery(new Term(WAVELETID.toString(), wavelet.getWaveletId().serialise())),
-        BooleanClause.Occur.MUST);
-    SearcherManager searcherManager = nrtManager.getSearcherManager(true);
-    IndexSearcher indexSearcher = searcherManager.acquire();
-    try {
-      TopDocs hints = indexSearcher.search(query, MAX_WAVES);
-      for (ScoreDoc hint : hints.scoreDocs) {
-        Document document = indexSearcher.doc(hint.doc);
-        String[] participantValues = document.getValues(WITH.toString());
-        document.removeFields(WITH.toString());
-        for (String address : participantValues) {
-          if (address.equals(participant.getAddress())) {
-            continue;
-          }
-          document.add(new Field(WITH.toString(), address, Field.Store.YES,
-              Field.Index.NOT_ANALYZED));
-        }
-        nrtManager.updateDocument(waveIdTerm, document);
-      }
-    } catch (IOException e) {
-      LOG.log(Level.WARNING, "Failed to fetch from index " + wavelet.toString(), e);
-    } finally {
-      try {
-        searcherManager.release(indexSearcher);
-      } catch (IOException e) {
-        LOG.log(Level.WARNING, "Failed to close searcher. ", e);
-      }
-      indexSearcher = null;
-    }
-  }
-
-
   @Override
   public Multimap<WaveId, WaveletId> retrievePerUserWaveView(ParticipantId user) {
     Preconditions.checkNotNull(user);
 
-    Multimap<WaveId, WaveletId> userWavesViewMap = HashMultimap.create();
     BooleanQuery participantQuery = new BooleanQuery();
     participantQuery.add(new TermQuery(new Term(WITH.toString(), user.getAddress())), Occur.SHOULD);
+    return searchWavesView(participantQuery, user.toString());
+  }
+
+  @Override
+  public Multimap<WaveId, WaveletId> searchWaveletContents(Collection<ParticipantId> viewers,
+      Collection<String> textTerms, Collection<String> tags, Collection<ParticipantId> creators) {
+    Preconditions.checkNotNull(viewers);
+
+    BooleanQuery viewerQuery = new BooleanQuery();
+    for (ParticipantId viewer : viewers) {
+      viewerQuery.add(new TermQuery(new Term(WITH.toString(), viewer.getAddress())), Occur.SHOULD);
+    }
+    BooleanQuery query = new BooleanQuery();
+    query.add(viewerQuery, Occur.MUST);
+    for (ParticipantId creator : creators) {
+      query.add(new TermQuery(new Term(CREATOR.toString(), creator.getAddress())), Occur.MUST);
+    }
+    for (String tag : tags) {
+      query.add(new TermQuery(new Term(TAG.toString(), tag)), Occur.MUST);
+    }
+    for (String textTerm : textTerms) {
+      // Analyze the terms as the text was analyzed, so that they match
+      // regardless of case and punctuation.
+      for (String word : SearchTextAnalyzer.words(analyzer, textTerm)) {
+        query.add(new TermQuery(new Term(TEXT.toString(), word)), Occur.MUST);
+      }
+    }
+    return searchWavesView(query, query.toString());
+  }
+
+  /**
+   * Returns the wavelets whose documents match the query.
+   */
+  private Multimap<WaveId, WaveletId> searchWavesView(Query query, String description) {
+    Multimap<WaveId, WaveletId> userWavesViewMap = HashMultimap.create();
     SearcherManager searcherManager = nrtManager.getSearcherManager(true);
     IndexSearcher indexSearcher = searcherManager.acquire();
     try {
-      TopDocs hints = indexSearcher.search(participantQuery, MAX_WAVES, LMT_ASC_SORT);
+      TopDocs hints = indexSearcher.search(query, MAX_WAVES, LMT_ASC_SORT);
       for (ScoreDoc hint : hints.scoreDocs) {
         Document document = indexSearcher.doc(hint.doc);
         WaveId waveId = WaveId.deserialise(document.get(WAVEID.toString()));
@@ -364,15 +461,15 @@ public class LucenePerUserWaveViewHandlerImpl implements PerUserWaveViewHandler,
         userWavesViewMap.put(waveId, waveletId);
       }
     } catch (IOException e) {
-      LOG.log(Level.WARNING, "Search failed: " + user, e);
+      LOG.log(Level.WARNING, "Search failed: " + description, e);
     } finally {
       try {
         searcherManager.release(indexSearcher);
       } catch (IOException e) {
-        LOG.log(Level.WARNING, "Failed to close searcher. " + user, e);
+        LOG.log(Level.WARNING, "Failed to close searcher. " + description, e);
       }
       indexSearcher = null;
     }
     return userWavesViewMap;
   }
-}
\ No newline at end of file
+}
@@ -17,39 +17,115 @@
  * under the License.
  */
 
+
 package org.waveprotocol.box.server.waveserver;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.waveprotocol.box.server.CoreSettings;
+import org.waveprotocol.box.server.persistence.file.FileUtils;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.util.logging.Log;
 
-import org.waveprotocol.box.server.waveserver.PerUserWaveViewBus.Listener;
-import org.waveprotocol.wave.model.id.WaveletName;
+import java.io.File;
+import java.io.IOException;
 
 /**
+ * Remakes the Lucene index. A reindex which finished without failures
+ * records the version of the indexed fields in the index directory, so that
+ * an index made by a server which indexed other fields is remade on startup.
+ *
  * @author yurize@apache.org (Yuri Zelikov)
  */
 @Singleton
 public class LuceneWaveIndexerImpl extends AbstractWaveIndexer {
 
-  private final PerUserWaveViewBus.Listener listener;
+  private static final Log LOG = Log.get(LuceneWaveIndexerImpl.class);
+
+  /**
+   * The version of the fields indexed for each wavelet. Must be increased
+   * whenever they change.
+   */
+  static final int INDEX_SCHEMA_VERSION = 2;
+
+  /** The file in the index directory which holds the schema version. */
+  private static final String SCHEMA_VERSION_FILE = "wave-index.version";
+
+  /** The file in the index directory which records the progress of a reindex. */
+  private static final String CHECKPOINT_FILE = "lucene-reindex.checkpoint";
+
+  private final LucenePerUserWaveViewHandlerImpl handler;
+  private final File schemaVersionFile;
+
+  /**
+   * Returns whether the index in the directory needs to be remade: if there
+   * is none, if a reindex was interrupted or failed to index some wavelets,
+   * or if the index has other fields than the current ones.
+   */
+  public static boolean needsReindex(String indexDirectory) {
+    return !FileUtils.isDirExistsAndNonEmpty(indexDirectory)
+        || new File(indexDirectory, CHECKPOINT_FILE).exists()
+        || !isIndexCurrent(indexDirectory);
+  }
+
+  /**
+   * Returns whether the index directory holds a finished index with the
+   * current fields.
+   */
+  private static boolean isIndexCurrent(String indexDirectory) {
+    File file = new File(indexDirectory, SCHEMA_VERSION_FILE);
+    if (!file.exists()) {
+      return false;
+    }
+    try {
+      return Integer.parseInt(Files.toString(file, Charsets.UTF_8).trim())
+          == INDEX_SCHEMA_VERSION;
+    } catch (IOException e) {
+      LOG.warning("Failed to read the index schema version " + file, e);
+      return false;
+    } catch (NumberFormatException e) {
+      LOG.warning("Corrupt index schema version " + file, e);
+      return false;
+    }
+  }
 
   @Inject
-  public LuceneWaveIndexerImpl(WaveMap waveMap, WaveletProvider waveletProvider, Listener listener) {
-    super(waveMap, waveletProvider);
-    this.listener = listener;
+  public LuceneWaveIndexerImpl(WaveMap waveMap, WaveletProvider waveletProvider,
+      DeltaAndSnapshotStore store, LucenePerUserWaveViewHandlerImpl handler,
+      @Named(CoreSettings.REINDEX_THREADS) int threads,
+      @Named(CoreSettings.INDEX_DIRECTORY) String indexDirectory) {
+    super(waveMap, waveletProvider, store, threads,
+        new File(indexDirectory, CHECKPOINT_FILE));
+    this.handler = handler;
+    this.schemaVersionFile = new File(indexDirectory, SCHEMA_VERSION_FILE);
   }
 
   @Override
-  protected void processWavelet(WaveletName waveletName) {
-    listener.onWaveInit(waveletName);
+  protected void processWavelet(ReadableWaveletData wavelet) {
+    handler.index(wavelet);
+  }
+
+  @Override
+  protected void flushIndex() {
+    handler.commit();
   }
 
   @Override
   protected void postIndexHook() {
+    if (getFailedWaveletCount() > 0) {
+      // The waves which failed are retried by the next reindex.
+      return;
+    }
+    // The index was flushed by the last checkpoint.
     try {
-      getWaveMap().unloadAllWavelets();
-    } catch (WaveletStateException e) {
-      throw new IndexException("Problem encountered while cleaning up", e);
+      Files.write(Integer.toString(INDEX_SCHEMA_VERSION), schemaVersionFile, Charsets.UTF_8);
+    } catch (IOException e) {
+      LOG.warning("Failed to record the index schema version in " + schemaVersionFile
+          + ", the index will be remade on the next start", e);
     }
   }
 }
@@ -56,7 +56,8 @@ public class MemoryPerUserWaveViewHandlerImpl implements PerUserWaveViewHandler
   public ConcurrentMap<ParticipantId, Multimap<WaveId, WaveletId>> explicitPerUserWaveViews;
 
   @Inject
-  public MemoryPerUserWaveViewHandlerImpl(final WaveMap waveMap) {
+  public MemoryPerUserWaveViewHandlerImpl(final WaveMap waveMap,
+      final WaveletSearchIndex searchIndex) {
     // Let the view expire if it not accessed for some time.
     explicitPerUserWaveViews =
         new MapMaker().expireAfterAccess(PER_USER_WAVES_VIEW_CACHE_MINUTES, TimeUnit.MINUTES)
@@ -84,6 +85,11 @@ public class MemoryPerUserWaveViewHandlerImpl implements PerUserWaveViewHandler
                     }
                   }
                 }
+                // Wavelets which aren't in memory are found by their participants
+                // in the search index, which has every wavelet.
+                for (WaveletName waveletName : searchIndex.getWaveletsWithParticipant(user)) {
+                  userView.put(waveletName.waveId, waveletName.waveletId);
+                }
                 LOG.info("Initalized waves view for user: " + user.getAddress()
                     + ", number of waves in view: " + userView.size());
                 return userView;
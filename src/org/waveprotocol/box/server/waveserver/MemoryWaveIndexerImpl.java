@@ -17,31 +17,40 @@
  * under the License.
  */
 
+
 package org.waveprotocol.box.server.waveserver;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
-import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.box.server.CoreSettings;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 
 /**
  * Implements the waves view initialization for memory based waves view
- * provider.
+ * provider, and fills the {@link WaveletSearchIndex}.
  *
  * @author yurize@apache.org (Yuri Zelikov)
  */
 @Singleton
 public class MemoryWaveIndexerImpl extends AbstractWaveIndexer {
 
+  private final WaveletSearchIndex searchIndex;
+
   @Inject
-  public MemoryWaveIndexerImpl(WaveMap waveMap, WaveletProvider waveletProvider) {
-    super(waveMap, waveletProvider);
+  public MemoryWaveIndexerImpl(WaveMap waveMap, WaveletProvider waveletProvider,
+      DeltaAndSnapshotStore store, WaveletSearchIndex searchIndex,
+      @Named(CoreSettings.REINDEX_THREADS) int threads) {
+    // The index doesn't outlive the server, so there's nothing to resume.
+    super(waveMap, waveletProvider, store, threads, null);
+    this.searchIndex = searchIndex;
   }
 
   @Override
-  protected void processWavelet(WaveletName waveletName) {
-    // No op.
+  protected void processWavelet(ReadableWaveletData wavelet) {
+    searchIndex.update(wavelet);
   }
 
   @Override
@@ -88,9 +88,17 @@ class RemoteWaveletContainerImpl extends WaveletContainerImpl implements RemoteW
   public RemoteWaveletContainerImpl(WaveletName waveletName, WaveletNotificationSubscriber notifiee,
       ListenableFuture<? extends WaveletState> waveletStateFuture,
       Executor storageContinuationExecutor) {
+    this(waveletName, notifiee, waveletStateFuture, storageContinuationExecutor,
+        new TransformStats());
+  }
+
+  public RemoteWaveletContainerImpl(WaveletName waveletName, WaveletNotificationSubscriber notifiee,
+      ListenableFuture<? extends WaveletState> waveletStateFuture,
+      Executor storageContinuationExecutor, TransformStats transformStats) {
     // We pass here null for waveDomain because you have to be explicit
     // participant on remote wavelet to have access permission.
-    super(waveletName, notifiee, waveletStateFuture, null, storageContinuationExecutor);
+    super(waveletName, notifiee, waveletStateFuture, null, storageContinuationExecutor,
+        transformStats);
   }
 
   @Override
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.Sets;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.Version;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Set;
+
+/**
+ * Splits wavelet text and text search terms into the words which the Lucene
+ * index stores, so that a text term matches the same wavelets whether the
+ * search is answered from the index or by reading the wavelets.
+ *
+ * This class is thread-safe.
+ */
+final class SearchTextAnalyzer {
+
+  static final Version LUCENE_VERSION = Version.LUCENE_35;
+
+  private SearchTextAnalyzer() {
+  }
+
+  /** Creates the analyzer which the text of wavelets is indexed with. */
+  static Analyzer create() {
+    return new StandardAnalyzer(LUCENE_VERSION);
+  }
+
+  /**
+   * Returns the words of the text, lower-cased and without punctuation or
+   * stop words, as the analyzer indexes them.
+   */
+  static Set<String> words(Analyzer analyzer, String text) {
+    Set<String> words = Sets.newLinkedHashSet();
+    try {
+      TokenStream tokens =
+          analyzer.tokenStream(IndexFieldType.TEXT.toString(), new StringReader(text));
+      CharTermAttribute token = tokens.addAttribute(CharTermAttribute.class);
+      tokens.reset();
+      while (tokens.incrementToken()) {
+        words.add(token.toString());
+      }
+      tokens.end();
+      tokens.close();
+    } catch (IOException e) {
+      throw new IndexException("Failed to analyze " + text, e);
+    }
+    return words;
+  }
+}
@@ -21,12 +21,15 @@ package org.waveprotocol.box.server.waveserver;
 
 import com.google.common.base.Function;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.google.wave.api.SearchResult;
 
+import org.apache.lucene.analysis.Analyzer;
+
 import org.waveprotocol.box.server.CoreSettings;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.box.server.waveserver.QueryHelper.InvalidQueryException;
@@ -37,11 +40,13 @@ import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.wave.InvalidParticipantAddress;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.ParticipantIdUtil;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.model.wave.data.WaveViewData;
 import org.waveprotocol.wave.model.wave.data.impl.WaveViewDataImpl;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -64,15 +69,41 @@ public class SimpleSearchProviderImpl implements SearchProvider {
 
   private final PerUserWaveViewProvider waveViewProvider;
 
+  /** Index to filter and sort by, or null to read every wavelet in the view. */
+  private final WaveletSearchIndex index;
+
+  /**
+   * Searcher for the text, tag and creator terms, or null to match them by
+   * reading every wavelet in the view.
+   */
+  private WaveletContentSearcher contentSearcher = null;
+
+  private final TextCollator textCollator = new TextCollator.SnippetTextCollatorImpl();
+
+  /** Splits the text as the Lucene index does, so that text terms match alike. */
+  private final Analyzer analyzer = SearchTextAnalyzer.create();
+
+  public SimpleSearchProviderImpl(final String waveDomain, WaveDigester digester,
+      final WaveMap waveMap, PerUserWaveViewProvider userWaveViewProvider) {
+    this(waveDomain, digester, waveMap, userWaveViewProvider, null);
+  }
+
   @Inject
   public SimpleSearchProviderImpl(@Named(CoreSettings.WAVE_SERVER_DOMAIN) final String waveDomain,
-      WaveDigester digester, final WaveMap waveMap, PerUserWaveViewProvider userWaveViewProvider) {
+      WaveDigester digester, final WaveMap waveMap, PerUserWaveViewProvider userWaveViewProvider,
+      WaveletSearchIndex index) {
     this.digester = digester;
     this.waveMap = waveMap;
     this.waveViewProvider = userWaveViewProvider;
+    this.index = index;
     sharedDomainParticipantId = ParticipantIdUtil.makeUnsafeSharedDomainParticipantId(waveDomain);
   }
 
+  @Inject(optional = true)
+  public void setContentSearcher(WaveletContentSearcher contentSearcher) {
+    this.contentSearcher = contentSearcher;
+  }
+
   @Override
   public SearchResult search(final ParticipantId user, String query, int startAt,
       int numResults) {
@@ -107,9 +138,34 @@ public class SimpleSearchProviderImpl implements SearchProvider {
       return digester.generateSearchResult(user, query, null);
     }
 
+    Set<String> textTerms = getTerms(queryParams, TokenQueryType.TEXT);
+    Set<String> tags = getTerms(queryParams, TokenQueryType.TAG);
+    boolean readContents = !textTerms.isEmpty() || !tags.isEmpty();
+
     Multimap<WaveId, WaveletId> currentUserWavesView =  createWavesViewToFilter(user, isAllQuery);
+    if (contentSearcher != null && (readContents || !creatorParticipantIds.isEmpty())) {
+      List<ParticipantId> viewers = isAllQuery
+          ? Arrays.asList(user, sharedDomainParticipantId) : Collections.singletonList(user);
+      currentUserWavesView = narrowWavesView(currentUserWavesView,
+          contentSearcher.searchWaveletContents(viewers, textTerms, tags, creatorParticipantIds));
+      readContents = false;
+    }
+    if (!readContents) {
+      textTerms = Collections.emptySet();
+      tags = Collections.emptySet();
+    }
+    if (index != null && !readContents) {
+      Map<WaveId, WaveViewData> headers = filterWavesViewByIndex(user, isAllQuery,
+          withParticipantIds, creatorParticipantIds, currentUserWavesView);
+      Collection<WaveViewData> searchResult = copyWaves(
+          computeSearchResult(user, startAt, numResults, queryParams, headers));
+      LOG.info("Search response to '" + query + "': " + searchResult.size() + " results, user: "
+          + user);
+      return digester.generateSearchResult(user, query, searchResult);
+    }
     Function<ReadableWaveletData, Boolean> filterWaveletsFunction =
-        createFilterWaveletsFunction(user, isAllQuery, withParticipantIds, creatorParticipantIds);
+        createFilterWaveletsFunction(user, isAllQuery, withParticipantIds, creatorParticipantIds,
+            textTerms, tags);
     Map<WaveId, WaveViewData> results = filterWavesViewBySearchCriteria(filterWaveletsFunction, currentUserWavesView);
 
     if(LOG.isFineLoggable()) {
@@ -145,9 +201,33 @@ public class SimpleSearchProviderImpl implements SearchProvider {
     return currentUserWavesView;
   }
 
+  private static Set<String> getTerms(Map<TokenQueryType, Set<String>> queryParams,
+      TokenQueryType type) {
+    Set<String> terms = queryParams.get(type);
+    return terms != null ? terms : Collections.<String>emptySet();
+  }
+
+  /**
+   * Keeps the wavelets in the waves view which the content search matched,
+   * along with the user data wavelets of the matching waves.
+   */
+  private static Multimap<WaveId, WaveletId> narrowWavesView(
+      Multimap<WaveId, WaveletId> currentUserWavesView, Multimap<WaveId, WaveletId> matches) {
+    Multimap<WaveId, WaveletId> narrowedView = HashMultimap.create();
+    for (WaveId waveId : matches.keySet()) {
+      for (WaveletId waveletId : currentUserWavesView.get(waveId)) {
+        if (matches.containsEntry(waveId, waveletId) || IdUtil.isUserDataWavelet(waveletId)) {
+          narrowedView.put(waveId, waveletId);
+        }
+      }
+    }
+    return narrowedView;
+  }
+
   private Function<ReadableWaveletData, Boolean> createFilterWaveletsFunction(final ParticipantId user,
       final boolean isAllQuery, final List<ParticipantId> withParticipantIds,
-      final List<ParticipantId> creatorParticipantIds) {
+      final List<ParticipantId> creatorParticipantIds, final Set<String> textTerms,
+      final Set<String> tags) {
     // A function to be applied by the WaveletContainer.
     Function<ReadableWaveletData, Boolean> matchesFunction =
         new Function<ReadableWaveletData, Boolean>() {
@@ -156,7 +236,9 @@ public class SimpleSearchProviderImpl implements SearchProvider {
           public Boolean apply(ReadableWaveletData wavelet) {
             try {
               return isWaveletMatchesCriteria(wavelet, user, sharedDomainParticipantId, withParticipantIds,
-                  creatorParticipantIds, isAllQuery);
+                  creatorParticipantIds, isAllQuery)
+                  && (IdUtil.isUserDataWavelet(wavelet.getWaveletId())
+                      || isWaveletContentMatches(wavelet, textTerms, tags));
             } catch (WaveletStateException e) {
               LOG.warning(
                   "Failed to access wavelet "
@@ -179,34 +261,8 @@ public class SimpleSearchProviderImpl implements SearchProvider {
       Collection<WaveletId> waveletIds =  currentUserWavesView.get(waveId);
       WaveViewData view = null; // Copy of the wave built up for search hits.
       for (WaveletId waveletId : waveletIds) {
-        WaveletContainer waveletContainer = null;
         WaveletName waveletname = WaveletName.of(waveId, waveletId);
-
-        // TODO (alown): Find some way to use isLocalWavelet to do this properly!
-        try {
-          if(LOG.isFineLoggable()) {
-            LOG.fine("Trying as a remote wavelet");
-          }
-          waveletContainer = waveMap.getRemoteWavelet(waveletname);
-        } catch (WaveletStateException e) {
-          LOG.severe(String.format("Failed to get remote wavelet %s", waveletname.toString()), e);
-        } catch (NullPointerException e) {
-          // This is a fairly normal case of it being a local-only wave.
-          // Yet this only seems to appear in the test suite.
-          // Continuing is completely harmless here.
-          LOG.info(String.format("%s is definitely not a remote wavelet. (Null key)", waveletname.toString()), e);
-        }
-
-        if(waveletContainer == null) {
-          try {
-            if(LOG.isFineLoggable()) {
-                LOG.fine("Trying as a local wavelet");
-            }
-            waveletContainer = waveMap.getLocalWavelet(waveletname);
-          } catch (WaveletStateException e) {
-            LOG.severe(String.format("Failed to get local wavelet %s", waveletname.toString()), e);
-          }
-        }
+        WaveletContainer waveletContainer = getWaveletContainer(waveletname);
 
         // TODO (Yuri Z.) This loop collects all the wavelets that match the
         // query, so the view is determined by the query. Instead we should
@@ -232,6 +288,151 @@ public class SimpleSearchProviderImpl implements SearchProvider {
     return results;
   }
 
+  /**
+   * Filters the waves view by the headers in the index, without reading the
+   * wavelets except to index those which aren't indexed yet.
+   *
+   * @return views of the matching waves, made of wavelet headers
+   */
+  private Map<WaveId, WaveViewData> filterWavesViewByIndex(ParticipantId user,
+      boolean isAllQuery, List<ParticipantId> withList, List<ParticipantId> creatorList,
+      Multimap<WaveId, WaveletId> currentUserWavesView) {
+    // Resolve the 'with' and 'creator' filters to the smallest set of indexed
+    // wavelets which may match.
+    Set<WaveletName> candidates = null;
+    for (ParticipantId otherUser : withList) {
+      candidates = smaller(candidates, index.getWaveletsWithParticipant(otherUser));
+    }
+    for (ParticipantId creator : creatorList) {
+      candidates = smaller(candidates, index.getWaveletsCreatedBy(creator));
+    }
+
+    // Must use a map with stable ordering, since indices are meaningful.
+    Map<WaveId, WaveViewData> results = Maps.newLinkedHashMap();
+    for (WaveId waveId : currentUserWavesView.keySet()) {
+      WaveViewData view = null;
+      for (WaveletId waveletId : currentUserWavesView.get(waveId)) {
+        WaveletName waveletName = WaveletName.of(waveId, waveletId);
+        ObservableWaveletData header = index.getHeader(waveletName);
+        if (header == null) {
+          header = indexWavelet(waveletName);
+          if (header == null) {
+            continue;
+          }
+        } else if (candidates != null && !candidates.contains(waveletName)
+            && !IdUtil.isUserDataWavelet(waveletId)) {
+          // User data wavelets match regardless of the filters.
+          continue;
+        }
+        try {
+          if (!isWaveletMatchesCriteria(header, user, sharedDomainParticipantId, withList,
+              creatorList, isAllQuery)) {
+            continue;
+          }
+        } catch (WaveletStateException e) {
+          LOG.warning("Failed to access wavelet " + waveletName, e);
+          continue;
+        }
+        if (view == null) {
+          view = WaveViewDataImpl.create(waveId);
+        }
+        view.addWavelet(header);
+      }
+      if (view != null) {
+        results.put(waveId, view);
+      }
+    }
+    return results;
+  }
+
+  private static Set<WaveletName> smaller(Set<WaveletName> a, Set<WaveletName> b) {
+    return (a == null || b.size() < a.size()) ? b : a;
+  }
+
+  /**
+   * Adds a wavelet which hasn't been updated since the server started to the
+   * index.
+   *
+   * @return the header of the wavelet, or null if it couldn't be read
+   */
+  private ObservableWaveletData indexWavelet(WaveletName waveletName) {
+    WaveletContainer waveletContainer = getWaveletContainer(waveletName);
+    if (waveletContainer == null) {
+      return null;
+    }
+    try {
+      return waveletContainer.applyFunction(
+          new Function<ReadableWaveletData, ObservableWaveletData>() {
+            @Override
+            public ObservableWaveletData apply(ReadableWaveletData wavelet) {
+              return index.update(wavelet);
+            }
+          });
+    } catch (WaveletStateException e) {
+      LOG.warning("Failed to access wavelet " + waveletName, e);
+      return null;
+    }
+  }
+
+  /**
+   * Replaces the wavelet headers of a page of search results with copies of
+   * the wavelets.
+   */
+  private Collection<WaveViewData> copyWaves(Collection<WaveViewData> headerViews) {
+    List<WaveViewData> waves = Lists.newArrayListWithCapacity(headerViews.size());
+    for (WaveViewData headerView : headerViews) {
+      WaveViewData view = WaveViewDataImpl.create(headerView.getWaveId());
+      for (ObservableWaveletData header : headerView.getWavelets()) {
+        WaveletContainer waveletContainer =
+            getWaveletContainer(WaveletName.of(header.getWaveId(), header.getWaveletId()));
+        if (waveletContainer == null) {
+          continue;
+        }
+        try {
+          view.addWavelet(waveletContainer.copyWaveletData());
+        } catch (WaveletStateException e) {
+          LOG.warning("Failed to access wavelet " + waveletContainer.getWaveletName(), e);
+        }
+      }
+      waves.add(view);
+    }
+    return waves;
+  }
+
+  /**
+   * Returns the container of a wavelet, or null if there is none.
+   */
+  private WaveletContainer getWaveletContainer(WaveletName waveletname) {
+    WaveletContainer waveletContainer = null;
+
+    // TODO (alown): Find some way to use isLocalWavelet to do this properly!
+    try {
+      if(LOG.isFineLoggable()) {
+        LOG.fine("Trying as a remote wavelet");
+      }
+      waveletContainer = waveMap.getRemoteWavelet(waveletname);
+    } catch (WaveletStateException e) {
+      LOG.severe(String.format("Failed to get remote wavelet %s", waveletname.toString()), e);
+    } catch (NullPointerException e) {
+      // This is a fairly normal case of it being a local-only wave.
+      // Yet this only seems to appear in the test suite.
+      // Continuing is completely harmless here.
+      LOG.info(String.format("%s is definitely not a remote wavelet. (Null key)", waveletname.toString()), e);
+    }
+
+    if(waveletContainer == null) {
+      try {
+        if(LOG.isFineLoggable()) {
+            LOG.fine("Trying as a local wavelet");
+        }
+        waveletContainer = waveMap.getLocalWavelet(waveletname);
+      } catch (WaveletStateException e) {
+        LOG.severe(String.format("Failed to get local wavelet %s", waveletname.toString()), e);
+      }
+    }
+    return waveletContainer;
+  }
+
   /**
    * Verifies whether the wavelet matches the filter criteria.
    *
@@ -281,6 +482,28 @@ public class SimpleSearchProviderImpl implements SearchProvider {
     return true;
   }
 
+  /**
+   * Verifies whether the text of the wavelet contains every word of the text
+   * terms, split as the Lucene index splits them, and the wavelet carries
+   * every tag.
+   */
+  private boolean isWaveletContentMatches(ReadableWaveletData wavelet, Set<String> textTerms,
+      Set<String> tags) {
+    if (!tags.isEmpty() && !textCollator.collateTagsForWavelet(wavelet).containsAll(tags)) {
+      return false;
+    }
+    if (!textTerms.isEmpty()) {
+      Set<String> words =
+          SearchTextAnalyzer.words(analyzer, textCollator.collateTextForWavelet(wavelet));
+      for (String term : textTerms) {
+        if (!words.containsAll(SearchTextAnalyzer.words(analyzer, term))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
   private Collection<WaveViewData> computeSearchResult(final ParticipantId user,
       int startAt, int numResults, Map<TokenQueryType, Set<String>> queryParams,
       Map<WaveId, WaveViewData> results) {
@@ -291,8 +514,9 @@ public class SimpleSearchProviderImpl implements SearchProvider {
       searchResultslist = Collections.emptyList();
     } else {
       int endAt = Math.min(startAt + numResults, searchResultSize);
+      // Only the waves up to the end of the page need to be put in order.
       searchResultslist =
-          QueryHelper.computeSorter(queryParams).sortedCopy(results.values())
+          QueryHelper.computeSorter(queryParams).leastOf(results.values(), endAt)
               .subList(startAt, endAt);
     }
     return searchResultslist;
@@ -27,6 +27,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.URI;
@@ -37,6 +38,7 @@ import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.apache.http.HttpStatus;
 import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.common.DocumentConstants;
+import org.waveprotocol.box.server.CoreSettings;
 import org.waveprotocol.wave.model.document.operation.AnnotationBoundaryMap;
 import org.waveprotocol.wave.model.document.operation.Attributes;
 import org.waveprotocol.wave.model.document.operation.AttributesUpdate;
@@ -50,6 +52,7 @@ import org.waveprotocol.wave.model.wave.data.ReadableBlipData;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
@@ -139,8 +142,11 @@ public class SolrWaveIndexerImpl extends AbstractWaveIndexer implements WaveBus.
   @Inject
   public SolrWaveIndexerImpl(WaveMap waveMap, WaveletProvider waveletProvider,
       ReadableWaveletDataProvider waveletDataProvider,
-      WaveletNotificationDispatcher notificationDispatcher) {
-    super(waveMap, waveletProvider);
+      WaveletNotificationDispatcher notificationDispatcher, DeltaAndSnapshotStore store,
+      @Named(CoreSettings.REINDEX_THREADS) int threads,
+      @Named(CoreSettings.INDEX_DIRECTORY) String indexDirectory) {
+    super(waveMap, waveletProvider, store, threads,
+        new File(indexDirectory, "solr-reindex.checkpoint"));
     this.waveletDataProvider = waveletDataProvider;
     notificationDispatcher.subscribe(this);
   }
@@ -186,17 +192,14 @@ public class SolrWaveIndexerImpl extends AbstractWaveIndexer implements WaveBus.
   }
 
   @Override
-  protected void processWavelet(WaveletName waveletName) {
-    onWaveInit(waveletName);
+  protected void processWavelet(ReadableWaveletData wavelet) {
+    // Solr commits each update, so the checkpoint needs no flush.
+    updateIndex(wavelet);
   }
 
   @Override
   protected void postIndexHook() {
-    try {
-      getWaveMap().unloadAllWavelets();
-    } catch (WaveletStateException e) {
-      throw new IndexException("Problem encountered while cleaning up", e);
-    }
+    // No op.
   }
 
   private void updateIndex(ReadableWaveletData wavelet) throws IndexException {
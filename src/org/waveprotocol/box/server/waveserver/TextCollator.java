@@ -19,12 +19,20 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import com.google.common.collect.Sets;
 import com.google.inject.ImplementedBy;
 
-import org.waveprotocol.box.common.Snippets;
 import org.waveprotocol.box.server.waveserver.TextCollator.SnippetTextCollatorImpl;
+import org.waveprotocol.wave.model.document.operation.AnnotationBoundaryMap;
+import org.waveprotocol.wave.model.document.operation.Attributes;
+import org.waveprotocol.wave.model.document.operation.DocInitializationCursor;
+import org.waveprotocol.wave.model.document.operation.impl.InitializationCursorAdapter;
+import org.waveprotocol.wave.model.id.IdConstants;
+import org.waveprotocol.wave.model.wave.data.ReadableBlipData;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
+import java.util.Set;
+
 /**
  * Adapter interface that provdes simpler access to {@link Snippet} methods.
  *
@@ -32,13 +40,94 @@ import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
  */
 @ImplementedBy(SnippetTextCollatorImpl.class)
 public interface TextCollator {
+  /**
+   * @return the text of the documents of the wavelet, with a space between
+   *         documents and before each element, so that words in separate
+   *         lines or documents aren't run together.
+   */
   String collateTextForWavelet(ReadableWaveletData waveletData);
 
+  /**
+   * @return the tags in the tags document of the wavelet, empty if it has none.
+   */
+  Set<String> collateTagsForWavelet(ReadableWaveletData waveletData);
+
   static class SnippetTextCollatorImpl implements TextCollator {
 
     @Override
     public String collateTextForWavelet(ReadableWaveletData waveletData) {
-      return Snippets.collateTextForWavelet(waveletData);
+      final StringBuilder text = new StringBuilder();
+      for (String documentId : waveletData.getDocumentIds()) {
+        if (text.length() > 0) {
+          text.append(' ');
+        }
+        waveletData.getDocument(documentId).getContent().asOperation().apply(
+            InitializationCursorAdapter.adapt(new DocInitializationCursor() {
+              @Override
+              public void annotationBoundary(AnnotationBoundaryMap map) {
+              }
+
+              @Override
+              public void characters(String chars) {
+                text.append(chars);
+              }
+
+              @Override
+              public void elementStart(String type, Attributes attrs) {
+                text.append(' ');
+              }
+
+              @Override
+              public void elementEnd() {
+              }
+            }));
+      }
+      return text.toString();
     }
+
+    @Override
+    public Set<String> collateTagsForWavelet(ReadableWaveletData waveletData) {
+      final Set<String> tags = Sets.newLinkedHashSet();
+      ReadableBlipData tagsDocument = waveletData.getDocument(IdConstants.TAGS_DOC_ID);
+      if (tagsDocument == null) {
+        return tags;
+      }
+      tagsDocument.getContent().asOperation().apply(InitializationCursorAdapter.adapt(
+          new DocInitializationCursor() {
+            /** The text of the tag element being read, or null if outside one. */
+            StringBuilder tag = null;
+
+            @Override
+            public void annotationBoundary(AnnotationBoundaryMap map) {
+            }
+
+            @Override
+            public void characters(String chars) {
+              if (tag != null) {
+                tag.append(chars);
+              }
+            }
+
+            @Override
+            public void elementStart(String type, Attributes attrs) {
+              if (TAG_ELEMENT.equals(type)) {
+                tag = new StringBuilder();
+              }
+            }
+
+            @Override
+            public void elementEnd() {
+              if (tag != null) {
+                if (tag.length() > 0) {
+                  tags.add(tag.toString());
+                }
+                tag = null;
+              }
+            }
+          }));
+      return tags;
+    }
+
+    private static final String TAG_ELEMENT = "tag";
   }
 }
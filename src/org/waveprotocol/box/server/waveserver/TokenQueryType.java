@@ -33,6 +33,8 @@ public enum TokenQueryType {
   WITH("with"),
   CREATOR("creator"),
   ID("id"),
+  TEXT("text"),
+  TAG("tag"),
   ;
 
   final String token;
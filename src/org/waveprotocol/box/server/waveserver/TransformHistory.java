@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.base.Preconditions;
+
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.version.HashedVersion;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A ring buffer of the most recently applied deltas of a wavelet, from which
+ * submitted deltas which are slightly behind the head are transformed without
+ * reading the wavelet's history.
+ *
+ * The deltas held are contiguous and end at the wavelet's current version.
+ * Appending a delta which doesn't follow the last one clears the buffer.
+ *
+ * This class is not thread-safe. The wavelet container accesses it with its
+ * write lock held.
+ */
+class TransformHistory {
+
+  private final int capacity;
+
+  /** The deltas, allocated on first append. */
+  private TransformedWaveletDelta[] deltas = null;
+  /** Index of the oldest delta in {@link #deltas}. */
+  private int start = 0;
+  private int size = 0;
+  /** The version at which the oldest delta was applied, or null if empty. */
+  private HashedVersion oldestAppliedAt = null;
+
+  /** A view of the deltas from an offset, reused between lookups. */
+  private final Range range = new Range();
+
+  /**
+   * @param capacity the maximum number of deltas held, or 0 to hold none
+   */
+  TransformHistory(int capacity) {
+    Preconditions.checkArgument(capacity >= 0, "Negative capacity %s", capacity);
+    this.capacity = capacity;
+  }
+
+  /**
+   * Appends a delta applied at the end of the history, evicting the oldest
+   * delta if the history is full.
+   *
+   * @param appliedAtVersion the version at which the delta was applied
+   * @param delta the applied delta
+   */
+  void append(HashedVersion appliedAtVersion, TransformedWaveletDelta delta) {
+    if (capacity == 0) {
+      return;
+    }
+    if (deltas == null) {
+      deltas = new TransformedWaveletDelta[capacity];
+    }
+    if (size > 0 && !get(size - 1).getResultingVersion().equals(appliedAtVersion)) {
+      clear();
+    }
+    if (size == 0) {
+      oldestAppliedAt = appliedAtVersion;
+    } else if (size == capacity) {
+      oldestAppliedAt = deltas[start].getResultingVersion();
+      deltas[start] = null;
+      start = (start + 1) % capacity;
+      size--;
+    }
+    deltas[(start + size) % capacity] = delta;
+    size++;
+  }
+
+  /** Removes all deltas. */
+  void clear() {
+    if (deltas != null) {
+      for (int i = 0; i < size; i++) {
+        deltas[(start + i) % capacity] = null;
+      }
+    }
+    start = 0;
+    size = 0;
+    oldestAppliedAt = null;
+  }
+
+  /** Returns the number of deltas held. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the deltas from the given version to the given end version, if
+   * the history holds them.
+   *
+   * The returned list is a view of the history which is reused by the next
+   * call and becomes invalid when a delta is appended.
+   *
+   * @param startVersion the version at which the first delta was applied
+   * @param endVersion the resulting version of the last delta held
+   * @return the deltas, or null if the history doesn't hold the range
+   */
+  List<TransformedWaveletDelta> getRange(HashedVersion startVersion, HashedVersion endVersion) {
+    if (size == 0 || !get(size - 1).getResultingVersion().equals(endVersion)) {
+      return null;
+    }
+    long oldest = get(0).getAppliedAtVersion();
+    long target = startVersion.getVersion();
+    if (target < oldest) {
+      return null;
+    }
+    // Binary search, as deltas may contain several operations each.
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long appliedAt = get(mid).getAppliedAtVersion();
+      if (appliedAt < target) {
+        low = mid + 1;
+      } else if (appliedAt > target) {
+        high = mid - 1;
+      } else {
+        // Check the hash too, the version may be from another history.
+        HashedVersion appliedAtVersion =
+            (mid == 0) ? oldestAppliedAt : get(mid - 1).getResultingVersion();
+        if (!appliedAtVersion.equals(startVersion)) {
+          return null;
+        }
+        range.offset = mid;
+        return range;
+      }
+    }
+    return null;
+  }
+
+  private TransformedWaveletDelta get(int index) {
+    return deltas[(start + index) % capacity];
+  }
+
+  /** The deltas from an offset to the end of the history. */
+  private class Range extends AbstractList<TransformedWaveletDelta> implements RandomAccess {
+    int offset;
+
+    @Override
+    public TransformedWaveletDelta get(int index) {
+      Preconditions.checkElementIndex(index, size());
+      return TransformHistory.this.get(offset + index);
+    }
+
+    @Override
+    public int size() {
+      return size - offset;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.waveserver;
+
+import org.waveprotocol.box.server.util.StatsSource;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the submitted deltas which had to be transformed because they
+ * weren't against the head, aggregated over all loaded wavelets, to help size
+ * the recent history kept for transforming them.
+ *
+ * This class is thread-safe.
+ */
+public class TransformStats implements StatsSource {
+  private final AtomicLong transformedSubmitCount = new AtomicLong();
+  private final AtomicLong transformDepthTotal = new AtomicLong();
+  private final AtomicLong maxTransformDepth = new AtomicLong();
+  private final AtomicLong historyMissCount = new AtomicLong();
+
+  void recordTransform(int depth) {
+    transformedSubmitCount.incrementAndGet();
+    transformDepthTotal.addAndGet(depth);
+    long max = maxTransformDepth.get();
+    while (depth > max && !maxTransformDepth.compareAndSet(max, depth)) {
+      max = maxTransformDepth.get();
+    }
+  }
+
+  void recordHistoryMiss() {
+    historyMissCount.incrementAndGet();
+  }
+
+  /** @return the number of submitted deltas which were behind the head */
+  public long getTransformedSubmitCount() {
+    return transformedSubmitCount.get();
+  }
+
+  /**
+   * @return the total number of server deltas that submitted deltas were
+   *         transformed against
+   */
+  public long getTransformDepthTotal() {
+    return transformDepthTotal.get();
+  }
+
+  /**
+   * @return the largest number of server deltas that a submitted delta was
+   *         transformed against
+   */
+  public long getMaxTransformDepth() {
+    return maxTransformDepth.get();
+  }
+
+  /**
+   * @return the number of submitted deltas which were too far behind to be
+   *         transformed from the recent history, so the history was read from
+   *         the wavelet state
+   */
+  public long getHistoryMissCount() {
+    return historyMissCount.get();
+  }
+
+  @Override
+  public void collectStats(Map<String, Number> stats) {
+    stats.put("transformed", getTransformedSubmitCount());
+    stats.put("depthTotal", getTransformDepthTotal());
+    stats.put("maxDepth", getMaxTransformDepth());
+    stats.put("historyMisses", getHistoryMissCount());
+  }
+
+  @Override
+  public String toString() {
+    return "transformed " + transformedSubmitCount + ", depth total " + transformDepthTotal
+        + ", max depth " + maxTransformDepth + ", history misses " + historyMissCount;
+  }
+}
@@ -20,7 +20,6 @@
 package org.waveprotocol.box.server.waveserver;
 
 import com.google.common.base.Function;
-import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
@@ -33,7 +32,11 @@ import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -49,14 +52,20 @@ final class Wave implements Iterable<WaveletContainer> {
 
     private final String waveDomain;
 
-    public WaveletCreator(WaveletContainer.Factory<T> factory, String waveDomain) {
+    private final Set<WaveletId> unloadedWavelets;
+
+    public WaveletCreator(WaveletContainer.Factory<T> factory, String waveDomain,
+        Set<WaveletId> unloadedWavelets) {
       this.factory = factory;
       this.waveDomain = waveDomain;
+      this.unloadedWavelets = unloadedWavelets;
     }
 
     @Override
     public T apply(WaveletId waveletId) {
-      return factory.create(notifiee, WaveletName.of(waveId, waveletId), waveDomain);
+      T wavelet = factory.create(notifiee, WaveletName.of(waveId, waveletId), waveDomain);
+      unloadedWavelets.remove(waveletId);
+      return wavelet;
     }
   }
 
@@ -65,7 +74,24 @@ final class Wave implements Iterable<WaveletContainer> {
   private final ListenableFuture<ImmutableSet<WaveletId>> lookedupWavelets;
   private final ConcurrentMap<WaveletId, LocalWaveletContainer> localWavelets;
   private final ConcurrentMap<WaveletId, RemoteWaveletContainer> remoteWavelets;
+  /**
+   * Wavelets which have been unloaded from memory while other wavelets of the
+   * wave stayed loaded. These are reloaded on demand, and must be remembered
+   * as the lookup may predate their creation. Once no wavelets are loaded, the
+   * whole wave is evicted and looked up again when next accessed.
+   */
+  private final Set<WaveletId> unloadedLocalWavelets =
+      Collections.newSetFromMap(new ConcurrentHashMap<WaveletId, Boolean>());
+  private final Set<WaveletId> unloadedRemoteWavelets =
+      Collections.newSetFromMap(new ConcurrentHashMap<WaveletId, Boolean>());
   private final WaveletNotificationSubscriber notifiee;
+  /** Time of the latest access to the wavelets, in milliseconds since the epoch. */
+  private volatile long lastAccessTime;
+  /**
+   * Whether the wave has been evicted from the {@link WaveMap}. Guarded by
+   * this; no wavelets are loaded into an evicted wave.
+   */
+  private boolean evicted = false;
 
   /**
    * Creates a wave. The {@code lookupWavelets} future is examined only when a
@@ -80,11 +106,18 @@ final class Wave implements Iterable<WaveletContainer> {
     this.lookedupWavelets = lookedupWavelets;
     this.notifiee = notifiee;
     this.localWavelets = new MapMaker().makeComputingMap(
-        new WaveletCreator<LocalWaveletContainer>(localFactory, waveDomain));
+        new WaveletCreator<LocalWaveletContainer>(localFactory, waveDomain,
+            unloadedLocalWavelets));
     this.remoteWavelets = new MapMaker().makeComputingMap(
-        new WaveletCreator<RemoteWaveletContainer>(remoteFactory, waveDomain));
+        new WaveletCreator<RemoteWaveletContainer>(remoteFactory, waveDomain,
+            unloadedRemoteWavelets));
+    this.lastAccessTime = System.currentTimeMillis();
   }
 
+  /**
+   * Iterates over the wavelets in memory. Wavelets which have been unloaded
+   * are not reloaded.
+   */
   @Override
   public Iterator<WaveletContainer> iterator() {
     return Iterators.unmodifiableIterator(
@@ -93,24 +126,48 @@ final class Wave implements Iterable<WaveletContainer> {
 
   LocalWaveletContainer getLocalWavelet(WaveletId waveletId)
       throws WaveletStateException {
-    return getWavelet(waveletId, localWavelets);
+    return getWavelet(waveletId, localWavelets, unloadedLocalWavelets);
   }
 
   RemoteWaveletContainer getRemoteWavelet(WaveletId waveletId)
       throws WaveletStateException {
-    return getWavelet(waveletId, remoteWavelets);
+    return getWavelet(waveletId, remoteWavelets, unloadedRemoteWavelets);
   }
 
   LocalWaveletContainer getOrCreateLocalWavelet(WaveletId waveletId) {
-    return localWavelets.get(waveletId);
+    return getLoadedWavelet(waveletId, localWavelets);
   }
 
   RemoteWaveletContainer getOrCreateRemoteWavelet(WaveletId waveletId) {
-    return remoteWavelets.get(waveletId);
+    return getLoadedWavelet(waveletId, remoteWavelets);
   }
 
+  /**
+   * Gets a wavelet from the computing map, replacing it with a reloaded
+   * container if it's being unloaded.
+   *
+   * @return the wavelet, or null if the wave has been evicted.
+   */
+  private synchronized <T extends WaveletContainer> T getLoadedWavelet(WaveletId waveletId,
+      ConcurrentMap<WaveletId, T> waveletsMap) {
+    if (evicted) {
+      return null;
+    }
+    T wavelet = waveletsMap.get(waveletId);
+    while (wavelet.isUnloaded()) {
+      waveletsMap.remove(waveletId, wavelet);
+      wavelet = waveletsMap.get(waveletId);
+    }
+    return wavelet;
+  }
+
+  /**
+   * @return the wavelet, or null if it doesn't exist or the wave has been
+   *         evicted.
+   */
   private <T extends WaveletContainer> T getWavelet(WaveletId waveletId,
-      ConcurrentMap<WaveletId, T> waveletsMap) throws WaveletStateException {
+      ConcurrentMap<WaveletId, T> waveletsMap, Set<WaveletId> unloadedWavelets)
+      throws WaveletStateException {
     ImmutableSet<WaveletId> storedWavelets;
     try {
       storedWavelets =
@@ -138,16 +195,77 @@ final class Wave implements Iterable<WaveletContainer> {
     // Since waveletsMap is a computing map, we must call containsKey(waveletId)
     // to tell if waveletId is mapped, we cannot test if get(waveletId) returns null.
     if (storedWavelets != null && !storedWavelets.contains(waveletId)
-        && !waveletsMap.containsKey(waveletId)) {
+        && !waveletsMap.containsKey(waveletId) && !unloadedWavelets.contains(waveletId)) {
       return null;
     } else {
-      T wavelet = waveletsMap.get(waveletId);
-      Preconditions.checkNotNull(wavelet, "computingMap returned null");
-      return wavelet;
+      return getLoadedWavelet(waveletId, waveletsMap);
     }
   }
 
   ListenableFuture<ImmutableSet<WaveletId>> getLookedupWavelets() {
     return lookedupWavelets;
   }
+
+  /** Records an access to the wave, deferring idle unloading. */
+  void touch() {
+    lastAccessTime = System.currentTimeMillis();
+  }
+
+  /** @return the time of the latest access, in milliseconds since the epoch. */
+  long getLastAccessTime() {
+    return lastAccessTime;
+  }
+
+  /** @return true if any wavelets of the wave are held in memory. */
+  boolean isResident() {
+    return !localWavelets.isEmpty() || !remoteWavelets.isEmpty();
+  }
+
+  /**
+   * Evicts the wave if no wavelets of it are held in memory. No wavelets are
+   * loaded into it afterwards, so it can be dropped from the wave map.
+   *
+   * @return true if the wave is evicted.
+   */
+  synchronized boolean evictIfNotResident() {
+    if (!evicted && !isResident()) {
+      evicted = true;
+    }
+    return evicted;
+  }
+
+  /** @return true if the wave has been evicted from the wave map. */
+  synchronized boolean isEvicted() {
+    return evicted;
+  }
+
+  /**
+   * Unloads the wavelets whose state is fully persisted. They are reloaded
+   * through the container factories when next accessed.
+   *
+   * @return true if no wavelets remain in memory.
+   */
+  boolean unloadWavelets() {
+    unloadWavelets(localWavelets, unloadedLocalWavelets);
+    unloadWavelets(remoteWavelets, unloadedRemoteWavelets);
+    return !isResident();
+  }
+
+  private <T extends WaveletContainer> void unloadWavelets(
+      ConcurrentMap<WaveletId, T> waveletsMap, Set<WaveletId> unloadedWavelets) {
+    for (Map.Entry<WaveletId, T> entry : waveletsMap.entrySet()) {
+      if (entry.getValue().unload() != null) {
+        // Mark it unloaded before removing it, so getWavelet() never sees neither.
+        boolean marked = unloadedWavelets.add(entry.getKey());
+        if (!waveletsMap.remove(entry.getKey(), entry.getValue())) {
+          // A reader saw it unloaded and already replaced it with a reloaded one.
+          if (marked) {
+            unloadedWavelets.remove(entry.getKey());
+          }
+        } else if (LOG.isFineLoggable()) {
+          LOG.fine("Unloaded wavelet " + entry.getValue().getWaveletName());
+        }
+      }
+    }
+  }
 }
@@ -20,6 +20,7 @@
 package org.waveprotocol.box.server.waveserver;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.MapMaker;
 import com.google.inject.Inject;
 import com.google.wave.api.ApiIdSerializer;
 import com.google.wave.api.SearchResult;
@@ -38,13 +39,18 @@ import org.waveprotocol.wave.model.document.Document;
 import org.waveprotocol.wave.model.id.IdUtil;
 import org.waveprotocol.wave.model.id.ModernIdSerialiser;
 import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.supplement.PrimitiveSupplement;
 import org.waveprotocol.wave.model.supplement.PrimitiveSupplementImpl;
+import org.waveprotocol.wave.model.supplement.Supplement;
+import org.waveprotocol.wave.model.supplement.SupplementImpl;
 import org.waveprotocol.wave.model.supplement.SupplementedWave;
 import org.waveprotocol.wave.model.supplement.SupplementedWaveImpl;
 import org.waveprotocol.wave.model.supplement.WaveletBasedSupplement;
 import org.waveprotocol.wave.model.supplement.SupplementedWaveImpl.DefaultFollow;
 import org.waveprotocol.wave.model.util.CollectionUtils;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.Blip;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
 import org.waveprotocol.wave.model.wave.data.WaveViewData;
@@ -55,6 +61,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Generates digests for the search service.
@@ -63,10 +70,69 @@ import java.util.List;
  */
 public class WaveDigester {
 
+  /**
+   * The parts of a digest of a conversational wavelet which are the same for
+   * all viewers, as of a version of the wavelet.
+   */
+  @VisibleForTesting
+  static final class DigestFields {
+    final HashedVersion version;
+    /** Whether the wavelet has a conversation. The other fields are unset if not. */
+    final boolean conversational;
+    final WaveletId waveletId;
+    final String waveId;
+    final String title;
+    final String snippet;
+    final List<String> participants;
+    final long lastModifiedTime;
+    final long creationTime;
+    /** Ids and last modified versions of the blips in the root conversation. */
+    final String[] blipIds;
+    final int[] blipVersions;
+
+    /** Creates the fields of a wavelet without a conversation. */
+    DigestFields(HashedVersion version) {
+      this(version, false, null, null, null, null, null, -1L, -1L, null, null);
+    }
+
+    DigestFields(HashedVersion version, boolean conversational, WaveletId waveletId,
+        String waveId, String title, String snippet, List<String> participants,
+        long lastModifiedTime, long creationTime, String[] blipIds, int[] blipVersions) {
+      this.version = version;
+      this.conversational = conversational;
+      this.waveletId = waveletId;
+      this.waveId = waveId;
+      this.title = title;
+      this.snippet = snippet;
+      this.participants = participants;
+      this.lastModifiedTime = lastModifiedTime;
+      this.creationTime = creationTime;
+      this.blipIds = blipIds;
+      this.blipVersions = blipVersions;
+    }
+
+    int getBlipCount() {
+      return blipIds.length;
+    }
+
+    Digest toDigest(int unreadCount) {
+      return new Digest(title, snippet, waveId, participants, lastModifiedTime, creationTime,
+          unreadCount, blipIds.length);
+    }
+  }
+
   private final ConversationUtil conversationUtil;
   private static final int DIGEST_SNIPPET_LENGTH = 140;
   private static final int PARTICIPANTS_SNIPPET_LENGTH = 5;
   private static final String EMPTY_WAVELET_TITLE = "";
+  private static final int DIGEST_CACHE_SIZE = 10000;
+
+  /**
+   * The digest fields of recently digested wavelets, so that a wavelet's
+   * conversation is built once per version rather than once per search.
+   */
+  private final ConcurrentMap<WaveletName, DigestFields> digestCache =
+      new MapMaker().maximumSize(DIGEST_CACHE_SIZE).makeMap();
 
   @Inject
   public WaveDigester(ConversationUtil conversationUtil) {
@@ -103,18 +169,10 @@ public class WaveDigester {
       }
 
       ObservableWaveletData convWavelet = root != null ? root : other;
-      SupplementedWave supplement = null;
-      ObservableConversationView conversations = null;
-      if (convWavelet != null) {
-        OpBasedWavelet wavelet = OpBasedWavelet.createReadOnly(convWavelet);
-        if (WaveletBasedConversation.waveletHasConversation(wavelet)) {
-          conversations = conversationUtil.buildConversation(wavelet);
-          supplement = buildSupplement(participant, conversations, udw);
-        }
-      }
-      if (conversations != null) {
+      DigestFields fields = convWavelet != null ? getDigestFields(convWavelet) : null;
+      if (fields != null && fields.conversational) {
         // This is a conversational wave. Produce a conversational digest.
-        result.addDigest(generateDigest(conversations, supplement, convWavelet));
+        result.addDigest(fields.toDigest(countUnreadBlips(fields, udw)));
       } else {
         // It is unknown how to present this wave.
         result.addDigest(generateEmptyorUnknownDigest(wave));
@@ -138,6 +196,42 @@ public class WaveDigester {
   Digest generateDigest(ObservableConversationView conversations, SupplementedWave supplement,
       WaveletData rawWaveletData) {
     ObservableConversation rootConversation = conversations.getRoot();
+    int unreadCount = 0;
+    for (ConversationBlip blip : BlipIterators.breadthFirst(rootConversation)) {
+      if (supplement.isUnread(blip)) {
+        unreadCount++;
+      }
+    }
+    return extractDigestFields(conversations, rawWaveletData).toDigest(unreadCount);
+  }
+
+  /**
+   * Returns the digest fields of a wavelet, from the cache if they were
+   * extracted at the wavelet's current version.
+   */
+  @VisibleForTesting
+  DigestFields getDigestFields(ObservableWaveletData wavelet) {
+    WaveletName waveletName = WaveletName.of(wavelet.getWaveId(), wavelet.getWaveletId());
+    DigestFields fields = digestCache.get(waveletName);
+    if (fields != null && fields.version.equals(wavelet.getHashedVersion())) {
+      return fields;
+    }
+    OpBasedWavelet opBasedWavelet = OpBasedWavelet.createReadOnly(wavelet);
+    if (WaveletBasedConversation.waveletHasConversation(opBasedWavelet)) {
+      fields = extractDigestFields(conversationUtil.buildConversation(opBasedWavelet), wavelet);
+    } else {
+      fields = new DigestFields(wavelet.getHashedVersion());
+    }
+    digestCache.put(waveletName, fields);
+    return fields;
+  }
+
+  /**
+   * Extracts the parts of a digest which are the same for all viewers.
+   */
+  private DigestFields extractDigestFields(ObservableConversationView conversations,
+      WaveletData rawWaveletData) {
+    ObservableConversation rootConversation = conversations.getRoot();
     ObservableConversationBlip firstBlip = null;
     if (rootConversation != null && rootConversation.getRootThread() != null
         && rootConversation.getRootThread().getFirstBlip() != null) {
@@ -165,16 +259,42 @@ public class WaveDigester {
         break;
       }
     }
-    int unreadCount = 0;
-    int blipCount = 0;
+    List<String> blipIds = CollectionUtils.newArrayList();
+    List<Integer> blipVersions = CollectionUtils.newArrayList();
     for (ConversationBlip blip : BlipIterators.breadthFirst(rootConversation)) {
-      if (supplement.isUnread(blip)) {
+      Blip raw = blip.hackGetRaw();
+      blipIds.add(raw.getId());
+      blipVersions.add(raw.getLastModifiedVersion().intValue());
+    }
+    int[] versions = new int[blipVersions.size()];
+    for (int i = 0; i < versions.length; i++) {
+      versions[i] = blipVersions.get(i);
+    }
+    return new DigestFields(rawWaveletData.getHashedVersion(), true,
+        rawWaveletData.getWaveletId(), waveId, title, snippet,
+        Collections.unmodifiableList(participants), rawWaveletData.getLastModifiedTime(),
+        rawWaveletData.getCreationTime(), blipIds.toArray(new String[blipIds.size()]),
+        versions);
+  }
+
+  /**
+   * Counts the blips of a wavelet which are unread by the owner of a user
+   * data wavelet.
+   *
+   * @param udw the user data wavelet, or null if the user has none
+   */
+  private static int countUnreadBlips(DigestFields fields, ObservableWaveletData udw) {
+    // Use mock state if there is no UDW.
+    Supplement supplement = new SupplementImpl(
+        udw != null ? WaveletBasedSupplement.create(OpBasedWavelet.createReadOnly(udw))
+            : new PrimitiveSupplementImpl());
+    int unreadCount = 0;
+    for (int i = 0; i < fields.getBlipCount(); i++) {
+      if (supplement.isBlipUnread(fields.waveletId, fields.blipIds[i], fields.blipVersions[i])) {
         unreadCount++;
       }
-      blipCount++;
     }
-    return new Digest(title, snippet, waveId, participants, rawWaveletData.getLastModifiedTime(),
-        rawWaveletData.getCreationTime(), unreadCount, blipCount);
+    return unreadCount;
   }
 
   /** @return a digest for an empty wave. */
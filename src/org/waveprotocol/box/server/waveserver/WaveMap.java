@@ -19,12 +19,16 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
@@ -34,20 +38,38 @@ import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.util.logging.Log;
 
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A collection of wavelets, local and remote, held in memory.
  *
+ * Wavelets whose state is fully persisted are unloaded from memory when their
+ * wave hasn't been accessed for a while, or when more waves than allowed are
+ * resident, least recently accessed first. They are reloaded on demand. Waves
+ * with no wavelets in memory are dropped, and looked up again when next
+ * accessed, so that memory doesn't grow with every wave ever accessed.
+ *
  * @author soren@google.com (Soren Lassen)
  */
 public class WaveMap {
 
+  private static final Log LOG = Log.get(WaveMap.class);
+
+  /** Maximum delay between checks for wavelets to unload. */
+  private static final long MAX_UNLOAD_CHECK_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
   /**
    * Returns a future whose result is the ids of stored wavelets in the given wave.
    * Any failure is reported as a {@link PersistenceException}.
@@ -68,7 +90,15 @@ public class WaveMap {
 
   private final ConcurrentMap<WaveId, Wave> waves;
   private final WaveletStore<?> store;
+  private final long idleUnloadMillis;
+  private final int maxResidentWaves;
 
+  /**
+   * @param idleUnloadSeconds the number of seconds after which the wavelets of
+   *        a wave that hasn't been accessed are unloaded, 0 to disable
+   * @param maxResidentWaves the maximum number of waves with wavelets in
+   *        memory, 0 for no limit
+   */
   @Inject
   public WaveMap(final DeltaAndSnapshotStore waveletStore,
       final WaveletNotificationSubscriber notifiee,
@@ -76,10 +106,14 @@ public class WaveMap {
       final LocalWaveletContainer.Factory localFactory,
       final RemoteWaveletContainer.Factory remoteFactory,
       @Named(CoreSettings.WAVE_SERVER_DOMAIN) final String waveDomain,
-      @LookupExecutor final Executor lookupExecutor) {
+      @LookupExecutor final Executor lookupExecutor,
+      @Named(CoreSettings.WAVE_IDLE_UNLOAD_SECONDS) int idleUnloadSeconds,
+      @Named(CoreSettings.MAX_RESIDENT_WAVES) int maxResidentWaves) {
     // NOTE(anorth): DeltaAndSnapshotStore is more specific than necessary, but
     // helps Guice out.
     this.store = waveletStore;
+    this.idleUnloadMillis = TimeUnit.SECONDS.toMillis(idleUnloadSeconds);
+    this.maxResidentWaves = maxResidentWaves;
     waves = new MapMaker().makeComputingMap(new Function<WaveId, Wave>() {
       @Override
       public Wave apply(WaveId waveId) {
@@ -89,6 +123,23 @@ public class WaveMap {
             waveDomain);
       }
     });
+    if (idleUnloadMillis > 0 || maxResidentWaves > 0) {
+      long interval = (idleUnloadMillis > 0)
+          ? Math.min(idleUnloadMillis, MAX_UNLOAD_CHECK_INTERVAL_MS)
+          : MAX_UNLOAD_CHECK_INTERVAL_MS;
+      ScheduledExecutorService unloadExecutor = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("WaveMapUnloader-%d").setDaemon(true).build());
+      unloadExecutor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            unloadWavelets();
+          } catch (RuntimeException e) {
+            LOG.severe("Failed to unload wavelets", e);
+          }
+        }
+      }, interval, interval, TimeUnit.MILLISECONDS);
+    }
   }
 
   /**
@@ -117,6 +168,57 @@ public class WaveMap {
     waves.clear();
   }
 
+  /**
+   * Unloads the fully persisted wavelets of waves which have been idle longer
+   * than the idle timeout, then of the least recently accessed waves until at
+   * most the maximum number of waves are resident. Then drops the waves which
+   * have no wavelets in memory.
+   *
+   * @return the number of waves whose wavelets were all unloaded
+   */
+  @VisibleForTesting
+  int unloadWavelets() {
+    long now = System.currentTimeMillis();
+    List<Wave> resident = Lists.newArrayList();
+    // Access times keep changing, so sort by a snapshot of them.
+    final Map<Wave, Long> accessTimes = Maps.newHashMap();
+    for (Wave wave : waves.values()) {
+      if (wave.isResident()) {
+        resident.add(wave);
+        accessTimes.put(wave, wave.getLastAccessTime());
+      }
+    }
+    Collections.sort(resident, new Comparator<Wave>() {
+      @Override
+      public int compare(Wave a, Wave b) {
+        return accessTimes.get(a).compareTo(accessTimes.get(b));
+      }
+    });
+    int residentCount = resident.size();
+    int unloadedCount = 0;
+    for (Wave wave : resident) {
+      boolean idle = idleUnloadMillis > 0 && now - accessTimes.get(wave) >= idleUnloadMillis;
+      boolean overLimit = maxResidentWaves > 0 && residentCount > maxResidentWaves;
+      if (!idle && !overLimit) {
+        // Waves are in access order, so later ones are neither idle nor evictable.
+        break;
+      }
+      if (wave.unloadWavelets()) {
+        residentCount--;
+        unloadedCount++;
+      }
+    }
+    if (unloadedCount > 0) {
+      LOG.info("Unloaded " + unloadedCount + " waves, " + residentCount + " remain in memory");
+    }
+    for (Map.Entry<WaveId, Wave> entry : waves.entrySet()) {
+      if (entry.getValue().evictIfNotResident()) {
+        waves.remove(entry.getKey(), entry.getValue());
+      }
+    }
+    return unloadedCount;
+  }
+
   /**
    * Returns defensive copy of the map that holds waves.
    */
@@ -130,7 +232,7 @@ public class WaveMap {
   }
 
   public ImmutableSet<WaveletId> lookupWavelets(WaveId waveId) throws WaveletStateException {
-    ListenableFuture<ImmutableSet<WaveletId>> future = waves.get(waveId).getLookedupWavelets();
+    ListenableFuture<ImmutableSet<WaveletId>> future = getWave(waveId).getLookedupWavelets();
     try {
       return FutureUtil.getResultOrPropagateException(future, PersistenceException.class);
     } catch (PersistenceException e) {
@@ -141,21 +243,58 @@ public class WaveMap {
     }
   }
 
+  // A wave may be evicted while a wavelet is being got from it, in which case
+  // the wavelet is got again from the wave which replaces it.
+
   public LocalWaveletContainer getLocalWavelet(WaveletName waveletName)
       throws WaveletStateException {
-    return waves.get(waveletName.waveId).getLocalWavelet(waveletName.waveletId);
+    for (;;) {
+      Wave wave = getWave(waveletName.waveId);
+      LocalWaveletContainer wavelet = wave.getLocalWavelet(waveletName.waveletId);
+      if (!wave.isEvicted()) {
+        return wavelet;
+      }
+    }
   }
 
   public RemoteWaveletContainer getRemoteWavelet(WaveletName waveletName)
       throws WaveletStateException {
-    return waves.get(waveletName.waveId).getRemoteWavelet(waveletName.waveletId);
+    for (;;) {
+      Wave wave = getWave(waveletName.waveId);
+      RemoteWaveletContainer wavelet = wave.getRemoteWavelet(waveletName.waveletId);
+      if (!wave.isEvicted()) {
+        return wavelet;
+      }
+    }
   }
 
   public LocalWaveletContainer getOrCreateLocalWavelet(WaveletName waveletName) {
-    return waves.get(waveletName.waveId).getOrCreateLocalWavelet(waveletName.waveletId);
+    for (;;) {
+      Wave wave = getWave(waveletName.waveId);
+      LocalWaveletContainer wavelet = wave.getOrCreateLocalWavelet(waveletName.waveletId);
+      if (!wave.isEvicted()) {
+        return wavelet;
+      }
+    }
   }
 
   public RemoteWaveletContainer getOrCreateRemoteWavelet(WaveletName waveletName) {
-    return waves.get(waveletName.waveId).getOrCreateRemoteWavelet(waveletName.waveletId);
+    for (;;) {
+      Wave wave = getWave(waveletName.waveId);
+      RemoteWaveletContainer wavelet = wave.getOrCreateRemoteWavelet(waveletName.waveletId);
+      if (!wave.isEvicted()) {
+        return wavelet;
+      }
+    }
+  }
+
+  private Wave getWave(WaveId waveId) {
+    Wave wave = waves.get(waveId);
+    while (wave.isEvicted()) {
+      waves.remove(waveId, wave);
+      wave = waves.get(waveId);
+    }
+    wave.touch();
+    return wave;
   }
 }
@@ -243,6 +243,9 @@ public class WaveServerImpl implements WaveletProvider, ReadableWaveletDataProvi
             return true;
           }
         });
+      } catch (WaveletUnloadedException e) {
+        requestHistory(waveletName, domain, startVersion, endVersion, lengthLimit, listener);
+        return;
       } catch (WaveServerException e) {
         LOG.severe("Error retrieving wavelet history: " + waveletName + " " + startVersion +
             " - " + endVersion);
@@ -316,7 +319,11 @@ public class WaveServerImpl implements WaveletProvider, ReadableWaveletDataProvi
       throw new AccessControlException(
           "Client request for history made for non-existent wavelet: " + waveletName);
     }
-    wavelet.requestTransformedHistory(startVersion, endVersion, receiver);
+    try {
+      wavelet.requestTransformedHistory(startVersion, endVersion, receiver);
+    } catch (WaveletUnloadedException e) {
+      getHistory(waveletName, startVersion, endVersion, receiver);
+    }
   }
 
   @Override
@@ -340,8 +347,12 @@ public class WaveServerImpl implements WaveletProvider, ReadableWaveletDataProvi
     if (wavelet == null) {
       LOG.info("client requested snapshot for non-existent wavelet: " + waveletName);
       return null;
-    } else {
+    }
+    try {
       return wavelet.getSnapshot();
+    } catch (WaveletUnloadedException e) {
+      // Unloaded since it was fetched, fetching it again reloads it.
+      return getSnapshot(waveletName);
     }
   }
 
@@ -385,7 +396,11 @@ public class WaveServerImpl implements WaveletProvider, ReadableWaveletDataProvi
       throws WaveServerException {
     Preconditions.checkState(initialized, "Wave server not yet initialized");
     WaveletContainer wavelet = getWavelet(waveletName);
-    return wavelet != null && wavelet.checkAccessPermission(participantId);
+    try {
+      return wavelet != null && wavelet.checkAccessPermission(participantId);
+    } catch (WaveletUnloadedException e) {
+      return checkAccessPermission(waveletName, participantId);
+    }
   }
 
   /**
@@ -556,6 +571,9 @@ public class WaveServerImpl implements WaveletProvider, ReadableWaveletDataProvi
         resultListener.onFailure(FederationErrors.badRequest(
             "Invalid author address: " + e.getMessage()));
         return;
+      } catch (WaveletUnloadedException e) {
+        submitDelta(waveletName, delta, signedDelta, resultListener);
+        return;
       } catch (WaveServerException e) {
         resultListener.onFailure(FederationErrors.internalServerError(e.getMessage()));
         return;
@@ -580,6 +598,9 @@ public class WaveServerImpl implements WaveletProvider, ReadableWaveletDataProvi
         resultListener.onFailure(FederationErrors.badRequest(e.getMessage()));
       } catch (PersistenceException e) {
         resultListener.onFailure(FederationErrors.internalServerError(e.getMessage()));
+      } catch (WaveletUnloadedException e) {
+        // Unloaded before the delta was applied, fetching it again reloads it.
+        submitDelta(waveletName, delta, signedDelta, resultListener);
       } catch (WaveletStateException e) {
         resultListener.onFailure(FederationErrors.internalServerError(e.getMessage()));
       }
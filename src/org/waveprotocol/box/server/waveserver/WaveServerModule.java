@@ -104,6 +104,8 @@ public class WaveServerModule extends AbstractModule {
     bind(CertificateManager.class).to(CertificateManagerImpl.class).in(Singleton.class);
     bind(DeltaAndSnapshotStore.class).to(DeltaStoreBasedSnapshotStore.class).in(Singleton.class);
     bind(WaveMap.class).in(Singleton.class);
+    bind(DeltaCacheStats.class).in(Singleton.class);
+    bind(TransformStats.class).in(Singleton.class);
     bind(WaveletProvider.class).to(WaveServerImpl.class).asEagerSingleton();
     bind(ReadableWaveletDataProvider.class).to(WaveServerImpl.class).in(Singleton.class);
     bind(HashedVersionFactory.class).toInstance(HASH_FACTORY);
@@ -114,14 +116,18 @@ public class WaveServerModule extends AbstractModule {
   @Provides
   @SuppressWarnings("unused")
   private LocalWaveletContainer.Factory provideLocalWaveletContainerFactory(
-      final DeltaStore deltaStore) {
+      final DeltaStore deltaStore,
+      @Named(CoreSettings.DELTA_STORE_SNAPSHOT_INTERVAL) final int snapshotInterval,
+      @Named(CoreSettings.DELTA_CACHE_CAPACITY) final int deltaCacheCapacity,
+      final DeltaCacheStats deltaCacheStats, final TransformStats transformStats) {
     return new LocalWaveletContainer.Factory() {
       @Override
       public LocalWaveletContainer create(WaveletNotificationSubscriber notifiee,
           WaveletName waveletName, String waveDomain) {
         return new LocalWaveletContainerImpl(waveletName, notifiee, loadWaveletState(
-            waveletLoadExecutor, deltaStore, waveletName, persistExecutor), waveDomain,
-            storageContinuationExecutor);
+            waveletLoadExecutor, deltaStore, waveletName, persistExecutor, snapshotInterval,
+            deltaCacheCapacity, deltaCacheStats),
+            waveDomain, storageContinuationExecutor, transformStats);
       }
     };
   }
@@ -129,14 +135,18 @@ public class WaveServerModule extends AbstractModule {
   @Provides
   @SuppressWarnings("unused")
   private RemoteWaveletContainer.Factory provideRemoteWaveletContainerFactory(
-      final DeltaStore deltaStore) {
+      final DeltaStore deltaStore,
+      @Named(CoreSettings.DELTA_STORE_SNAPSHOT_INTERVAL) final int snapshotInterval,
+      @Named(CoreSettings.DELTA_CACHE_CAPACITY) final int deltaCacheCapacity,
+      final DeltaCacheStats deltaCacheStats, final TransformStats transformStats) {
     return new RemoteWaveletContainer.Factory() {
       @Override
       public RemoteWaveletContainer create(WaveletNotificationSubscriber notifiee,
           WaveletName waveletName, String waveDomain) {
         return new RemoteWaveletContainerImpl(waveletName, notifiee, loadWaveletState(
-            waveletLoadExecutor, deltaStore, waveletName, persistExecutor),
-            storageContinuationExecutor);
+            waveletLoadExecutor, deltaStore, waveletName, persistExecutor, snapshotInterval,
+            deltaCacheCapacity, deltaCacheStats),
+            storageContinuationExecutor, transformStats);
       }
     };
   }
@@ -158,17 +168,25 @@ public class WaveServerModule extends AbstractModule {
    * Returns a future whose result is the state of the wavelet after it has been
    * loaded from storage. Any failure is reported as a
    * {@link PersistenceException}.
+   *
+   * @param snapshotInterval the number of versions between snapshot
+   *        checkpoints of the wavelet state, or 0 for none
+   * @param deltaCacheCapacity the maximum number of operations in the
+   *        persisted deltas kept in memory, or 0 for none
+   * @param deltaCacheStats records the use of the cache of persisted deltas
    */
   @VisibleForTesting
   static ListenableFuture<DeltaStoreBasedWaveletState> loadWaveletState(Executor executor,
-      final DeltaStore deltaStore, final WaveletName waveletName, final Executor persistExecutor) {
+      final DeltaStore deltaStore, final WaveletName waveletName, final Executor persistExecutor,
+      final int snapshotInterval, final int deltaCacheCapacity,
+      final DeltaCacheStats deltaCacheStats) {
     ListenableFutureTask<DeltaStoreBasedWaveletState> task =
         new ListenableFutureTask<DeltaStoreBasedWaveletState>(
             new Callable<DeltaStoreBasedWaveletState>() {
               @Override
               public DeltaStoreBasedWaveletState call() throws PersistenceException {
                 return DeltaStoreBasedWaveletState.create(deltaStore.open(waveletName),
-                    persistExecutor);
+                    persistExecutor, snapshotInterval, deltaCacheCapacity, deltaCacheStats);
               }
             });
     executor.execute(task);
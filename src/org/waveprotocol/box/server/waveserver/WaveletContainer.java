@@ -30,6 +30,7 @@ import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
 
 /**
  * Interface for a container class for a Wavelet's current state as well as its
@@ -147,4 +148,20 @@ interface WaveletContainer {
    */
   boolean isEmpty() throws WaveletStateException;
 
+  /**
+   * Releases the wavelet state if all of it has been persisted. The container
+   * is unusable afterwards, a new container must be created to access the
+   * wavelet again. Accesses then fail with {@link WaveletUnloadedException}.
+   *
+   * @return the participants of the wavelet when it was unloaded, or null if
+   *         it wasn't unloaded because it's still loading, has unpersisted
+   *         deltas or is otherwise not in a usable state.
+   */
+  ImmutableSet<ParticipantId> unload();
+
+  /**
+   * @return true if the wavelet has been unloaded.
+   */
+  boolean isUnloaded();
+
 }
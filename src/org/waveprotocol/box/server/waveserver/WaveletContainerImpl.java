@@ -49,11 +49,14 @@ import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 import org.waveprotocol.wave.util.logging.Log;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -72,6 +75,9 @@ abstract class WaveletContainerImpl implements WaveletContainer {
 
   private static final int AWAIT_LOAD_TIMEOUT_SECONDS = 1000;
 
+  /** The number of recently applied deltas kept for transforming submitted deltas. */
+  private static final int TRANSFORM_HISTORY_CAPACITY = 64;
+
   protected enum State {
     /** Everything is working fine. */
     OK,
@@ -82,6 +88,9 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     /** Wavelet has been deleted, the instance will not contain any data. */
     DELETED,
 
+    /** Wavelet state has been released from memory, the instance is unusable. */
+    UNLOADED,
+
     /**
      * For some reason this instance is broken, e.g. a remote wavelet update
      * signature failed.
@@ -89,6 +98,103 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     CORRUPTED
   }
 
+  /**
+   * What readers see of the wavelet. A new instance is published, with the
+   * write lock held, whenever the wavelet's state, version or committed
+   * version changes, so readers can use the published instance without
+   * taking the lock.
+   */
+  private static final class PublishedState {
+    static final PublishedState LOADING = new PublishedState(State.LOADING, null, null);
+
+    final State state;
+    /** The last committed version, or null unless the state is OK. */
+    final HashedVersion lastCommittedVersion;
+    /** The wavelet at its current version, or null unless the state is OK. */
+    final PublishedVersion current;
+
+    PublishedState(State state, HashedVersion lastCommittedVersion, PublishedVersion current) {
+      this.state = state;
+      this.lastCommittedVersion = lastCommittedVersion;
+      this.current = current;
+    }
+  }
+
+  /**
+   * What readers see of the wavelet at one version. Is shared by the
+   * published states of that version, so a commit doesn't discard the
+   * snapshot.
+   */
+  private static final class PublishedVersion {
+    final HashedVersion version;
+    /** Whether the wavelet has no data yet. */
+    final boolean empty;
+    /** The participants, for membership checks. */
+    final ImmutableSet<ParticipantId> participants;
+    /**
+     * An immutable copy of the wavelet, made by the first reader which needs
+     * it, or null if not made yet or if the wavelet is empty.
+     */
+    private volatile ObservableWaveletData snapshot = null;
+    /**
+     * The number of notified readers which will read the snapshot later, so
+     * it must be copied before the wavelet changes.
+     */
+    final AtomicInteger pins = new AtomicInteger();
+
+    PublishedVersion(HashedVersion version, boolean empty,
+        ImmutableSet<ParticipantId> participants) {
+      this.version = version;
+      this.empty = empty;
+      this.participants = participants;
+    }
+  }
+
+  /**
+   * Lets notified readers read a published version after the notification.
+   * The copy of the wavelet is made by the first reader, unless the wavelet
+   * changes first, in which case it's made just before the change.
+   */
+  private final class PublishedSnapshot implements DeferredSnapshot {
+    private final PublishedVersion version;
+
+    PublishedSnapshot(PublishedVersion version) {
+      this.version = version;
+    }
+
+    @Override
+    public void pin() {
+      version.pins.incrementAndGet();
+    }
+
+    @Override
+    public ReadableWaveletData get() {
+      ObservableWaveletData snapshot = version.snapshot;
+      if (snapshot != null || version.empty) {
+        return snapshot;
+      }
+      acquireReadLock();
+      try {
+        synchronized (version) {
+          if (version.snapshot == null) {
+            // The wavelet hasn't changed since, or it would have been copied.
+            Preconditions.checkState(version.version.equals(waveletState.getCurrentVersion()),
+                "Pinned version %s changed without a copy", version.version);
+            version.snapshot = WaveletDataUtil.copyWavelet(waveletState.getSnapshot());
+          }
+          return version.snapshot;
+        }
+      } finally {
+        releaseReadLock();
+      }
+    }
+
+    @Override
+    public void release() {
+      version.pins.decrementAndGet();
+    }
+  }
+
   private final Executor storageContinuationExecutor;
 
   private final Lock readLock;
@@ -101,6 +207,14 @@ abstract class WaveletContainerImpl implements WaveletContainer {
   /** Is set at most once, before loadLatch is counted down. */
   private WaveletState waveletState;
   private State state = State.LOADING;
+  /** Is only replaced with the write lock held, see {@link #publish()}. */
+  private volatile PublishedState published = PublishedState.LOADING;
+  /** Is only accessed with the write lock held. */
+  private final TransformHistory transformHistory =
+      new TransformHistory(TRANSFORM_HISTORY_CAPACITY);
+
+  /** Counts the submitted deltas which weren't against the head. */
+  private final TransformStats transformStats;
 
   /**
    * Constructs an empty WaveletContainer for a wavelet.
@@ -110,16 +224,18 @@ abstract class WaveletContainerImpl implements WaveletContainer {
    * @param waveletState the wavelet's delta history and current state.
    * @param waveDomain the wave server domain.
    * @param storageContinuationExecutor the executor used to perform post wavelet loading logic.
+   * @param transformStats counts the submitted deltas which had to be transformed.
    */
   public WaveletContainerImpl(WaveletName waveletName, WaveletNotificationSubscriber notifiee,
       final ListenableFuture<? extends WaveletState> waveletStateFuture, String waveDomain,
-      Executor storageContinuationExecutor) {
+      Executor storageContinuationExecutor, TransformStats transformStats) {
     this.waveletName = waveletName;
     this.notifiee = notifiee;
     this.sharedDomainParticipantId =
         waveDomain != null ? ParticipantIdUtil.makeUnsafeSharedDomainParticipantId(waveDomain)
             : null;
     this.storageContinuationExecutor = storageContinuationExecutor;
+    this.transformStats = transformStats;
     ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     this.readLock = readWriteLock.readLock();
     this.writeLock = readWriteLock.writeLock();
@@ -151,6 +267,7 @@ abstract class WaveletContainerImpl implements WaveletContainer {
               LOG.severe("Unexpected exception loading wavelet " + getWaveletName(), e);
               state = State.CORRUPTED;
             } finally {
+              publish();
               releaseWriteLock();
             }
             loadLatch.countDown();
@@ -183,7 +300,8 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     HashedVersion currentVersion = getCurrentVersion();
     Preconditions.checkArgument(endVersion.equals(currentVersion),
         "cannot notify of deltas ending in %s != current version %s", endVersion, currentVersion);
-    notifiee.waveletUpdate(waveletState.getSnapshot(), deltas, domainsToNotify);
+    notifiee.waveletUpdate(waveletState.getSnapshot(),
+        new PublishedSnapshot(published.current), deltas, domainsToNotify);
   }
 
   protected void notifyOfCommit(HashedVersion version, ImmutableSet<String> domainsToNotify) {
@@ -221,7 +339,13 @@ abstract class WaveletContainerImpl implements WaveletContainer {
    * @throws WaveletStateException if the wavelet is loading or marked corrupt.
    */
   protected void checkStateOk() throws WaveletStateException {
-    if (state != State.OK) {
+    checkStateOk(state);
+  }
+
+  private static void checkStateOk(State state) throws WaveletStateException {
+    if (state == State.UNLOADED) {
+      throw new WaveletUnloadedException("The wavelet has been unloaded");
+    } else if (state != State.OK) {
       throw new WaveletStateException("The wavelet is in an unusable state: " + state);
     }
   }
@@ -232,6 +356,106 @@ abstract class WaveletContainerImpl implements WaveletContainer {
   protected void markStateCorrupted() {
     Preconditions.checkState(writeLock.isHeldByCurrentThread(), "must hold write lock");
     state = State.CORRUPTED;
+    transformHistory.clear();
+    publish();
+  }
+
+  /**
+   * Publishes the current state of the wavelet to readers. Must be called
+   * with the write lock held, after every change to the wavelet.
+   */
+  private void publish() {
+    Preconditions.checkState(writeLock.isHeldByCurrentThread(), "must hold write lock");
+    if (state == State.OK) {
+      PublishedVersion current = published.current;
+      HashedVersion version = waveletState.getCurrentVersion();
+      if (current == null || !current.version.equals(version)) {
+        ReadableWaveletData snapshot = waveletState.getSnapshot();
+        current = new PublishedVersion(version, snapshot == null, participantsOf(snapshot,
+            (current != null) ? current.participants : null));
+      }
+      published = new PublishedState(state, waveletState.getLastPersistedVersion(), current);
+    } else {
+      published = new PublishedState(state, null, null);
+    }
+  }
+
+  /**
+   * Returns the participants of the wavelet, reusing the previously published
+   * set if they haven't changed.
+   */
+  private static ImmutableSet<ParticipantId> participantsOf(ReadableWaveletData snapshot,
+      ImmutableSet<ParticipantId> previous) {
+    if (snapshot == null) {
+      return ImmutableSet.of();
+    }
+    Set<ParticipantId> participants = snapshot.getParticipants();
+    if (previous != null && previous.size() == participants.size()
+        && previous.containsAll(participants)) {
+      return previous;
+    }
+    return ImmutableSet.copyOf(participants);
+  }
+
+  /**
+   * Copies the wavelet for the readers which have pinned the current version,
+   * if they haven't read it yet. Must be called with the write lock held,
+   * before the wavelet state changes.
+   */
+  private void copyPinnedSnapshot() {
+    PublishedVersion current = published.current;
+    if (current != null && current.pins.get() > 0) {
+      synchronized (current) {
+        if (current.snapshot == null && !current.empty) {
+          current.snapshot = WaveletDataUtil.copyWavelet(waveletState.getSnapshot());
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the published state of the wavelet, once loaded, without taking
+   * the lock.
+   *
+   * @throws WaveletStateException if the wavelet fails to load or is in an
+   *         unusable state.
+   */
+  private PublishedState awaitPublishedState() throws WaveletStateException {
+    awaitLoad();
+    PublishedState current = published;
+    checkStateOk(current.state);
+    return current;
+  }
+
+  /**
+   * Returns the published state of the wavelet, with an immutable snapshot of
+   * its current version. The wavelet state is copied if no reader has done so
+   * since the version was published. Concurrent readers share the copy.
+   *
+   * @throws WaveletStateException if the wavelet fails to load or is in an
+   *         unusable state.
+   */
+  private PublishedState awaitPublishedSnapshot() throws WaveletStateException {
+    PublishedState state = awaitPublishedState();
+    if (state.current.empty || state.current.snapshot != null) {
+      return state;
+    }
+    acquireReadLock();
+    try {
+      // The published state doesn't change while the read lock is held, and
+      // then it matches the wavelet state.
+      state = published;
+      checkStateOk();
+      PublishedVersion current = state.current;
+      synchronized (current) {
+        if (current.snapshot == null && !current.empty) {
+          current.snapshot = WaveletDataUtil.copyWavelet(waveletState.getSnapshot());
+        }
+      }
+      return state;
+    } finally {
+      releaseReadLock();
+    }
   }
 
   protected void persist(final HashedVersion version, final ImmutableSet<String> domainsToNotify) {
@@ -251,6 +475,7 @@ abstract class WaveletContainerImpl implements WaveletContainer {
             acquireWriteLock();
             try {
               waveletState.flush(version);
+              publish();
               notifyOfCommit(version, domainsToNotify);
             } finally {
               releaseWriteLock();
@@ -267,69 +492,43 @@ abstract class WaveletContainerImpl implements WaveletContainer {
 
   @Override
   public boolean checkAccessPermission(ParticipantId participantId) throws WaveletStateException {
-    awaitLoad();
-    acquireReadLock();
-    try {
-      checkStateOk();
-      // ParticipantId will be null if the user isn't logged in. A user who isn't logged in should
-      // have access to public waves once they've been implemented.
-      // If the wavelet is empty, everyone has access (to write the first delta).
-      // TODO(soren): determine if off-domain participants should be denied access if empty
-      ReadableWaveletData snapshot = waveletState.getSnapshot();
-      return WaveletDataUtil.checkAccessPermission(snapshot, participantId, sharedDomainParticipantId);
-    } finally {
-      releaseReadLock();
-    }
+    // ParticipantId will be null if the user isn't logged in. A user who isn't logged in should
+    // have access to public waves once they've been implemented.
+    // If the wavelet is empty, everyone has access (to write the first delta).
+    // TODO(soren): determine if off-domain participants should be denied access if empty
+    PublishedVersion current = awaitPublishedState().current;
+    return participantId != null
+        && (current.empty
+            || current.participants.contains(participantId)
+            || (sharedDomainParticipantId != null
+                && current.participants.contains(sharedDomainParticipantId)));
   }
 
   @Override
   public HashedVersion getLastCommittedVersion() throws WaveletStateException {
-    awaitLoad();
-    acquireReadLock();
-    try {
-      checkStateOk();
-      return waveletState.getLastPersistedVersion();
-    } finally {
-      releaseReadLock();
-    }
+    return awaitPublishedState().lastCommittedVersion;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * The copy shares the data of the published snapshot until it's modified.
+   */
   @Override
   public ObservableWaveletData copyWaveletData() throws WaveletStateException {
-    awaitLoad();
-    acquireReadLock();
-    try {
-      checkStateOk();
-      return WaveletDataUtil.copyWavelet(waveletState.getSnapshot());
-    } finally {
-      releaseReadLock();
-    }
+    return new CopyOnWriteWaveletData(awaitPublishedSnapshot().current.snapshot);
   }
 
   @Override
   public CommittedWaveletSnapshot getSnapshot() throws WaveletStateException {
-    awaitLoad();
-    acquireReadLock();
-    try {
-      checkStateOk();
-      return new CommittedWaveletSnapshot(waveletState.getSnapshot(),
-          waveletState.getLastPersistedVersion());
-    } finally {
-      releaseReadLock();
-    }
+    PublishedState state = awaitPublishedSnapshot();
+    return new CommittedWaveletSnapshot(state.current.snapshot, state.lastCommittedVersion);
   }
 
   @Override
   public <T> T applyFunction(Function<ReadableWaveletData, T> function)
       throws WaveletStateException {
-    awaitLoad();
-    acquireReadLock();
-    try {
-      checkStateOk();
-      return function.apply(waveletState.getSnapshot());
-    } finally {
-      releaseReadLock();
-    }
+    return function.apply(awaitPublishedSnapshot().current.snapshot);
   }
 
   /**
@@ -372,9 +571,14 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     HashedVersion targetVersion = submittedDelta.getTargetVersion();
     HashedVersion currentVersion = getCurrentVersion();
     Preconditions.checkArgument(!targetVersion.equals(currentVersion));
-    ListReceiver<TransformedWaveletDelta> receiver = new ListReceiver<TransformedWaveletDelta>();
-    waveletState.getTransformedDeltaHistory(targetVersion, currentVersion, receiver);
-    DeltaSequence serverDeltas = DeltaSequence.of(receiver);
+    List<TransformedWaveletDelta> serverDeltas =
+        transformHistory.getRange(targetVersion, currentVersion);
+    if (serverDeltas == null) {
+      transformStats.recordHistoryMiss();
+      ListReceiver<TransformedWaveletDelta> receiver = new ListReceiver<TransformedWaveletDelta>();
+      waveletState.getTransformedDeltaHistory(targetVersion, currentVersion, receiver);
+      serverDeltas = DeltaSequence.of(receiver);
+    }
     Preconditions.checkState(!serverDeltas.isEmpty(),
         "No deltas between valid versions %s and %s", targetVersion, currentVersion);
 
@@ -383,26 +587,42 @@ abstract class WaveletContainerImpl implements WaveletContainer {
     // ensure that clientOps.equals() works correctly below (because
     // WaveletDelta breaks the List.equals() contract)
     List<WaveletOperation> clientOps = Lists.newArrayList(submittedDelta);
-    for (TransformedWaveletDelta serverDelta : serverDeltas) {
-      // If the client delta transforms to nothing before we've traversed all
-      // the server deltas, return the version at which the delta was
-      // obliterated (rather than the current version) to ensure that delta
-      // submission is idempotent.
-      if (clientOps.isEmpty()) {
-        return new WaveletDelta(clientAuthor, targetVersion, clientOps);
-      }
-      ParticipantId serverAuthor = serverDelta.getAuthor();
-      if (clientAuthor.equals(serverAuthor) && clientOps.equals(serverDelta)) {
-        // This is a duplicate of the server delta.
-        return new WaveletDelta(clientAuthor, targetVersion, clientOps);
+    int depth = 0;
+    try {
+      // Indexed rather than iterated, so the history isn't copied.
+      for (int i = 0; i < serverDeltas.size(); i++) {
+        TransformedWaveletDelta serverDelta = serverDeltas.get(i);
+        // If the client delta transforms to nothing before we've traversed all
+        // the server deltas, return the version at which the delta was
+        // obliterated (rather than the current version) to ensure that delta
+        // submission is idempotent.
+        if (clientOps.isEmpty()) {
+          return new WaveletDelta(clientAuthor, targetVersion, clientOps);
+        }
+        ParticipantId serverAuthor = serverDelta.getAuthor();
+        if (clientAuthor.equals(serverAuthor) && clientOps.equals(serverDelta)) {
+          // This is a duplicate of the server delta.
+          return new WaveletDelta(clientAuthor, targetVersion, clientOps);
+        }
+        clientOps = transformOps(clientOps, serverDelta);
+        targetVersion = serverDelta.getResultingVersion();
+        depth++;
       }
-      clientOps = transformOps(clientOps, serverDelta);
-      targetVersion = serverDelta.getResultingVersion();
+    } finally {
+      recordTransformDepth(depth);
     }
     Preconditions.checkState(targetVersion.equals(currentVersion));
     return new WaveletDelta(clientAuthor, targetVersion, clientOps);
   }
 
+  private void recordTransformDepth(int depth) {
+    transformStats.recordTransform(depth);
+    if (LOG.isFineLoggable()) {
+      LOG.fine("Transformed delta submitted to " + waveletName + " against " + depth
+          + " deltas");
+    }
+  }
+
   /**
    * Transforms the specified client operations against the specified server operations,
    * returning the transformed client operations in a new list.
@@ -432,7 +652,7 @@ abstract class WaveletContainerImpl implements WaveletContainer {
 
   /**
    * Builds a {@link WaveletDeltaRecord} and applies it to the wavelet container.
-   * The delta must be non-empty.
+   * The delta must be non-empty. Must be called with the write lock held.
    */
   protected WaveletDeltaRecord applyDelta(
       ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta, WaveletDelta transformed)
@@ -442,7 +662,10 @@ abstract class WaveletContainerImpl implements WaveletContainer {
 
     WaveletDeltaRecord deltaRecord = new WaveletDeltaRecord(transformed.getTargetVersion(),
         appliedDelta, transformedDelta);
+    copyPinnedSnapshot();
     waveletState.appendDelta(deltaRecord);
+    transformHistory.append(deltaRecord.getAppliedAtVersion(), transformedDelta);
+    publish();
 
     return deltaRecord;
   }
@@ -516,15 +739,7 @@ abstract class WaveletContainerImpl implements WaveletContainer {
 
   @Override
   public boolean hasParticipant(ParticipantId participant) throws WaveletStateException {
-    awaitLoad();
-    acquireReadLock();
-    try {
-      checkStateOk();
-      ReadableWaveletData snapshot = waveletState.getSnapshot();
-      return snapshot != null && snapshot.getParticipants().contains(participant);
-    } finally {
-      releaseReadLock();
-    }
+    return awaitPublishedState().current.participants.contains(participant);
   }
 
   @Override
@@ -540,16 +755,39 @@ abstract class WaveletContainerImpl implements WaveletContainer {
 
   @Override
   public boolean isEmpty() throws WaveletStateException {
-    awaitLoad();
-    acquireReadLock();
+    return awaitPublishedState().current.empty;
+  }
+
+  @Override
+  public ImmutableSet<ParticipantId> unload() {
+    acquireWriteLock();
     try {
-      checkStateOk();
-      return waveletState.getSnapshot() == null;
+      if (state != State.OK
+          || !waveletState.getLastPersistedVersion().equals(waveletState.getCurrentVersion())) {
+        return null;
+      }
+      // The published participants match the wavelet state, with the write lock held.
+      ImmutableSet<ParticipantId> participants = published.current.participants;
+      copyPinnedSnapshot();
+      state = State.UNLOADED;
+      transformHistory.clear();
+      publish();
+      try {
+        waveletState.close();
+      } catch (IOException e) {
+        LOG.warning("Failed to close wavelet state of " + getWaveletName(), e);
+      }
+      return participants;
     } finally {
-      releaseReadLock();
+      releaseWriteLock();
     }
   }
 
+  @Override
+  public boolean isUnloaded() {
+    return published.state == State.UNLOADED;
+  }
+
   @Nullable
   protected HashedVersion getCurrentVersion() {
     if(waveletState == null)
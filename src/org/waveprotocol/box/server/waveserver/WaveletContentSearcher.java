@@ -0,0 +1,48 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.Multimap;
+
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.Collection;
+
+/**
+ * Finds the wavelets whose contents match the text, tag and creator terms of
+ * a search, without reading the wavelets.
+ */
+public interface WaveletContentSearcher {
+
+  /**
+   * Returns the wavelets in the waves views of the viewers which contain every
+   * word of the text terms, carry every tag and were created by every creator.
+   *
+   * @param viewers the participants whose waves views to search.
+   * @param textTerms words which must appear in the text of the wavelet.
+   * @param tags tags which the wavelet must carry.
+   * @param creators participants who must have created the wavelet.
+   */
+  Multimap<WaveId, WaveletId> searchWaveletContents(Collection<ParticipantId> viewers,
+      Collection<String> textTerms, Collection<String> tags, Collection<ParticipantId> creators);
+}
@@ -19,16 +19,21 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.google.protobuf.ByteString;
 
 import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.CoreSettings;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.util.StatsSource;
 import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.wave.federation.FederationErrorProto.FederationError;
 import org.waveprotocol.wave.federation.FederationHostBridge;
@@ -42,11 +47,18 @@ import org.waveprotocol.wave.util.logging.Log;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Forwards wave notifications to wave bus subscribers and remote wave servers.
  *
+ * Notifications are delivered to subscribers synchronously by default. If a
+ * subscriber queue size is configured, each subscriber gets its own queues and
+ * delivery threads instead, see {@link AsyncWaveBusSubscriber}, and reads the
+ * snapshot of an update when it's delivered. The counters of the queues are
+ * reported as stats, prefixed by the subscriber's class name.
+ *
  * Swallows any runtime exception from a wave bus subscriber but not removes that
  * subscriber. The wave server used to do this swallowing but really things are
  * in bad shape if a subscriber throws a runtime exception.
@@ -54,7 +66,8 @@ import java.util.concurrent.CopyOnWriteArraySet;
  *
  * @author soren@google.com (Soren Lassen)
  */
-class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubscriber {
+class WaveletNotificationDispatcher
+    implements WaveBus, WaveletNotificationSubscriber, StatsSource {
 
   private static final Log LOG = Log.get(WaveletNotificationDispatcher.class);
 
@@ -82,6 +95,12 @@ class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubsc
   private final WaveletFederationListener.Factory federationHostFactory;
   private final CopyOnWriteArraySet<WaveBus.Subscriber> subscribers =
       new CopyOnWriteArraySet<WaveBus.Subscriber>();
+  private final int asyncQueueSize;
+  private final int asyncThreads;
+  private final int asyncEnqueueTimeoutMs;
+  /** The queues of the subscribers, if notifications are delivered asynchronously. */
+  private final ConcurrentMap<WaveBus.Subscriber, AsyncWaveBusSubscriber> asyncSubscribers =
+      new MapMaker().makeMap();
 
   /** Maps remote domains to wave server stubs for those domains. */
   private final Map<String, WaveletFederationListener> federationHosts =
@@ -99,32 +118,88 @@ class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubsc
    * @param certificateManager knows what the local domains are
    * @param federationHostFactory manufactures federation host instances for
    *        remote domains
+   * @param asyncQueueSize the number of notifications queued for each
+   *        subscriber, or 0 to deliver notifications synchronously
+   * @param asyncThreads the number of threads delivering notifications to
+   *        each subscriber, if asynchronous
+   * @param asyncEnqueueTimeoutMs how long to wait for room in a full
+   *        subscriber queue before warning that the subscriber is falling
+   *        behind
    */
   @Inject
   public WaveletNotificationDispatcher(
       CertificateManager certificateManager,
-      @FederationHostBridge WaveletFederationListener.Factory federationHostFactory) {
+      @FederationHostBridge WaveletFederationListener.Factory federationHostFactory,
+      @Named(CoreSettings.WAVE_BUS_ASYNC_QUEUE_SIZE) int asyncQueueSize,
+      @Named(CoreSettings.WAVE_BUS_ASYNC_THREADS) int asyncThreads,
+      @Named(CoreSettings.WAVE_BUS_ASYNC_ENQUEUE_TIMEOUT_MS) int asyncEnqueueTimeoutMs) {
     this.localDomains = certificateManager.getLocalDomains();
     this.federationHostFactory = federationHostFactory;
+    this.asyncQueueSize = asyncQueueSize;
+    this.asyncThreads = Math.max(asyncThreads, 1);
+    this.asyncEnqueueTimeoutMs = asyncEnqueueTimeoutMs;
   }
 
   @Override
   public void subscribe(Subscriber s) {
+    if (isAsync() && !asyncSubscribers.containsKey(s)) {
+      asyncSubscribers.putIfAbsent(s,
+          new AsyncWaveBusSubscriber(s, asyncThreads, asyncQueueSize, asyncEnqueueTimeoutMs));
+    }
     subscribers.add(s);
   }
 
   @Override
   public void unsubscribe(Subscriber s) {
     subscribers.remove(s);
+    AsyncWaveBusSubscriber async = asyncSubscribers.remove(s);
+    if (async != null) {
+      async.shutdown();
+    }
+  }
+
+  private boolean isAsync() {
+    return asyncQueueSize > 0;
+  }
+
+  /**
+   * Returns the queue of a subscriber, or null if notifications are delivered
+   * synchronously.
+   */
+  @VisibleForTesting
+  AsyncWaveBusSubscriber getAsyncSubscriber(Subscriber s) {
+    return asyncSubscribers.get(s);
   }
 
   @Override
-  public void waveletUpdate(ReadableWaveletData wavelet, ImmutableList<WaveletDeltaRecord> deltas,
-      ImmutableSet<String> domainsToNotify) {
+  public void collectStats(Map<String, Number> stats) {
+    for (AsyncWaveBusSubscriber async : asyncSubscribers.values()) {
+      Map<String, Number> subscriberStats = Maps.newLinkedHashMap();
+      async.collectStats(subscriberStats);
+      String prefix = async.getSubscriber().getClass().getSimpleName() + ".";
+      for (Map.Entry<String, Number> entry : subscriberStats.entrySet()) {
+        stats.put(prefix + entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  @Override
+  public void waveletUpdate(ReadableWaveletData wavelet, DeferredSnapshot snapshot,
+      ImmutableList<WaveletDeltaRecord> deltas, ImmutableSet<String> domainsToNotify) {
+    WaveletName waveletName = WaveletDataUtil.waveletNameOf(wavelet);
     DeltaSequence sequence = DeltaSequence.of(transformedDeltasOf(deltas));
     for (WaveBus.Subscriber s : subscribers) {
       try {
-        s.waveletUpdate(wavelet, sequence);
+        if (isAsync()) {
+          // The wavelet changes as further deltas are applied, so the queued
+          // update reads the snapshot when it's delivered.
+          AsyncWaveBusSubscriber async = asyncSubscribers.get(s);
+          if (async != null) {
+            async.waveletUpdate(waveletName, snapshot, sequence);
+          }
+        } else {
+          s.waveletUpdate(wavelet, sequence);
+        }
       } catch (RuntimeException e) {
         LOG.severe("Runtime exception in update to wave bus subscriber " + s, e);
       }
@@ -134,8 +209,8 @@ class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubsc
     if (!remoteDomainsToNotify.isEmpty()) {
       ImmutableList<ByteString> serializedAppliedDeltas = serializedAppliedDeltasOf(deltas);
       for (String domain : remoteDomainsToNotify) {
-        federationHosts.get(domain).waveletDeltaUpdate(WaveletDataUtil.waveletNameOf(wavelet),
-            serializedAppliedDeltas, federationCallback("delta update"));
+        federationHosts.get(domain).waveletDeltaUpdate(waveletName, serializedAppliedDeltas,
+            federationCallback("delta update"));
       }
     }
   }
@@ -145,7 +220,14 @@ class WaveletNotificationDispatcher implements WaveBus, WaveletNotificationSubsc
       ImmutableSet<String> domainsToNotify) {
     for (WaveBus.Subscriber s : subscribers) {
       try {
-        s.waveletCommitted(waveletName, version);
+        if (isAsync()) {
+          AsyncWaveBusSubscriber async = asyncSubscribers.get(s);
+          if (async != null) {
+            async.waveletCommitted(waveletName, version);
+          }
+        } else {
+          s.waveletCommitted(waveletName, version);
+        }
       } catch (RuntimeException e) {
         LOG.severe("Runtime exception in commit to wave bus subscriber " + s, e);
       }
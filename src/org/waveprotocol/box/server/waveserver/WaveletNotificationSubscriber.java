@@ -36,12 +36,14 @@ public interface WaveletNotificationSubscriber {
    * Notifies of a wavelet update.
    *
    * @param wavelet the state of the wavelet after the deltas have
-   *        been applied
+   *        been applied, which may only be read until this call returns
+   * @param snapshot an immutable snapshot of the same state, for reading after
+   *        this call returns
    * @param deltas deltas applied to the wavelet
    * @param domainsToNotify domains who should know. Empty set if the wavelet is remote.
    */
-  void waveletUpdate(ReadableWaveletData wavelet, ImmutableList<WaveletDeltaRecord> deltas,
-      ImmutableSet<String> domainsToNotify);
+  void waveletUpdate(ReadableWaveletData wavelet, DeferredSnapshot snapshot,
+      ImmutableList<WaveletDeltaRecord> deltas, ImmutableSet<String> domainsToNotify);
 
   /**
    * Notifies that a wavelet has been committed to persistent storage.
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Singleton;
+
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.model.wave.data.impl.WaveletDataImpl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory index of the fields that searches filter and sort wavelets by:
+ * participants, which also determine the inbox folder, creator, and the
+ * creation and last modified times.
+ *
+ * Each indexed wavelet is represented by a header: a copy of the wavelet with
+ * its metadata and participants, but no documents. Headers are kept up to
+ * date from wave bus updates, and wavelets which haven't been updated since
+ * the server started are added by the search provider when first searched.
+ *
+ * Lookups are thread-safe and don't block. Updates are serialized.
+ */
+@Singleton
+public class WaveletSearchIndex implements WaveBus.Subscriber {
+
+  private final ConcurrentMap<WaveletName, ObservableWaveletData> headers =
+      new ConcurrentHashMap<WaveletName, ObservableWaveletData>();
+
+  private final ConcurrentMap<ParticipantId, Set<WaveletName>> byParticipant =
+      new ConcurrentHashMap<ParticipantId, Set<WaveletName>>();
+
+  private final ConcurrentMap<ParticipantId, Set<WaveletName>> byCreator =
+      new ConcurrentHashMap<ParticipantId, Set<WaveletName>>();
+
+  /**
+   * Returns the header of a wavelet, or null if the wavelet isn't indexed.
+   */
+  public ObservableWaveletData getHeader(WaveletName waveletName) {
+    return headers.get(waveletName);
+  }
+
+  /**
+   * Returns the names of the indexed wavelets which have the participant.
+   * The returned set is a live view.
+   */
+  public Set<WaveletName> getWaveletsWithParticipant(ParticipantId participant) {
+    return unmodifiable(byParticipant.get(participant));
+  }
+
+  /**
+   * Returns the names of the indexed wavelets created by the participant.
+   * The returned set is a live view.
+   */
+  public Set<WaveletName> getWaveletsCreatedBy(ParticipantId creator) {
+    return unmodifiable(byCreator.get(creator));
+  }
+
+  /** Returns the number of indexed wavelets. */
+  public int size() {
+    return headers.size();
+  }
+
+  /**
+   * Indexes the state of a wavelet, unless a later state is indexed already.
+   *
+   * @return the header of the wavelet as indexed
+   */
+  public synchronized ObservableWaveletData update(ReadableWaveletData wavelet) {
+    WaveletName waveletName = WaveletDataUtil.waveletNameOf(wavelet);
+    ObservableWaveletData previous = headers.get(waveletName);
+    if (previous != null && previous.getVersion() >= wavelet.getVersion()) {
+      return previous;
+    }
+    ObservableWaveletData header = createHeader(wavelet);
+    headers.put(waveletName, header);
+    if (previous == null) {
+      add(byCreator, header.getCreator(), waveletName);
+    }
+    for (ParticipantId participant : header.getParticipants()) {
+      if (previous == null || !previous.getParticipants().contains(participant)) {
+        add(byParticipant, participant, waveletName);
+      }
+    }
+    if (previous != null) {
+      for (ParticipantId participant : previous.getParticipants()) {
+        if (!header.getParticipants().contains(participant)) {
+          remove(byParticipant, participant, waveletName);
+        }
+      }
+    }
+    return header;
+  }
+
+  @Override
+  public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+    update(wavelet);
+  }
+
+  @Override
+  public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+    // Committing doesn't change the indexed fields.
+  }
+
+  private static ObservableWaveletData createHeader(ReadableWaveletData wavelet) {
+    // The header has no documents, so it needs no document factory.
+    WaveletDataImpl header = new WaveletDataImpl(wavelet.getWaveletId(), wavelet.getCreator(),
+        wavelet.getCreationTime(), wavelet.getVersion(), wavelet.getHashedVersion(),
+        wavelet.getLastModifiedTime(), wavelet.getWaveId(), null);
+    for (ParticipantId participant : wavelet.getParticipants()) {
+      header.addParticipant(participant);
+    }
+    return header;
+  }
+
+  private static void add(ConcurrentMap<ParticipantId, Set<WaveletName>> index,
+      ParticipantId key, WaveletName waveletName) {
+    Set<WaveletName> names = index.get(key);
+    if (names == null) {
+      names = Collections.newSetFromMap(new ConcurrentHashMap<WaveletName, Boolean>());
+      index.put(key, names);
+    }
+    names.add(waveletName);
+  }
+
+  private static void remove(ConcurrentMap<ParticipantId, Set<WaveletName>> index,
+      ParticipantId key, WaveletName waveletName) {
+    Set<WaveletName> names = index.get(key);
+    if (names != null) {
+      names.remove(waveletName);
+    }
+  }
+
+  private static Set<WaveletName> unmodifiable(Set<WaveletName> names) {
+    return names != null ? Collections.unmodifiableSet(names) : ImmutableSet.<WaveletName>of();
+  }
+}
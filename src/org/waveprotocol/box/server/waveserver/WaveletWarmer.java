@@ -0,0 +1,262 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import org.waveprotocol.box.common.ExceptionalIterator;
+import org.waveprotocol.box.server.CoreSettings;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.util.logging.Log;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the state of stored wavelets into the {@link WaveMap} at startup, so
+ * that the first users after a restart don't wait for their wavelets to load.
+ *
+ * Wavelets are loaded most recently modified first, by the time their last
+ * delta was applied. Several wavelets load in parallel; their state is read on
+ * the wavelet load executor as for any other access. Warming up stops once the
+ * heap has grown by the memory budget, or once the maximum number of resident
+ * waves are loaded, so that it doesn't evict itself. Progress and an estimate
+ * of the remaining time are logged periodically.
+ */
+public class WaveletWarmer {
+
+  private static final Log LOG = Log.get(WaveletWarmer.class);
+
+  private static final long PROGRESS_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
+  /** A stored wavelet and the time its last delta was applied. */
+  private static class StoredWavelet {
+    final WaveletName waveletName;
+    final long lastModifiedTime;
+
+    StoredWavelet(WaveletName waveletName, long lastModifiedTime) {
+      this.waveletName = waveletName;
+      this.lastModifiedTime = lastModifiedTime;
+    }
+  }
+
+  private final WaveMap waveMap;
+  private final DeltaStore store;
+  private final CertificateManager certificateManager;
+  private final int threadCount;
+  private final long memoryBudgetBytes;
+  private final int maxResidentWaves;
+
+  /**
+   * @param threadCount the number of wavelets loaded in parallel, 0 disables
+   *        warming up
+   * @param memoryBudgetMb the number of megabytes the heap may grow by while
+   *        warming up, 0 for no limit
+   * @param maxResidentWaves the maximum number of waves kept in memory, 0 for
+   *        no limit
+   */
+  @Inject
+  public WaveletWarmer(WaveMap waveMap, DeltaStore store,
+      CertificateManager certificateManager,
+      @Named(CoreSettings.WAVELET_WARMUP_THREADS) int threadCount,
+      @Named(CoreSettings.WAVELET_WARMUP_MEMORY_BUDGET_MB) int memoryBudgetMb,
+      @Named(CoreSettings.MAX_RESIDENT_WAVES) int maxResidentWaves) {
+    this.waveMap = waveMap;
+    this.store = store;
+    this.certificateManager = certificateManager;
+    this.threadCount = threadCount;
+    this.memoryBudgetBytes = memoryBudgetMb * 1024L * 1024L;
+    this.maxResidentWaves = maxResidentWaves;
+  }
+
+  /**
+   * Starts warming up in the background, if enabled.
+   */
+  public void start() {
+    if (threadCount <= 0) {
+      return;
+    }
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          warmUp();
+        } catch (PersistenceException e) {
+          LOG.warning("Failed to warm up wavelets", e);
+        } catch (InterruptedException e) {
+          LOG.warning("Interrupted warming up wavelets", e);
+        }
+      }
+    }, "WaveletWarmer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Loads stored wavelets, most recently modified first, until all are loaded
+   * or a limit is reached. Blocks until the loads have completed.
+   *
+   * @return the number of wavelets loaded
+   * @throws PersistenceException if the stored wavelets can't be listed
+   */
+  @VisibleForTesting
+  int warmUp() throws PersistenceException, InterruptedException {
+    final long startTime = System.currentTimeMillis();
+    List<StoredWavelet> wavelets = findStoredWavelets();
+    Collections.sort(wavelets, new Comparator<StoredWavelet>() {
+      @Override
+      public int compare(StoredWavelet a, StoredWavelet b) {
+        return Long.signum(b.lastModifiedTime - a.lastModifiedTime);
+      }
+    });
+    LOG.info("Warming up " + wavelets.size() + " wavelets, found in "
+        + (System.currentTimeMillis() - startTime) + " ms");
+
+    final Set<String> localDomains = certificateManager.getLocalDomains();
+    final AtomicInteger loaded = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final Semaphore inFlight = new Semaphore(threadCount);
+    Set<WaveId> waves = Sets.newHashSet();
+    Runtime runtime = Runtime.getRuntime();
+    long heapBaseline = runtime.totalMemory() - runtime.freeMemory();
+    final int total = wavelets.size();
+    final AtomicLong lastProgressTime = new AtomicLong(startTime);
+    int submitted = 0;
+    String stopReason = null;
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount,
+        new ThreadFactoryBuilder().setNameFormat("WaveletWarmer-%d").setDaemon(true).build());
+    try {
+      for (StoredWavelet wavelet : wavelets) {
+        final WaveletName waveletName = wavelet.waveletName;
+        if (maxResidentWaves > 0 && !waves.contains(waveletName.waveId)
+            && waves.size() >= maxResidentWaves) {
+          stopReason = "the maximum number of resident waves is loaded";
+          break;
+        }
+        long heapGrowth = runtime.totalMemory() - runtime.freeMemory() - heapBaseline;
+        if (memoryBudgetBytes > 0 && heapGrowth >= memoryBudgetBytes) {
+          stopReason = "the memory budget is exhausted";
+          break;
+        }
+        inFlight.acquire();
+        waves.add(waveletName.waveId);
+        submitted++;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              boolean isLocal = localDomains.contains(waveletName.waveletId.getDomain());
+              WaveletContainer container = isLocal ? waveMap.getLocalWavelet(waveletName)
+                  : waveMap.getRemoteWavelet(waveletName);
+              if (container != null) {
+                // Blocks until the state has been loaded.
+                container.getLastCommittedVersion();
+              }
+              loaded.incrementAndGet();
+            } catch (WaveletStateException e) {
+              LOG.warning("Failed to warm up wavelet " + waveletName, e);
+              failed.incrementAndGet();
+            } finally {
+              inFlight.release();
+            }
+            // Logged as loads complete, so that progress is also reported
+            // while the last loads finish after everything has been submitted.
+            long now = System.currentTimeMillis();
+            long last = lastProgressTime.get();
+            if (now - last >= PROGRESS_INTERVAL_MS && lastProgressTime.compareAndSet(last, now)) {
+              logProgress(loaded.get() + failed.get(), total, now - startTime);
+            }
+          }
+        });
+      }
+      // Wait for the loads in flight.
+      inFlight.acquire(threadCount);
+    } finally {
+      executor.shutdownNow();
+    }
+    LOG.info("Warmed up " + loaded.get() + " of " + wavelets.size() + " wavelets in "
+        + waves.size() + " waves in " + (System.currentTimeMillis() - startTime) + " ms"
+        + (failed.get() > 0 ? ", " + failed.get() + " failed to load" : "")
+        + (stopReason != null ? ", stopped early because " + stopReason : ""));
+    return loaded.get();
+  }
+
+  /**
+   * Lists the stored wavelets with the time each was last modified, which is
+   * read from its last persisted delta without loading the wavelet state.
+   */
+  private List<StoredWavelet> findStoredWavelets() throws PersistenceException {
+    List<StoredWavelet> wavelets = Lists.newArrayList();
+    ExceptionalIterator<WaveId, PersistenceException> waveIds = store.getWaveIdIterator();
+    while (waveIds.hasNext()) {
+      WaveId waveId = waveIds.next();
+      for (WaveletId waveletId : store.lookup(waveId)) {
+        WaveletName waveletName = WaveletName.of(waveId, waveletId);
+        DeltaStore.DeltasAccess access = store.open(waveletName);
+        try {
+          HashedVersion endVersion = access.getEndVersion();
+          WaveletDeltaRecord lastDelta =
+              (endVersion != null) ? access.getDeltaByEndVersion(endVersion.getVersion()) : null;
+          if (lastDelta != null) {
+            wavelets.add(new StoredWavelet(waveletName, lastDelta.getApplicationTimestamp()));
+          }
+        } catch (IOException e) {
+          LOG.warning("Failed to read the last delta of " + waveletName, e);
+        } finally {
+          try {
+            access.close();
+          } catch (IOException e) {
+            LOG.warning("Failed to close " + waveletName, e);
+          }
+        }
+      }
+    }
+    return wavelets;
+  }
+
+  private static void logProgress(int done, int total, long elapsedMillis) {
+    StringBuilder message = new StringBuilder("Warmed up " + done + " of " + total
+        + " wavelets (" + (total > 0 ? done * 100 / total : 100) + "%)");
+    if (done > 0) {
+      long remainingMillis = elapsedMillis * (total - done) / done;
+      message.append(", about " + TimeUnit.MILLISECONDS.toSeconds(remainingMillis)
+          + " s remaining");
+    }
+    LOG.info(message.toString());
+  }
+}
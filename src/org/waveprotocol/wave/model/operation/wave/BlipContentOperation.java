@@ -130,6 +130,28 @@ public final class BlipContentOperation extends BlipOperation {
     return contentOp;
   }
 
+  /**
+   * Constructs an operation in the same context as this one, which applies the
+   * given document operation and updates the contributors the same way.
+   *
+   * @param contentOp   document operation to apply to the target blip
+   * @return the new operation.
+   */
+  public BlipContentOperation withContentOp(DocOp contentOp) {
+    return new BlipContentOperation(context, contentOp, method);
+  }
+
+  /**
+   * Checks whether this operation updates the contributors of its blip the same
+   * way as another one.
+   *
+   * @param other the operation to compare with.
+   * @return whether both operations use the same contributor update method.
+   */
+  public boolean updatesContributorsLike(BlipContentOperation other) {
+    return method == other.method;
+  }
+
   @Override
   public boolean updatesBlipMetadata(String blipId) {
     return isWorthyOfAttribution(blipId);
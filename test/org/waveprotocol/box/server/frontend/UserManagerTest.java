@@ -100,6 +100,22 @@ public class UserManagerTest extends TestCase {
     checkListenersMatchSubscriptions(ImmutableList.of(l2, l5), m.matchSubscriptions(W2B));
   }
 
+  /**
+   * Tests that a subscription added after a wavelet's subscriptions have been
+   * matched is matched too.
+   */
+  public void testSubscriptionAddedAfterMatching() {
+    OpenListener l1 = mock(OpenListener.class, "listener 1");
+    OpenListener l2 = mock(OpenListener.class, "listener 2");
+
+    m.subscribe(W2, IdFilters.ALL_IDS, "channel 1", l1);
+    checkListenersMatchSubscriptions(ImmutableList.of(l1), m.matchSubscriptions(W2A));
+
+    m.subscribe(W2, IdFilter.ofIds(WA), "channel 2", l2);
+    checkListenersMatchSubscriptions(ImmutableList.of(l1, l2), m.matchSubscriptions(W2A));
+    checkListenersMatchSubscriptions(ImmutableList.of(l1), m.matchSubscriptions(W2B));
+  }
+
   /**
    * Method to check whether the given subscriptions contain exactly the expected
    * {@link OpenListener}s.
@@ -27,6 +27,7 @@ import junit.framework.TestCase;
 
 import org.waveprotocol.box.common.ExceptionalIterator;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.box.server.util.testing.TestingConstants;
 import org.waveprotocol.box.server.waveserver.ByteStringMessage;
 import org.waveprotocol.box.server.waveserver.DeltaStore;
@@ -45,6 +46,8 @@ import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.testing.DeltaTestUtil;
 import org.waveprotocol.wave.model.util.Pair;
 import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
 
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -196,11 +199,59 @@ public abstract class DeltaStoreTestBase extends TestCase {
     }
   }
 
+  public void testLoadSnapshotOfNewWaveletReturnsNull() throws Exception {
+    Pair<DeltaStore, WaveletDeltaRecord> pair = newDeltaStoreWithRecord(WAVE1_WAVELET1);
+    DeltasAccess wavelet = pair.first.open(WAVE1_WAVELET1);
+
+    assertNull(wavelet.loadSnapshot());
+    wavelet.close();
+  }
+
+  public void testStoredSnapshotCanBeLoaded() throws Exception {
+    Pair<DeltaStore, WaveletDeltaRecord> pair = newDeltaStoreWithRecord(WAVE1_WAVELET1);
+    DeltaStore store = pair.first;
+    ReadableWaveletData snapshot = WaveletDataUtil.buildWaveletFromFirstDelta(WAVE1_WAVELET1,
+        pair.second.getTransformedDelta());
+
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.storeSnapshot(snapshot);
+    wavelet.close();
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    WaveletData loaded = wavelet.loadSnapshot();
+    assertNotNull(loaded);
+    assertEquals(WAVE1_WAVELET1, WaveletDataUtil.waveletNameOf(loaded));
+    assertEquals(snapshot.getHashedVersion(), loaded.getHashedVersion());
+    assertEquals(snapshot.getParticipants(), loaded.getParticipants());
+    assertEquals(snapshot.getCreator(), loaded.getCreator());
+    assertEquals(snapshot.getLastModifiedTime(), loaded.getLastModifiedTime());
+    wavelet.close();
+  }
+
+  public void testDeleteWaveletRemovesSnapshot() throws Exception {
+    Pair<DeltaStore, WaveletDeltaRecord> pair = newDeltaStoreWithRecord(WAVE1_WAVELET1);
+    DeltaStore store = pair.first;
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.storeSnapshot(WaveletDataUtil.buildWaveletFromFirstDelta(WAVE1_WAVELET1,
+        pair.second.getTransformedDelta()));
+    wavelet.close();
+
+    store.delete(WAVE1_WAVELET1);
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertNull(wavelet.loadSnapshot());
+    wavelet.close();
+  }
+
   // *** Helpers
 
   protected WaveletDeltaRecord createRecord() {
-    HashedVersion targetVersion = HashedVersion.of(0, new byte[] {3, 2, 1});
-    HashedVersion resultingVersion = HashedVersion.of(2, new byte[] {1, 2, 3});
+    return createRecord(0);
+  }
+
+  /** Creates a record of two operations applied at the given version. */
+  protected WaveletDeltaRecord createRecord(long version) {
+    HashedVersion targetVersion = HashedVersion.of(version, new byte[] {3, 2, 1});
+    HashedVersion resultingVersion = HashedVersion.of(version + 2, new byte[] {1, 2, 3});
 
     List<WaveletOperation> ops =
         ImmutableList.of(UTIL.noOp(), UTIL.addParticipant(TestingConstants.OTHER_PARTICIPANT));
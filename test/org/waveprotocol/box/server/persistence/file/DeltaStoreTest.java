@@ -42,7 +42,7 @@ public class DeltaStoreTest extends DeltaStoreTestBase {
 
   private static final Log LOG = Log.get(DeltaStoreTest.class);
 
-  private File path;
+  protected File path;
   private final WaveletName WAVE1_WAVELET1 =
     WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet1"));
 
@@ -99,4 +99,86 @@ public class DeltaStoreTest extends DeltaStoreTestBase {
       toRemove++;
     }
   }
+
+  public void testReopenIndexesDeltasMissingFromIndex() throws Exception {
+    DeltaStore store = newDeltaStore();
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.append(ImmutableList.of(createRecord(0)));
+    wavelet.append(ImmutableList.of(createRecord(2)));
+    wavelet.close();
+
+    // Drop the index records of the second delta.
+    File indexFile = FileDeltaCollection.indexFile(path.getAbsolutePath(), WAVE1_WAVELET1);
+    RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+    index.setLength(index.length() / 2);
+    index.close();
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(4, wavelet.getEndVersion().getVersion());
+    assertNotNull(wavelet.getDelta(2));
+    assertNotNull(wavelet.getDeltaByEndVersion(4));
+    wavelet.close();
+    assertEquals(4 * 8, indexFile.length());
+  }
+
+  public void testReopenRebuildsTornIndex() throws Exception {
+    DeltaStore store = newDeltaStore();
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.append(ImmutableList.of(createRecord(0)));
+    wavelet.append(ImmutableList.of(createRecord(2)));
+    wavelet.close();
+
+    // Leave the second delta only partially indexed.
+    File indexFile = FileDeltaCollection.indexFile(path.getAbsolutePath(), WAVE1_WAVELET1);
+    RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+    index.setLength(3 * 8);
+    index.close();
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(4, wavelet.getEndVersion().getVersion());
+    assertNotNull(wavelet.getDelta(0));
+    assertNotNull(wavelet.getDelta(2));
+    wavelet.close();
+    assertEquals(4 * 8, indexFile.length());
+  }
+
+  public void testReopenRebuildsIndexAheadOfDeltas() throws Exception {
+    DeltaStore store = newDeltaStore();
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.append(ImmutableList.of(createRecord(0)));
+    wavelet.close();
+    File deltaFile = FileDeltaCollection.deltasFile(path.getAbsolutePath(), WAVE1_WAVELET1);
+    long firstDeltaEnd = deltaFile.length();
+    wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.append(ImmutableList.of(createRecord(2)));
+    wavelet.close();
+
+    // Lose the second delta, as if the process crashed after indexing it.
+    RandomAccessFile deltas = new RandomAccessFile(deltaFile, "rw");
+    deltas.setLength(firstDeltaEnd);
+    deltas.close();
+
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(2, wavelet.getEndVersion().getVersion());
+    assertNotNull(wavelet.getDelta(0));
+    assertNull(wavelet.getDelta(2));
+    wavelet.close();
+  }
+
+  public void testReadsDeltasAppendedAfterEarlierReads() throws Exception {
+    DeltaStore store = newDeltaStore();
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    WaveletDeltaRecord first = createRecord(0);
+    WaveletDeltaRecord second = createRecord(2);
+    wavelet.append(ImmutableList.of(first));
+    assertEquals(first, wavelet.getDelta(0));
+
+    wavelet.append(ImmutableList.of(second));
+    assertEquals(first, wavelet.getDelta(0));
+    assertEquals(second, wavelet.getDelta(2));
+    assertEquals(second, wavelet.getDeltaByEndVersion(4));
+    assertEquals(second.getTransformedDelta(), wavelet.getTransformedDelta(2));
+    assertEquals(second.getAppliedDelta(), wavelet.getAppliedDelta(2));
+    wavelet.close();
+  }
 }
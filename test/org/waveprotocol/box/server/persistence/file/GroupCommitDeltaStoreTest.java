@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.waveprotocol.box.server.persistence.DeltaStoreTestBase;
+import org.waveprotocol.box.server.waveserver.DeltaStore;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the SegmentedDeltaStore tests with group committed appends.
+ */
+public class GroupCommitDeltaStoreTest extends DeltaStoreTestBase {
+
+  private File path;
+  private final List<SegmentedDeltaStore> stores = Lists.newArrayList();
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+    super.setUp();
+  }
+
+  @Override
+  protected DeltaStore newDeltaStore() {
+    SegmentedDeltaStore store = new SegmentedDeltaStore(path.getAbsolutePath(), 64 * 1024, 5);
+    stores.add(store);
+    return store;
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (SegmentedDeltaStore store : stores) {
+      store.close();
+    }
+    super.tearDown();
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+  }
+
+  public void testConcurrentAppendsToDifferentWavelets() throws Exception {
+    final DeltaStore store = newDeltaStore();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<?>[] appends = new Future<?>[8];
+      for (int i = 0; i < appends.length; i++) {
+        final WaveletName name =
+            WaveletName.of(WaveId.of("example.com", "wave" + i),
+                WaveletId.of("example.com", "wavelet"));
+        appends[i] = executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            DeltasAccess wavelet = store.open(name);
+            wavelet.append(ImmutableList.of(createRecord(0)));
+            wavelet.append(ImmutableList.of(createRecord(2)));
+            wavelet.close();
+            return null;
+          }
+        });
+      }
+      for (Future<?> append : appends) {
+        append.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    for (int i = 0; i < 8; i++) {
+      DeltasAccess wavelet = store.open(WaveletName.of(WaveId.of("example.com", "wave" + i),
+          WaveletId.of("example.com", "wavelet")));
+      assertEquals(4, wavelet.getEndVersion().getVersion());
+      assertEquals(createRecord(2), wavelet.getDelta(2));
+      wavelet.close();
+    }
+  }
+}
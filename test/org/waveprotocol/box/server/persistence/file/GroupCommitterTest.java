@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.persistence.file;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link GroupCommitter}.
+ */
+public class GroupCommitterTest extends TestCase {
+
+  /** Counts forces, and blocks them while {@link #release} is closed. */
+  private static class TestCommitter extends GroupCommitter {
+    final CountDownLatch forcing = new CountDownLatch(1);
+    volatile CountDownLatch release = new CountDownLatch(0);
+    volatile IOException failure = null;
+    final AtomicInteger forces = new AtomicInteger();
+
+    TestCommitter() {
+      super(0);
+    }
+
+    @Override
+    void force(FileChannel channel) throws IOException {
+      forces.incrementAndGet();
+      forcing.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  private TestCommitter committer;
+  private ExecutorService executor;
+  private File path;
+  private RandomAccessFile file;
+  private FileChannel channel;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    committer = new TestCommitter();
+    executor = Executors.newCachedThreadPool();
+    path = File.createTempFile("commit", ".bin");
+    file = new RandomAccessFile(path, "rw");
+    channel = file.getChannel();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    file.close();
+    path.delete();
+    super.tearDown();
+  }
+
+  public void testSyncForcesChannel() throws Exception {
+    committer.sync(channel);
+    assertEquals(1, committer.forces.get());
+    assertEquals(1, committer.getSyncCount());
+    assertEquals(1, committer.getForceCount());
+  }
+
+  public void testSyncsDuringForceShareOneForce() throws Exception {
+    committer.release = new CountDownLatch(1);
+    Future<?> first = submitSync();
+    assertTrue(committer.forcing.await(5, TimeUnit.SECONDS));
+    Future<?>[] others = new Future<?>[4];
+    for (int i = 0; i < others.length; i++) {
+      others[i] = submitSync();
+    }
+    while (committer.getSyncCount() < 1 + others.length) {
+      Thread.sleep(1);
+    }
+    committer.release.countDown();
+
+    first.get(5, TimeUnit.SECONDS);
+    for (Future<?> other : others) {
+      other.get(5, TimeUnit.SECONDS);
+    }
+    // The first sync forces on its own, the others join one batch after it.
+    assertEquals(2, committer.forces.get());
+    assertEquals(5, committer.getSyncCount());
+    assertEquals(2, committer.getForceCount());
+  }
+
+  public void testForceFailureFailsSync() throws Exception {
+    committer.failure = new IOException("disk full");
+    try {
+      submitSync().get(5, TimeUnit.SECONDS);
+      fail("Expected the sync to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  private Future<?> submitSync() {
+    return executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        committer.sync(channel);
+        return null;
+      }
+    });
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.persistence.file;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for {@link MappedFileReader}.
+ */
+public class MappedFileReaderTest extends TestCase {
+  private static final int CHUNK_SIZE = 16;
+
+  private File path;
+  private RandomAccessFile file;
+  private MappedFileReader reader;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    path = File.createTempFile("mapped", ".bin");
+    file = new RandomAccessFile(path, "rw");
+    reader = new MappedFileReader(file.getChannel(), CHUNK_SIZE);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.close();
+    path.delete();
+    super.tearDown();
+  }
+
+  public void testReadsWithinAChunk() throws Exception {
+    append(40);
+    assertBytes(reader.read(2, 10), 2, 10);
+    assertBytes(reader.read(16, 16), 16, 16);
+    assertEquals(0, reader.read(40, 0).remaining());
+  }
+
+  public void testReadsAcrossChunks() throws Exception {
+    append(40);
+    assertBytes(reader.read(10, 30), 10, 30);
+  }
+
+  public void testReadsBytesAppendedAfterMapping() throws Exception {
+    append(10);
+    assertBytes(reader.read(0, 10), 0, 10);
+    append(30);
+    assertBytes(reader.read(10, 4), 10, 4);
+    assertBytes(reader.read(14, 26), 14, 26);
+  }
+
+  public void testReadBeyondEndFails() throws Exception {
+    append(10);
+    try {
+      reader.read(5, 6);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // pass
+    }
+  }
+
+  /** Appends bytes whose values are their positions in the file. */
+  private void append(int count) throws IOException {
+    long start = file.length();
+    file.seek(start);
+    for (int i = 0; i < count; i++) {
+      file.write((int) (start + i));
+    }
+  }
+
+  private static void assertBytes(ByteBuffer buffer, int position, int length) {
+    assertEquals(length, buffer.remaining());
+    for (int i = 0; i < length; i++) {
+      assertEquals((byte) (position + i), buffer.get());
+    }
+  }
+}
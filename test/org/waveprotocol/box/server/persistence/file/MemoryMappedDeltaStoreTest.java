@@ -0,0 +1,33 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import org.waveprotocol.box.server.waveserver.DeltaStore;
+
+/**
+ * Runs the FileDeltaStore tests with memory mapped reads.
+ */
+public class MemoryMappedDeltaStoreTest extends DeltaStoreTest {
+
+  @Override
+  protected DeltaStore newDeltaStore() {
+    return new FileDeltaStore(path.getAbsolutePath(), true);
+  }
+}
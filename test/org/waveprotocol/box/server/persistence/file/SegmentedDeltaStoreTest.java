@@ -0,0 +1,232 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.persistence.file;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.waveprotocol.box.server.persistence.DeltaStoreTestBase;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.box.server.waveserver.DeltaStore;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Tests for SegmentedDeltaStore.
+ */
+public class SegmentedDeltaStoreTest extends DeltaStoreTestBase {
+
+  private static final WaveletName WAVE1_WAVELET1 =
+      WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet1"));
+  private static final WaveletName WAVE2_WAVELET1 =
+      WaveletName.of(WaveId.of("example.com", "wave2"), WaveletId.of("example.com", "wavelet1"));
+
+  private File path;
+  private final List<SegmentedDeltaStore> stores = Lists.newArrayList();
+
+  @Override
+  protected void setUp() throws Exception {
+    path = FileUtils.createTemporaryDirectory();
+    super.setUp();
+  }
+
+  @Override
+  protected DeltaStore newDeltaStore() {
+    return newDeltaStore(64 * 1024);
+  }
+
+  private SegmentedDeltaStore newDeltaStore(long segmentBytes) {
+    SegmentedDeltaStore store = new SegmentedDeltaStore(path.getAbsolutePath(), segmentBytes, 0);
+    stores.add(store);
+    return store;
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (SegmentedDeltaStore store : stores) {
+      store.close();
+    }
+    super.tearDown();
+    org.apache.commons.io.FileUtils.deleteDirectory(path);
+    assertFalse(path.exists());
+  }
+
+  public void testWaveletsShareSegments() throws Exception {
+    DeltaStore store = newDeltaStore();
+    for (int i = 0; i < 10; i++) {
+      append(store, WaveletName.of(WaveId.of("example.com", "wave" + i),
+          WaveletId.of("example.com", "wavelet")), createRecord(0));
+    }
+    assertEquals(1, segmentFiles().length);
+  }
+
+  public void testReopenRecoversDeltasAndSnapshot() throws Exception {
+    SegmentedDeltaStore store = newDeltaStore(64 * 1024);
+    append(store, WAVE1_WAVELET1, createRecord(0));
+    WaveletDeltaRecord second = createRecord(2);
+    append(store, WAVE1_WAVELET1, second);
+    ReadableWaveletData snapshot = WaveletDataUtil.buildWaveletFromFirstDelta(WAVE1_WAVELET1,
+        createRecord(0).getTransformedDelta());
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    wavelet.storeSnapshot(snapshot);
+    wavelet.close();
+    store.close();
+
+    store = newDeltaStore(64 * 1024);
+    assertEquals(ImmutableSet.of(WAVE1_WAVELET1.waveletId), store.lookup(WAVE1_WAVELET1.waveId));
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(second.getResultingVersion(), wavelet.getEndVersion());
+    assertEquals(second, wavelet.getDelta(2));
+    assertEquals(second, wavelet.getDeltaByEndVersion(4));
+    assertEquals(snapshot.getHashedVersion(), wavelet.loadSnapshot().getHashedVersion());
+    wavelet.close();
+  }
+
+  public void testReopenTruncatesTornRecord() throws Exception {
+    SegmentedDeltaStore store = newDeltaStore(64 * 1024);
+    append(store, WAVE1_WAVELET1, createRecord(0));
+    File segment = segmentFiles()[0];
+    long firstRecordEnd = segment.length();
+    append(store, WAVE1_WAVELET1, createRecord(2));
+    store.close();
+
+    // Tear the second record, as if the process crashed while writing it.
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    file.setLength(segment.length() - 1);
+    file.close();
+
+    store = newDeltaStore(64 * 1024);
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(2, wavelet.getEndVersion().getVersion());
+    assertNull(wavelet.getDelta(2));
+    wavelet.close();
+    assertEquals(firstRecordEnd, segment.length());
+
+    // New records are appended after the last intact one.
+    WaveletDeltaRecord second = createRecord(2);
+    append(store, WAVE1_WAVELET1, second);
+    store.close();
+    store = newDeltaStore(64 * 1024);
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(second, wavelet.getDelta(2));
+    wavelet.close();
+  }
+
+  public void testReopenKeepsDeletedWaveletsDeleted() throws Exception {
+    SegmentedDeltaStore store = newDeltaStore(64 * 1024);
+    append(store, WAVE1_WAVELET1, createRecord(0));
+    append(store, WAVE2_WAVELET1, createRecord(0));
+    store.delete(WAVE1_WAVELET1);
+    store.close();
+
+    store = newDeltaStore(64 * 1024);
+    assertTrue(store.lookup(WAVE1_WAVELET1.waveId).isEmpty());
+    assertEquals(ImmutableSet.of(WAVE2_WAVELET1.waveletId), store.lookup(WAVE2_WAVELET1.waveId));
+  }
+
+  public void testAppendsStartNewSegmentsWhenFull() throws Exception {
+    // Each segment only has room for one record.
+    SegmentedDeltaStore store = newDeltaStore(1);
+    append(store, WAVE1_WAVELET1, createRecord(0));
+    append(store, WAVE1_WAVELET1, createRecord(2));
+    append(store, WAVE2_WAVELET1, createRecord(0));
+    assertEquals(3, store.getSegmentCount());
+    store.close();
+
+    store = newDeltaStore(1);
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(4, wavelet.getEndVersion().getVersion());
+    assertEquals(createRecord(0), wavelet.getDelta(0));
+    assertEquals(createRecord(2), wavelet.getDelta(2));
+    wavelet.close();
+  }
+
+  public void testCompactionDeletesSegmentsOfDeletedWavelets() throws Exception {
+    SegmentedDeltaStore store = newDeltaStore(1);
+    append(store, WAVE1_WAVELET1, createRecord(0));
+    append(store, WAVE2_WAVELET1, createRecord(0));
+    append(store, WAVE1_WAVELET1, createRecord(2));
+    store.delete(WAVE1_WAVELET1);
+    assertEquals(4, store.getSegmentCount());
+
+    // The segments of the deleted wavelet are dropped. The segment holding the
+    // tombstone is still being appended to.
+    assertEquals(2, store.compact());
+    assertEquals(2, store.getSegmentCount());
+    DeltasAccess wavelet = store.open(WAVE2_WAVELET1);
+    assertEquals(createRecord(0), wavelet.getDelta(0));
+    wavelet.close();
+    store.close();
+
+    store = newDeltaStore(1);
+    assertTrue(store.lookup(WAVE1_WAVELET1.waveId).isEmpty());
+    wavelet = store.open(WAVE2_WAVELET1);
+    assertEquals(createRecord(0), wavelet.getDelta(0));
+    wavelet.close();
+  }
+
+  public void testCompactionKeepsLatestSnapshot() throws Exception {
+    SegmentedDeltaStore store = newDeltaStore(1);
+    append(store, WAVE1_WAVELET1, createRecord(0));
+    append(store, WAVE1_WAVELET1, createRecord(2));
+    DeltasAccess wavelet = store.open(WAVE1_WAVELET1);
+    ReadableWaveletData snapshot = WaveletDataUtil.buildWaveletFromFirstDelta(WAVE1_WAVELET1,
+        createRecord(0).getTransformedDelta());
+    wavelet.storeSnapshot(snapshot);
+    wavelet.storeSnapshot(snapshot);
+    wavelet.close();
+
+    // Only the segment of the replaced snapshot is dead.
+    assertEquals(1, store.compact());
+    store.close();
+
+    store = newDeltaStore(1);
+    wavelet = store.open(WAVE1_WAVELET1);
+    assertEquals(4, wavelet.getEndVersion().getVersion());
+    assertEquals(snapshot.getHashedVersion(), wavelet.loadSnapshot().getHashedVersion());
+    wavelet.close();
+  }
+
+  private static void append(DeltaStore store, WaveletName waveletName,
+      WaveletDeltaRecord record) throws Exception {
+    DeltasAccess wavelet = store.open(waveletName);
+    wavelet.append(ImmutableList.of(record));
+    wavelet.close();
+  }
+
+  private File[] segmentFiles() {
+    return path.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(LogSegment.FILE_SUFFIX);
+      }
+    });
+  }
+}
@@ -0,0 +1,206 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.persistence.migration;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.box.server.util.testing.TestingConstants;
+import org.waveprotocol.box.server.waveserver.ByteStringMessage;
+import org.waveprotocol.box.server.waveserver.DeltaStore;
+import org.waveprotocol.box.server.waveserver.DeltaStore.DeltasAccess;
+import org.waveprotocol.box.server.waveserver.WaveletDeltaRecord;
+import org.waveprotocol.wave.federation.Proto.ProtocolAppliedWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.testing.DeltaTestUtil;
+import org.waveprotocol.wave.model.version.HashedVersion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link DeltaMigration}, {@link DeltaStreamWriter} and
+ * {@link DeltaStreamReader}.
+ */
+public class DeltaMigrationTest extends TestCase {
+  private static final WaveletName WAVE1_WAVELET1 =
+      WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet1"));
+  private static final WaveletName WAVE1_WAVELET2 =
+      WaveletName.of(WaveId.of("example.com", "wave1"), WaveletId.of("example.com", "wavelet2"));
+  private static final WaveletName WAVE2_WAVELET1 =
+      WaveletName.of(WaveId.of("example.com", "wave2"), WaveletId.of("example.com", "wavelet1"));
+
+  private static final DeltaTestUtil UTIL = new DeltaTestUtil(TestingConstants.PARTICIPANT);
+
+  private DeltaStore source;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    source = new MemoryDeltaStore();
+    append(source, WAVE1_WAVELET1, 5);
+    append(source, WAVE1_WAVELET2, 1);
+    append(source, WAVE2_WAVELET1, 3);
+  }
+
+  public void testImportCopiesAllWavelets() throws Exception {
+    DeltaStore target = new MemoryDeltaStore();
+
+    assertEquals(3, DeltaMigration.importDeltas(exportSource(), target, 2));
+
+    assertEquals(ImmutableSet.of(WAVE1_WAVELET1.waveletId, WAVE1_WAVELET2.waveletId),
+        target.lookup(WAVE1_WAVELET1.waveId));
+    assertEquals(ImmutableSet.of(WAVE2_WAVELET1.waveletId), target.lookup(WAVE2_WAVELET1.waveId));
+    assertEquals(readAll(source, WAVE1_WAVELET1), readAll(target, WAVE1_WAVELET1));
+    assertEquals(readAll(source, WAVE1_WAVELET2), readAll(target, WAVE1_WAVELET2));
+    assertEquals(readAll(source, WAVE2_WAVELET1), readAll(target, WAVE2_WAVELET1));
+  }
+
+  public void testImportSkipsWaveletsWithDeltas() throws Exception {
+    DeltaStore target = new MemoryDeltaStore();
+    append(target, WAVE1_WAVELET2, 2);
+    List<WaveletDeltaRecord> existing = readAll(target, WAVE1_WAVELET2);
+
+    assertEquals(2, DeltaMigration.importDeltas(exportSource(), target, 100));
+
+    assertEquals(existing, readAll(target, WAVE1_WAVELET2));
+    assertEquals(readAll(source, WAVE1_WAVELET1), readAll(target, WAVE1_WAVELET1));
+    assertEquals(readAll(source, WAVE2_WAVELET1), readAll(target, WAVE2_WAVELET1));
+  }
+
+  public void testImportResumesPartiallyWrittenWavelets() throws Exception {
+    DeltaStore target = new MemoryDeltaStore();
+    append(target, WAVE1_WAVELET1, 2);
+
+    assertEquals(3, DeltaMigration.importDeltas(exportSource(), target, 2));
+
+    assertEquals(readAll(source, WAVE1_WAVELET1), readAll(target, WAVE1_WAVELET1));
+    assertEquals(readAll(source, WAVE1_WAVELET2), readAll(target, WAVE1_WAVELET2));
+    assertEquals(readAll(source, WAVE2_WAVELET1), readAll(target, WAVE2_WAVELET1));
+  }
+
+  public void testImportRejectsWaveletsWithOtherDeltas() throws Exception {
+    DeltaStore target = new MemoryDeltaStore();
+    DeltasAccess access = target.open(WAVE1_WAVELET1);
+    access.append(ImmutableList.of(createRecord(0, (byte) 7)));
+    access.close();
+
+    try {
+      DeltaMigration.importDeltas(exportSource(), target, 100);
+      fail("Expected a PersistenceException");
+    } catch (PersistenceException expected) {
+      // Expected.
+    }
+  }
+
+  public void testReaderRejectsTruncatedStream() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeltaStreamWriter writer = new DeltaStreamWriter(out);
+    DeltaMigration.exportDeltas(source, writer);
+    writer.close();
+    byte[] bytes = out.toByteArray();
+
+    DeltaStreamReader reader =
+        new DeltaStreamReader(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)));
+    try {
+      DeltaMigration.importDeltas(reader, new MemoryDeltaStore(), 100);
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+
+  public void testReaderRejectsOtherStreams() throws Exception {
+    try {
+      new DeltaStreamReader(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9}));
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+
+  private DeltaStreamReader exportSource() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeltaStreamWriter writer = new DeltaStreamWriter(out);
+    assertEquals(3, DeltaMigration.exportDeltas(source, writer));
+    writer.close();
+    return new DeltaStreamReader(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  private static List<WaveletDeltaRecord> readAll(DeltaStore store, WaveletName waveletName)
+      throws Exception {
+    DeltasAccess access = store.open(waveletName);
+    ImmutableList.Builder<WaveletDeltaRecord> records = ImmutableList.builder();
+    for (long version = 0; version < access.getEndVersion().getVersion(); version += 2) {
+      records.add(access.getDelta(version));
+    }
+    access.close();
+    return records.build();
+  }
+
+  /** Appends deltas of two operations each to a wavelet. */
+  private static void append(DeltaStore store, WaveletName waveletName, int count)
+      throws Exception {
+    DeltasAccess access = store.open(waveletName);
+    for (int i = 0; i < count; i++) {
+      access.append(ImmutableList.of(createRecord(i * 2)));
+    }
+    access.close();
+  }
+
+  private static WaveletDeltaRecord createRecord(long version) {
+    return createRecord(version, (byte) 3);
+  }
+
+  /** Creates a delta of two operations, with hashes starting with the given byte. */
+  private static WaveletDeltaRecord createRecord(long version, byte hashPrefix) {
+    HashedVersion targetVersion =
+        HashedVersion.of(version, new byte[] {hashPrefix, 2, (byte) version});
+    HashedVersion resultingVersion =
+        HashedVersion.of(version + 2, new byte[] {hashPrefix, 2, (byte) (version + 2)});
+    TransformedWaveletDelta transformed = TransformedWaveletDelta.cloneOperations(
+        TestingConstants.PARTICIPANT, resultingVersion, 1234567890 + version,
+        ImmutableList.of(UTIL.noOp(), UTIL.addParticipant(TestingConstants.OTHER_PARTICIPANT)));
+    ProtocolWaveletDelta serializedDelta = CoreWaveletOperationSerializer.serialize(transformed);
+    ProtocolSignedDelta signedDelta = ProtocolSignedDelta.newBuilder()
+        .setDelta(ByteStringMessage.serializeMessage(serializedDelta).getByteString()).build();
+    ProtocolAppliedWaveletDelta delta = ProtocolAppliedWaveletDelta.newBuilder()
+        .setApplicationTimestamp(1234567890 + version)
+        .setHashedVersionAppliedAt(CoreWaveletOperationSerializer.serialize(targetVersion))
+        .setSignedOriginalDelta(signedDelta).setOperationsApplied(2).build();
+    return new WaveletDeltaRecord(targetVersion, ByteStringMessage.serializeMessage(delta),
+        transformed);
+  }
+}
@@ -22,12 +22,14 @@ package org.waveprotocol.box.server.robots;
 import junit.framework.TestCase;
 
 import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.wave.model.document.Document;
 import org.waveprotocol.wave.model.document.operation.DocInitialization;
 import org.waveprotocol.wave.model.document.operation.impl.DocInitializationBuilder;
 import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.wave.AddParticipant;
 import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
+import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.version.HashedVersionFactory;
 import org.waveprotocol.wave.model.version.HashedVersionZeroFactoryImpl;
@@ -56,12 +58,13 @@ public class RobotWaveletTest extends TestCase {
   private static final ParticipantId BOB = ParticipantId.ofUnsafe("bob@example.com");
   private static final ParticipantId TRIXIE = ParticipantId.ofUnsafe("trixie@example.com");
 
+  private ObservableWaveletData waveletData;
   private RobotWaveletData wavelet;
   private HashedVersion hashedVersionZero;
 
   @Override
   protected void setUp() {
-    ObservableWaveletData waveletData = WaveletDataUtil.createEmptyWavelet(WAVELET_NAME, ALEX,
+    waveletData = WaveletDataUtil.createEmptyWavelet(WAVELET_NAME, ALEX,
         HASH_FACTORY.createVersionZero(WAVELET_NAME), 0L);
     DocInitialization content = new DocInitializationBuilder().characters("Hello there").build();
     waveletData.createDocument("b+example", ALEX, Collections.singletonList(ALEX), content, 0L, 0);
@@ -120,4 +123,28 @@ public class RobotWaveletTest extends TestCase {
     assertEquals("Expected Alex to be first", ALEX, deltas.get(0).getAuthor());
     assertEquals("Expected Bob to be the second author", BOB, deltas.get(1).getAuthor());
   }
+
+  public void testConsecutiveContentOpsAreComposed() throws Exception {
+    OpBasedWavelet waveletAlex = wavelet.getOpBasedWavelet(ALEX);
+    Document doc = waveletAlex.getDocument("b+example");
+    doc.insertText(doc.size() - 1, " Bob");
+    doc.insertText(doc.size() - 1, " and");
+    doc.insertText(doc.size() - 1, " Trixie");
+    waveletAlex.addParticipant(TRIXIE);
+    doc.insertText(doc.size() - 1, "!");
+
+    List<WaveletDelta> deltas = wavelet.getDeltas();
+    assertEquals(1, deltas.size());
+    // Adding Trixie adds Alex as well.
+    assertEquals(6, wavelet.getOperationCount());
+    assertEquals("Expected the first three ops to be composed", 4, deltas.get(0).size());
+
+    // The composed ops change the document just as the original ones did.
+    for (WaveletOperation op : deltas.get(0)) {
+      op.apply(waveletData);
+    }
+    assertEquals(doc.toXmlString(), waveletData.getDocument("b+example").getContent()
+        .getMutableDocument().toXmlString());
+    assertTrue(waveletData.getParticipants().contains(TRIXIE));
+  }
 }
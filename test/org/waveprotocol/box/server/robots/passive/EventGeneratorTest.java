@@ -419,8 +419,63 @@ public class EventGeneratorTest extends RobotsTestBase {
         EventType.WAVELET_BLIP_CREATED, EventType.WAVELET_SELF_REMOVED);
   }
 
+  /**
+   * Tests that a model kept alive between bundles of a wave with many blips
+   * yields the same events as one built anew for every bundle.
+   */
+  public void testLiveModelGeneratesSameEventsAsNewModel() throws Exception {
+    ObservableConversationThread rootThread =
+        conversationUtil.buildConversation(wavelet).getRoot().getRootThread();
+    for (int i = 0; i < 1000; i++) {
+      rootThread.appendBlip();
+    }
+    output.clear();
+    EventGenerator liveGenerator = new EventGenerator(ROBOT_NAME, conversationUtil, 4);
+    EventGenerator newGenerator = new EventGenerator(ROBOT_NAME, conversationUtil, 0);
+
+    for (int i = 0; i < 3; i++) {
+      ObservableConversationView conversation = conversationUtil.buildConversation(wavelet);
+      ObservableConversationBlip newBlip = conversation.getRoot().getRootThread().appendBlip();
+      XmlStringBuilder builder = XmlStringBuilder.createText("some random content " + i);
+      LineContainers.appendToLastLine(newBlip.getContent(), builder);
+      wavelet.addParticipant(ParticipantId.ofUnsafe("participant" + i + "@example.com"));
+      List<WaveletOperation> ops = Lists.newArrayList(output.getOps());
+      HashedVersion endVersion = HashedVersion.unsigned(waveletData.getVersion());
+      TransformedWaveletDelta delta = makeDeltaFromCapturedOps(ALEX, ops, endVersion, 0L);
+      output.clear();
+      WaveletAndDeltas waveletAndDeltas =
+          WaveletAndDeltas.create(waveletData, DeltaSequence.of(delta));
+
+      EventMessageBundle liveMessages =
+          liveGenerator.generateEvents(waveletAndDeltas, ALL_CAPABILITIES, CONVERTER);
+      EventMessageBundle newMessages =
+          newGenerator.generateEvents(waveletAndDeltas, ALL_CAPABILITIES, CONVERTER);
+      assertEquals(getEventTypes(newMessages), getEventTypes(liveMessages));
+      assertEquals(newMessages.getRequiredBlips().keySet(),
+          liveMessages.getRequiredBlips().keySet());
+    }
+    assertEquals("Only the first bundle should build the model", 1,
+        liveGenerator.getStats().getBuiltModelCount());
+    assertEquals(2, liveGenerator.getStats().getReusedModelCount());
+    assertEquals(3, newGenerator.getStats().getBuiltModelCount());
+
+    Map<String, Number> stats = Maps.newLinkedHashMap();
+    liveGenerator.getStats().collectStats(stats);
+    assertEquals(2L, stats.get("reused"));
+    assertEquals(1L, stats.get("built"));
+    assertEquals(0L, stats.get("evicted"));
+  }
+
   // Helper Methods.
 
+  private static List<EventType> getEventTypes(EventMessageBundle messages) {
+    List<EventType> types = Lists.newArrayList();
+    for (Event event : messages.getEvents()) {
+      types.add(event.getType());
+    }
+    return types;
+  }
+
   /**
    * Collects the ops applied to wavelet and creates a delta for processing in
    * the event generator. The delta author is default human participantId
@@ -25,6 +25,9 @@ import static org.mockito.Mockito.when;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.wave.api.InvalidRequestException;
 import com.google.wave.api.OperationRequest;
 import com.google.wave.api.ProtocolVersion;
@@ -124,6 +127,32 @@ public class RobotConnectorTest extends TestCase {
     assertTrue("Expected no operations to be returned", operations.isEmpty());
   }
 
+  public void testSuccessfulAsyncSendMessageBundle() throws Exception {
+    final List<OperationRequest> expectedOperations = Collections.unmodifiableList(
+        Lists.newArrayList(new OperationRequest("wavelet.setTitle", "op1")));
+    SettableFuture<String> response = SettableFuture.create();
+
+    when(serializer.serialize(BUNDLE, PROTOCOL_VERSION)).thenReturn(SERIALIZED_BUNDLE);
+    when(connection.asyncPostJson(TEST_RPC_ENDPOINT, SERIALIZED_BUNDLE)).thenReturn(response);
+    when(serializer.deserializeOperations(RETURNED_OPERATION)).thenReturn(expectedOperations);
+
+    ListenableFuture<List<OperationRequest>> operations =
+        connector.asyncSendMessageBundle(BUNDLE, robot, PROTOCOL_VERSION);
+    assertFalse("Expected the send not to wait for the response", operations.isDone());
+    response.set(RETURNED_OPERATION);
+    assertEquals(expectedOperations, operations.get());
+  }
+
+  public void testAsyncConnectionFailsSafely() throws Exception {
+    when(serializer.serialize(BUNDLE, PROTOCOL_VERSION)).thenReturn(SERIALIZED_BUNDLE);
+    when(connection.asyncPostJson(TEST_RPC_ENDPOINT, SERIALIZED_BUNDLE)).thenReturn(
+        Futures.<String>immediateFailedFuture(new RobotConnectionException("Connection Failed")));
+
+    List<OperationRequest> operations =
+        connector.asyncSendMessageBundle(BUNDLE, robot, PROTOCOL_VERSION).get();
+    assertTrue("Expected no operations to be returned", operations.isEmpty());
+  }
+
   public void testFetchCapabilities() throws Exception {
     when(connection.get(TEST_CAPABILITIES_ENDPOINT)).thenReturn(CAPABILITIES_XML);
 
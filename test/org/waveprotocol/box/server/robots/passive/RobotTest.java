@@ -20,6 +20,7 @@
 package org.waveprotocol.box.server.robots.passive;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.eq;
@@ -29,7 +30,10 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.wave.api.OperationRequest;
 import com.google.wave.api.ProtocolVersion;
 import com.google.wave.api.data.converter.EventDataConverter;
@@ -220,6 +224,71 @@ public class RobotTest extends TestCase {
         eq(ops), any(ReadableWaveletData.class), any(HashedVersion.class), eq(INITIALIZED_ACCOUNT));
   }
 
+  @SuppressWarnings("unchecked")
+  public void testAsyncRunSendsDistinctWaveletsConcurrentlyAndEachInOrder() throws Exception {
+    robot = new Robot(ROBOT_NAME, INITIALIZED_ACCOUNT, gateway, connector, converterManager,
+        waveletProvider, eventGenerator, operationApplicator, 2,
+        MoreExecutors.sameThreadExecutor());
+    EventMessageBundle messages = new EventMessageBundle(ROBOT_NAME.toEmailAddress(), "");
+    messages.addEvent(new DocumentChangedEvent(null, null, ALEX.getAddress(), 0L, "b+1234"));
+    when(eventGenerator.generateEvents(
+        any(WaveletAndDeltas.class), anyMap(), any(EventDataConverter.class))).thenReturn(messages);
+    final List<SettableFuture<List<OperationRequest>>> responses = Lists.newArrayList();
+    when(connector.asyncSendMessageBundle(
+        any(EventMessageBundle.class), eq(robot), any(ProtocolVersion.class))).thenAnswer(
+        new Answer<SettableFuture<List<OperationRequest>>>() {
+          @Override
+          public SettableFuture<List<OperationRequest>> answer(InvocationOnMock invocation) {
+            SettableFuture<List<OperationRequest>> response = SettableFuture.create();
+            responses.add(response);
+            return response;
+          }
+        });
+
+    // Two updates of one wavelet which can't be merged, and another wavelet.
+    WaveletName otherWaveletName =
+        WaveletName.of("example.com", "waveid2", "example.com", "waveletid");
+    enqueueEmptyWavelet();
+    robot.waveletUpdate(makeWaveletAtVersionTwo(), DeltaSequence.of(makeDeltaToVersionTwo()));
+    robot.waveletUpdate(WaveletDataUtil.createEmptyWavelet(otherWaveletName, ALEX,
+        HASH_FACTORY.createVersionZero(otherWaveletName), 0L), DeltaSequence.empty());
+
+    robot.run();
+    assertEquals("One bundle per wavelet should be in flight", 2, responses.size());
+    assertEquals(2, robot.getInFlightCount());
+    verify(gateway).doneRunning(robot);
+
+    List<OperationRequest> ops =
+        Collections.singletonList(new OperationRequest("wavelet.fetch", "op1"));
+    responses.get(0).set(ops);
+    verify(operationApplicator).applyOperations(eq(ops), any(ReadableWaveletData.class),
+        eq(HASH_FACTORY.createVersionZero(WAVELET_NAME)), eq(INITIALIZED_ACCOUNT));
+    assertEquals(1, robot.getInFlightCount());
+    assertEquals(1, robot.getSentBundleCount());
+    verify(gateway).ensureScheduled(robot);
+
+    // Now the second update of the first wavelet may be sent.
+    robot.run();
+    assertEquals(3, responses.size());
+    assertEquals(2, robot.getInFlightCount());
+    assertNull(robot.dequeueWavelet());
+  }
+
+  public void testRunHoldsBackUpdatesWithinCoalesceWindow() throws Exception {
+    robot = new Robot(ROBOT_NAME, INITIALIZED_ACCOUNT, gateway, connector, converterManager,
+        waveletProvider, eventGenerator, operationApplicator, 1,
+        MoreExecutors.sameThreadExecutor(), 60000);
+    enqueueEmptyWavelet();
+    assertNull("The update should be held back", robot.dequeueWavelet());
+
+    robot.run();
+    verify(gateway).doneRunning(robot);
+    verify(gateway).scheduleAfter(eq(robot), anyLong());
+    verify(gateway, never()).ensureScheduled(robot);
+    verify(eventGenerator, never()).generateEvents(
+        any(WaveletAndDeltas.class), anyMap(), any(EventDataConverter.class));
+  }
+
   /**
    * Enqueues an empty wavelet into the {@link Robot}.
    */
@@ -229,4 +298,22 @@ public class RobotTest extends TestCase {
         hashedVersionZero, 0L);
     robot.waveletUpdate(waveletData, DeltaSequence.empty());
   }
+
+  private static TransformedWaveletDelta makeDeltaToVersionTwo() {
+    HashedVersion v2 = HashedVersion.unsigned(2);
+    WaveletOperation addBob = new AddParticipant(new WaveletOperationContext(ALEX, 0L, 1, v2),
+        ParticipantId.ofUnsafe("bob@example.com"));
+    return new TransformedWaveletDelta(ALEX, v2, 0L, Collections.singletonList(addBob));
+  }
+
+  private static WaveletData makeWaveletAtVersionTwo() throws Exception {
+    WaveletData waveletData = WaveletDataUtil.createEmptyWavelet(WAVELET_NAME, ALEX,
+        HASH_FACTORY.createVersionZero(WAVELET_NAME), 0L);
+    for (WaveletOperation op : makeDeltaToVersionTwo()) {
+      op.apply(waveletData);
+    }
+    waveletData.setHashedVersion(HashedVersion.unsigned(2));
+    waveletData.setVersion(2);
+    return waveletData;
+  }
 }
@@ -22,6 +22,7 @@ package org.waveprotocol.box.server.robots.passive;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -31,11 +32,18 @@ import com.google.wave.api.robot.RobotName;
 
 import junit.framework.TestCase;
 
+import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.server.account.RobotAccountData;
+import org.waveprotocol.box.server.account.RobotAccountDataImpl;
 import org.waveprotocol.box.server.persistence.AccountStore;
 import org.waveprotocol.box.server.robots.operations.NotifyOperationService;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
+import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
 import org.waveprotocol.wave.testing.DeferredExecutor;
 
 /**
@@ -45,6 +53,11 @@ import org.waveprotocol.wave.testing.DeferredExecutor;
  */
 public class RobotsGatewayTest extends TestCase {
 
+  private static final ParticipantId ALEX = ParticipantId.ofUnsafe("alex@example.com");
+  private static final ParticipantId ROBOT = ParticipantId.ofUnsafe("robot@example.com");
+  private static final RobotAccountData ROBOT_ACCOUNT =
+      new RobotAccountDataImpl(ROBOT, "www.example.com", "secret", null, true);
+
   private WaveletProvider waveletProvider;
   private RobotConnector robotConnector;
   private AccountStore accountStore;
@@ -87,6 +100,20 @@ public class RobotsGatewayTest extends TestCase {
     verify(robot).run();
   }
 
+  public void testWaveletUpdateCachesAccountsUntilRegistrationChanges() throws Exception {
+    when(accountStore.getAccount(ROBOT)).thenReturn(ROBOT_ACCOUNT);
+
+    gateway.waveletUpdate(makeWaveletWithRobot("wavelet1"), DeltaSequence.empty());
+    gateway.waveletUpdate(makeWaveletWithRobot("wavelet2"), DeltaSequence.empty());
+    verify(accountStore).getAccount(ALEX);
+    verify(accountStore).getAccount(ROBOT);
+
+    gateway.onRegistrationSuccess(ROBOT_ACCOUNT);
+    gateway.waveletUpdate(makeWaveletWithRobot("wavelet3"), DeltaSequence.empty());
+    verify(accountStore).getAccount(ALEX);
+    verify(accountStore, times(2)).getAccount(ROBOT);
+  }
+
   public void testUpdateRobotAccount() throws Exception {
     Robot robot = mock(Robot.class);
     RobotAccountData account = mock(RobotAccountData.class);
@@ -100,4 +127,13 @@ public class RobotsGatewayTest extends TestCase {
 
     verify(accountStore).putAccount(newAccount);
   }
+
+  private static WaveletData makeWaveletWithRobot(String waveletId) {
+    WaveletName waveletName = WaveletName.of("example.com", "waveid", "example.com", waveletId);
+    WaveletData wavelet = WaveletDataUtil.createEmptyWavelet(waveletName, ALEX,
+        HashedVersion.unsigned(0), 0L);
+    wavelet.addParticipant(ALEX);
+    wavelet.addParticipant(ROBOT);
+    return wavelet;
+  }
 }
@@ -26,6 +26,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.Maps;
 import com.google.wave.api.InvalidRequestException;
 import com.google.wave.api.OperationRequest;
 import com.google.wave.api.OperationType;
@@ -45,6 +46,7 @@ import org.waveprotocol.box.server.util.WaveletDataUtil;
 import org.waveprotocol.box.server.waveserver.WaveletProvider;
 import org.waveprotocol.box.server.waveserver.WaveletProvider.SubmitRequestListener;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.document.Document;
 import org.waveprotocol.wave.model.document.operation.DocInitialization;
 import org.waveprotocol.wave.model.document.operation.impl.DocInitializationBuilder;
 import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
@@ -56,6 +58,7 @@ import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
 import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 
 import java.util.Collections;
+import java.util.Map;
 
 /**
  * Unit tests for {@link OperationUtil}.
@@ -184,6 +187,39 @@ public class OperationUtilTest extends RobotsTestBase {
     verify(waveletProvider).submitRequest(
         eq(WAVELET_NAME), any(ProtocolWaveletDelta.class), eq(requestListener));
   }
+
+  public void testSubmitDeltasRecordsStats() {
+    HashedVersion hashedVersionZero = HASH_FACTORY.createVersionZero(WAVELET_NAME);
+    ObservableWaveletData waveletData = WaveletDataUtil.createEmptyWavelet(WAVELET_NAME, ALEX,
+        hashedVersionZero, 0L);
+    waveletData.addParticipant(BOB);
+    RobotWaveletData wavelet = new RobotWaveletData(waveletData, hashedVersionZero);
+
+    // Two edits of one document by Bob, composed into one operation.
+    Document doc = wavelet.getOpBasedWavelet(BOB).getDocument("b+example");
+    doc.insertText(0, "Hello");
+    doc.insertText(5, " world");
+
+    OperationResults results = mock(OperationResults.class);
+    when(results.getOpenWavelets()).thenReturn(Collections.singletonMap(WAVELET_NAME, wavelet));
+
+    DeltaSubmissionStats stats = new DeltaSubmissionStats();
+    OperationUtil.submitDeltas(results, waveletProvider, mock(SubmitRequestListener.class), stats);
+
+    verify(waveletProvider).submitRequest(
+        eq(WAVELET_NAME), any(ProtocolWaveletDelta.class), any(SubmitRequestListener.class));
+    assertEquals(1, stats.getDeltaCount());
+    assertEquals(2, stats.getOperationCount());
+    assertEquals(1, stats.getSubmittedOperationCount());
+    assertEquals(2.0, stats.getOperationsPerDelta());
+
+    Map<String, Number> collected = Maps.newLinkedHashMap();
+    stats.collectStats(collected);
+    assertEquals(1L, collected.get("deltas"));
+    assertEquals(2L, collected.get("ops"));
+    assertEquals(1L, collected.get("submittedOps"));
+    assertEquals(2.0, collected.get("opsPerDelta"));
+  }
   
   public void testToProxyParticipant() throws Exception {
     ParticipantId participant = ParticipantId.of("foo@example.com");
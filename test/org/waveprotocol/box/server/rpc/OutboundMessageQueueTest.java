@@ -0,0 +1,326 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.box.server.rpc.OutboundMessageQueue.Pending;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link OutboundMessageQueue}.
+ */
+public class OutboundMessageQueueTest extends TestCase {
+
+  private static final String WAVELET = "example.com/w+a/example.com/conv+root";
+
+  /** Records the batches written and whether the connection was closed. */
+  private static class RecordingSink implements OutboundMessageQueue.Sink {
+    final List<List<Pending>> batches = Lists.newArrayList();
+    boolean closed = false;
+    /** Runs during the next write, or is null. */
+    Runnable duringSend;
+
+    @Override
+    public void send(List<Pending> batch) {
+      batches.add(batch);
+      if (duringSend != null) {
+        Runnable task = duringSend;
+        duringSend = null;
+        task.run();
+      }
+    }
+
+    @Override
+    public void overflow() {
+      closed = true;
+    }
+  }
+
+  private RecordingSink sink;
+  private ScheduledExecutorService scheduler;
+  /** Writes on the flushing thread. */
+  private Executor writerPool;
+
+  @Override
+  protected void setUp() throws Exception {
+    sink = new RecordingSink();
+    scheduler = mock(ScheduledExecutorService.class);
+    writerPool = MoreExecutors.sameThreadExecutor();
+  }
+
+  public void testConsecutiveUpdatesAreMerged() {
+    OutboundMessageQueue queue = new OutboundMessageQueue(sink, 10, 0, scheduler, writerPool);
+    queue.enqueue(1, makeUpdate(WAVELET, "ch1", 0, 1));
+    queue.enqueue(1, makeUpdate(WAVELET, "ch1", 1, 2));
+    queue.enqueue(1, makeUpdate(WAVELET, "ch1", 2, 3));
+    assertEquals(1, queue.getDepth());
+    verify(scheduler, times(1)).schedule(any(Runnable.class), eq(10L), eq(TimeUnit.MILLISECONDS));
+
+    queue.flush();
+    assertEquals(1, sink.batches.size());
+    assertEquals(1, sink.batches.get(0).size());
+    ProtocolWaveletUpdate merged = (ProtocolWaveletUpdate) sink.batches.get(0).get(0).message;
+    assertEquals(3, merged.getAppliedDeltaCount());
+    assertEquals(3, merged.getResultingVersion().getVersion());
+    assertEquals(2, queue.getCoalescedCount());
+    assertEquals(1, queue.getSentCount());
+    assertEquals(0, queue.getDepth());
+  }
+
+  public void testUpdatesAreNotMergedAcrossOtherMessages() {
+    OutboundMessageQueue queue = new OutboundMessageQueue(sink, 10, 0, scheduler, writerPool);
+    queue.enqueue(1, makeUpdate(WAVELET, "ch1", 0, 1));
+    queue.enqueue(1, Rpc.RpcFinished.newBuilder().setFailed(false).build());
+    queue.enqueue(1, makeUpdate(WAVELET, "ch1", 1, 2));
+    queue.enqueue(2, makeUpdate(WAVELET, "ch1", 2, 3));
+    queue.flush();
+    assertEquals(4, sink.batches.get(0).size());
+    assertEquals(0, queue.getCoalescedCount());
+  }
+
+  public void testMergeRequiresSameWaveletAndContiguousVersions() {
+    ProtocolWaveletUpdate first = makeUpdate(WAVELET, "ch1", 0, 1);
+    assertNull(OutboundMessageQueue.merge(first, makeUpdate("example.com/w+b/example.com/conv+root",
+        "ch1", 1, 2)));
+    assertNull(OutboundMessageQueue.merge(first, makeUpdate(WAVELET, "ch2", 1, 2)));
+    assertNull(OutboundMessageQueue.merge(first, makeUpdate(WAVELET, "ch1", 2, 3)));
+    assertNull(OutboundMessageQueue.merge(first,
+        makeUpdate(WAVELET, "ch1", 1, 2).toBuilder().setMarker(true).build()));
+    assertNotNull(OutboundMessageQueue.merge(first, makeUpdate(WAVELET, "ch1", 1, 2)));
+  }
+
+  public void testMergeKeepsLaterCommitNotice() {
+    ProtocolWaveletUpdate notice = ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName(WAVELET)
+        .setChannelId("ch1")
+        .setCommitNotice(version(1))
+        .build();
+    ProtocolWaveletUpdate merged =
+        OutboundMessageQueue.merge(makeUpdate(WAVELET, "ch1", 0, 1), notice);
+    assertEquals(1, merged.getAppliedDeltaCount());
+    assertEquals(1, merged.getCommitNotice().getVersion());
+    assertEquals(1, merged.getResultingVersion().getVersion());
+  }
+
+  public void testSlowConsumerIsClosedAboveHighWaterMark() {
+    final OutboundMessageQueue queue =
+        new OutboundMessageQueue(sink, 10, 2, scheduler, writerPool);
+    queue.enqueue(1, makeUpdate(WAVELET, "ch1", 0, 1));
+    sink.duringSend = new Runnable() {
+      @Override
+      public void run() {
+        queue.enqueue(2, makeUpdate(WAVELET, "ch1", 0, 1));
+        queue.enqueue(3, makeUpdate(WAVELET, "ch1", 0, 1));
+        assertFalse(sink.closed);
+        queue.enqueue(4, makeUpdate(WAVELET, "ch1", 0, 1));
+        assertTrue(sink.closed);
+      }
+    };
+    queue.flush();
+    assertTrue(queue.isOverflowed());
+    assertEquals(0, queue.getDepth());
+    assertEquals(3, queue.getMaxDepth());
+    assertEquals(1, sink.batches.size());
+
+    queue.enqueue(5, makeUpdate(WAVELET, "ch1", 0, 1));
+    queue.flush();
+    assertEquals(1, sink.batches.size());
+  }
+
+  public void testMessagesHeldForWindowDontCloseConnection() {
+    OutboundMessageQueue queue = new OutboundMessageQueue(sink, 10, 2, scheduler, writerPool);
+    queue.enqueue(1, makeUpdate(WAVELET, "ch1", 0, 1));
+    queue.enqueue(2, makeUpdate(WAVELET, "ch1", 0, 1));
+    queue.enqueue(3, makeUpdate(WAVELET, "ch1", 0, 1));
+    assertFalse(sink.closed);
+    assertFalse(queue.isOverflowed());
+
+    queue.flush();
+    assertEquals(3, sink.batches.get(0).size());
+  }
+
+  public void testMessagesArrivingDuringWriteAreWrittenAfterIt() {
+    final OutboundMessageQueue queue =
+        new OutboundMessageQueue(sink, 10, 0, scheduler, writerPool);
+    queue.enqueue(1, makeUpdate(WAVELET, "ch1", 0, 1));
+    sink.duringSend = new Runnable() {
+      @Override
+      public void run() {
+        queue.enqueue(2, makeUpdate(WAVELET, "ch1", 0, 1));
+      }
+    };
+    queue.flush();
+    assertEquals(2, sink.batches.size());
+    assertEquals(2, sink.batches.get(1).get(0).sequenceNo);
+    // The write picked up the message, so no further window was scheduled.
+    verify(scheduler, times(1)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+
+  public void testBlockedWriteDoesNotHoldUpOtherConnections() throws Exception {
+    ScheduledExecutorService realScheduler = Executors.newSingleThreadScheduledExecutor();
+    ExecutorService writers = Executors.newCachedThreadPool();
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch unblock = new CountDownLatch(1);
+    final CountDownLatch written = new CountDownLatch(2);
+    final ClosedFlag stuckClosed = new ClosedFlag();
+    final ClosedFlag healthyClosed = new ClosedFlag();
+    OutboundMessageQueue.Sink stuckSink = new OutboundMessageQueue.Sink() {
+      @Override
+      public void send(List<Pending> batch) {
+        blocked.countDown();
+        try {
+          unblock.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      @Override
+      public void overflow() {
+        stuckClosed.closed = true;
+      }
+    };
+    OutboundMessageQueue.Sink healthySink = new OutboundMessageQueue.Sink() {
+      @Override
+      public void send(List<Pending> batch) {
+        written.countDown();
+      }
+
+      @Override
+      public void overflow() {
+        healthyClosed.closed = true;
+      }
+    };
+    try {
+      // One scheduler thread, which the stuck write would pin if it ran there.
+      OutboundMessageQueue stuck =
+          new OutboundMessageQueue(stuckSink, 1, 2, realScheduler, writers);
+      OutboundMessageQueue first =
+          new OutboundMessageQueue(healthySink, 1, 2, realScheduler, writers);
+      OutboundMessageQueue second =
+          new OutboundMessageQueue(healthySink, 1, 2, realScheduler, writers);
+
+      stuck.enqueue(1, makeUpdate(WAVELET, "ch1", 0, 1));
+      assertTrue(blocked.await(5, TimeUnit.SECONDS));
+      first.enqueue(1, makeUpdate(WAVELET, "ch1", 0, 1));
+      second.enqueue(1, makeUpdate(WAVELET, "ch1", 0, 1));
+      assertTrue(written.await(5, TimeUnit.SECONDS));
+
+      stuck.enqueue(2, makeUpdate(WAVELET, "ch1", 0, 1));
+      stuck.enqueue(3, makeUpdate(WAVELET, "ch1", 0, 1));
+      assertFalse(stuckClosed.closed);
+      stuck.enqueue(4, makeUpdate(WAVELET, "ch1", 0, 1));
+      assertTrue(stuckClosed.closed);
+      assertFalse(first.isOverflowed());
+      assertFalse(second.isOverflowed());
+      assertFalse(healthyClosed.closed);
+    } finally {
+      unblock.countDown();
+      realScheduler.shutdownNow();
+      writers.shutdownNow();
+    }
+  }
+
+  public void testFlushIsRescheduledAfterWrite() {
+    OutboundMessageQueue queue = new OutboundMessageQueue(sink, 10, 0, scheduler, writerPool);
+    queue.enqueue(1, makeUpdate(WAVELET, "ch1", 0, 1));
+    queue.flush();
+    queue.enqueue(1, makeUpdate(WAVELET, "ch1", 1, 2));
+    verify(scheduler, times(2)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    queue.flush();
+    assertEquals(2, queue.getBatchCount());
+  }
+
+  public void testStatsAddUpAllQueues() {
+    OutboundQueueStats stats = new OutboundQueueStats();
+    OutboundMessageQueue first =
+        new OutboundMessageQueue(sink, 10, 0, scheduler, writerPool, stats);
+    RecordingSink secondSink = new RecordingSink();
+    final OutboundMessageQueue second =
+        new OutboundMessageQueue(secondSink, 10, 1, scheduler, writerPool, stats);
+    first.enqueue(1, makeUpdate(WAVELET, "ch1", 0, 1));
+    first.enqueue(1, makeUpdate(WAVELET, "ch1", 1, 2));
+    first.enqueue(2, makeUpdate(WAVELET, "ch1", 0, 1));
+    second.enqueue(1, makeUpdate(WAVELET, "ch1", 0, 1));
+    assertEquals(3, stats.getHeldCount());
+    assertEquals(2, stats.getMaxDepth());
+    assertEquals(1, stats.getCoalescedCount());
+
+    first.flush();
+    secondSink.duringSend = new Runnable() {
+      @Override
+      public void run() {
+        second.enqueue(2, makeUpdate(WAVELET, "ch1", 0, 1));
+        second.enqueue(3, makeUpdate(WAVELET, "ch1", 0, 1));
+      }
+    };
+    second.flush();
+    assertEquals(0, stats.getHeldCount());
+    assertEquals(2, stats.getBatchCount());
+    assertEquals(3, stats.getSentCount());
+    assertEquals(1, stats.getOverflowCount());
+  }
+
+  /** Whether a sink's connection was closed, seen across threads. */
+  private static class ClosedFlag {
+    volatile boolean closed = false;
+  }
+
+  private static ProtocolWaveletUpdate makeUpdate(String waveletName, String channelId,
+      long from, long to) {
+    return ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName(waveletName)
+        .addAppliedDelta(ProtocolWaveletDelta.newBuilder()
+            .setHashedVersion(version(from))
+            .setAuthor("author@example.com")
+            .addOperation(ProtocolWaveletOperation.newBuilder().setNoOp(true)))
+        .setResultingVersion(version(to))
+        .setChannelId(channelId)
+        .build();
+  }
+
+  private static ProtocolHashedVersion version(long version) {
+    return ProtocolHashedVersion.newBuilder()
+        .setVersion(version).setHistoryHash(ByteString.copyFromUtf8("hash" + version)).build();
+  }
+}
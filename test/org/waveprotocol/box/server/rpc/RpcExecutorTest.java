@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link RpcExecutor}.
+ */
+public class RpcExecutorTest extends TestCase {
+
+  private ExecutorService pool;
+
+  @Override
+  protected void setUp() throws Exception {
+    pool = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    pool.shutdownNow();
+  }
+
+  public void testLaneRunsTasksInOrder() throws Exception {
+    RpcExecutor executor = new RpcExecutor(pool, 0);
+    Executor lane = executor.newLane();
+    final List<Integer> order = Collections.synchronizedList(Lists.<Integer>newArrayList());
+    final CountDownLatch done = new CountDownLatch(100);
+    for (int i = 0; i < 100; i++) {
+      final int n = i;
+      lane.execute(new Runnable() {
+        @Override
+        public void run() {
+          order.add(n);
+          done.countDown();
+        }
+      });
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, order.get(i).intValue());
+    }
+  }
+
+  public void testLanesRunConcurrently() throws Exception {
+    RpcExecutor executor = new RpcExecutor(pool, 0);
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+    final CountDownLatch done = new CountDownLatch(2);
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        bothStarted.countDown();
+        try {
+          bothStarted.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        done.countDown();
+      }
+    };
+    executor.newLane().execute(task);
+    executor.newLane().execute(task);
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(0, bothStarted.getCount());
+  }
+
+  public void testTasksAboveQueueLimitAreRejected() throws Exception {
+    // One thread, so that the waiting tasks stay queued behind the first.
+    pool.shutdownNow();
+    pool = Executors.newFixedThreadPool(1);
+    RpcExecutor executor = new RpcExecutor(pool, 2);
+    Executor lane = executor.newLane();
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(1);
+    lane.execute(new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertEquals(1, executor.getActiveCount());
+
+    Runnable noop = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+    lane.execute(noop);
+    executor.newLane().execute(noop);
+    try {
+      lane.execute(noop);
+      fail("Expected the task to be rejected");
+    } catch (RejectedExecutionException expected) {
+    }
+    assertEquals(1, executor.getRejectedCount());
+
+    Map<String, Number> stats = Maps.newLinkedHashMap();
+    executor.collectStats(stats);
+    assertEquals(2, stats.get("queued"));
+    assertEquals(1, stats.get("active"));
+    assertEquals(1L, stats.get("rejected"));
+    release.countDown();
+  }
+
+  public void testQueueWaitIsRecorded() throws Exception {
+    RpcExecutor executor = new RpcExecutor(pool, 0);
+    Executor lane = executor.newLane();
+    final CountDownLatch done = new CountDownLatch(2);
+    lane.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        done.countDown();
+      }
+    });
+    lane.execute(new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(executor.getMaxQueueWaitMillis() >= 10);
+    assertTrue(executor.getAverageQueueWaitMillis() > 0);
+    assertEquals(0, executor.getQueuedCount());
+  }
+}
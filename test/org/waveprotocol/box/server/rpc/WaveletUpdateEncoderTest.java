@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.rpc;
+
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.common.comms.WaveClientRpc.ProtocolWaveletUpdate;
+import org.waveprotocol.wave.federation.Proto.ProtocolHashedVersion;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.federation.Proto.ProtocolWaveletOperation;
+
+import java.util.Map;
+
+/**
+ * Tests for {@link WaveletUpdateEncoder}.
+ */
+public class WaveletUpdateEncoderTest extends TestCase {
+
+  private static final ProtocolHashedVersion VERSION = ProtocolHashedVersion.newBuilder()
+      .setVersion(1).setHistoryHash(ByteString.copyFromUtf8("hash")).build();
+
+  private WaveletUpdateEncoder encoder;
+  private ProtoSerializer serializer;
+  private ProtocolWaveletDelta delta1;
+  private ProtocolWaveletDelta delta2;
+
+  @Override
+  protected void setUp() throws Exception {
+    encoder = new WaveletUpdateEncoder(1000, 30);
+    serializer = new ProtoSerializer();
+    delta1 = makeDelta("a@example.com");
+    delta2 = makeDelta("b@example.com");
+  }
+
+  public void testJsonTextMatchesPlainSerialization() throws Exception {
+    ProtocolWaveletUpdate update = makeUpdate("ch1");
+    assertEquals(serializer.toJson(update).toString(),
+        encoder.toJsonText(update, serializer));
+  }
+
+  public void testBytesParseToSameUpdate() throws Exception {
+    ProtocolWaveletUpdate update = makeUpdate("ch1");
+    assertEquals(update, ProtocolWaveletUpdate.parseFrom(encoder.toBytes(update)));
+  }
+
+  public void testDeltasAreEncodedOnceForManyChannels() throws Exception {
+    encoder.toBytes(makeUpdate("ch1"));
+    encoder.toJsonText(makeUpdate("ch1"), serializer);
+    assertEquals(4, encoder.getEncodedDeltaCount());
+    assertEquals(0, encoder.getReusedDeltaCount());
+
+    ProtocolWaveletUpdate other = makeUpdate("ch2");
+    assertEquals(other, ProtocolWaveletUpdate.parseFrom(encoder.toBytes(other)));
+    assertEquals(serializer.toJson(other).toString(),
+        encoder.toJsonText(other, serializer));
+    assertEquals(4, encoder.getEncodedDeltaCount());
+    assertEquals(4, encoder.getReusedDeltaCount());
+
+    Map<String, Number> stats = Maps.newLinkedHashMap();
+    encoder.collectStats(stats);
+    assertEquals(4L, stats.get("reused"));
+    assertEquals(2, stats.get("cachedJson"));
+    assertEquals(2, stats.get("cachedBinary"));
+  }
+
+  public void testUpdateWithoutDeltas() throws Exception {
+    ProtocolWaveletUpdate update = ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName("example.com/w+a/example.com/conv+root")
+        .setCommitNotice(VERSION)
+        .build();
+    assertEquals(update, ProtocolWaveletUpdate.parseFrom(encoder.toBytes(update)));
+    assertEquals(serializer.toJson(update).toString(),
+        encoder.toJsonText(update, serializer));
+  }
+
+  private ProtocolWaveletUpdate makeUpdate(String channelId) {
+    return ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName("example.com/w+a/example.com/conv+root")
+        .addAppliedDelta(delta1)
+        .addAppliedDelta(delta2)
+        .setResultingVersion(VERSION)
+        .setChannelId(channelId)
+        .build();
+  }
+
+  private static ProtocolWaveletDelta makeDelta(String participant) {
+    return ProtocolWaveletDelta.newBuilder()
+        .setHashedVersion(VERSION)
+        .setAuthor("author@example.com")
+        .addOperation(ProtocolWaveletOperation.newBuilder().setAddParticipant(participant))
+        .build();
+  }
+}
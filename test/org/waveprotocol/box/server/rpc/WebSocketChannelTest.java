@@ -18,12 +18,14 @@
  */
 package org.waveprotocol.box.server.rpc;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 import com.google.protobuf.UnknownFieldSet;
 
 import junit.framework.TestCase;
 
 import org.waveprotocol.box.common.comms.WaveClientRpc;
+import org.waveprotocol.wave.federation.Proto;
 
 /**
  * @author arb@google.com
@@ -35,9 +37,19 @@ public class WebSocketChannelTest extends TestCase {
 
   class TestWebSocketChannel extends WebSocketChannel {
     String message;
+    byte[] bytes;
 
     public TestWebSocketChannel(ProtoCallback callback) {
-      super(callback);
+      this(callback, false);
+    }
+
+    public TestWebSocketChannel(ProtoCallback callback, boolean binary) {
+      this(callback, binary, null);
+    }
+
+    public TestWebSocketChannel(ProtoCallback callback, boolean binary,
+        WaveletUpdateEncoder updateEncoder) {
+      super(callback, binary, updateEncoder);
       this.message = null;
     }
 
@@ -45,6 +57,11 @@ public class WebSocketChannelTest extends TestCase {
     protected void sendMessageString(final String data) {
       this.message = data;
     }
+
+    @Override
+    protected void sendMessageBytes(final byte[] data) {
+      this.bytes = data;
+    }
   }
 
   class TestCallback implements ProtoCallback {
@@ -88,6 +105,54 @@ public class WebSocketChannelTest extends TestCase {
     checkRoundtripping(sourceBuilder);
   }
 
+  public void testRoundTrippingBinary() throws Exception {
+    channel = new TestWebSocketChannel(callback, true);
+    WaveClientRpc.ProtocolOpenRequest sourceRequest =
+        buildProtocolOpenRequest().addWaveletIdPrefix("aaa").build();
+    channel.sendMessage(SEQUENCE_NUMBER, sourceRequest);
+    assertNull(channel.message);
+    assertNotNull(channel.bytes);
+    channel.handleMessageBytes(channel.bytes, 0, channel.bytes.length);
+    assertEquals(SEQUENCE_NUMBER, callback.sequenceNumber);
+    assertEquals(sourceRequest, callback.savedMessage);
+  }
+
+  public void testBinaryMessageWithSeveralFrames() throws Exception {
+    WaveClientRpc.ProtocolOpenRequest first = buildProtocolOpenRequest().build();
+    WaveClientRpc.ProtocolOpenRequest second =
+        buildProtocolOpenRequest().setWaveId("example.com!w+other").build();
+    byte[] firstFrame = channel.encodeFrame(1, first);
+    byte[] secondFrame = channel.encodeFrame(2, second);
+    byte[] data = new byte[firstFrame.length + secondFrame.length + 2];
+    System.arraycopy(firstFrame, 0, data, 1, firstFrame.length);
+    System.arraycopy(secondFrame, 0, data, 1 + firstFrame.length, secondFrame.length);
+
+    channel.handleMessageBytes(data, 1, firstFrame.length + secondFrame.length);
+    assertEquals(2, callback.sequenceNumber);
+    assertEquals(second, callback.savedMessage);
+  }
+
+  public void testUpdateWithEncodedDeltasIsSentAsPlainJson() throws Exception {
+    WaveClientRpc.ProtocolWaveletUpdate update = WaveClientRpc.ProtocolWaveletUpdate.newBuilder()
+        .setWaveletName("example.com/w+test/example.com/conv+root")
+        .addAppliedDelta(Proto.ProtocolWaveletDelta.newBuilder()
+            .setHashedVersion(Proto.ProtocolHashedVersion.newBuilder()
+                .setVersion(1).setHistoryHash(ByteString.copyFromUtf8("hash")))
+            .setAuthor("test@example.com")
+            .addOperation(Proto.ProtocolWaveletOperation.newBuilder()
+                .setAddParticipant("other@example.com")))
+        .setChannelId("ch1")
+        .build();
+    channel.sendMessage(SEQUENCE_NUMBER, update);
+    String plain = channel.message;
+
+    channel = new TestWebSocketChannel(callback, false, new WaveletUpdateEncoder(1000, 30));
+    channel.sendMessage(SEQUENCE_NUMBER, update);
+    assertEquals(plain, channel.message);
+    channel.handleMessageString(channel.message);
+    assertEquals(update, callback.savedMessage);
+  }
+
   private void checkRoundtripping(final WaveClientRpc.ProtocolOpenRequest.Builder sourceBuilder) {
     WaveClientRpc.ProtocolOpenRequest sourceRequest = sourceBuilder.build();
     channel.sendMessage(SEQUENCE_NUMBER, sourceRequest);
@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.util;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+/**
+ * Tests for {@link StatsLogger}.
+ */
+public class StatsLoggerTest extends TestCase {
+
+  private static StatsSource source(final String name, final long value) {
+    return new StatsSource() {
+      @Override
+      public void collectStats(Map<String, Number> stats) {
+        stats.put(name, value);
+        stats.put("total", value * 2);
+      }
+    };
+  }
+
+  public void testFormatsOneLinePerSourceInRegistrationOrder() {
+    StatsLogger logger = new StatsLogger(0);
+    logger.register("Cache", source("hits", 3));
+    logger.register("Queue", source("length", 5));
+    assertEquals(ImmutableList.of("Cache: hits=3, total=6", "Queue: length=5, total=10"),
+        logger.formatStats());
+  }
+
+  public void testSourceWithSameNameIsReplaced() {
+    StatsLogger logger = new StatsLogger(0);
+    logger.register("Cache", source("hits", 3));
+    logger.register("Cache", source("hits", 4));
+    assertEquals(ImmutableList.of("Cache: hits=4, total=8"), logger.formatStats());
+  }
+
+  public void testFailingSourceIsSkipped() {
+    StatsLogger logger = new StatsLogger(0);
+    logger.register("Broken", new StatsSource() {
+      @Override
+      public void collectStats(Map<String, Number> stats) {
+        throw new IllegalStateException();
+      }
+    });
+    logger.register("Cache", source("hits", 1));
+    assertEquals(ImmutableList.of("Cache: hits=1, total=2"), logger.formatStats());
+  }
+}
@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.waveprotocol.box.server.waveserver;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersionFactory;
+import org.waveprotocol.wave.model.version.HashedVersionFactoryImpl;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link AbstractWaveIndexer}.
+ */
+public class AbstractWaveIndexerTest extends TestCase {
+
+  private static final String DOMAIN = "example.com";
+  private static final WaveletId WAVELET_ID = WaveletId.of(DOMAIN, "conv+root");
+  private static final HashedVersionFactory HASH_FACTORY =
+      new HashedVersionFactoryImpl(new IdURIEncoderDecoder(new JavaUrlCodec()));
+
+  private DeltaStore deltaStore;
+  private WaveMap waveMap;
+  private File checkpointFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    deltaStore = new MemoryDeltaStore();
+    for (int i = 0; i < 5; i++) {
+      WaveletName waveletName = WaveletName.of(WaveId.of(DOMAIN, "w" + i), WAVELET_ID);
+      DeltaStore.DeltasAccess access = deltaStore.open(waveletName);
+      access.append(ImmutableList.of(WaveletStateTestBase.makeDelta(
+          HASH_FACTORY.createVersionZero(waveletName), 1000L, 1)));
+      access.close();
+    }
+    waveMap = new WaveMap(new DeltaStoreBasedSnapshotStore(deltaStore),
+        mock(WaveletNotificationSubscriber.class), mock(WaveBus.class),
+        mock(LocalWaveletContainer.Factory.class), mock(RemoteWaveletContainer.Factory.class),
+        DOMAIN, MoreExecutors.sameThreadExecutor(), 0, 0);
+    checkpointFile = new File(Files.createTempDir(), "reindex.checkpoint");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    checkpointFile.delete();
+    checkpointFile.getParentFile().delete();
+  }
+
+  public void testRemakeIndexIndexesEveryWaveletWithoutLoadingIt() throws Exception {
+    WaveletSearchIndex index = new WaveletSearchIndex();
+    MemoryWaveIndexerImpl indexer = new MemoryWaveIndexerImpl(waveMap,
+        mock(WaveletProvider.class), new DeltaStoreBasedSnapshotStore(deltaStore), index, 2);
+
+    indexer.remakeIndex();
+
+    assertEquals(5, index.size());
+    assertEquals(5, indexer.getIndexedWaveCount());
+    assertEquals(5, indexer.getIndexedWaveletCount());
+    assertEquals(0, indexer.getFailedWaveletCount());
+    assertFalse(waveMap.getWaves().get(WaveId.of(DOMAIN, "w0")).isResident());
+  }
+
+  public void testRemakeIndexResumesFromCheckpoint() throws Exception {
+    Files.write("example.com/w1\nexample.com/w3\n", checkpointFile, Charsets.UTF_8);
+    final List<WaveId> indexed = Collections.synchronizedList(Lists.<WaveId>newArrayList());
+    AbstractWaveIndexer indexer = new AbstractWaveIndexer(waveMap, mock(WaveletProvider.class),
+        new DeltaStoreBasedSnapshotStore(deltaStore), 2, checkpointFile) {
+      @Override
+      protected void processWavelet(ReadableWaveletData wavelet) {
+        indexed.add(wavelet.getWaveId());
+      }
+
+      @Override
+      protected void postIndexHook() {
+      }
+    };
+
+    indexer.remakeIndex();
+
+    assertEquals(3, indexed.size());
+    assertFalse(indexed.contains(WaveId.of(DOMAIN, "w1")));
+    assertFalse(indexed.contains(WaveId.of(DOMAIN, "w3")));
+    // A finished reindex leaves nothing to resume.
+    assertFalse(checkpointFile.exists());
+  }
+
+  public void testFailedWavesAreNotCheckpointed() throws Exception {
+    final WaveId failing = WaveId.of(DOMAIN, "w2");
+    AbstractWaveIndexer indexer = new AbstractWaveIndexer(waveMap, mock(WaveletProvider.class),
+        new DeltaStoreBasedSnapshotStore(deltaStore), 2, checkpointFile) {
+      @Override
+      protected void processWavelet(ReadableWaveletData wavelet) {
+        if (wavelet.getWaveId().equals(failing)) {
+          throw new IndexException("Broken");
+        }
+      }
+
+      @Override
+      protected void postIndexHook() {
+      }
+    };
+
+    indexer.remakeIndex();
+
+    assertEquals(4, indexer.getIndexedWaveCount());
+    assertEquals(1, indexer.getFailedWaveletCount());
+    // The checkpoint is kept so that the next reindex retries the failed wave.
+    List<String> checkpointed = Files.readLines(checkpointFile, Charsets.UTF_8);
+    assertEquals(4, checkpointed.size());
+    assertFalse(checkpointed.contains(failing.serialise()));
+
+    Map<String, Number> stats = Maps.newLinkedHashMap();
+    indexer.collectStats(stats);
+    assertEquals(4L, stats.get("waves"));
+    assertEquals(1L, stats.get("failed"));
+  }
+}
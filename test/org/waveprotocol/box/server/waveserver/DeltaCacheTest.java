@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.version.HashedVersionFactoryImpl;
+import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
+
+/**
+ * Tests for {@link DeltaCache}.
+ */
+public class DeltaCacheTest extends TestCase {
+
+  private static final WaveletName NAME = WaveletName.of(WaveId.of("example.com", "waveid"),
+      WaveletId.of("example.com", "waveletid"));
+  private static final HashedVersion V0 =
+      new HashedVersionFactoryImpl(new IdURIEncoderDecoder(new JavaUrlCodec()))
+          .createVersionZero(NAME);
+
+  private WaveletDeltaRecord d1;
+  private WaveletDeltaRecord d2;
+  private WaveletDeltaRecord d3;
+  private DeltaCacheStats stats;
+
+  @Override
+  protected void setUp() throws Exception {
+    d1 = WaveletStateTestBase.makeDelta(V0, 1000L, 2);
+    d2 = WaveletStateTestBase.makeDelta(d1.getResultingVersion(), 1001L, 1);
+    d3 = WaveletStateTestBase.makeDelta(d2.getResultingVersion(), 1002L, 2);
+    stats = new DeltaCacheStats();
+  }
+
+  public void testCachedDeltaIsReturned() {
+    DeltaCache cache = new DeltaCache(10, stats);
+    cache.put(d1);
+    assertSame(d1, cache.get(0));
+    assertNull(cache.get(2));
+    assertEquals(2, cache.getWeight());
+  }
+
+  public void testCachedDeltaIsReturnedByEndVersion() {
+    DeltaCache cache = new DeltaCache(10, stats);
+    cache.put(d1);
+    cache.put(d2);
+    assertSame(d1, cache.getByEndVersion(2));
+    assertSame(d2, cache.getByEndVersion(3));
+    assertNull(cache.getByEndVersion(1));
+  }
+
+  public void testLeastRecentlyUsedDeltasAreEvicted() {
+    DeltaCache cache = new DeltaCache(4, stats);
+    cache.put(d1);
+    cache.put(d2);
+    cache.get(0);
+
+    // d2 is least recently used, and evicting it makes room for d3.
+    cache.put(d3);
+    assertSame(d1, cache.get(0));
+    assertNull(cache.get(2));
+    assertSame(d3, cache.get(3));
+    assertNull(cache.getByEndVersion(3));
+    assertEquals(4, cache.getWeight());
+    assertEquals(1, stats.getEvictionCount());
+  }
+
+  public void testDeltaHeavierThanCapacityIsNotCached() {
+    DeltaCache cache = new DeltaCache(1, stats);
+    cache.put(d1);
+    assertEquals(0, cache.size());
+    assertNull(cache.get(0));
+  }
+
+  public void testZeroCapacityCachesNothing() {
+    DeltaCache cache = new DeltaCache(0, stats);
+    cache.put(d2);
+    assertEquals(0, cache.size());
+  }
+
+  public void testHitsAndMissesAreCounted() {
+    DeltaCache cache = new DeltaCache(10, stats);
+    cache.put(d1);
+    cache.get(0);
+    cache.get(2);
+    assertEquals(1, stats.getHitCount());
+    assertEquals(1, stats.getMissCount());
+  }
+}
@@ -22,7 +22,15 @@ package org.waveprotocol.box.server.waveserver;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.version.HashedVersionFactoryImpl;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 
 import java.util.concurrent.Executor;
 
@@ -33,18 +41,29 @@ import java.util.concurrent.Executor;
  */
 public class DeltaStoreBasedWaveletStateTest extends WaveletStateTestBase {
 
+  private static final WaveletName CHECKPOINTED_NAME = WaveletName.of(
+      WaveId.of("example.com", "checkpointed"), WaveletId.of("example.com", "waveletid"));
+  private static final HashedVersion CHECKPOINTED_V0 =
+      new HashedVersionFactoryImpl(new IdURIEncoderDecoder(new JavaUrlCodec()))
+          .createVersionZero(CHECKPOINTED_NAME);
+
+  private static final long DELTA_CACHE_CAPACITY = 3;
+
   private final Executor PERSIST_EXECUTOR = MoreExecutors.sameThreadExecutor();
   private DeltaStore store;
+  private DeltaCacheStats deltaCacheStats;
 
   @Override
   public void setUp() throws Exception {
     store = new MemoryDeltaStore();
+    deltaCacheStats = new DeltaCacheStats();
     super.setUp();
   }
 
   @Override
   protected WaveletState createEmptyState(WaveletName name) throws Exception {
-    return DeltaStoreBasedWaveletState.create(store.open(name), PERSIST_EXECUTOR);
+    return DeltaStoreBasedWaveletState.create(store.open(name), PERSIST_EXECUTOR, 0,
+        DELTA_CACHE_CAPACITY, deltaCacheStats);
   }
 
   @Override
@@ -53,6 +72,95 @@ public class DeltaStoreBasedWaveletStateTest extends WaveletStateTestBase {
     return;
   }
 
+  public void testPersistStoresSnapshotCheckpoint() throws Exception {
+    WaveletState state =
+        DeltaStoreBasedWaveletState.create(store.open(CHECKPOINTED_NAME), PERSIST_EXECUTOR, 3, 0,
+            deltaCacheStats);
+    WaveletDeltaRecord d1 = makeDelta(CHECKPOINTED_V0, 1000L, 2);
+    WaveletDeltaRecord d2 = makeDelta(d1.getResultingVersion(), 1001L, 2);
+    state.appendDelta(d1);
+    state.appendDelta(d2);
+
+    // Not enough versions for a checkpoint yet.
+    state.persist(d1.getResultingVersion());
+    assertNull(store.open(CHECKPOINTED_NAME).loadSnapshot());
+
+    state.persist(d2.getResultingVersion());
+    WaveletData checkpoint = store.open(CHECKPOINTED_NAME).loadSnapshot();
+    assertNotNull(checkpoint);
+    assertEquals(d2.getResultingVersion(), checkpoint.getHashedVersion());
+  }
+
+  public void testLoadsFromSnapshotCheckpointAndTail() throws Exception {
+    WaveletState state =
+        DeltaStoreBasedWaveletState.create(store.open(CHECKPOINTED_NAME), PERSIST_EXECUTOR, 2, 0,
+            deltaCacheStats);
+    WaveletDeltaRecord d1 = makeDelta(CHECKPOINTED_V0, 1000L, 2);
+    WaveletDeltaRecord d2 = makeDelta(d1.getResultingVersion(), 1001L, 1);
+    state.appendDelta(d1);
+    state.appendDelta(d2);
+    state.persist(d1.getResultingVersion());
+    state.persist(d2.getResultingVersion());
+    assertEquals(d1.getResultingVersion(),
+        store.open(CHECKPOINTED_NAME).loadSnapshot().getHashedVersion());
+
+    WaveletState reloaded =
+        DeltaStoreBasedWaveletState.create(store.open(CHECKPOINTED_NAME), PERSIST_EXECUTOR, 2, 0,
+            deltaCacheStats);
+    ReadableWaveletData expected = state.getSnapshot();
+    ReadableWaveletData actual = reloaded.getSnapshot();
+    assertEquals(expected.getHashedVersion(), actual.getHashedVersion());
+    assertEquals(expected.getParticipants(), actual.getParticipants());
+    assertEquals(expected.getCreationTime(), actual.getCreationTime());
+    assertEquals(d2.getResultingVersion(), reloaded.getLastPersistedVersion());
+  }
+
+  public void testFlushedDeltasAreReadFromCache() throws Exception {
+    WaveletState state = createEmptyState(CHECKPOINTED_NAME);
+    WaveletDeltaRecord d1 = makeDelta(CHECKPOINTED_V0, 1000L, 1);
+    WaveletDeltaRecord d2 = makeDelta(d1.getResultingVersion(), 1001L, 1);
+    state.appendDelta(d1);
+    state.appendDelta(d2);
+    state.persist(d2.getResultingVersion());
+    state.flush(d2.getResultingVersion());
+
+    long hits = deltaCacheStats.getHitCount();
+    assertEquals(d1.getTransformedDelta(), state.getTransformedDelta(CHECKPOINTED_V0));
+    assertEquals(d2.getAppliedDelta(), state.getAppliedDelta(d1.getResultingVersion()));
+    assertEquals(hits + 2, deltaCacheStats.getHitCount());
+  }
+
+  public void testDeltasByEndVersionAreReadFromCache() throws Exception {
+    WaveletState state = createEmptyState(CHECKPOINTED_NAME);
+    WaveletDeltaRecord d1 = makeDelta(CHECKPOINTED_V0, 1000L, 1);
+    WaveletDeltaRecord d2 = makeDelta(d1.getResultingVersion(), 1001L, 1);
+    state.appendDelta(d1);
+    state.appendDelta(d2);
+    state.persist(d2.getResultingVersion());
+    state.flush(d2.getResultingVersion());
+
+    long hits = deltaCacheStats.getHitCount();
+    assertEquals(d1.getTransformedDelta(),
+        state.getTransformedDeltaByEndVersion(d1.getResultingVersion()));
+    assertEquals(d2.getAppliedDelta(), state.getAppliedDeltaByEndVersion(d2.getResultingVersion()));
+    assertEquals(hits + 2, deltaCacheStats.getHitCount());
+  }
+
+  public void testEvictedDeltasAreReadFromStore() throws Exception {
+    WaveletState state = createEmptyState(CHECKPOINTED_NAME);
+    WaveletDeltaRecord d1 = makeDelta(CHECKPOINTED_V0, 1000L, 2);
+    WaveletDeltaRecord d2 = makeDelta(d1.getResultingVersion(), 1001L, 2);
+    state.appendDelta(d1);
+    state.appendDelta(d2);
+    state.persist(d2.getResultingVersion());
+    state.flush(d2.getResultingVersion());
+
+    // The cache only has room for d2, so d1 comes from the store.
+    long misses = deltaCacheStats.getMissCount();
+    assertEquals(d1.getTransformedDelta(), state.getTransformedDelta(CHECKPOINTED_V0));
+    assertEquals(misses + 1, deltaCacheStats.getMissCount());
+  }
+
   // TODO(soren): We need to add tests here that verify interactions with storage.
   // The base tests only test the public interface, not any interactions with the storage system.
 }
@@ -19,14 +19,22 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
 
 import junit.framework.TestCase;
 
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
 import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
 import org.waveprotocol.wave.federation.Proto.ProtocolDocumentOperation;
@@ -41,6 +49,12 @@ import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.version.HashedVersionFactory;
 import org.waveprotocol.wave.model.version.HashedVersionFactoryImpl;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.BlipData;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveletDataListener;
 import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 
 import java.util.concurrent.Executor;
@@ -73,6 +87,8 @@ public class LocalWaveletContainerImplTest extends TestCase {
   private static final String BLIP_ID = "b+muppet";
   private ProtocolWaveletOperation addBlipOp;
   private LocalWaveletContainerImpl wavelet;
+  private WaveletNotificationSubscriber notifiee;
+  private TransformStats transformStats;
 
   @Override
   protected void setUp() throws Exception {
@@ -86,12 +102,14 @@ public class LocalWaveletContainerImplTest extends TestCase {
         MutateDocument.newBuilder().setDocumentId(BLIP_ID).setDocumentOperation(
             ProtocolDocumentOperation.newBuilder().build())).build();
 
-    WaveletNotificationSubscriber notifiee = mock(WaveletNotificationSubscriber.class);
+    notifiee = mock(WaveletNotificationSubscriber.class);
     DeltaStore deltaStore = new MemoryDeltaStore();
     WaveletState waveletState = DeltaStoreBasedWaveletState.create(deltaStore.open(WAVELET_NAME),
         PERSIST_EXECUTOR);
+    transformStats = new TransformStats();
     wavelet = new LocalWaveletContainerImpl(WAVELET_NAME, notifiee,
-        Futures.immediateFuture(waveletState), null, STORAGE_CONTINUATION_EXECUTOR);
+        Futures.immediateFuture(waveletState), null, STORAGE_CONTINUATION_EXECUTOR,
+        transformStats);
     wavelet.awaitLoad();
   }
 
@@ -125,6 +143,115 @@ public class LocalWaveletContainerImplTest extends TestCase {
     assertEquals(dar1.getResultingVersion(), dar2.getResultingVersion());
   }
 
+  /**
+   * Tests that readers see a snapshot which doesn't change when later deltas
+   * are applied, and that copies share it until modified.
+   */
+  public void testPublishedSnapshotIsImmutable() throws Exception {
+    assertTrue(wavelet.isEmpty());
+    WaveletDeltaRecord v0Response = wavelet.submitRequest(
+        WAVELET_NAME, createProtocolSignedDelta(addParticipantOp, HASHED_VERSION_ZERO));
+    assertFalse(wavelet.isEmpty());
+
+    ReadableWaveletData v1 = wavelet.getSnapshot().snapshot;
+    assertEquals(1L, v1.getVersion());
+    assertSame(v1, wavelet.getSnapshot().snapshot);
+    assertEquals(v0Response.getResultingVersion(), wavelet.getLastCommittedVersion());
+
+    ObservableWaveletData copy = wavelet.copyWaveletData();
+    assertTrue(((CopyOnWriteWaveletData) copy).isShared());
+    assertEquals(v1.getParticipants(), copy.getParticipants());
+
+    wavelet.submitRequest(WAVELET_NAME,
+        createProtocolSignedDelta(addBlipOp, v0Response.getResultingVersion()));
+    assertEquals(1L, v1.getVersion());
+    assertTrue(v1.getDocumentIds().isEmpty());
+    assertEquals(1L, copy.getVersion());
+    ReadableWaveletData v2 = wavelet.getSnapshot().snapshot;
+    assertEquals(2L, v2.getVersion());
+    assertEquals(ImmutableSet.of(BLIP_ID), v2.getDocumentIds());
+
+    copy.addParticipant(new ParticipantId("gonzo@muppetshow.com"));
+    assertFalse(((CopyOnWriteWaveletData) copy).isShared());
+    assertEquals(2, copy.getParticipants().size());
+    assertEquals(1, v1.getParticipants().size());
+    assertEquals(1, v2.getParticipants().size());
+  }
+
+  /**
+   * Tests that a copy of the wavelet copies documents only when they're
+   * accessed, without telling listeners that they were added.
+   */
+  public void testCopyCopiesDocumentsOnAccess() throws Exception {
+    WaveletDeltaRecord v0Response = wavelet.submitRequest(
+        WAVELET_NAME, createProtocolSignedDelta(addParticipantOp, HASHED_VERSION_ZERO));
+    wavelet.submitRequest(WAVELET_NAME,
+        createProtocolSignedDelta(addBlipOp, v0Response.getResultingVersion()));
+    ReadableWaveletData snapshot = wavelet.getSnapshot().snapshot;
+
+    ObservableWaveletData copy = wavelet.copyWaveletData();
+    WaveletDataListener listener = mock(WaveletDataListener.class);
+    copy.addListener(listener);
+    assertEquals(ImmutableSet.of(BLIP_ID), copy.getDocumentIds());
+    BlipData document = copy.getDocument(BLIP_ID);
+    assertNotNull(document);
+    assertNotSame(snapshot.getDocument(BLIP_ID), document);
+    assertSame(document, copy.getDocument(BLIP_ID));
+    assertEquals(ImmutableSet.of(BLIP_ID), copy.getDocumentIds());
+    verifyZeroInteractions(listener);
+
+    copy.addParticipant(new ParticipantId("gonzo@muppetshow.com"));
+    verify(listener).onParticipantAdded(any(WaveletData.class), any(ParticipantId.class));
+    assertEquals(1, snapshot.getParticipants().size());
+  }
+
+  /**
+   * Tests that a pinned snapshot of a notified version is copied before later
+   * deltas are applied, so it can be read after them.
+   */
+  public void testPinnedSnapshotSurvivesLaterDeltas() throws Exception {
+    WaveletDeltaRecord v0Response = wavelet.submitRequest(
+        WAVELET_NAME, createProtocolSignedDelta(addParticipantOp, HASHED_VERSION_ZERO));
+    ArgumentCaptor<DeferredSnapshot> captor = ArgumentCaptor.forClass(DeferredSnapshot.class);
+    verify(notifiee).waveletUpdate(any(ReadableWaveletData.class), captor.capture(),
+        Matchers.<ImmutableList<WaveletDeltaRecord>>any(), Matchers.<ImmutableSet<String>>any());
+    DeferredSnapshot deferred = captor.getValue();
+    deferred.pin();
+
+    wavelet.submitRequest(WAVELET_NAME,
+        createProtocolSignedDelta(addBlipOp, v0Response.getResultingVersion()));
+    ReadableWaveletData v1 = deferred.get();
+    assertEquals(1L, v1.getVersion());
+    assertTrue(v1.getDocumentIds().isEmpty());
+    assertSame(v1, deferred.get());
+    deferred.release();
+  }
+
+  /**
+   * Tests that deltas submitted behind the head are transformed from the
+   * recent history, and that the transform depth is recorded.
+   */
+  public void testTransformAgainstRecentHistory() throws Exception {
+    WaveletDeltaRecord v0Response = wavelet.submitRequest(
+        WAVELET_NAME, createProtocolSignedDelta(addParticipantOp, HASHED_VERSION_ZERO));
+    HashedVersion v1 = v0Response.getResultingVersion();
+    wavelet.submitRequest(WAVELET_NAME, createProtocolSignedDelta(addBlipOp, v1));
+    assertEquals(0L, transformStats.getTransformedSubmitCount());
+
+    ProtocolWaveletOperation otherBlipOp = ProtocolWaveletOperation.newBuilder().setMutateDocument(
+        MutateDocument.newBuilder().setDocumentId("b+other").setDocumentOperation(
+            ProtocolDocumentOperation.newBuilder().build())).build();
+    WaveletDeltaRecord transformed =
+        wavelet.submitRequest(WAVELET_NAME, createProtocolSignedDelta(otherBlipOp, v1));
+    assertEquals(2L, transformed.getAppliedAtVersion().getVersion());
+    assertEquals(3L, wavelet.getCurrentVersion().getVersion());
+
+    assertEquals(1L, transformStats.getTransformedSubmitCount());
+    assertEquals(1L, transformStats.getTransformDepthTotal());
+    assertEquals(1L, transformStats.getMaxTransformDepth());
+    assertEquals(0L, transformStats.getHistoryMissCount());
+  }
+
   private ProtocolSignedDelta createProtocolSignedDelta(ProtocolWaveletOperation operation,
       HashedVersion protocolHashedVersion) {
     ProtocolWaveletDelta delta = ProtocolWaveletDelta.newBuilder()
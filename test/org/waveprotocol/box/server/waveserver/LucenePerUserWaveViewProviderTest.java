@@ -21,14 +21,22 @@ package org.waveprotocol.box.server.waveserver;
 
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
 
 import org.mockito.Mock;
+import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.server.persistence.lucene.IndexDirectory;
 import org.waveprotocol.box.server.persistence.lucene.RAMIndexDirectory;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author yurize@apache.org (Yuri Zelikov)
@@ -52,6 +60,54 @@ public class LucenePerUserWaveViewProviderTest extends PerUserWaveViewProviderTe
     when(waveletData.getParticipants()).thenReturn(ImmutableSet.of(PARTICIPANT));
     when(waveletData.getDocumentIds()).thenReturn(ImmutableSet.of(BLIP_ID));
     when(waveletProvider.getReadableWaveletData(WAVELET_NAME)).thenReturn(waveletData);
+    when(textCollator.collateTextForWavelet(waveletData)).thenReturn("Hello, Wave world");
+    when(textCollator.collateTagsForWavelet(waveletData)).thenReturn(ImmutableSet.of("work"));
+  }
+
+  public void testSearchWaveletContentsMatchesTextTagsAndCreator() throws Exception {
+    handler.onParticipantAdded(WAVELET_NAME, PARTICIPANT).get();
+    postUpdateHook();
+
+    assertEquals(1, searchText("hello").size());
+    assertEquals(1, searchText("WORLD").size());
+    assertEquals(0, searchText("goodbye").size());
+    assertEquals(1, searchTag("work").size());
+    assertEquals(0, searchTag("play").size());
+    assertEquals(1, searchCreator(PARTICIPANT).size());
+    assertEquals(0, searchCreator(OTHER_PARTICIPANT).size());
+    assertEquals(0, handler.searchWaveletContents(ImmutableList.of(OTHER_PARTICIPANT),
+        ImmutableList.of("hello"), NO_TERMS, NO_CREATORS).size());
+  }
+
+  public void testWaveletUpdateReindexesText() throws Exception {
+    handler.onParticipantAdded(WAVELET_NAME, PARTICIPANT).get();
+    when(textCollator.collateTextForWavelet(waveletData)).thenReturn("Goodbye");
+
+    handler.waveletUpdate(waveletData, DeltaSequence.empty());
+    // The index is updated in order, so the reindex is done once this is.
+    handler.onWaveInit(WAVELET_NAME).get();
+    postUpdateHook();
+
+    assertEquals(0, searchText("hello").size());
+    assertEquals(1, searchText("goodbye").size());
+  }
+
+  private static final List<String> NO_TERMS = Collections.emptyList();
+  private static final List<ParticipantId> NO_CREATORS = Collections.emptyList();
+
+  private Multimap<WaveId, WaveletId> searchText(String text) {
+    return handler.searchWaveletContents(ImmutableList.of(PARTICIPANT), ImmutableList.of(text),
+        NO_TERMS, NO_CREATORS);
+  }
+
+  private Multimap<WaveId, WaveletId> searchTag(String tag) {
+    return handler.searchWaveletContents(ImmutableList.of(PARTICIPANT), NO_TERMS,
+        ImmutableList.of(tag), NO_CREATORS);
+  }
+
+  private Multimap<WaveId, WaveletId> searchCreator(ParticipantId creator) {
+    return handler.searchWaveletContents(ImmutableList.of(PARTICIPANT), NO_TERMS, NO_TERMS,
+        ImmutableList.of(creator));
   }
 
   @Override
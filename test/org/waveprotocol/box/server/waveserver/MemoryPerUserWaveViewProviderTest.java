@@ -67,7 +67,7 @@ public class MemoryPerUserWaveViewProviderTest extends PerUserWaveViewProviderTe
 
   @Override
   protected PerUserWaveViewHandler createPerUserWaveViewHandler() {
-    return new MemoryPerUserWaveViewHandlerImpl(waveMap);
+    return new MemoryPerUserWaveViewHandlerImpl(waveMap, new WaveletSearchIndex());
   }
 
   @Override
@@ -19,9 +19,13 @@
 
 package org.waveprotocol.box.server.waveserver;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import com.google.common.util.concurrent.Futures;
@@ -33,18 +37,25 @@ import junit.framework.TestCase;
 
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.waveprotocol.box.common.DeltaSequence;
 import org.waveprotocol.box.server.common.CoreWaveletOperationSerializer;
 import org.waveprotocol.box.server.persistence.PersistenceException;
 import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
 import org.waveprotocol.box.server.robots.util.ConversationUtil;
 import org.waveprotocol.wave.federation.Proto.ProtocolSignedDelta;
 import org.waveprotocol.wave.federation.Proto.ProtocolWaveletDelta;
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.Attributes;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+import org.waveprotocol.wave.model.id.IdConstants;
 import org.waveprotocol.wave.model.id.IdGenerator;
 import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.id.WaveletName;
 import org.waveprotocol.wave.model.operation.wave.AddParticipant;
+import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletDelta;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
@@ -53,9 +64,11 @@ import org.waveprotocol.wave.model.version.HashedVersionFactory;
 import org.waveprotocol.wave.model.version.HashedVersionZeroFactoryImpl;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.ParticipantIdUtil;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
 import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.concurrent.Executor;
@@ -165,6 +178,7 @@ public class SimpleSearchProviderImplTest extends TestCase {
   @Mock private PerUserWaveViewProvider waveViewProvider;
 
   private SearchProvider searchProvider;
+  private WaveletSearchIndex index;
   private ConversationUtil conversationUtil;
   private WaveDigester digester;
   private WaveMap waveMap;
@@ -207,8 +221,10 @@ public class SimpleSearchProviderImplTest extends TestCase {
 
     waveMap =
         new WaveMap(waveletStore, notifiee, notifiee, localWaveletContainerFactory,
-            remoteWaveletContainerFactory, DOMAIN, lookupExecutor);
-    searchProvider = new SimpleSearchProviderImpl(DOMAIN, digester, waveMap, waveViewProvider);
+            remoteWaveletContainerFactory, DOMAIN, lookupExecutor, 0, 0);
+    index = new WaveletSearchIndex();
+    searchProvider =
+        new SimpleSearchProviderImpl(DOMAIN, digester, waveMap, waveViewProvider, index);
   }
 
   @Override
@@ -453,8 +469,84 @@ public class SimpleSearchProviderImplTest extends TestCase {
     assertEquals(0, results.getNumResults());
   }
 
+  public void testSearchFiltersByIndexedParticipants() throws Exception {
+    submitDeltaToNewWavelet(WAVELET_NAME, USER1, addParticipantToWavelet(USER2, WAVELET_NAME));
+    assertEquals(1, searchProvider.search(USER2, "in:inbox", 0, 20).getNumResults());
+    assertEquals(1, index.size());
+
+    // A later state of the wavelet without USER2 arrives on the wave bus.
+    ObservableWaveletData wavelet = waveMap.getLocalWavelet(WAVELET_NAME).copyWaveletData();
+    wavelet.removeParticipant(USER2);
+    wavelet.setVersion(wavelet.getVersion() + 1);
+    index.waveletUpdate(wavelet, DeltaSequence.empty());
+
+    assertEquals(0, searchProvider.search(USER2, "in:inbox", 0, 20).getNumResults());
+    assertTrue(index.getWaveletsWithParticipant(USER2).isEmpty());
+  }
+
+  public void testSearchWithParticipantUsesIndex() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      WaveletName name = WaveletName.of(WaveId.of(DOMAIN, "w" + i), WAVELET_ID);
+      submitDeltaToNewWavelet(name, USER1, addParticipantToWavelet(USER1, name));
+      if (i % 2 == 0) {
+        LocalWaveletContainer wavelet = waveMap.getLocalWavelet(name);
+        ObservableWaveletData state = wavelet.copyWaveletData();
+        state.addParticipant(USER2);
+        state.setVersion(state.getVersion() + 1);
+        index.update(state);
+      }
+    }
+
+    SearchResult results =
+        searchProvider.search(USER1, "in:inbox with:" + USER2.getAddress(), 0, 10);
+    assertEquals(2, results.getNumResults());
+  }
+
+  public void testSearchFilterByTextAndTagReadsWavelets() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      WaveletName name = WaveletName.of(WaveId.of(DOMAIN, "w" + i), WAVELET_ID);
+      WaveletOperation text = writeDocument("b+1", new DocOpBuilder()
+          .characters(i % 2 == 0 ? "Hello world" : "Goodbye").build());
+      WaveletOperation tags = writeDocument(IdConstants.TAGS_DOC_ID, new DocOpBuilder()
+          .elementStart("tag", Attributes.EMPTY_MAP)
+          .characters(i < 2 ? "work" : "play").elementEnd().build());
+      submitDeltaToNewWavelet(name, USER1, addParticipantToWavelet(USER1, name), text, tags);
+    }
+
+    assertEquals(2, searchProvider.search(USER1, "in:inbox text:hello", 0, 10).getNumResults());
+    assertEquals(2, searchProvider.search(USER1, "in:inbox tag:work", 0, 10).getNumResults());
+    assertEquals(1,
+        searchProvider.search(USER1, "in:inbox text:WORLD tag:work", 0, 10).getNumResults());
+    assertEquals(0, searchProvider.search(USER1, "in:inbox text:nothing", 0, 10).getNumResults());
+    // Whole words match, as in the Lucene index.
+    assertEquals(0, searchProvider.search(USER1, "in:inbox text:hell", 0, 10).getNumResults());
+    assertEquals(2,
+        searchProvider.search(USER1, "in:inbox text:world!", 0, 10).getNumResults());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testSearchFilterByTextUsesContentSearcher() throws Exception {
+    WaveletName other = WaveletName.of(WaveId.of(DOMAIN, "other"), WAVELET_ID);
+    submitDeltaToNewWavelet(WAVELET_NAME, USER1, addParticipantToWavelet(USER1, WAVELET_NAME));
+    submitDeltaToNewWavelet(other, USER1, addParticipantToWavelet(USER1, other));
+    WaveletContentSearcher contentSearcher = mock(WaveletContentSearcher.class);
+    when(contentSearcher.searchWaveletContents(anyCollectionOf(ParticipantId.class),
+        any(Collection.class), any(Collection.class), anyCollectionOf(ParticipantId.class)))
+        .thenReturn(ImmutableMultimap.of(WAVE_ID, WAVELET_ID));
+    ((SimpleSearchProviderImpl) searchProvider).setContentSearcher(contentSearcher);
+
+    SearchResult results = searchProvider.search(USER1, "in:inbox text:hello", 0, 10);
+    assertEquals(1, results.getNumResults());
+    assertEquals(WAVE_ID.serialise(), results.getDigests().get(0).getWaveId());
+  }
+
   // *** Helpers
 
+  private static WaveletOperation writeDocument(String documentId,
+      DocOp content) {
+    return new WaveletBlipOperation(documentId, new BlipContentOperation(CONTEXT, content));
+  }
+
   private void submitDeltaToNewWavelet(WaveletName name, ParticipantId user,
       WaveletOperation... ops) throws Exception {
 
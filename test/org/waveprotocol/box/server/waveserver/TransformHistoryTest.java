@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.operation.wave.TransformedWaveletDelta;
+import org.waveprotocol.wave.model.version.HashedVersion;
+
+import java.util.List;
+
+/**
+ * Tests for {@link TransformHistory}.
+ */
+public class TransformHistoryTest extends TestCase {
+
+  private TransformHistory history;
+  private HashedVersion version;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    history = new TransformHistory(3);
+    version = HashedVersion.unsigned(0);
+  }
+
+  public void testEmptyHistoryHasNoRange() {
+    assertNull(history.getRange(version, version));
+  }
+
+  public void testRangeFromEachDelta() throws Exception {
+    HashedVersion v0 = version;
+    TransformedWaveletDelta d0 = append(2);
+    HashedVersion v1 = version;
+    TransformedWaveletDelta d1 = append(1);
+    HashedVersion v2 = version;
+
+    List<TransformedWaveletDelta> range = history.getRange(v0, v2);
+    assertEquals(2, range.size());
+    assertSame(d0, range.get(0));
+    assertSame(d1, range.get(1));
+    range = history.getRange(v1, v2);
+    assertEquals(1, range.size());
+    assertSame(d1, range.get(0));
+
+    // Not a delta boundary, not the end version, or a different hash.
+    assertNull(history.getRange(HashedVersion.unsigned(1), v2));
+    assertNull(history.getRange(v0, v1));
+    assertNull(history.getRange(HashedVersion.of(2, new byte[] {1}), v2));
+  }
+
+  public void testOldestDeltasAreEvicted() throws Exception {
+    HashedVersion v0 = version;
+    append(1);
+    HashedVersion v1 = version;
+    TransformedWaveletDelta d1 = append(1);
+    append(1);
+    append(1);
+    assertEquals(3, history.size());
+
+    assertNull(history.getRange(v0, version));
+    List<TransformedWaveletDelta> range = history.getRange(v1, version);
+    assertEquals(3, range.size());
+    assertSame(d1, range.get(0));
+  }
+
+  public void testNonContiguousAppendClearsHistory() throws Exception {
+    append(1);
+    append(1);
+    HashedVersion gap = HashedVersion.unsigned(version.getVersion() + 1);
+    WaveletDeltaRecord delta = WaveletStateTestBase.makeDelta(gap, 0L, 1);
+    history.append(gap, delta.getTransformedDelta());
+    assertEquals(1, history.size());
+    assertNotNull(history.getRange(gap, delta.getResultingVersion()));
+  }
+
+  public void testZeroCapacityHoldsNothing() throws Exception {
+    history = new TransformHistory(0);
+    HashedVersion v0 = version;
+    append(1);
+    assertEquals(0, history.size());
+    assertNull(history.getRange(v0, version));
+  }
+
+  private TransformedWaveletDelta append(int numOps) throws Exception {
+    WaveletDeltaRecord delta = WaveletStateTestBase.makeDelta(version, 0L, numOps);
+    history.append(version, delta.getTransformedDelta());
+    version = delta.getResultingVersion();
+    return delta.getTransformedDelta();
+  }
+}
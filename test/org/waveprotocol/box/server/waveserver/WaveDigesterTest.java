@@ -25,6 +25,7 @@ import static org.mockito.Mockito.when;
 import static org.waveprotocol.box.server.util.testing.TestingConstants.PARTICIPANT;
 import static org.waveprotocol.box.server.util.testing.TestingConstants.WAVE_ID;
 
+import com.google.wave.api.SearchResult;
 import com.google.wave.api.SearchResult.Digest;
 
 import junit.framework.TestCase;
@@ -38,10 +39,15 @@ import org.waveprotocol.wave.model.conversation.ObservableConversationView;
 import org.waveprotocol.wave.model.id.IdGenerator;
 import org.waveprotocol.wave.model.id.WaveletId;
 import org.waveprotocol.wave.model.supplement.SupplementedWave;
+import org.waveprotocol.wave.model.version.HashedVersion;
 import org.waveprotocol.wave.model.wave.ObservableWavelet;
 import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+import org.waveprotocol.wave.model.wave.data.WaveViewData;
+import org.waveprotocol.wave.model.wave.data.impl.WaveViewDataImpl;
 import org.waveprotocol.wave.model.wave.opbased.OpBasedWavelet;
 
+import java.util.Arrays;
+
 /**
  * Unit tests for {@link WaveDigester}.
  *
@@ -117,4 +123,36 @@ public class WaveDigesterTest extends TestCase {
     assertEquals(3, digest.getBlipCount());
     assertEquals(2, digest.getUnreadCount());
   }
+
+  public void testSearchResultDigestWithoutUserDataWavelet() {
+    TestingWaveletData data =
+        new TestingWaveletData(WAVE_ID, CONVERSATION_WAVELET_ID, PARTICIPANT, true);
+    data.appendBlipWithText("title");
+    data.appendBlipWithText("blip number 2");
+    WaveViewData wave = WaveViewDataImpl.create(WAVE_ID);
+    wave.addWavelet(data.copyWaveletData().get(0));
+
+    SearchResult result = digester.generateSearchResult(PARTICIPANT, "", Arrays.asList(wave));
+
+    Digest digest = result.getDigests().get(0);
+    assertEquals("title", digest.getTitle());
+    assertEquals(2, digest.getBlipCount());
+    // Without a user data wavelet every blip is unread.
+    assertEquals(2, digest.getUnreadCount());
+  }
+
+  public void testDigestFieldsAreExtractedOncePerVersion() {
+    TestingWaveletData data =
+        new TestingWaveletData(WAVE_ID, CONVERSATION_WAVELET_ID, PARTICIPANT, true);
+    data.appendBlipWithText("title");
+    ObservableWaveletData wavelet = data.copyWaveletData().get(0);
+
+    WaveDigester.DigestFields fields = digester.getDigestFields(wavelet);
+    assertTrue(fields.conversational);
+    assertSame(fields, digester.getDigestFields(data.copyWaveletData().get(0)));
+
+    ObservableWaveletData updated = data.copyWaveletData().get(0);
+    updated.setHashedVersion(HashedVersion.unsigned(wavelet.getVersion() + 1));
+    assertNotSame(fields, digester.getDigestFields(updated));
+  }
 }
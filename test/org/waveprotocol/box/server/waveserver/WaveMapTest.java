@@ -50,12 +50,15 @@ public class WaveMapTest extends TestCase {
   private static final WaveId WAVE_ID = WaveId.of(DOMAIN, "abc123");
   private static final WaveletId WAVELET_ID = WaveletId.of(DOMAIN, "conv+root");
   private static final WaveletName WAVELET_NAME = WaveletName.of(WAVE_ID, WAVELET_ID);
-
+  private static final WaveId WAVE_ID2 = WaveId.of(DOMAIN, "def456");
+  private static final WaveletName WAVELET_NAME2 = WaveletName.of(WAVE_ID2, WAVELET_ID);
 
   @Mock private WaveletNotificationDispatcher notifiee;
   @Mock private RemoteWaveletContainer.Factory remoteWaveletContainerFactory;
 
   private DeltaAndSnapshotStore waveletStore;
+  private LocalWaveletContainer.Factory localWaveletContainerFactory;
+  private Executor storageContinuationExecutor;
   private WaveMap waveMap;
 
   @Override
@@ -64,8 +67,8 @@ public class WaveMapTest extends TestCase {
 
     final DeltaStore deltaStore = new MemoryDeltaStore();
     final Executor persistExecutor = MoreExecutors.sameThreadExecutor();
-    final Executor storageContinuationExecutor = MoreExecutors.sameThreadExecutor();
-    LocalWaveletContainer.Factory localWaveletContainerFactory =
+    storageContinuationExecutor = MoreExecutors.sameThreadExecutor();
+    localWaveletContainerFactory =
         new LocalWaveletContainer.Factory() {
           @Override
           public LocalWaveletContainer create(WaveletNotificationSubscriber notifiee,
@@ -85,7 +88,7 @@ public class WaveMapTest extends TestCase {
     waveletStore = mock(DeltaAndSnapshotStore.class);
     waveMap =
         new WaveMap(waveletStore, notifiee, notifiee, localWaveletContainerFactory,
-            remoteWaveletContainerFactory, "example.com", storageContinuationExecutor);
+            remoteWaveletContainerFactory, "example.com", storageContinuationExecutor, 0, 0);
   }
 
   public void testWaveMapStartsEmpty() throws WaveServerException {
@@ -121,6 +124,120 @@ public class WaveMapTest extends TestCase {
     assertSame(wavelet, waveMap.getLocalWavelet(WAVELET_NAME));
   }
 
+  public void testLeastRecentlyAccessedWaveIsUnloadedOverLimit() throws Exception {
+    when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.<WaveletId>of());
+    when(waveletStore.lookup(WAVE_ID2)).thenReturn(ImmutableSet.<WaveletId>of());
+    waveMap = new WaveMap(waveletStore, notifiee, notifiee, localWaveletContainerFactory,
+        remoteWaveletContainerFactory, DOMAIN, storageContinuationExecutor, 0, 1);
+    LocalWaveletContainer wavelet = waveMap.getOrCreateLocalWavelet(WAVELET_NAME);
+    Thread.sleep(5);
+    LocalWaveletContainer wavelet2 = waveMap.getOrCreateLocalWavelet(WAVELET_NAME2);
+
+    assertEquals(1, waveMap.unloadWavelets());
+    assertSame(wavelet2, waveMap.getLocalWavelet(WAVELET_NAME2));
+    try {
+      wavelet.getLastCommittedVersion();
+      fail("Expected unloaded wavelet to be unusable");
+    } catch (WaveletUnloadedException expected) {
+      // Pass.
+    }
+  }
+
+  public void testUnloadedWaveletIsReloaded() throws Exception {
+    // The wavelet is stored by the time it's unloaded, so the second lookup finds it.
+    when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.<WaveletId>of(),
+        ImmutableSet.of(WAVELET_ID));
+    when(waveletStore.lookup(WAVE_ID2)).thenReturn(ImmutableSet.<WaveletId>of());
+    waveMap = new WaveMap(waveletStore, notifiee, notifiee, localWaveletContainerFactory,
+        remoteWaveletContainerFactory, DOMAIN, storageContinuationExecutor, 0, 1);
+    waveMap.getOrCreateLocalWavelet(WAVELET_NAME);
+    Thread.sleep(5);
+    waveMap.getOrCreateLocalWavelet(WAVELET_NAME2);
+    waveMap.unloadWavelets();
+
+    LocalWaveletContainer reloaded = waveMap.getLocalWavelet(WAVELET_NAME);
+    assertNotNull(reloaded);
+    assertTrue(reloaded.isEmpty());
+  }
+
+  public void testWaveWithNoLoadedWaveletsIsEvicted() throws Exception {
+    when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.<WaveletId>of());
+    when(waveletStore.lookup(WAVE_ID2)).thenReturn(ImmutableSet.<WaveletId>of());
+    waveMap = new WaveMap(waveletStore, notifiee, notifiee, localWaveletContainerFactory,
+        remoteWaveletContainerFactory, DOMAIN, storageContinuationExecutor, 0, 1);
+    waveMap.getOrCreateLocalWavelet(WAVELET_NAME);
+    Thread.sleep(5);
+    waveMap.getOrCreateLocalWavelet(WAVELET_NAME2);
+    assertEquals(2, waveMap.getWaves().size());
+
+    Wave wave = waveMap.getWaves().get(WAVE_ID);
+    waveMap.unloadWavelets();
+
+    assertEquals(ImmutableSet.of(WAVE_ID2), waveMap.getWaves().keySet());
+    assertTrue(wave.isEvicted());
+    assertFalse(wave.iterator().hasNext());
+  }
+
+  public void testWaveletIsCreatedInWaveReplacingEvictedOne() throws Exception {
+    when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.<WaveletId>of());
+    waveMap = new WaveMap(waveletStore, notifiee, notifiee, localWaveletContainerFactory,
+        remoteWaveletContainerFactory, DOMAIN, storageContinuationExecutor, 0, 1);
+    waveMap.lookupWavelets(WAVE_ID);
+    Wave evicted = waveMap.getWaves().get(WAVE_ID);
+    waveMap.unloadWavelets();
+
+    // A reader still holding the evicted wave can't load wavelets into it.
+    assertNull(evicted.getOrCreateLocalWavelet(WAVELET_ID));
+    LocalWaveletContainer wavelet = waveMap.getOrCreateLocalWavelet(WAVELET_NAME);
+    assertNotNull(wavelet);
+    Wave wave = waveMap.getWaves().get(WAVE_ID);
+    assertNotSame(evicted, wave);
+    assertTrue(wave.isResident());
+  }
+
+  public void testLookupReplacesContainerUnloadedBeforeRemoval() throws Exception {
+    when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.<WaveletId>of());
+    LocalWaveletContainer wavelet = waveMap.getOrCreateLocalWavelet(WAVELET_NAME);
+    // As if the unloader was between unloading the container and removing it.
+    assertNotNull(wavelet.unload());
+
+    LocalWaveletContainer reloaded = waveMap.getLocalWavelet(WAVELET_NAME);
+    assertNotSame(wavelet, reloaded);
+    assertFalse(reloaded.isUnloaded());
+    assertTrue(reloaded.isEmpty());
+    assertSame(reloaded, waveMap.getOrCreateLocalWavelet(WAVELET_NAME));
+  }
+
+  public void testWaveletThatCannotUnloadStaysResident() throws Exception {
+    final LocalWaveletContainer unpersisted = mock(LocalWaveletContainer.class);
+    when(unpersisted.unload()).thenReturn(null);
+    LocalWaveletContainer.Factory factory = new LocalWaveletContainer.Factory() {
+      @Override
+      public LocalWaveletContainer create(WaveletNotificationSubscriber notifiee,
+          WaveletName waveletName, String domain) {
+        return unpersisted;
+      }
+    };
+    when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.<WaveletId>of());
+    waveMap = new WaveMap(waveletStore, notifiee, notifiee, factory,
+        remoteWaveletContainerFactory, DOMAIN, storageContinuationExecutor, 1, 0);
+    waveMap.getOrCreateLocalWavelet(WAVELET_NAME);
+    Thread.sleep(5);
+
+    assertEquals(0, waveMap.unloadWavelets());
+    assertSame(unpersisted, waveMap.getLocalWavelet(WAVELET_NAME));
+  }
+
+  public void testRecentlyAccessedWaveIsNotUnloadedWhenIdle() throws Exception {
+    when(waveletStore.lookup(WAVE_ID)).thenReturn(ImmutableSet.<WaveletId>of());
+    waveMap = new WaveMap(waveletStore, notifiee, notifiee, localWaveletContainerFactory,
+        remoteWaveletContainerFactory, DOMAIN, storageContinuationExecutor, 3600, 0);
+    LocalWaveletContainer wavelet = waveMap.getOrCreateLocalWavelet(WAVELET_NAME);
+
+    assertEquals(0, waveMap.unloadWavelets());
+    assertSame(wavelet, waveMap.getLocalWavelet(WAVELET_NAME));
+  }
+
   private ExceptionalIterator<WaveId, PersistenceException> eitr(WaveId... waves) {
     return ExceptionalIterator.FromIterator.<WaveId, PersistenceException>create(
         Arrays.asList(waves).iterator());
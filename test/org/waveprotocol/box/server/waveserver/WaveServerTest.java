@@ -108,7 +108,8 @@ public class WaveServerTest extends TestCase {
       public LocalWaveletContainer create(WaveletNotificationSubscriber notifiee,
           WaveletName waveletName, String waveDomain) {
         return new LocalWaveletContainerImpl(waveletName, notifiee,
-            WaveServerModule.loadWaveletState(waveletLoadExecutor, deltaStore, waveletName, persistExecutor),
+            WaveServerModule.loadWaveletState(waveletLoadExecutor, deltaStore, waveletName,
+                persistExecutor, 0, 0, new DeltaCacheStats()),
             waveDomain, storageContinuationExecutor);
       }
     };
@@ -117,7 +118,7 @@ public class WaveServerTest extends TestCase {
     Executor lookupExecutor = MoreExecutors.sameThreadExecutor();
     waveMap =
         new WaveMap(waveletStore, notifiee, notifiee, localWaveletContainerFactory,
-            remoteWaveletContainerFactory, "example.com", lookupExecutor);
+            remoteWaveletContainerFactory, "example.com", lookupExecutor, 0, 0);
     waveServer =
         new WaveServerImpl(MoreExecutors.sameThreadExecutor(), certificateManager,
             federationRemote, waveMap);
@@ -135,7 +136,7 @@ public class WaveServerTest extends TestCase {
     submitDeltaToNewWavelet(WAVELET_NAME, USER1, addParticipantToWavelet(USER2));
 
     verify(notifiee).waveletUpdate(Matchers.<ReadableWaveletData>any(),
-        Matchers.<ImmutableList<WaveletDeltaRecord>>any(), eq(ImmutableSet.of(DOMAIN)));
+        Matchers.<DeferredSnapshot>any(), Matchers.<ImmutableList<WaveletDeltaRecord>>any(), eq(ImmutableSet.of(DOMAIN)));
     verify(notifiee).waveletCommitted(eq(WAVELET_NAME), Matchers.<HashedVersion>any(),
         eq(ImmutableSet.of(DOMAIN)));
   }
@@ -56,6 +56,11 @@ public final class WaveServerTestUtil {
       throws InvalidProtocolBufferException, OperationException {
     ByteStringMessage<ProtocolAppliedWaveletDelta> appliedDelta =
         buildAppliedDelta(delta, applicationTimestamp);
-    wavelet.applyDelta(appliedDelta, delta);
+    wavelet.acquireWriteLock();
+    try {
+      wavelet.applyDelta(appliedDelta, delta);
+    } finally {
+      wavelet.releaseWriteLock();
+    }
   }
 }
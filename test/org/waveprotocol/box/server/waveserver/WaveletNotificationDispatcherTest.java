@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import junit.framework.TestCase;
+
+import org.mockito.InOrder;
+
+import org.waveprotocol.box.common.DeltaSequence;
+import org.waveprotocol.wave.federation.WaveletFederationListener;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.data.ReadableWaveletData;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link WaveletNotificationDispatcher}.
+ */
+public class WaveletNotificationDispatcherTest extends TestCase {
+
+  private static final String DOMAIN = "example.com";
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of(WaveId.of(DOMAIN, "w+a"), WaveletId.of(DOMAIN, "conv+root"));
+  private static final ImmutableSet<String> NO_DOMAINS = ImmutableSet.of();
+
+  /** Records committed versions, blocking in the first call until released. */
+  private static class BlockingSubscriber implements WaveBus.Subscriber {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Long> versions = Collections.synchronizedList(Lists.<Long>newArrayList());
+
+    @Override
+    public void waveletUpdate(ReadableWaveletData wavelet, DeltaSequence deltas) {
+    }
+
+    @Override
+    public void waveletCommitted(WaveletName waveletName, HashedVersion version) {
+      entered.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      versions.add(version.getVersion());
+    }
+  }
+
+  private CertificateManager certificateManager;
+  private WaveletNotificationDispatcher dispatcher;
+
+  @Override
+  protected void setUp() throws Exception {
+    certificateManager = mock(CertificateManager.class);
+    when(certificateManager.getLocalDomains()).thenReturn(ImmutableSet.of(DOMAIN));
+  }
+
+  public void testDeliversSynchronouslyByDefault() {
+    dispatcher = createDispatcher(0, 0);
+    WaveBus.Subscriber subscriber = mock(WaveBus.Subscriber.class);
+    dispatcher.subscribe(subscriber);
+
+    dispatcher.waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(1), NO_DOMAINS);
+    verify(subscriber).waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(1));
+    assertNull(dispatcher.getAsyncSubscriber(subscriber));
+  }
+
+  public void testAsyncDeliveryDoesNotWaitForSubscriber() throws Exception {
+    dispatcher = createDispatcher(10, 1000);
+    BlockingSubscriber subscriber = new BlockingSubscriber();
+    dispatcher.subscribe(subscriber);
+
+    for (int i = 1; i <= 3; i++) {
+      dispatcher.waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(i), NO_DOMAINS);
+    }
+    assertTrue(subscriber.entered.await(10, TimeUnit.SECONDS));
+    assertTrue(subscriber.versions.isEmpty());
+
+    subscriber.release.countDown();
+    AsyncWaveBusSubscriber async = dispatcher.getAsyncSubscriber(subscriber);
+    awaitDelivered(async, 3);
+    assertEquals(Lists.newArrayList(1L, 2L, 3L), subscriber.versions);
+    assertEquals(0L, async.getDroppedCount());
+    dispatcher.unsubscribe(subscriber);
+  }
+
+  public void testFullQueueWaitsForRoom() throws Exception {
+    dispatcher = createDispatcher(1, 10);
+    BlockingSubscriber subscriber = new BlockingSubscriber();
+    dispatcher.subscribe(subscriber);
+
+    dispatcher.waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(1), NO_DOMAINS);
+    assertTrue(subscriber.entered.await(10, TimeUnit.SECONDS));
+    dispatcher.waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(2), NO_DOMAINS);
+    Thread notifier = new Thread() {
+      @Override
+      public void run() {
+        dispatcher.waveletCommitted(WAVELET_NAME, HashedVersion.unsigned(3), NO_DOMAINS);
+      }
+    };
+    notifier.start();
+
+    AsyncWaveBusSubscriber async = dispatcher.getAsyncSubscriber(subscriber);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (async.getSlowEnqueueCount() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1L, async.getSlowEnqueueCount());
+    assertTrue(notifier.isAlive());
+    subscriber.release.countDown();
+    notifier.join(10000);
+    awaitDelivered(async, 3);
+    assertEquals(Lists.newArrayList(1L, 2L, 3L), subscriber.versions);
+    assertEquals(0L, async.getDroppedCount());
+
+    Map<String, Number> stats = Maps.newLinkedHashMap();
+    dispatcher.collectStats(stats);
+    assertEquals(3L, stats.get("BlockingSubscriber.delivered"));
+    assertEquals(1L, stats.get("BlockingSubscriber.slowEnqueues"));
+    dispatcher.unsubscribe(subscriber);
+  }
+
+  public void testAsyncUpdateReadsSnapshotOnDelivery() throws Exception {
+    dispatcher = createDispatcher(10, 1000);
+    WaveBus.Subscriber subscriber = mock(WaveBus.Subscriber.class);
+    dispatcher.subscribe(subscriber);
+    ReadableWaveletData wavelet = mock(ReadableWaveletData.class);
+    when(wavelet.getWaveId()).thenReturn(WAVELET_NAME.waveId);
+    when(wavelet.getWaveletId()).thenReturn(WAVELET_NAME.waveletId);
+    ReadableWaveletData copy = mock(ReadableWaveletData.class);
+    DeferredSnapshot snapshot = mock(DeferredSnapshot.class);
+    when(snapshot.get()).thenReturn(copy);
+
+    dispatcher.waveletUpdate(wavelet, snapshot, ImmutableList.<WaveletDeltaRecord>of(),
+        NO_DOMAINS);
+    awaitDelivered(dispatcher.getAsyncSubscriber(subscriber), 1);
+    InOrder inOrder = inOrder(snapshot, subscriber);
+    inOrder.verify(snapshot).pin();
+    inOrder.verify(subscriber).waveletUpdate(copy, DeltaSequence.empty());
+    inOrder.verify(snapshot).release();
+    dispatcher.unsubscribe(subscriber);
+  }
+
+  private WaveletNotificationDispatcher createDispatcher(int queueSize, int enqueueTimeoutMs) {
+    return new WaveletNotificationDispatcher(certificateManager,
+        mock(WaveletFederationListener.Factory.class), queueSize, 1, enqueueTimeoutMs);
+  }
+
+  private static void awaitDelivered(AsyncWaveBusSubscriber async, long count)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (async.getDeliveredCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, async.getDeliveredCount());
+  }
+}
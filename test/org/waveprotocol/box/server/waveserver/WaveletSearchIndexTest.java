@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.server.util.WaveletDataUtil;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersion;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.ObservableWaveletData;
+
+/**
+ * Tests for {@link WaveletSearchIndex}.
+ */
+public class WaveletSearchIndexTest extends TestCase {
+
+  private static final WaveletName WAVELET_NAME =
+      WaveletName.of(WaveId.of("example.com", "w"), WaveletId.of("example.com", "conv+root"));
+  private static final ParticipantId CREATOR = ParticipantId.ofUnsafe("creator@example.com");
+  private static final ParticipantId USER = ParticipantId.ofUnsafe("user@example.com");
+
+  private WaveletSearchIndex index;
+
+  @Override
+  protected void setUp() throws Exception {
+    index = new WaveletSearchIndex();
+  }
+
+  public void testUpdateIndexesParticipantsAndCreator() {
+    index.update(makeWavelet(1, CREATOR, USER));
+
+    ObservableWaveletData header = index.getHeader(WAVELET_NAME);
+    assertEquals(1, header.getVersion());
+    assertEquals(1000, header.getLastModifiedTime());
+    assertEquals(2, header.getParticipants().size());
+    assertTrue(header.getDocumentIds().isEmpty());
+    assertTrue(index.getWaveletsWithParticipant(USER).contains(WAVELET_NAME));
+    assertTrue(index.getWaveletsCreatedBy(CREATOR).contains(WAVELET_NAME));
+    assertTrue(index.getWaveletsCreatedBy(USER).isEmpty());
+  }
+
+  public void testRemovedParticipantIsUnindexed() {
+    index.update(makeWavelet(1, CREATOR, USER));
+    index.update(makeWavelet(2, CREATOR));
+
+    assertTrue(index.getWaveletsWithParticipant(USER).isEmpty());
+    assertTrue(index.getWaveletsWithParticipant(CREATOR).contains(WAVELET_NAME));
+    assertEquals(1, index.size());
+  }
+
+  public void testEarlierStateIsIgnored() {
+    index.update(makeWavelet(2, CREATOR));
+    index.update(makeWavelet(1, CREATOR, USER));
+
+    assertEquals(2, index.getHeader(WAVELET_NAME).getVersion());
+    assertTrue(index.getWaveletsWithParticipant(USER).isEmpty());
+  }
+
+  private static ObservableWaveletData makeWavelet(long version, ParticipantId... participants) {
+    ObservableWaveletData wavelet = WaveletDataUtil.createEmptyWavelet(WAVELET_NAME, CREATOR,
+        HashedVersion.unsigned(0), 0);
+    for (ParticipantId participant : participants) {
+      wavelet.addParticipant(participant);
+    }
+    wavelet.setVersion(version);
+    wavelet.setLastModifiedTime(version * 1000);
+    return wavelet;
+  }
+}
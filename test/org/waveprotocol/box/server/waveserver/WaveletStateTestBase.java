@@ -374,7 +374,7 @@ private void checkHistoryForDeltasWithInterrupt(final int interruptIndex, Wavele
    * Creates a delta of no-ops and builds the corresponding applied and
    * transformed delta objects.
    */
-  private static WaveletDeltaRecord makeDelta(HashedVersion appliedAtVersion, long timestamp,
+  protected static WaveletDeltaRecord makeDelta(HashedVersion appliedAtVersion, long timestamp,
       int numOps) throws InvalidProtocolBufferException {
     // Use no-op delta so the ops can actually apply.
     WaveletDelta delta = UTIL.makeNoOpDelta(appliedAtVersion, timestamp, numOps);
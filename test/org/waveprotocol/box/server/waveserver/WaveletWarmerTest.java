@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.waveprotocol.box.server.waveserver;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.box.server.persistence.PersistenceException;
+import org.waveprotocol.box.server.persistence.memory.MemoryDeltaStore;
+import org.waveprotocol.wave.model.id.IdURIEncoderDecoder;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+import org.waveprotocol.wave.model.id.WaveletName;
+import org.waveprotocol.wave.model.version.HashedVersionFactory;
+import org.waveprotocol.wave.model.version.HashedVersionFactoryImpl;
+import org.waveprotocol.wave.util.escapers.jvm.JavaUrlCodec;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link WaveletWarmer}.
+ */
+public class WaveletWarmerTest extends TestCase {
+
+  private static final String DOMAIN = "example.com";
+  private static final WaveletId WAVELET_ID = WaveletId.of(DOMAIN, "conv+root");
+  private static final WaveletName OLD_WAVELET =
+      WaveletName.of(WaveId.of(DOMAIN, "old"), WAVELET_ID);
+  private static final WaveletName NEW_WAVELET =
+      WaveletName.of(WaveId.of(DOMAIN, "new"), WAVELET_ID);
+  private static final HashedVersionFactory HASH_FACTORY =
+      new HashedVersionFactoryImpl(new IdURIEncoderDecoder(new JavaUrlCodec()));
+
+  private DeltaStore deltaStore;
+  private CertificateManager certificateManager;
+  private LocalWaveletContainer.Factory localWaveletContainerFactory;
+
+  @Override
+  protected void setUp() throws Exception {
+    deltaStore = new MemoryDeltaStore();
+    certificateManager = mock(CertificateManager.class);
+    when(certificateManager.getLocalDomains()).thenReturn(ImmutableSet.of(DOMAIN));
+    final Executor sameThreadExecutor = MoreExecutors.sameThreadExecutor();
+    localWaveletContainerFactory = new LocalWaveletContainer.Factory() {
+      @Override
+      public LocalWaveletContainer create(WaveletNotificationSubscriber notifiee,
+          WaveletName waveletName, String domain) {
+        WaveletState waveletState;
+        try {
+          waveletState = DeltaStoreBasedWaveletState.create(deltaStore.open(waveletName),
+              sameThreadExecutor);
+        } catch (PersistenceException e) {
+          throw new RuntimeException(e);
+        }
+        return new LocalWaveletContainerImpl(waveletName, notifiee,
+            Futures.immediateFuture(waveletState), DOMAIN, sameThreadExecutor);
+      }
+    };
+
+    store(OLD_WAVELET, 1000L);
+    store(NEW_WAVELET, 2000L);
+  }
+
+  public void testWarmUpLoadsStoredWavelets() throws Exception {
+    WaveMap waveMap = createWaveMap(0);
+
+    assertEquals(2, createWarmer(waveMap, 0).warmUp());
+    assertTrue(waveMap.getWaves().get(OLD_WAVELET.waveId).isResident());
+    assertTrue(waveMap.getWaves().get(NEW_WAVELET.waveId).isResident());
+  }
+
+  public void testWarmUpLoadsMostRecentlyModifiedWavesUpToResidentLimit() throws Exception {
+    WaveMap waveMap = createWaveMap(1);
+
+    assertEquals(1, createWarmer(waveMap, 1).warmUp());
+    assertTrue(waveMap.getWaves().get(NEW_WAVELET.waveId).isResident());
+    assertFalse(waveMap.getWaves().containsKey(OLD_WAVELET.waveId));
+  }
+
+  private WaveMap createWaveMap(int maxResidentWaves) {
+    WaveletNotificationSubscriber notifiee = mock(WaveletNotificationSubscriber.class);
+    return new WaveMap(new DeltaStoreBasedSnapshotStore(deltaStore), notifiee,
+        mock(WaveBus.class), localWaveletContainerFactory,
+        mock(RemoteWaveletContainer.Factory.class), DOMAIN, MoreExecutors.sameThreadExecutor(),
+        0, maxResidentWaves);
+  }
+
+  private WaveletWarmer createWarmer(WaveMap waveMap, int maxResidentWaves) {
+    return new WaveletWarmer(waveMap, deltaStore, certificateManager, 2, 0, maxResidentWaves);
+  }
+
+  private void store(WaveletName waveletName, long timestamp) throws Exception {
+    DeltaStore.DeltasAccess access = deltaStore.open(waveletName);
+    access.append(ImmutableList.of(WaveletStateTestBase.makeDelta(
+        HASH_FACTORY.createVersionZero(waveletName), timestamp, 1)));
+    access.close();
+  }
+}
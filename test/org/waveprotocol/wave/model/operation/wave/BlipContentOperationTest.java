@@ -70,4 +70,18 @@ public class BlipContentOperationTest extends OperationTestBase {
     assertEquals(noParticipants, blip.getContributors());
   }
 
+  public void testWithContentOpKeepsContributorUpdate() throws OperationException {
+    BlipContentOperation op = new BlipContentOperation(context, docOp,
+        BlipOperation.UpdateContributorMethod.REMOVE);
+    BlipContentOperation other = op.withContentOp(docOp);
+    BlipData blip = waveletData.createDocument("root", fred, Collections.singletonList(fred),
+        EmptyDocument.EMPTY_DOCUMENT, 0L, 0L);
+
+    other.apply(blip);
+
+    assertTrue(other.updatesContributorsLike(op));
+    assertFalse(other.updatesContributorsLike(new BlipContentOperation(context, docOp)));
+    assertEquals(noParticipants, blip.getContributors());
+  }
+
 }